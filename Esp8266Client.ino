@@ -25,6 +25,7 @@
 
 #include <ESP8266WiFi.h>
 #include <PubSubClient.h>
+#include <WiFiUdp.h>
 
 // Update these with values suitable for your network.
 
@@ -38,10 +39,30 @@ const char* outTopic = "FromArduino";
 const char* inTopic = "ToArduino";
 
 const short int BUILTIN_LED1 = 2; //GPIO2
-const short int RELAY1 = 16; // D0
-const short int RELAY2 = 5;  // D1
-const short int RELAY3 = 4;  // D2
-const short int RELAY4 = 0;  // D3
+// Relay pin of each outlet, RELAYS[n-1] for outlet n. Add pins here for
+// strips with more outlets.
+const short int RELAYS[] = {
+  16, // D0
+  5,  // D1
+  4,  // D2
+  0   // D3
+};
+const int OUTLET_COUNT = sizeof(RELAYS) / sizeof(RELAYS[0]);
+
+// Direct control from phones on the same Wi-Fi, see LanLink.java. Datagrams
+// are binary frames as in MessageCodec.java: a Hello is answered with a
+// Hello carrying stripId, the strip id set in the app, and State and Batch
+// commands are acked with their id once the relays switched.
+const char* stripId = "1";
+const unsigned int LAN_PORT = 4210;
+const byte FRAME_MAGIC = 0xA7;
+const byte FRAME_VERSION = 1;
+const byte TYPE_HELLO = 1;
+const byte TYPE_STATE = 2;
+const byte TYPE_BATCH = 7;
+const byte TYPE_ACK = 9;
+WiFiUDP udp;
+byte datagram[64];
 
 WiFiClient espClient;
 PubSubClient client(ip, 1883, espClient);
@@ -54,29 +75,12 @@ int asciiToInt(char a) { // Converts char to ascii for handling purposes
   return b;
 }
 
-void stateChange(char tempPlug, char tempState) {
-  int plug = asciiToInt(tempPlug);
-  int stateint = asciiToInt(tempState);
-  bool state = stateint == 1;
-  
-  switch (plug) {
-    case 1:      
-      digitalWrite(RELAY1, !state); // ESP8266 has an active low
-      Serial.println("1");
-      break;
-    case 2:
-      digitalWrite(RELAY2, !state);
-      Serial.println("2");
-      break;
-    case 3:
-      digitalWrite(RELAY3, !state);
-      Serial.println("3");
-      break;
-    case 4:
-      digitalWrite(RELAY4, !state);
-      Serial.println("4");
-      break;
+void stateChange(int plug, bool state) {
+  if (plug < 1 || plug > OUTLET_COUNT) {
+    return;
   }
+  digitalWrite(RELAYS[plug - 1], !state); // ESP8266 has an active low
+  Serial.println(plug);
 }
 
 void callback(char* topic, byte* payload, unsigned int length) {
@@ -92,18 +96,98 @@ void callback(char* topic, byte* payload, unsigned int length) {
 //  delay(1000);
 //  digitalWrite(BUILTIN_LED1, HIGH);
 
-  if (length == 3) { // Length 3 means standard status change message
-    // Parse message 'plug:state'
-    stateChange((char)payload[0], (char)payload[2]);
-    Serial.println("Standard change");
+  // Messages are one or more 'plug:state' pairs separated by '/', e.g. a
+  // standard change 1:0, a batch 1:1/3:0 or a full sync 1:0/2:0/3:1/4:0.
+  // Plug numbers can have more than one digit. Commands the server wants
+  // acknowledged end with /#<seq>, answered with Ack:<seq> once switched.
+  if (length == 0 || payload[0] < '0' || payload[0] > '9') {
+    return;
+  }
+  int changes = 0;
+  long seq = -1;
+  unsigned int i = 0;
+  while (i < length) {
+    if (payload[i] == '#') {
+      seq = 0;
+      for (i++; i < length && payload[i] >= '0' && payload[i] <= '9'; i++) {
+        seq = seq * 10 + asciiToInt((char)payload[i]);
+      }
+      break;
+    }
+    int plug = 0;
+    while (i < length && payload[i] >= '0' && payload[i] <= '9') {
+      plug = plug * 10 + asciiToInt((char)payload[i++]);
+    }
+    if (i + 1 >= length || payload[i] != ':') {
+      break;
+    }
+    stateChange(plug, payload[i + 1] == '1');
+    changes++;
+    i += 3; // Skips the state and the '/'
+  }
+  Serial.println(changes == 1 ? "Standard change" : "Batch change");
+  if (seq >= 0) {
+    snprintf(msg, sizeof(msg), "Ack:%ld", seq);
+    client.publish(outTopic, msg);
+  }
+}
+
+void handleDatagram() {
+  if (udp.parsePacket() <= 0) {
+    return;
   }
-  else if (length == 15) { // Length 15 means all 4 plug values are incoming ex. 1:0/2:0/3:1/4:0
-    stateChange((char)payload[0], (char)payload[2]);
-    stateChange((char)payload[4], (char)payload[6]);
-    stateChange((char)payload[8], (char)payload[10]);
-    stateChange((char)payload[12], (char)payload[14]);
-    Serial.println("Sync change");
+  int n = udp.read(datagram, sizeof(datagram));
+  if (n < 4 || datagram[0] != FRAME_MAGIC) {
+    return;
   }
+  byte reply[40];
+  int idAt;
+  if (datagram[2] == TYPE_HELLO) {
+    if (n > 4) {
+      return; // Another strip answering a phone
+    }
+    int len = strlen(stripId);
+    reply[0] = FRAME_MAGIC;
+    reply[1] = FRAME_VERSION;
+    reply[2] = TYPE_HELLO;
+    reply[3] = FRAME_VERSION;
+    reply[4] = len;
+    memcpy(reply + 5, stripId, len);
+    udp.beginPacket(udp.remoteIP(), udp.remotePort());
+    udp.write(reply, 5 + len);
+    udp.endPacket();
+    return;
+  }
+  if (datagram[2] == TYPE_STATE && n >= 5) {
+    stateChange(datagram[3], datagram[4] != 0);
+    idAt = 5;
+  } else if (datagram[2] == TYPE_BATCH) {
+    int count = datagram[3];
+    int bytes = (count + 7) / 8;
+    if (n < 4 + 2 * bytes) {
+      return;
+    }
+    for (int i = 0; i < count; i++) {
+      if (datagram[4 + i / 8] & (1 << (i % 8))) {
+        stateChange(i + 1, (datagram[4 + bytes + i / 8] & (1 << (i % 8))) != 0);
+      }
+    }
+    idAt = 4 + 2 * bytes;
+  } else {
+    return;
+  }
+  Serial.println("Direct change");
+  if (n < idAt + 4) {
+    return; // Not acked
+  }
+  reply[0] = FRAME_MAGIC;
+  reply[1] = FRAME_VERSION;
+  reply[2] = TYPE_ACK;
+  memcpy(reply + 3, datagram + idAt, 4);
+  reply[7] = 1;
+  udp.beginPacket(udp.remoteIP(), udp.remotePort());
+  udp.write(reply, 8);
+  udp.endPacket();
 }
 
 void setup_wifi() {
@@ -127,45 +211,52 @@ void setup_wifi() {
   Serial.println(WiFi.localIP());
 }
 
+// One connection attempt. The loop retries every 5 seconds without
+// blocking, so phones can still switch outlets directly meanwhile.
+long lastReconnectAttempt = 0;
+
 void reconnect() {
-  // Loop until we're reconnected
-  while (!client.connected()) {
-    Serial.print("Attempting MQTT connection...");
-    // Attempt to connect
-    bool result = client.connect("ESP8266Client");
-    if (result) {
-      Serial.println("connected");
-      // Once connected, publish an announcement...
-      client.publish(outTopic, "Hello From ESP8266");
-      // ... and resubscribe
-      client.subscribe(inTopic);
-      client.publish(outTopic, "Sync"); // Asks server to send back all outlet values
-    } else {
-      Serial.print("failed, rc=");
-      Serial.print(client.state());
-      Serial.println(" try again in 5 seconds");
-      // Wait 5 seconds before retrying
-      delay(5000);
-    }
+  Serial.print("Attempting MQTT connection...");
+  // Attempt to connect
+  bool result = client.connect("ESP8266Client");
+  if (result) {
+    Serial.println("connected");
+    // Once connected, publish an announcement...
+    client.publish(outTopic, "Hello From ESP8266");
+    // ... and resubscribe
+    client.subscribe(inTopic);
+    // Asks server to send back all outlet values, and tells it commands can
+    // carry a sequence number to ack
+    client.publish(outTopic, "Sync:Acks");
+  } else {
+    Serial.print("failed, rc=");
+    Serial.print(client.state());
+    Serial.println(" try again in 5 seconds");
   }
 }
 
 void setup() {
   pinMode(BUILTIN_LED1, OUTPUT);     // Initialize pins as outputs
-  pinMode(RELAY1, OUTPUT);
-  pinMode(RELAY2, OUTPUT);
-  pinMode(RELAY3, OUTPUT);
-  pinMode(RELAY4, OUTPUT);
+  for (int i = 0; i < OUTLET_COUNT; i++) {
+    pinMode(RELAYS[i], OUTPUT);
+  }
   
   Serial.begin(115200);
   setup_wifi();
+  udp.begin(LAN_PORT);
   client.setCallback(callback);
 }
 
 void loop() {
 
+  handleDatagram();
   if (!client.connected()) {
-    reconnect();
+    long now = millis();
+    if (now - lastReconnectAttempt > 5000) {
+      lastReconnectAttempt = now;
+      reconnect();
+    }
+    return;
   }
   client.loop();
 
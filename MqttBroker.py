@@ -1,6 +1,39 @@
 import paho.mqtt.client as mqtt
+try:
+    from paho.mqtt.properties import Properties
+    from paho.mqtt.packettypes import PacketTypes
+except ImportError:
+    # paho-mqtt before 1.5 only speaks MQTT 3.1.1
+    Properties = None
 import MySQLdb
 import datetime
+import sys
+import time
+
+# Binary frame constants, must match MessageCodec.java in the android app
+FRAME_MAGIC = 0xA7
+FRAME_VERSION = 1
+TYPE_HELLO = 1
+TYPE_STATE = 2
+TYPE_SYNC = 3
+TYPE_SNAPSHOT = 4
+TYPE_BATTERY = 5
+TYPE_SETTING = 6
+TYPE_BATCH = 7
+TYPE_DELTA = 8
+TYPE_ACK = 9
+TYPE_POWER = 10
+SETTING_NAMES = {1: "Battery", 2: "Timer On", 3: "Timer Off"}
+
+# Every strip has its own topics so one app connection can follow a whole
+# fleet: commands arrive on strip/<id>/cmd (or strip/all/cmd, which every
+# strip listens to) and state goes out on strip/<id>/state. The id is given
+# on the command line and defaults to 1.
+STRIP_ID = sys.argv[1] if len(sys.argv) > 1 else "1"
+CMD_TOPIC = "strip/" + STRIP_ID + "/cmd"
+ALL_CMD_TOPIC = "strip/all/cmd"
+STATE_TOPIC = "strip/" + STRIP_ID + "/state"
+ANDROID_TOPICS = (CMD_TOPIC, ALL_CMD_TOPIC)
 
 # Wrapper function that updates the database given the field name,
 # plug number, and value all as strings since mysql commands are
@@ -25,90 +58,497 @@ def getDB(field, plug):
     value = values[plug-1] # Subtract 1 bc out of bounds error
     return value[0]
 
+# States of every outlet in the table, in plug order, so strips with any
+# number of outlets work without changes here
+def getAllStates():
+    curs.execute("SELECT currentstatus FROM outlets ORDER BY plug;")
+    db.commit() # Refresh database info
+    return [int(row[0]) for row in curs.fetchall()]
+
+# Every outlet as 1:0/2:0/3:1/4:0
 def getAllStatus():
-    return ("1:"+str(getDB('currentstatus', 1))+
-                "/2:"+str(getDB('currentstatus', 2))+
-                "/3:"+str(getDB('currentstatus', 3))+
-                "/4:"+str(getDB('currentstatus', 4)))
-            
+    return "/".join("%d:%d" % (i + 1, state) for i, state in enumerate(getAllStates()))
+
 # Function that sends a string message to the ESP8266
 # indicating whether to turn an outlet on or off.
 # This also updates the database with the correct status
-def changeStatus(outlet, status):
+def changeStatus(outlet, status, ackId=None):
+    bumpVersion([(outlet, status)])
     if status == '0':
         print("Turning port " + outlet + " off")
     if status == '1':
         print("Turning port " + outlet + " on")
-    client.publish("ToArduino", outlet + ":" + status)
+    publishToArduino(outlet + ":" + status, ackId)
     updateDBInt('currentstatus', outlet, status)
 
-def compareTimer(timeStamp):
-    data = timeStamp.split("-")
-    stampHour = int(data[0])
-    stampMinute = int(data[1])
-    curTime = datetime.time(hour = stampHour, minute = stampMinute)
+# Command acks. Commands from the app can carry a correlation id, and the app
+# resends them until an Ack frame with that id comes back. The ESP8266 gets
+# its own sequence number after a '#' and firmware that understands it
+# answers Ack:<seq> once the relays switched. Such firmware says so with the
+# Sync:Acks it sends on connecting. Older firmware only acts on bare pairs,
+# so until then commands go without the sequence number and are acked as
+# soon as they are forwarded.
+espAcks = False
+espSeq = 0
+# ESP8266 sequence number -> (app id, message, reply), and app id -> sequence
+# number
+espPending = {}
+appPending = {}
+
+def encodeAck(ackId, applied):
+    frame = bytearray([FRAME_MAGIC, FRAME_VERSION, TYPE_ACK])
+    for i in range(4):
+        frame.append((ackId >> (24 - 8 * i)) & 0xFF)
+    frame.append(1 if applied else 0)
+    return bytes(frame)
+
+# Power readings from strips with metering, "Power:<plug>:<mA>:<mW>/...".
+# Relayed to the app as they come and not kept, only the latest second
+# matters and the app keeps its own windows.
+def encodePower(readings):
+    frame = bytearray([FRAME_MAGIC, FRAME_VERSION, TYPE_POWER, len(readings)])
+    for (plug, milliamps, milliwatts) in readings:
+        frame.append(plug & 0xFF)
+        milliamps = min(max(milliamps, 0), 0xFFFF)
+        frame.append(milliamps >> 8)
+        frame.append(milliamps & 0xFF)
+        for i in range(4):
+            frame.append((milliwatts >> (24 - 8 * i)) & 0xFF)
+    return bytes(frame)
+
+def parsePower(text):
+    readings = []
+    for reading in text.split("/"):
+        fields = reading.split(":")
+        if len(fields) == 3:
+            readings.append((int(fields[0]), int(fields[1]), int(fields[2])))
+    return readings[:32]
+
+def publishAck(ackId, applied=True, reply=None):
+    if ackId is not None:
+        publishReply(reply or currentReply, encodeAck(ackId, applied))
+
+# Over MQTT 5 the app asks for answers to its Syncs and commands on its own
+# response topic, with correlation data to echo back, so other apps don't
+# get them. Without one answers go to the state topic as before.
+def replyTo(msg):
+    props = getattr(msg, "properties", None)
+    topic = getattr(props, "ResponseTopic", None)
+    if not topic or Properties is None:
+        return (STATE_TOPIC, None)
+    out = Properties(PacketTypes.PUBLISH)
+    correlation = getattr(props, "CorrelationData", None)
+    if correlation is not None:
+        out.CorrelationData = correlation
+    return (topic, out)
+
+def publishReply(reply, payload):
+    topic, props = reply
+    if props is None:
+        client.publish(topic, payload)
+    else:
+        client.publish(topic, payload, properties=props)
+
+def publishToArduino(message, ackId):
+    global espSeq
+    if ackId is None or not espAcks:
+        client.publish("ToArduino", message)
+        publishAck(ackId)
+        return
+    espSeq += 1
+    client.publish("ToArduino", message + "/#" + str(espSeq))
+    espPending[espSeq] = (ackId, message, currentReply)
+    appPending[ackId] = espSeq
+
+# A resent command the ESP8266 hasn't acked yet goes to it again instead of
+# being acked because the database already has its state
+def resendToArduino(ackId):
+    seq = appPending.get(ackId)
+    if seq is None:
+        return False
+    client.publish("ToArduino", espPending[seq][1] + "/#" + str(seq))
+    return True
+
+def onArduinoAck(seq):
+    global espAcks
+    espAcks = True
+    entry = espPending.pop(seq, None)
+    if entry:
+        del appPending[entry[0]]
+        publishAck(entry[0], reply=entry[2])
+
+# A full sync to the ESP8266 applies every pending command
+def ackAllPending():
+    for ackId, message, reply in espPending.values():
+        publishAck(ackId, reply=reply)
+    espPending.clear()
+    appPending.clear()
+
+# Outlet state versions. Versions start at the startup time in milliseconds
+# so they keep increasing across restarts of this script, and every outlet
+# remembers the version at which its state last changed. Apps send the
+# version they have seen with Sync and only get the outlets changed since.
+startVersion = int(time.time() * 1000)
+currentVersion = startVersion
+outletVersions = {}
+
+# Must be called before the database is updated for the (outlet, status) pairs
+def bumpVersion(pairs):
+    global currentVersion
+    changed = [outlet for outlet, status in pairs
+               if str(getDB('currentstatus', int(outlet))) != status]
+    if changed:
+        currentVersion += 1
+        for outlet in changed:
+            outletVersions[int(outlet)] = currentVersion
+
+# Last writer wins. Commands from apps carry a hybrid logical clock stamp
+# (see HybridClock.java) and a node id unique to the app. Every outlet keeps
+# the (stamp, node) of the last command for it, and a command older than
+# that is dropped for the outlet, so when two apps switch the same outlet at
+# once every app ends up with whichever switched last. Commands without a
+# stamp and changes made here, like the battery cutoff, are stamped by this
+# script's clock with node 0.
+COUNTER_BITS = 16
+MAX_DRIFT_MILLIS = 60 * 1000
+hlcLast = 0
+outletStamps = {}
+
+def hlcNow():
+    global hlcLast
+    wall = int(time.time() * 1000) << COUNTER_BITS
+    hlcLast = wall if wall > hlcLast else hlcLast + 1
+    return hlcLast
+
+# Merges a stamp from an app, returns False if its clock is too far ahead
+# to be trusted
+def hlcUpdate(remote):
+    global hlcLast
+    wallMillis = int(time.time() * 1000)
+    if (remote >> COUNTER_BITS) > wallMillis + MAX_DRIFT_MILLIS:
+        return False
+    wall = wallMillis << COUNTER_BITS
+    seen = max(hlcLast, remote)
+    hlcLast = wall if wall > seen else seen + 1
+    return True
+
+# The (outlet, status) pairs the command stamped (stamp, node) wins, which
+# then become the last writer of those outlets. A resent command ties with
+# itself and wins again.
+def lastWriterPairs(pairs, stamp=None, node=0):
+    if stamp is None or not hlcUpdate(stamp):
+        stamp, node = hlcNow(), 0
+    won = [(outlet, status) for outlet, status in pairs
+           if (stamp, node) >= outletStamps.get(int(outlet), (0, 0))]
+    for outlet, status in won:
+        outletStamps[int(outlet)] = (stamp, node)
+    return won
+
+# Returns (mask, values) of the outlets changed since the given version,
+# every outlet if the version is unknown to this run of the script
+def changedSince(since):
+    states = getAllStates()
+    mask = 0
+    values = 0
+    for i, state in enumerate(states):
+        plug = i + 1
+        if since < startVersion or since > currentVersion or outletVersions.get(plug, 0) > since:
+            mask |= 1 << i
+            if state == 1:
+                values |= 1 << i
+    return len(states), mask, values
+
+# Carries the newest stamp this script has seen or made, so apps stamp their
+# next command after it
+def encodeDelta(count, mask, values):
+    size = (count + 7) // 8
+    frame = bytearray([FRAME_MAGIC, FRAME_VERSION, TYPE_DELTA])
+    for i in range(8):
+        frame.append((currentVersion >> (56 - 8 * i)) & 0xFF)
+    frame.append(count)
+    for i in range(size):
+        frame.append((mask >> (8 * i)) & 0xFF)
+    for i in range(size):
+        frame.append((values >> (8 * i)) & 0xFF)
+    for i in range(8):
+        frame.append((hlcLast >> (56 - 8 * i)) & 0xFF)
+    return bytes(frame)
+
+def encodeLegacyDelta(count, mask, values):
+    pairs = ["%d:%d" % (i + 1, (values >> i) & 1) for i in range(count) if mask & (1 << i)]
+    return "Delta:" + str(currentVersion) + ":" + "/".join(pairs)
+
+# Sends the app being answered the outlets changed since the given version
+def publishDeltaToAndroid(since):
+    count, mask, values = changedSince(since)
+    if androidFormat(currentReply)[0]:
+        publishReply(currentReply, encodeDelta(count, mask, values))
+    else:
+        publishReply(currentReply, encodeLegacyDelta(count, mask, values))
 
-    # As of now, timer functionality is only on outlet 2, so timer data
-    # is pulled from plug 2
-    timerOnTimeDelta = getDB("timer_on", 2)
-    timerOn = (datetime.datetime.min + timerOnTimeDelta).time()
+# Lets every app following this strip see a change made by one of them.
+# Every change replaces the full state retained on the state topic, so an
+# app gets it as soon as it subscribes instead of asking with a Sync. Apps
+# that are connected get it too, it's only a few bytes more than a delta.
+def publishChangesToAndroid(before):
+    if currentVersion == before:
+        return
+    publishRetainedState()
 
-    timerOffTimeDelta = getDB("timer_off", 2)
-    timerOff = (datetime.datetime.min + timerOffTimeDelta).time()
+# Every app reads the state topic, so it's written in the format all of them
+# understand
+def publishRetainedState():
+    binary, delta = sharedFormat()
+    if delta:
+        count, mask, values = changedSince(0)
+        if binary:
+            payload = encodeDelta(count, mask, values)
+        else:
+            payload = encodeLegacyDelta(count, mask, values)
+    elif binary:
+        payload = encodeSnapshot(getAllStates())
+    else:
+        payload = getAllStatus()
+    client.publish(STATE_TOPIC, payload, retain=True)
+
+# Returns true if the payload is a binary frame from MessageCodec
+def isFrame(payload):
+    return len(payload) >= 3 and payload[0] == FRAME_MAGIC
+
+# Translates a binary frame into the same list the text messages are split
+# into, so every case below handles both formats the same way
+def decodeFrame(payload):
+    frameType = payload[2]
+    body = payload[3:]
+    if frameType == TYPE_HELLO:
+        return ["Hello", str(body[0])]
+    if frameType == TYPE_STATE:
+        if len(body) >= 18:
+            return ["State", str(body[0]), str(body[1]), str(decodeInt(body, 2)),
+                    str(decodeLong(body, 6)), str(decodeInt(body, 14))]
+        if len(body) >= 6:
+            return ["State", str(body[0]), str(body[1]), str(decodeInt(body, 2))]
+        return ["State", str(body[0]), str(body[1])]
+    if frameType == TYPE_SYNC:
+        if len(body) >= 8:
+            since = 0
+            for i in range(8):
+                since = (since << 8) | body[i]
+            return ["Sync", str(since)]
+        return ["Sync"]
+    if frameType == TYPE_BATTERY:
+        permille = (body[0] << 8) | body[1]
+        return ["Current", str(permille / 10.0), "%d-%d" % (body[2], body[3])]
+    if frameType == TYPE_SETTING:
+        name = SETTING_NAMES.get(body[0])
+        if name == "Battery":
+            return ["Update", name, str(body[1])]
+        return ["Update", name, "%d-%d" % (body[1], body[2])]
+    if frameType == TYPE_BATCH:
+        count = body[0]
+        size = (count + 7) // 8
+        pairs = []
+        for i in range(count):
+            if body[1 + i // 8] & (1 << (i % 8)):
+                on = body[1 + size + i // 8] & (1 << (i % 8))
+                pairs.append("%d:%d" % (i + 1, 1 if on else 0))
+        p = 1 + 2 * size
+        if len(body) >= p + 16:
+            return ["Batch", "/".join(pairs), str(decodeInt(body, p)),
+                    str(decodeLong(body, p + 4)), str(decodeInt(body, p + 12))]
+        if len(body) >= p + 4:
+            return ["Batch", "/".join(pairs), str(decodeInt(body, p))]
+        return ["Batch", "/".join(pairs)]
+    return [""]
+
+# Big endian, signed like a Java int
+def decodeInt(body, p):
+    value = (body[p] << 24) | (body[p + 1] << 16) | (body[p + 2] << 8) | body[p + 3]
+    return value - (1 << 32) if value >= 1 << 31 else value
+
+def decodeLong(body, p):
+    value = 0
+    for i in range(8):
+        value = (value << 8) | body[p + i]
+    return value
+
+# (stamp, node) of a State or Batch command from its fields starting at p,
+# (None, 0) if it has none
+def commandStamp(data, p):
+    if len(data) > p + 1:
+        return int(data[p]), int(data[p + 1])
+    return None, 0
+
+def encodeSnapshot(states):
+    bits = 0
+    for i, state in enumerate(states):
+        if state == 1:
+            bits |= 1 << i
+    body = bytearray([len(states)])
+    for i in range((len(states) + 7) // 8):
+        body.append((bits >> (8 * i)) & 0xFF)
+    return bytes(bytearray([FRAME_MAGIC, FRAME_VERSION, TYPE_SNAPSHOT]) + body)
 
-    result = curTime >= timerOn and curTime < timerOff
-    return result
+# Sends all outlet states to the app being answered in whichever format it
+# spoke last
+def publishStatusToAndroid():
+    binary, delta = androidFormat(currentReply)
+    if delta:
+        publishDeltaToAndroid(0)
+    elif binary:
+        publishReply(currentReply, encodeSnapshot(getAllStates()))
+    else:
+        publishReply(currentReply, getAllStatus())
+
+# Batched form of changeStatus for a list of (outlet, status) string pairs:
+# one command to the ESP8266 and one database update for all of them
+def changeStatuses(pairs, ackId=None):
+    bumpVersion(pairs)
+    for outlet, status in pairs:
+        print("Turning port " + outlet + (" on" if status == '1' else " off"))
+    publishToArduino("/".join(outlet + ":" + status for outlet, status in pairs), ackId)
+    cases = " ".join("WHEN " + outlet + " THEN " + status for outlet, status in pairs)
+    plugs = ",".join(outlet for outlet, status in pairs)
+    curs.execute("UPDATE outlets SET currentstatus = CASE plug " + cases + " END WHERE plug IN (" + plugs + ");")
+    db.commit()
+
+# The (outlet, status) pairs that differ from the database
+def divergent(pairs):
+    states = getAllStates()
+    return [(outlet, status) for outlet, status in pairs
+            if int(outlet) > len(states) or str(states[int(outlet) - 1]) != status]
+
+# Parses "1:1/3:0" into [('1', '1'), ('3', '0')]
+def parseBatch(text):
+    return [tuple(pair.split(":")) for pair in text.split("/") if pair]
 
 # Connects to the Mqtt broker and subscribes to listen to both
-# the arduino(ESP8266) and the android application
-def on_connect(cleint, userdata, rc):
+# the arduino(ESP8266) and the android application. Called with (rc) by old
+# paho clients, (flags, rc) over MQTT 3.1.1 and (flags, rc, properties) over
+# MQTT 5.
+def on_connect(cleint, userdata, *args):
+    global useMqtt5
+    rc = args[1] if len(args) > 1 else args[0]
     print("Connected with result code: " + str(rc))
-    client.subscribe("FromAndroid")
+    if useMqtt5 and rc in (1, 132):
+        # The broker doesn't speak MQTT 5, start over with 3.1.1
+        useMqtt5 = False
+        client.disconnect()
+        return
+    client.subscribe(CMD_TOPIC)
+    client.subscribe(ALL_CMD_TOPIC)
     client.subscribe("FromArduino")
+    # Apps subscribing before anything changes still find the state
+    publishRetainedState()
 
 # Callback function that handles a variety of messages from
 # the user
 #
 # 
 def on_message(client, userdata, msg):
-    message = str(msg.payload)
-    print(msg.topic + " " + message)
-    # All data is sent with : delimeters which allows for
-    # simple parsing of data
-    # data[0] will be the case, and the following elements
-    # in the list will be used as data to be analyzed
-    data = message.split(":")
+    handleMessage(msg)
+
+def handleMessage(msg):
+    global currentReply, espAcks
+    currentReply = replyTo(msg)
+    payload = bytearray(msg.payload)
+    if isFrame(payload):
+        # Binary frames are translated into the same list as the text messages
+        data = decodeFrame(payload)
+        print(msg.topic + " " + ":".join(data))
+        if msg.topic in ANDROID_TOPICS and data[0] != "Hello":
+            setAndroidFormat(currentReply, binary=True)
+    else:
+        message = str(msg.payload)
+        print(msg.topic + " " + message)
+        # All data is sent with : delimeters which allows for
+        # simple parsing of data
+        # data[0] will be the case, and the following elements
+        # in the list will be used as data to be analyzed
+        data = message.split(":")
+        if data[0] == "Batch":
+            data = ["Batch", message[len("Batch:"):]]
+        if data[0] == "Power":
+            data = ["Power", message[len("Power:"):]]
+        if msg.topic in ANDROID_TOPICS and data[0] == "Sync":
+            setAndroidFormat(currentReply, binary=False)
 
     # Cases to be handled
-    if data[0] == "State":
-        changeStatus(data[1], data[2])
+    if data[0] == "Hello":
+        # Tells the app that binary frames are understood here
+        client.publish(STATE_TOPIC, bytes(bytearray([FRAME_MAGIC, FRAME_VERSION, TYPE_HELLO, FRAME_VERSION])))
+
+    elif data[0] == "State":
+        # Commands that repeat the current state don't touch the database or
+        # the ESP8266, and are acked right away. Commands that lost to a
+        # newer one are refused so the app rolls back.
+        ackId = int(data[3]) if len(data) > 3 else None
+        if resendToArduino(ackId):
+            pass
+        elif not lastWriterPairs([(data[1], data[2])], *commandStamp(data, 4)):
+            publishAck(ackId, False)
+        elif divergent([(data[1], data[2])]):
+            before = currentVersion
+            changeStatus(data[1], data[2], ackId)
+            publishChangesToAndroid(before)
+        else:
+            publishAck(ackId)
         
+    elif data[0] == "Batch":
+        ackId = int(data[2]) if len(data) > 2 else None
+        if resendToArduino(ackId):
+            pass
+        else:
+            pairs = parseBatch(data[1])
+            won = lastWriterPairs(pairs, *commandStamp(data, 3))
+            if pairs and not won:
+                publishAck(ackId, False)
+            elif divergent(won):
+                before = currentVersion
+                changeStatuses(divergent(won), ackId)
+                publishChangesToAndroid(before)
+            else:
+                publishAck(ackId)
+
+    elif data[0] == "Power":
+        if msg.topic == 'FromArduino':
+            readings = parsePower(data[1])
+            if readings:
+                client.publish(STATE_TOPIC, encodePower(readings))
+
+    elif data[0] == "Ack":
+        if msg.topic == 'FromArduino':
+            onArduinoAck(int(data[1]))
+
     elif data[0] == "Sync":
         allStatus = getAllStatus()
         # Sends to appropriate device depending on
         # where the message came from
         if msg.topic == 'FromArduino':
+            espAcks = len(data) > 1 and data[1] == "Acks"
             client.publish("ToArduino", allStatus)
-        if msg.topic == 'FromAndroid':
-            client.publish("ToAndroid", allStatus)
+            ackAllPending()
+        if msg.topic in ANDROID_TOPICS:
+            # Apps that send a version understand deltas
+            setAndroidFormat(currentReply, delta=len(data) > 1)
+            if len(data) > 1:
+                publishDeltaToAndroid(int(data[1]))
+            else:
+                publishStatusToAndroid()
             
     elif data[0] == "Current":
+        # The app only reports while charging, timed to arrive just before
+        # the cutoff. Timers run on the phone.
         maxBat = getDB('stopchargingpercent', 1)
         curBat = data[1]
         curBat = int(float(curBat))
-        curTime = data[2]
         if curBat>=maxBat:
             # As of now, only the first outlet is set to
             # limit the battery charge protection feature
+            before = currentVersion
+            lastWriterPairs([('1', '0')])
             changeStatus('1', '0') # Turns outlet 1 off (State = 0)
-            allStatus = getAllStatus()
-        if compareTimer(curTime):
-            changeStatus('2', '1')
-            allStatus = getAllStatus()
-        else:
-            changeStatus('2', '0')
-            allStatus = getAllStatus()
-        client.publish("ToAndroid", allStatus)
+            publishChangesToAndroid(before)
 
     elif data[0] == "Update":
         if data[1] == "Battery":
@@ -126,16 +566,53 @@ def on_message(client, userdata, msg):
             updateDBTime("timer_off", '2', time)
             
 
+# (binary, delta) per app, keyed by the topic its answers go to. binary is
+# set once the app has sent a binary frame other than Hello, delta once it
+# has sent a versioned Sync. Over MQTT 5 the key is the app's own response
+# topic. Apps without one can't be told apart, they share the state topic's
+# entry and the last of them to speak decides it.
+androidFormats = {}
+
+def androidFormat(reply):
+    return androidFormats.get(reply[0], (False, False))
+
+def setAndroidFormat(reply, binary=None, delta=None):
+    old = androidFormat(reply)
+    androidFormats[reply[0]] = (old[0] if binary is None else binary,
+                                old[1] if delta is None else delta)
+
+# The format every app seen since the start understands
+def sharedFormat():
+    formats = list(androidFormats.values())
+    if not formats:
+        return (False, False)
+    return (all(binary for binary, delta in formats),
+            all(delta for binary, delta in formats))
+
 #MySQL setup
 db = MySQLdb.connect("localhost", "user", "123", "powerstrip")
 curs=db.cursor()
 
-#Mqtt setup
-client = mqtt.Client()
-client.on_connect = on_connect
-client.on_message = on_message
+# Where answers to the message being handled go, see replyTo()
+currentReply = (STATE_TOPIC, None)
+
+#Mqtt setup. MQTT 5 is used when paho supports it, on_connect falls back to
+# 3.1.1 if the broker refuses it.
+useMqtt5 = Properties is not None
+while True:
+    mqtt5 = useMqtt5
+    if mqtt5:
+        client = mqtt.Client(protocol=mqtt.MQTTv5)
+    else:
+        client = mqtt.Client()
+    client.on_connect = on_connect
+    client.on_message = on_message
 
-client.connect("raspberrypi", 1883, 60)
-client.publish("ToArduino", "Hello from Server")
+    client.connect("raspberrypi", 1883, 60)
+    client.publish("ToArduino", "Hello from Server")
 
-client.loop_forever()
+    # Outlet timers run on the phone (see ScheduleEngine.java), which sends
+    # plain State commands at the scheduled times
+    client.loop_forever()
+    if useMqtt5 == mqtt5:
+        break
@@ -0,0 +1,241 @@
+package com.example.arpan.wifipowerstrip;
+
+/* Tracks outlet commands until the strip acknowledges switching them.
+ *
+ * Every command frame sent to a server that speaks binary frames carries a
+ * correlation id. The command stays in a fixed size pending table until the
+ * server's Ack with that id arrives. Unacknowledged commands are resent with
+ * the same id after a timeout that doubles every attempt, and after
+ * MAX_ATTEMPTS they fail so the UI can roll the switches back to the last
+ * state the strip reported. A newer command for an outlet takes it out of
+ * older pending commands so a retry never undoes it, and retries keep the
+ * command's HybridClock stamp so they never count as a newer change.
+ *
+ * Command to actuation latency is kept per outlet of the primary strip.
+ * Timeouts run on the PublishPipeline I/O thread as a Ticker.
+ */
+public final class AckTracker implements PublishPipeline.Ticker {
+
+    // The MqttService side
+    public interface Callbacks {
+        boolean isConnected();
+        void resend(int id, int strip, int count, long mask, long values, long stamp);
+        void failed(int strip, long mask, long values);
+    }
+
+    static final int CAPACITY = 64;
+    static final int MAX_ATTEMPTS = 3;
+    private static final int LATENCY_OUTLETS = 64;
+
+    private final Callbacks callbacks;
+    private final long timeoutNanos;
+    private final Metrics metrics;
+
+    // Pending commands by slot, a slot is free when its mask is 0
+    private final int[] ids = new int[CAPACITY];
+    private final int[] strips = new int[CAPACITY];
+    private final int[] counts = new int[CAPACITY];
+    private final long[] masks = new long[CAPACITY];
+    private final long[] values = new long[CAPACITY];
+    private final long[] stamps = new long[CAPACITY];
+    private final long[] sentNanos = new long[CAPACITY];
+    private final long[] deadlines = new long[CAPACITY];
+    private final int[] attempts = new int[CAPACITY];
+    private int pending;
+    private int nextId;
+
+    // Per outlet of the primary strip, in microseconds
+    private final long[] outletAcks = new long[LATENCY_OUTLETS];
+    private final long[] outletTotalMicros = new long[LATENCY_OUTLETS];
+    private final long[] outletMaxMicros = new long[LATENCY_OUTLETS];
+
+    public AckTracker(Callbacks callbacks, long timeoutMillis, Metrics metrics, int firstId) {
+        this.callbacks = callbacks;
+        this.timeoutNanos = timeoutMillis * 1000L * 1000L;
+        this.metrics = metrics;
+        this.nextId = firstId;
+    }
+
+    // Records a command about to be sent and returns its correlation id, or
+    // 0 if the table is full and the command goes out untracked
+    public synchronized int track(int strip, int count, long mask, long vals, long stamp, long nowNanos) {
+        int free = -1;
+        for (int i = 0; i < CAPACITY; i++) {
+            if (masks[i] != 0 && strips[i] == strip && (masks[i] & mask) != 0) {
+                // Superseded by this command
+                masks[i] &= ~mask;
+                if (masks[i] == 0) {
+                    pending--;
+                }
+            }
+            if (masks[i] == 0 && free < 0) {
+                free = i;
+            }
+        }
+        if (free < 0 || mask == 0) {
+            return 0;
+        }
+        int id = nextId++;
+        if (id == 0) {
+            id = nextId++;
+        }
+        ids[free] = id;
+        strips[free] = strip;
+        counts[free] = count;
+        masks[free] = mask;
+        values[free] = vals;
+        stamps[free] = stamp;
+        sentNanos[free] = nowNanos;
+        deadlines[free] = nowNanos + timeoutNanos;
+        attempts[free] = 1;
+        pending++;
+        return id;
+    }
+
+    // Handles the server's Ack. Returns false for ids that aren't pending,
+    // such as duplicates or acks meant for another phone.
+    public boolean onAck(int id, boolean applied, long nowNanos) {
+        int strip;
+        long mask;
+        long vals;
+        synchronized (this) {
+            int slot = find(id);
+            if (slot < 0) {
+                return false;
+            }
+            strip = strips[slot];
+            mask = masks[slot];
+            vals = values[slot];
+            masks[slot] = 0;
+            pending--;
+            if (applied) {
+                long micros = (nowNanos - sentNanos[slot]) / 1000L;
+                metrics.onAcked(micros);
+                if (strip == MqttService.PRIMARY_STRIP) {
+                    recordLatency(mask, micros);
+                }
+                return true;
+            }
+        }
+        metrics.onAckFailed();
+        callbacks.failed(strip, mask, vals);
+        return true;
+    }
+
+    @Override
+    public long tick(long nowNanos) {
+        long wait = Long.MAX_VALUE;
+        // Collected under the lock and called back outside it. Only
+        // allocated when something timed out.
+        int[] retries = null;
+        int retryCount = 0;
+        long[] failures = null;
+        int failureCount = 0;
+        synchronized (this) {
+            if (pending == 0) {
+                return Long.MAX_VALUE;
+            }
+            boolean connected = callbacks.isConnected();
+            for (int i = 0; i < CAPACITY; i++) {
+                if (masks[i] == 0) {
+                    continue;
+                }
+                if (deadlines[i] > nowNanos) {
+                    wait = Math.min(wait, deadlines[i] - nowNanos);
+                    continue;
+                }
+                if (!connected) {
+                    // Nothing could have arrived, wait for the connection
+                    deadlines[i] = nowNanos + timeoutNanos;
+                } else if (attempts[i] < MAX_ATTEMPTS) {
+                    deadlines[i] = nowNanos + (timeoutNanos << attempts[i]);
+                    attempts[i]++;
+                    if (retries == null) {
+                        retries = new int[CAPACITY];
+                    }
+                    retries[retryCount++] = i;
+                } else {
+                    if (failures == null) {
+                        failures = new long[CAPACITY * 3];
+                    }
+                    failures[failureCount * 3] = strips[i];
+                    failures[failureCount * 3 + 1] = masks[i];
+                    failures[failureCount * 3 + 2] = values[i];
+                    failureCount++;
+                    masks[i] = 0;
+                    pending--;
+                    continue;
+                }
+                wait = Math.min(wait, deadlines[i] - nowNanos);
+            }
+        }
+        for (int r = 0; r < retryCount; r++) {
+            int slot = retries[r];
+            int id;
+            int strip;
+            int count;
+            long mask;
+            long vals;
+            long stamp;
+            synchronized (this) {
+                // An ack may have come in meanwhile
+                if (masks[slot] == 0) {
+                    continue;
+                }
+                id = ids[slot];
+                strip = strips[slot];
+                count = counts[slot];
+                mask = masks[slot];
+                vals = values[slot];
+                stamp = stamps[slot];
+            }
+            metrics.onAckRetry();
+            callbacks.resend(id, strip, count, mask, vals, stamp);
+        }
+        for (int f = 0; f < failureCount; f++) {
+            metrics.onAckFailed();
+            callbacks.failed((int) failures[f * 3], failures[f * 3 + 1], failures[f * 3 + 2]);
+        }
+        return wait;
+    }
+
+    public synchronized int pendingCount() {
+        return pending;
+    }
+
+    // Mean and worst command to actuation latency of an outlet (1 based) of
+    // the primary strip, 0 if none was acked yet
+    public synchronized long meanLatencyMicros(int outlet) {
+        int i = outlet - 1;
+        return i < 0 || i >= LATENCY_OUTLETS || outletAcks[i] == 0 ? 0 : outletTotalMicros[i] / outletAcks[i];
+    }
+
+    public synchronized long maxLatencyMicros(int outlet) {
+        int i = outlet - 1;
+        return i < 0 || i >= LATENCY_OUTLETS ? 0 : outletMaxMicros[i];
+    }
+
+    public synchronized long ackCount(int outlet) {
+        int i = outlet - 1;
+        return i < 0 || i >= LATENCY_OUTLETS ? 0 : outletAcks[i];
+    }
+
+    private void recordLatency(long mask, long micros) {
+        while (mask != 0) {
+            int i = Long.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            outletAcks[i]++;
+            outletTotalMicros[i] += micros;
+            outletMaxMicros[i] = Math.max(outletMaxMicros[i], micros);
+        }
+    }
+
+    private int find(int id) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (masks[i] != 0 && ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.arpan.wifipowerstrip;
+
+/* Decides when the phone reports its battery level so the server can cut
+ * power to the charging outlet once the level reaches the selected maximum.
+ *
+ * Instead of waking up every few minutes all day, the charge rate is
+ * estimated from recent samples while plugged in and a single check is
+ * scheduled for just before the level is expected to reach the cutoff. While
+ * the phone is unplugged nothing is reported and nothing is scheduled.
+ */
+public final class BatteryCutoffScheduler {
+
+    // The Android side: sending samples and (re)arming the one alarm
+    public interface Callbacks {
+        void sendSample(int permille);
+        void scheduleCheck(long atMillis);
+        void cancelCheck();
+    }
+
+    // Used until there are enough samples to estimate the charge rate
+    static final long FALLBACK_CHECK_MILLIS = 10 * 60 * 1000L;
+    // Checks are never closer together than this
+    static final long MIN_CHECK_MILLIS = 30 * 1000L;
+    // Checks are scheduled this fraction of the estimated time early so a
+    // slowing charge rate never makes us overshoot
+    static final double LEAD_FRACTION = 0.1;
+
+    private static final int SAMPLES = 8;
+
+    private final Callbacks callbacks;
+    private final long[] sampleTimes = new long[SAMPLES];
+    private final int[] sampleLevels = new int[SAMPLES];
+    private int sampleCount;
+    private int sampleNext;
+
+    private int cutoffPermille = 1000;
+    private boolean charging;
+    private boolean cutoffReported;
+    private long scheduledAt;
+
+    public BatteryCutoffScheduler(Callbacks callbacks) {
+        this.callbacks = callbacks;
+    }
+
+    public synchronized void setCutoff(int permille, long nowMillis, int levelPermille) {
+        cutoffPermille = permille;
+        cutoffReported = false;
+        if (charging) {
+            // The server needs to re-evaluate against the new cutoff
+            callbacks.sendSample(levelPermille);
+            plan(nowMillis, levelPermille);
+        }
+    }
+
+    public synchronized void onPowerConnected(long nowMillis, int levelPermille) {
+        charging = true;
+        cutoffReported = false;
+        resetSamples();
+        addSample(nowMillis, levelPermille);
+        callbacks.sendSample(levelPermille);
+        plan(nowMillis, levelPermille);
+    }
+
+    public synchronized void onPowerDisconnected() {
+        charging = false;
+        resetSamples();
+        cancel();
+    }
+
+    // ACTION_BATTERY_CHANGED, delivered whenever the level changes while the
+    // device is awake
+    public synchronized void onBatteryChanged(long nowMillis, int levelPermille, boolean pluggedIn) {
+        if (pluggedIn != charging) {
+            if (pluggedIn) {
+                onPowerConnected(nowMillis, levelPermille);
+            } else {
+                onPowerDisconnected();
+            }
+            return;
+        }
+        if (!charging) {
+            return;
+        }
+        addSample(nowMillis, levelPermille);
+        plan(nowMillis, levelPermille);
+    }
+
+    // The scheduled check fired, or someone asked for a report right away
+    public synchronized void onCheck(long nowMillis, int levelPermille) {
+        scheduledAt = 0;
+        if (!charging) {
+            return;
+        }
+        addSample(nowMillis, levelPermille);
+        callbacks.sendSample(levelPermille);
+        if (levelPermille >= cutoffPermille) {
+            cutoffReported = true;
+        }
+        plan(nowMillis, levelPermille);
+    }
+
+    // Charge rate in permille per hour from a least squares fit of the recent
+    // samples, 0 if it can't be estimated yet
+    public synchronized double ratePerHour() {
+        if (sampleCount < 2) {
+            return 0;
+        }
+        double meanT = 0;
+        double meanL = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            meanT += sampleTimes[i];
+            meanL += sampleLevels[i];
+        }
+        meanT /= sampleCount;
+        meanL /= sampleCount;
+        double num = 0;
+        double den = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            double dt = sampleTimes[i] - meanT;
+            num += dt * (sampleLevels[i] - meanL);
+            den += dt * dt;
+        }
+        if (den == 0) {
+            return 0;
+        }
+        double perMilli = num / den;
+        return perMilli > 0 ? perMilli * 3600 * 1000 : 0;
+    }
+
+    public synchronized long scheduledAt() {
+        return scheduledAt;
+    }
+
+    private void plan(long nowMillis, int levelPermille) {
+        if (levelPermille >= cutoffPermille) {
+            if (!cutoffReported) {
+                cutoffReported = true;
+                callbacks.sendSample(levelPermille);
+            }
+            // The server will switch the outlet off, nothing left to check
+            cancel();
+            return;
+        }
+        cutoffReported = false;
+        double rate = ratePerHour();
+        long delay;
+        if (rate <= 0) {
+            delay = FALLBACK_CHECK_MILLIS;
+        } else {
+            long eta = (long) ((cutoffPermille - levelPermille) / rate * 3600 * 1000);
+            delay = Math.max(MIN_CHECK_MILLIS, (long) (eta * (1 - LEAD_FRACTION)));
+        }
+        long at = nowMillis + delay;
+        // Only re-arm if the check moves noticeably
+        if (scheduledAt == 0 || Math.abs(at - scheduledAt) >= MIN_CHECK_MILLIS) {
+            scheduledAt = at;
+            callbacks.scheduleCheck(at);
+        }
+    }
+
+    private void cancel() {
+        if (scheduledAt != 0) {
+            scheduledAt = 0;
+            callbacks.cancelCheck();
+        }
+    }
+
+    private void addSample(long nowMillis, int levelPermille) {
+        sampleTimes[sampleNext] = nowMillis;
+        sampleLevels[sampleNext] = levelPermille;
+        sampleNext = (sampleNext + 1) % SAMPLES;
+        if (sampleCount < SAMPLES) {
+            sampleCount++;
+        }
+    }
+
+    private void resetSamples() {
+        sampleCount = 0;
+        sampleNext = 0;
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* Bounded lock-free multi-producer/multi-consumer queue backed by a ring of
+ * slots, each stamped with a sequence number that tells producers and
+ * consumers whose turn the slot is. Neither offer nor poll ever blocks or
+ * allocates; offer simply fails when the ring is full.
+ */
+public final class BoundedQueue<E> {
+
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // Capacity is rounded up to the next power of two
+    public BoundedQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        items = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    // Returns false if the queue is full
+    public boolean offer(E item) {
+        while (true) {
+            long t = tail.get();
+            int index = (int) t & mask;
+            long diff = sequences.get(index) - t;
+            if (diff == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    items.set(index, item);
+                    sequences.set(index, t + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    // Returns null if the queue is empty
+    public E poll() {
+        while (true) {
+            long h = head.get();
+            int index = (int) h & mask;
+            long diff = sequences.get(index) - (h + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(h, h + 1)) {
+                    E item = items.get(index);
+                    items.set(index, null);
+                    sequences.set(index, h + mask + 1);
+                    return item;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    // Approximate number of queued items, exact when nothing is in flight
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.arpan.wifipowerstrip;
+
+/* The MqttService's connection to the broker. Mqtt5Connection speaks MQTT 5
+ * and PahoConnection MQTT 3.1.1, so the service can fall back from one to
+ * the other without caring which it has.
+ *
+ * Every method returns right away. Results come back through the Listener
+ * on the connection's own threads.
+ */
+public interface BrokerConnection {
+
+    interface Listener {
+        void onConnected();
+
+        // unsupported is true if the broker refused the protocol version, in
+        // which case an older one may still work
+        void onConnectFailed(Throwable cause, boolean unsupported);
+
+        void onConnectionLost(Throwable cause);
+
+        void onSubscribed(boolean ok);
+
+        // payload is owned by the callee. correlation is the correlation
+        // data of an MQTT 5 response, 0 if there is none.
+        void onMessage(String topic, byte[] payload, int correlation);
+
+        void onPublished(Frame frame, boolean ok);
+    }
+
+    // 4 for MQTT 3.1.1, 5 for MQTT 5
+    int protocolVersion();
+
+    void connect() throws Exception;
+
+    boolean isConnected();
+
+    void subscribe(String[] filters, int qos) throws Exception;
+
+    // Publishes the frame and calls onPublished once the client is done
+    // with it, unless an exception is thrown
+    void publish(Frame frame) throws Exception;
+
+    void disconnect();
+}
@@ -0,0 +1,99 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Collects outlet commands for a short window and keeps only the latest
+ * desired state of each outlet, so a burst of switch flicks turns into a
+ * single batched command instead of one publish (and one database update and
+ * one ESP8266 command on the server) per change.
+ *
+ * set() is lock-free and can be called from any thread. The pending commands
+ * are packed into one long, the low 32 bits holding the desired values and
+ * the high 32 bits marking which outlets have a pending command. flush runs
+ * on the PublishPipeline I/O thread.
+ */
+public final class CommandCoalescer implements PublishPipeline.Ticker {
+
+    public static final int MAX_OUTLETS = 32;
+
+    // Receives the coalesced commands
+    public interface Sink {
+        void flush(int count, long mask, long values);
+    }
+
+    private final long windowNanos;
+    private final Sink sink;
+    private final AtomicLong pending = new AtomicLong();
+    private volatile long deadline;
+    private volatile PublishPipeline pipeline;
+
+    public CommandCoalescer(long windowMillis, Sink sink) {
+        this.windowNanos = windowMillis * 1000L * 1000L;
+        this.sink = sink;
+    }
+
+    // Registers with the pipeline so flushes happen on its I/O thread
+    public void attach(PublishPipeline pipeline) {
+        this.pipeline = pipeline;
+        pipeline.addTicker(this);
+    }
+
+    // Records the desired state of an outlet (1 based)
+    public void set(int outlet, boolean on) {
+        if (outlet < 1 || outlet > MAX_OUTLETS) {
+            throw new IllegalArgumentException("Outlet " + outlet + " out of range");
+        }
+        long bit = 1L << (outlet - 1);
+        while (true) {
+            long old = pending.get();
+            long values = on ? (old | bit) : (old & ~bit);
+            long updated = (values & 0xFFFFFFFFL) | (old & ~0xFFFFFFFFL) | (bit << 32);
+            boolean first = (old >>> 32) == 0;
+            if (first) {
+                // First command of a new window. The deadline is written
+                // before the CAS makes the bits visible, so tick() never
+                // pairs them with the previous window's deadline. If the CAS
+                // fails another thread started the window, and this deadline
+                // can only make it a little longer, never shorter.
+                deadline = System.nanoTime() + windowNanos;
+            }
+            if (pending.compareAndSet(old, updated)) {
+                if (first) {
+                    PublishPipeline p = pipeline;
+                    if (p != null) {
+                        p.wake();
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    // Flushes everything pending right away, e.g. before the service stops
+    public void flushNow() {
+        long taken = pending.getAndSet(0);
+        if (taken != 0) {
+            emit(taken);
+        }
+    }
+
+    @Override
+    public long tick(long nowNanos) {
+        if (pending.get() == 0) {
+            return Long.MAX_VALUE;
+        }
+        long remaining = deadline - nowNanos;
+        if (remaining > 0) {
+            return remaining;
+        }
+        flushNow();
+        return Long.MAX_VALUE;
+    }
+
+    private void emit(long taken) {
+        long mask = taken >>> 32;
+        long values = taken & mask;
+        int count = 64 - Long.numberOfLeadingZeros(mask);
+        sink.flush(count, mask, values);
+    }
+}
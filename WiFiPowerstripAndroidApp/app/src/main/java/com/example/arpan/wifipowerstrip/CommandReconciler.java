@@ -0,0 +1,60 @@
+package com.example.arpan.wifipowerstrip;
+
+/* Decides which outlet commands actually need to go to the server.
+ *
+ * A command is only sent when it diverges from what the outlet is expected
+ * to be: the state the server last reported, or the last command sent for it
+ * if the server hasn't reported the outlet since. Commands that just repeat
+ * that state, like a switch being set to the server's own state, a toggle
+ * undone within the coalescing window or state echoed back from a sync, are
+ * dropped instead of costing a publish, a database write and an ESP8266
+ * command.
+ *
+ * Outlet n (1 based) is bit n-1 of the masks, like everywhere else.
+ */
+public final class CommandReconciler {
+
+    private long confirmed;
+    private long known;
+    private long inFlight;
+    private long inFlightValues;
+
+    private long sent;
+    private long suppressed;
+
+    // Takes the commands for the outlets in mask and returns the mask of the
+    // ones that diverge and should be sent, recording them as in flight
+    public synchronized long diverging(long mask, long values) {
+        long expected = (confirmed & ~inFlight) | (inFlightValues & inFlight);
+        // Outlets the server never reported are always sent
+        long send = mask & ((values ^ expected) | ~(known | inFlight));
+        inFlight |= send;
+        inFlightValues = (inFlightValues & ~send) | (values & send);
+        sent += Long.bitCount(send);
+        suppressed += Long.bitCount(mask & ~send);
+        return send;
+    }
+
+    // Records server state for the outlets in mask. The server is
+    // authoritative, so this also settles any command in flight for them.
+    public synchronized void onRemote(long mask, long values) {
+        confirmed = (confirmed & ~mask) | (values & mask);
+        known |= mask;
+        inFlight &= ~mask;
+    }
+
+    // The commands for the outlets in mask were never applied, so the state
+    // the server last reported is expected again
+    public synchronized void onFailed(long mask) {
+        inFlight &= ~mask;
+    }
+
+    public synchronized long sentCount() {
+        return sent;
+    }
+
+    // Commands dropped because they matched the expected state
+    public synchronized long suppressedCount() {
+        return suppressed;
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.arpan.wifipowerstrip;
+
+/* Maps strip device ids to strip indexes in the OutletStore.
+ *
+ * Every strip has its own topics, strip/<id>/cmd for commands from the app
+ * and strip/<id>/state for its state, and the app subscribes to all of them
+ * at once with strip/+/state. Over MQTT 5 strips answer this phone on
+ * strip/<id>/reply/<client id>, subscribed to as strip/+/reply/<client id>.
+ * Incoming messages are dispatched by hashing the <id> straight out of the
+ * topic string, so a lookup costs O(1) and allocates nothing; the id and the
+ * command topic are only created the first time a strip is seen. The table
+ * uses open addressing over a fixed capacity so memory stays bounded however
+ * many strips publish.
+ */
+public final class DeviceIndex {
+
+    public static final String PREFIX = "strip/";
+    public static final String STATE_SUFFIX = "/state";
+    public static final String CMD_SUFFIX = "/cmd";
+    public static final String REPLY_INFIX = "/reply/";
+
+    // Matches the state topic of every strip
+    public static final String STATE_WILDCARD = PREFIX + "+" + STATE_SUFFIX;
+    // Every strip server also listens here, used to discover the fleet
+    public static final String ALL_CMD = PREFIX + "all" + CMD_SUFFIX;
+
+    private final int capacity;
+    private final int tableMask;
+    // Open addressing table holding strip index + 1, 0 for an empty slot
+    private final int[] table;
+    private final int[] hashes;
+
+    // Per strip, by index
+    private final String[] ids;
+    private final String[] cmdTopics;
+    private final String[] replyTopics;
+    private final boolean[] binary;
+    private int size;
+    private String replyClient;
+
+    public DeviceIndex(int capacity) {
+        this.capacity = capacity;
+        int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        this.tableMask = tableSize - 1;
+        this.table = new int[tableSize];
+        this.hashes = new int[capacity];
+        this.ids = new String[capacity];
+        this.cmdTopics = new String[capacity];
+        this.replyTopics = new String[capacity];
+        this.binary = new boolean[capacity];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Returns the strip index of a device id, adding it if it's new, or -1
+    // if the index is full
+    public synchronized int register(String id) {
+        int strip = find(id, 0, id.length(), hash(id, 0, id.length()));
+        return strip >= 0 ? strip : add(id, hash(id, 0, id.length()));
+    }
+
+    // Returns the strip index of a device id, -1 if it isn't known
+    public synchronized int indexOf(String id) {
+        return find(id, 0, id.length(), hash(id, 0, id.length()));
+    }
+
+    // Returns the strip index for a strip/<id>/state or
+    // strip/<id>/reply/<client id> topic, adding the strip
+    // the first time it's seen. Returns -1 for other topics or if the index
+    // is full.
+    public synchronized int resolve(String topic) {
+        int end = idEnd(topic);
+        if (end < 0) {
+            return -1;
+        }
+        int start = PREFIX.length();
+        int h = hash(topic, start, end);
+        int strip = find(topic, start, end, h);
+        return strip >= 0 ? strip : add(topic.substring(start, end), h);
+    }
+
+    // Like resolve but never adds a strip
+    public synchronized int lookup(String topic) {
+        int end = idEnd(topic);
+        if (end < 0) {
+            return -1;
+        }
+        int start = PREFIX.length();
+        return find(topic, start, end, hash(topic, start, end));
+    }
+
+    public synchronized String id(int strip) {
+        return ids[strip];
+    }
+
+    // Where commands for the strip are published
+    public synchronized String cmdTopic(int strip) {
+        return cmdTopics[strip];
+    }
+
+    // Sets the client id reply topics are made for
+    public synchronized void setReplyClient(String clientId) {
+        replyClient = clientId;
+        for (int strip = 0; strip < size; strip++) {
+            replyTopics[strip] = PREFIX + ids[strip] + REPLY_INFIX + clientId;
+        }
+    }
+
+    // Where the strip answers this phone over MQTT 5, null until
+    // setReplyClient
+    public synchronized String replyTopic(int strip) {
+        return replyTopics[strip];
+    }
+
+    // Matches the reply topic of every strip
+    public synchronized String replyWildcard() {
+        return PREFIX + "+" + REPLY_INFIX + replyClient;
+    }
+
+    // Set once the strip's server has answered our hello with a binary hello,
+    // until then everything sent to it uses the legacy text format
+    public synchronized boolean isBinary(int strip) {
+        return binary[strip];
+    }
+
+    public synchronized void setBinary(int strip, boolean on) {
+        binary[strip] = on;
+    }
+
+    private int find(String s, int start, int end, int h) {
+        int len = end - start;
+        for (int slot = h & tableMask; table[slot] != 0; slot = (slot + 1) & tableMask) {
+            int strip = table[slot] - 1;
+            String id = ids[strip];
+            if (hashes[strip] == h && id.length() == len && s.regionMatches(start, id, 0, len)) {
+                return strip;
+            }
+        }
+        return -1;
+    }
+
+    private int add(String id, int h) {
+        if (size == capacity || id.length() == 0) {
+            return -1;
+        }
+        int strip = size++;
+        ids[strip] = id;
+        hashes[strip] = h;
+        cmdTopics[strip] = PREFIX + id + CMD_SUFFIX;
+        replyTopics[strip] = replyClient == null ? null : PREFIX + id + REPLY_INFIX + replyClient;
+        int slot = h & tableMask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & tableMask;
+        }
+        table[slot] = strip + 1;
+        return strip;
+    }
+
+    // End of the <id> in strip/<id>/state or strip/<id>/reply/<client id>,
+    // -1 if the topic isn't one
+    private static int idEnd(String topic) {
+        if (!topic.startsWith(PREFIX)) {
+            return -1;
+        }
+        int slash = topic.indexOf('/', PREFIX.length());
+        if (slash < 0) {
+            return -1;
+        }
+        if (topic.endsWith(STATE_SUFFIX)) {
+            return slash == topic.length() - STATE_SUFFIX.length() ? slash : -1;
+        }
+        int client = slash + REPLY_INFIX.length();
+        return topic.startsWith(REPLY_INFIX, slash) && client < topic.length()
+                && topic.indexOf('/', client) < 0 ? slash : -1;
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        // Spreads the low bits used to pick a slot
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,424 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* Keeps commands and battery telemetry made while the broker is unreachable
+ * and replays them in order once the connection is back.
+ *
+ * Every command lives in a slot (one per outlet, one per setting and one for
+ * the battery level) and a newer command replaces the older one in its slot,
+ * so memory and replay cost are bounded by the number of slots no matter how
+ * long the app stays offline. A command whose idempotency key matches the one
+ * already in its slot is a duplicate and is dropped.
+ *
+ * Outlet states keep the HybridClock stamp they were made with and are
+ * replayed with it, so an edit made offline still loses to a newer one
+ * another phone made meanwhile.
+ *
+ * Commands are appended to a log file of fixed size records so they survive
+ * the process being killed. The log is compacted down to the live slots once
+ * it grows past MAX_LOG_RECORDS and truncated after a successful replay.
+ */
+public final class DurableOutbox implements PublishPipeline.Listener {
+
+    public static final int KIND_STATE = 1;
+    public static final int KIND_SETTING = 2;
+    public static final int KIND_BATTERY = 3;
+
+    // Slot layout: outlets 1..32, then settings, then the battery level
+    private static final int SETTING_SLOT_BASE = CommandCoalescer.MAX_OUTLETS + 1;
+    private static final int BATTERY_SLOT = SETTING_SLOT_BASE + 8;
+    private static final int SLOT_COUNT = BATTERY_SLOT + 1;
+
+    // seq(8) key(8) kind(1) slot(1) format(2) a(4) b(4) stamp(8) checksum(4).
+    // Logs written before stamps were kept have format 0 and no stamp, they
+    // are read as such and rewritten on open.
+    private static final int RECORD_FORMAT = 1;
+    private static final int RECORD_SIZE = 40;
+    private static final int LEGACY_RECORD_SIZE = 32;
+    private static final int FORMAT_OFFSET = 18;
+    private static final int MAX_LOG_RECORDS = 256;
+
+    // Re-sends replayed commands, implemented by MqttService. Each method
+    // returns the number of frames it queued with the listener, 0 on failure.
+    public interface Sender {
+        // Sends replayed outlet states made with the same stamp, as one batch
+        // if the server allows. The stamp is 0 for states from old logs.
+        int sendStates(int count, long mask, long values, long stamp, PublishPipeline.Listener listener);
+        int sendSetting(int key, int a, int b, PublishPipeline.Listener listener);
+        int sendBattery(int permille, int minuteOfDay, PublishPipeline.Listener listener);
+    }
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final ByteBuffer format = ByteBuffer.allocate(2);
+    private long logRecords;
+
+    // Latest command per slot, seq 0 means the slot is empty
+    private final long[] slotSeq = new long[SLOT_COUNT];
+    private final long[] slotKey = new long[SLOT_COUNT];
+    private final int[] slotKind = new int[SLOT_COUNT];
+    private final int[] slotA = new int[SLOT_COUNT];
+    private final int[] slotB = new int[SLOT_COUNT];
+    private final long[] slotStamp = new long[SLOT_COUNT];
+    private long nextSeq = 1;
+
+    // Replay bookkeeping. Outlet states are grouped by stamp.
+    private final int[] order = new int[SLOT_COUNT];
+    private final long[] groupStamp = new long[SETTING_SLOT_BASE];
+    private final long[] groupMask = new long[SETTING_SLOT_BASE];
+    private final long[] groupValues = new long[SETTING_SLOT_BASE];
+    private final int[] groupCount = new int[SETTING_SLOT_BASE];
+    private long replayUpToSeq;
+    private int replayOutstanding;
+    private boolean replayFailed;
+
+    private long duplicates;
+    private long superseded;
+
+    private final TraceLog trace = TraceLog.process();
+
+    public DurableOutbox(File file) {
+        this.file = file;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            load();
+        } catch (IOException e) {
+            // Keep working from memory only
+            trace.log(TraceLog.OUTBOX_OPEN_FAILED, e);
+            closeQuietly();
+        }
+    }
+
+    // A state with the stamp of one already kept is the same command again
+    public void recordState(int outlet, boolean on, long stamp) {
+        record(KIND_STATE, outlet, stamp << 1 | (on ? 1 : 0), on ? 1 : 0, 0, stamp);
+    }
+
+    public void recordSetting(int key, int a, int b) {
+        record(KIND_SETTING, SETTING_SLOT_BASE + key, ((long) a << 16) | b, a, b, 0);
+    }
+
+    // Samples taken in the same minute are duplicates of each other
+    public void recordBattery(int permille, int minuteOfDay) {
+        record(KIND_BATTERY, BATTERY_SLOT, minuteOfDay, permille, minuteOfDay, 0);
+    }
+
+    public synchronized int pendingCount() {
+        int count = 0;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            if (slotSeq[i] != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized long duplicateCount() {
+        return duplicates;
+    }
+
+    public synchronized long supersededCount() {
+        return superseded;
+    }
+
+    private synchronized void record(int kind, int slot, long key, int a, int b, long stamp) {
+        if (slot < 1 || slot >= SLOT_COUNT) {
+            throw new IllegalArgumentException("Slot " + slot + " out of range");
+        }
+        if (slotSeq[slot] != 0) {
+            if (slotKey[slot] == key) {
+                duplicates++;
+                return;
+            }
+            superseded++;
+        }
+        long seq = nextSeq++;
+        put(slot, seq, key, kind, a, b, stamp);
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (logRecords >= MAX_LOG_RECORDS) {
+                compact();
+            } else {
+                append(channel, slot);
+                logRecords++;
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            trace.log(TraceLog.OUTBOX_WRITE_FAILED, e);
+        }
+    }
+
+    // Re-sends every pending command in the order it was made. The log is
+    // cleared once all of them have been published; if any fail they stay
+    // and are replayed again on the next connect.
+    public void replay(Sender sender) {
+        int count;
+        int groups = 0;
+        synchronized (this) {
+            if (replayOutstanding > 0) {
+                return;
+            }
+            count = sortedSlots();
+            if (count == 0) {
+                return;
+            }
+            replayUpToSeq = slotSeq[order[count - 1]];
+            replayFailed = false;
+            // Held until every frame has been queued so completions that
+            // arrive early can't finish the replay
+            replayOutstanding = 1;
+            for (int i = 0; i < count; i++) {
+                int slot = order[i];
+                if (slotKind[slot] != KIND_STATE) {
+                    continue;
+                }
+                int g = 0;
+                while (g < groups && groupStamp[g] != slotStamp[slot]) {
+                    g++;
+                }
+                if (g == groups) {
+                    groups++;
+                    groupStamp[g] = slotStamp[slot];
+                    groupMask[g] = 0;
+                    groupValues[g] = 0;
+                    groupCount[g] = 0;
+                }
+                groupMask[g] |= 1L << (slot - 1);
+                groupValues[g] |= (long) slotA[slot] << (slot - 1);
+                groupCount[g] = Math.max(groupCount[g], slot);
+            }
+        }
+        trace.log(TraceLog.OUTBOX_REPLAY, count);
+        // Only this replay touches the groups until it has finished
+        for (int g = 0; g < groups; g++) {
+            queued(sender.sendStates(groupCount[g], groupMask[g], groupValues[g], groupStamp[g], this));
+        }
+        for (int i = 0; i < count; i++) {
+            int slot = order[i];
+            int kind;
+            int a;
+            int b;
+            synchronized (this) {
+                kind = slotKind[slot];
+                a = slotA[slot];
+                b = slotB[slot];
+            }
+            if (kind == KIND_SETTING) {
+                queued(sender.sendSetting(slot - SETTING_SLOT_BASE, a, b, this));
+            } else if (kind == KIND_BATTERY) {
+                queued(sender.sendBattery(a, b, this));
+            }
+        }
+        onComplete(null, true);
+    }
+
+    private synchronized void queued(int frames) {
+        if (frames == 0) {
+            replayFailed = true;
+        }
+        replayOutstanding += frames;
+    }
+
+    // PublishPipeline.Listener for replayed frames
+    @Override
+    public synchronized void onComplete(Frame frame, boolean ok) {
+        if (replayOutstanding == 0) {
+            return;
+        }
+        if (!ok) {
+            replayFailed = true;
+        }
+        if (--replayOutstanding > 0) {
+            return;
+        }
+        if (replayFailed) {
+            trace.log(TraceLog.OUTBOX_REPLAY_INCOMPLETE);
+            return;
+        }
+        // Commands made while the replay was in flight stay pending
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            if (slotSeq[i] != 0 && slotSeq[i] <= replayUpToSeq) {
+                slotSeq[i] = 0;
+            }
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            trace.log(TraceLog.OUTBOX_WRITE_FAILED, e);
+        }
+    }
+
+    public synchronized void close() {
+        closeQuietly();
+    }
+
+    // Fills order with the occupied slots sorted by sequence and returns how many
+    private int sortedSlots() {
+        int count = 0;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            if (slotSeq[i] == 0) {
+                continue;
+            }
+            // Insertion sort, there are only a few dozen slots
+            int j = count++;
+            while (j > 0 && slotSeq[order[j - 1]] > slotSeq[i]) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        return count;
+    }
+
+    private void put(int slot, long seq, long key, int kind, int a, int b, long stamp) {
+        slotSeq[slot] = seq;
+        slotKey[slot] = key;
+        slotKind[slot] = kind;
+        slotA[slot] = a;
+        slotB[slot] = b;
+        slotStamp[slot] = stamp;
+    }
+
+    // Rebuilds the slots from the log. Later records win, torn or corrupt
+    // records at the end of the log are ignored.
+    private void load() throws IOException {
+        long size = channel.size();
+        boolean legacy = false;
+        if (size >= LEGACY_RECORD_SIZE) {
+            format.clear();
+            channel.read(format, FORMAT_OFFSET);
+            legacy = format.getShort(0) == 0;
+        }
+        int recordSize = legacy ? LEGACY_RECORD_SIZE : RECORD_SIZE;
+        long records = size / recordSize;
+        channel.position(0);
+        for (long i = 0; i < records; i++) {
+            record.clear();
+            record.limit(recordSize);
+            while (record.hasRemaining()) {
+                if (channel.read(record) < 0) {
+                    break;
+                }
+            }
+            record.flip();
+            if (record.remaining() < recordSize) {
+                break;
+            }
+            long seq = record.getLong();
+            long key = record.getLong();
+            int kind = record.get();
+            int slot = record.get();
+            int recordFormat = record.getShort();
+            int a = record.getInt();
+            int b = record.getInt();
+            long stamp = legacy ? 0 : record.getLong();
+            int checksum = record.getInt();
+            if (checksum != checksum(seq, key, kind, slot, a, b, stamp) || slot < 1 || slot >= SLOT_COUNT
+                    || recordFormat != (legacy ? 0 : RECORD_FORMAT)) {
+                trace.log(TraceLog.OUTBOX_CORRUPT, i, file);
+                records = i;
+                break;
+            }
+            if (seq >= slotSeq[slot]) {
+                // Old states are keyed by their value alone, like new ones
+                // with stamp 0
+                put(slot, seq, key, kind, a, b, stamp);
+            }
+            nextSeq = Math.max(nextSeq, seq + 1);
+        }
+        // Drop whatever follows the last good record
+        channel.truncate(records * recordSize);
+        channel.position(records * recordSize);
+        logRecords = records;
+        if (legacy) {
+            compact();
+        }
+    }
+
+    private void append(FileChannel out, int slot) throws IOException {
+        record.clear();
+        long seq = slotSeq[slot];
+        long key = slotKey[slot];
+        int kind = slotKind[slot];
+        int a = slotA[slot];
+        int b = slotB[slot];
+        long stamp = slotStamp[slot];
+        record.putLong(seq);
+        record.putLong(key);
+        record.put((byte) kind);
+        record.put((byte) slot);
+        record.putShort((short) RECORD_FORMAT);
+        record.putInt(a);
+        record.putInt(b);
+        record.putLong(stamp);
+        record.putInt(checksum(seq, key, kind, slot, a, b, stamp));
+        record.flip();
+        while (record.hasRemaining()) {
+            out.write(record);
+        }
+    }
+
+    // Rewrites the log with only the live slots. The new log is written to a
+    // temporary file and renamed over the old one so a crash part way through
+    // leaves one of the two intact.
+    private void compact() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        int count = sortedSlots();
+        try {
+            out.setLength(0);
+            FileChannel outChannel = out.getChannel();
+            for (int i = 0; i < count; i++) {
+                append(outChannel, order[i]);
+            }
+            outChannel.force(true);
+        } finally {
+            out.close();
+        }
+        closeQuietly();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        channel.position(channel.size());
+        logRecords = count;
+    }
+
+    // A zero stamp leaves the checksum as it was for records without one
+    static int checksum(long seq, long key, int kind, int slot, int a, int b, long stamp) {
+        long h = seq * 0x9E3779B97F4A7C15L;
+        h = (h ^ key) * 0x9E3779B97F4A7C15L;
+        h = (h ^ ((long) kind << 8 | slot)) * 0x9E3779B97F4A7C15L;
+        h = (h ^ ((long) a << 32 | (b & 0xFFFFFFFFL))) * 0x9E3779B97F4A7C15L;
+        if (stamp != 0) {
+            h = (h ^ stamp) * 0x9E3779B97F4A7C15L;
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void closeQuietly() {
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+        raf = null;
+        channel = null;
+    }
+}
@@ -0,0 +1,316 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* On-device history of outlet switching and the battery curve.
+ *
+ * Events are fixed size records in a ring inside a memory-mapped file, so the
+ * log never grows past its capacity and the oldest events are overwritten
+ * first. Appending is a few absolute puts into the mapping with no system
+ * call, and the kernel writes the pages back: a crash of the process loses
+ * nothing, a power loss at most what wasn't written back yet.
+ *
+ * Records are kept in time order (a clock that goes backwards is clamped to
+ * the last event's time), so range queries binary search for their start
+ * and then only read the records in range. Queries and downsampling hand out
+ * primitives and never load the history into the heap.
+ */
+public final class EventLog {
+
+    public static final int KIND_OUTLET = 1;
+    public static final int KIND_BATTERY = 2;
+
+    // Matches every arg in downsample
+    public static final int ANY = -1;
+
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    // magic(4) version(4) capacity(4) pad(4) written(8) lastTime(8)
+    private static final int HEADER_SIZE = 32;
+    // time(8) kind(1) arg(1) pad(2) value(4)
+    private static final int RECORD_SIZE = 16;
+    private static final int MAGIC = 0x57504556; // "WPEV"
+    private static final int VERSION = 1;
+    private static final int WRITTEN_OFFSET = 16;
+    private static final int LAST_TIME_OFFSET = 24;
+
+    // Called for each event of a query, in time order
+    public interface Visitor {
+        void onEvent(long timeMillis, int kind, int arg, int value);
+    }
+
+    // Per bucket count, min, max and sum of event values, filled by
+    // downsample. Reusable between calls.
+    public static final class Buckets {
+        public final int[] count;
+        public final int[] min;
+        public final int[] max;
+        public final long[] sum;
+
+        public Buckets(int size) {
+            count = new int[size];
+            min = new int[size];
+            max = new int[size];
+            sum = new long[size];
+        }
+
+        public int size() {
+            return count.length;
+        }
+
+        // Mean value of a bucket, 0 if it's empty
+        public int mean(int i) {
+            return count[i] == 0 ? 0 : (int) (sum[i] / count[i]);
+        }
+
+        void clear() {
+            for (int i = 0; i < count.length; i++) {
+                count[i] = 0;
+                min[i] = Integer.MAX_VALUE;
+                max[i] = Integer.MIN_VALUE;
+                sum[i] = 0;
+            }
+        }
+    }
+
+    private final File file;
+    private final int capacity;
+    private RandomAccessFile raf;
+    private MappedByteBuffer map;
+    private final TraceLog trace = TraceLog.process();
+
+    // Events ever appended, the newest one is number written - 1
+    private long written;
+    private long lastTime;
+
+    public EventLog(File file) {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    EventLog(File file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            raf.setLength(size);
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            load();
+        } catch (IOException e) {
+            // History is a nice to have, the app works without it
+            trace.log(TraceLog.EVENTS_OPEN_FAILED, e);
+            close();
+        }
+    }
+
+    // Outlet n (1 based) of the primary strip switched on or off
+    public void recordOutlet(long timeMillis, int outlet, boolean on) {
+        append(timeMillis, KIND_OUTLET, outlet, on ? 1 : 0);
+    }
+
+    // Battery level in tenths of a percent, arg is 1 while charging
+    public void recordBattery(long timeMillis, int permille, boolean charging) {
+        append(timeMillis, KIND_BATTERY, charging ? 1 : 0, permille);
+    }
+
+    // Number of events held, at most the capacity
+    public synchronized int size() {
+        return (int) Math.min(written, capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // Time of the oldest event held, 0 if there are none
+    public synchronized long oldestMillis() {
+        return size() == 0 ? 0 : timeAt(0);
+    }
+
+    // Calls the visitor for every event with fromMillis <= time < toMillis
+    // whose kind's bit (1 << kind) is set in kinds, and returns how many
+    public synchronized int query(long fromMillis, long toMillis, int kinds, Visitor visitor) {
+        int n = size();
+        int visited = 0;
+        for (int i = firstAtOrAfter(fromMillis); i < n; i++) {
+            int p = position(i);
+            long time = map.getLong(p);
+            if (time >= toMillis) {
+                break;
+            }
+            int kind = map.get(p + 8);
+            if ((kinds & (1 << kind)) != 0) {
+                visitor.onEvent(time, kind, map.get(p + 9) & 0xFF, map.getInt(p + 12));
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    // Splits [fromMillis, toMillis) into out.size() equal buckets and fills
+    // each with the count, min, max and sum of the values of the events of a
+    // kind (and arg, unless ANY) that fall in it. For the battery curve of a
+    // chart, one bucket per pixel column or so.
+    public synchronized void downsample(int kind, int arg, long fromMillis, long toMillis, Buckets out) {
+        out.clear();
+        int n = size();
+        long span = toMillis - fromMillis;
+        if (span <= 0) {
+            return;
+        }
+        for (int i = firstAtOrAfter(fromMillis); i < n; i++) {
+            int p = position(i);
+            long time = map.getLong(p);
+            if (time >= toMillis) {
+                break;
+            }
+            if (map.get(p + 8) != kind || (arg != ANY && (map.get(p + 9) & 0xFF) != arg)) {
+                continue;
+            }
+            int value = map.getInt(p + 12);
+            int b = (int) ((time - fromMillis) * out.size() / span);
+            out.count[b]++;
+            out.sum[b] += value;
+            out.min[b] = Math.min(out.min[b], value);
+            out.max[b] = Math.max(out.max[b], value);
+        }
+    }
+
+    // Splits [fromMillis, toMillis) into out.length equal buckets and sets
+    // each to the milliseconds an outlet was on during it, for usage
+    // reports. The state at fromMillis is the last one logged before it,
+    // off if there is none.
+    public synchronized void onTime(int outlet, long fromMillis, long toMillis, long[] out) {
+        for (int b = 0; b < out.length; b++) {
+            out[b] = 0;
+        }
+        if (toMillis <= fromMillis) {
+            return;
+        }
+        int first = firstAtOrAfter(fromMillis);
+        boolean on = false;
+        for (int i = first - 1; i >= 0; i--) {
+            int p = position(i);
+            if (map.get(p + 8) == KIND_OUTLET && (map.get(p + 9) & 0xFF) == outlet) {
+                on = map.getInt(p + 12) != 0;
+                break;
+            }
+        }
+        long onSince = on ? fromMillis : -1;
+        int n = size();
+        for (int i = first; i < n; i++) {
+            int p = position(i);
+            long time = map.getLong(p);
+            if (time >= toMillis) {
+                break;
+            }
+            if (map.get(p + 8) != KIND_OUTLET || (map.get(p + 9) & 0xFF) != outlet) {
+                continue;
+            }
+            boolean now = map.getInt(p + 12) != 0;
+            if (now && onSince < 0) {
+                onSince = time;
+            } else if (!now && onSince >= 0) {
+                addInterval(onSince, time, fromMillis, toMillis, out);
+                onSince = -1;
+            }
+        }
+        if (onSince >= 0) {
+            addInterval(onSince, toMillis, fromMillis, toMillis, out);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+        raf = null;
+        map = null;
+    }
+
+    private synchronized void append(long timeMillis, int kind, int arg, int value) {
+        if (map == null) {
+            return;
+        }
+        long time = Math.max(timeMillis, lastTime);
+        int p = HEADER_SIZE + (int) (written % capacity) * RECORD_SIZE;
+        map.putLong(p, time);
+        map.put(p + 8, (byte) kind);
+        map.put(p + 9, (byte) arg);
+        map.putShort(p + 10, (short) 0);
+        map.putInt(p + 12, value);
+        // The record only counts once the header says so
+        written++;
+        lastTime = time;
+        map.putLong(WRITTEN_OFFSET, written);
+        map.putLong(LAST_TIME_OFFSET, lastTime);
+    }
+
+    // Index, 0 being the oldest event held, of the first event at or after
+    // timeMillis, size() if there is none
+    private int firstAtOrAfter(long timeMillis) {
+        int lo = 0;
+        int hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timeAt(mid) < timeMillis) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private long timeAt(int index) {
+        return map.getLong(position(index));
+    }
+
+    // Byte offset of the index-th oldest event held
+    private int position(int index) {
+        long oldest = written - size();
+        return HEADER_SIZE + (int) ((oldest + index) % capacity) * RECORD_SIZE;
+    }
+
+    private static void addInterval(long start, long end, long fromMillis, long toMillis, long[] out) {
+        long span = toMillis - fromMillis;
+        int buckets = out.length;
+        for (int b = (int) ((start - fromMillis) * buckets / span); b < buckets; b++) {
+            long bucketStart = fromMillis + span * b / buckets;
+            long bucketEnd = fromMillis + span * (b + 1) / buckets;
+            if (bucketStart >= end) {
+                break;
+            }
+            out[b] += Math.min(end, bucketEnd) - Math.max(start, bucketStart);
+        }
+    }
+
+    // Picks up where the last run left off, or starts over if the file isn't
+    // a log of this capacity
+    private void load() {
+        if (map.getInt(0) == MAGIC && map.getInt(4) == VERSION && map.getInt(8) == capacity) {
+            written = map.getLong(WRITTEN_OFFSET);
+            lastTime = map.getLong(LAST_TIME_OFFSET);
+            if (written >= 0) {
+                return;
+            }
+            trace.log(TraceLog.EVENTS_CORRUPT, file);
+        }
+        written = 0;
+        lastTime = 0;
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, capacity);
+        map.putInt(12, 0);
+        map.putLong(WRITTEN_OFFSET, 0);
+        map.putLong(LAST_TIME_OFFSET, 0);
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/* One outbound message. Frames are pooled by PublishPipeline: a producer takes
+ * a free frame, encodes straight into data and submits it, and the frame goes
+ * back to the pool once the client reports the publish as complete.
+ */
+public final class Frame {
+
+    // Encoded message, the first length bytes are valid
+    public final byte[] data = new byte[MessageCodec.MAX_FRAME_LENGTH];
+    public int length;
+
+    // Topic the frame is published to
+    public String topic;
+
+    // Where an MQTT 5 broker tells the strip to answer, with the id the
+    // answer carries back as its correlation data. Only sent over MQTT 5,
+    // cleared when the frame is recycled.
+    public String responseTopic;
+    public int correlation;
+
+    // Time the frame was submitted, used for queueing/publish latency
+    long submittedNanos;
+
+    // Told when the publish completes, cleared when the frame is recycled
+    public PublishPipeline.Listener listener;
+
+    // Paho needs an exactly sized payload, so the last one is kept and reused
+    // whenever the next message on this frame has the same length
+    private final MqttMessage message = new MqttMessage();
+    private byte[] payload;
+
+    public MqttMessage toMessage(int qos) {
+        if (payload == null || payload.length != length) {
+            payload = new byte[length];
+        }
+        System.arraycopy(data, 0, payload, 0, length);
+        message.setPayload(payload);
+        message.setQos(qos);
+        return message;
+    }
+}
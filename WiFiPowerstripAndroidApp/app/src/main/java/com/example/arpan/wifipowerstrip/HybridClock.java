@@ -0,0 +1,55 @@
+package com.example.arpan.wifipowerstrip;
+
+/* Hybrid logical clock used to stamp outlet commands, so the strip server can
+ * settle two phones switching the same outlet as last writer wins and every
+ * phone ends up with the same result.
+ *
+ * A stamp packs wall clock milliseconds in its upper 48 bits and a counter in
+ * the lower 16, so stamps compare as plain longs. Stamps never go backwards
+ * and move past every stamp the clock has seen from the server, so a command
+ * made after seeing another phone's change always wins over it, even when
+ * this phone's clock runs behind. Remote stamps more than MAX_DRIFT_MILLIS
+ * ahead of our wall clock are ignored so one bad clock can't drag every
+ * phone into the future.
+ */
+public final class HybridClock {
+
+    static final int COUNTER_BITS = 16;
+    static final long MAX_DRIFT_MILLIS = 60 * 1000L;
+
+    private long last;
+    private long rejected;
+
+    // Stamp for a command made now
+    public synchronized long now(long wallMillis) {
+        long wall = wallMillis << COUNTER_BITS;
+        last = wall > last ? wall : last + 1;
+        return last;
+    }
+
+    // Merges a stamp received from the server. Returns false if it was
+    // ignored for being too far ahead.
+    public synchronized boolean update(long remote, long wallMillis) {
+        if (millis(remote) > wallMillis + MAX_DRIFT_MILLIS) {
+            rejected++;
+            return false;
+        }
+        long wall = wallMillis << COUNTER_BITS;
+        long seen = Math.max(last, remote);
+        last = wall > seen ? wall : seen + 1;
+        return true;
+    }
+
+    // Last stamp handed out or seen, 0 if none
+    public synchronized long last() {
+        return last;
+    }
+
+    public synchronized long rejectedCount() {
+        return rejected;
+    }
+
+    public static long millis(long stamp) {
+        return stamp >>> COUNTER_BITS;
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.arpan.wifipowerstrip;
+
+/* Picks how long the broker connection may stay idle before a ping, per
+ * network, to wake the radio as rarely as the network's NAT allows.
+ *
+ * A NAT drops idle TCP mappings after a timeout that differs from network to
+ * network, and the connection then dies without either side noticing until
+ * the next write. The controller searches for the longest idle interval that
+ * still gets a ping answered: starting from what it learned about the
+ * network before (or DEFAULT_SECONDS), every CONFIRMATIONS answered pings at
+ * an interval let it probe a longer one, growing by half until a ping times
+ * out and then bisecting between the longest interval that worked and the
+ * shortest one that didn't. It settles once they are RESOLUTION_SECONDS
+ * apart. A ping timeout falls back to the last interval that worked right
+ * away, or halves the interval if that one failed too.
+ *
+ * What it learns is handed to Callbacks.save per network so it survives
+ * restarts. Detection latency, the time from the last packet the broker sent
+ * to declaring the link dead, is recorded for every ping timeout.
+ */
+public final class KeepaliveController {
+
+    // The MqttService side
+    public interface Callbacks {
+        void save(String network, int goodSeconds, int badSeconds);
+    }
+
+    static final int MIN_SECONDS = 30;
+    static final int MAX_SECONDS = 28 * 60;
+    static final int DEFAULT_SECONDS = 4 * 60;
+    static final int CONFIRMATIONS = 2;
+    static final int RESOLUTION_SECONDS = 30;
+
+    private final Callbacks callbacks;
+
+    // Current network, longest interval that got a ping answered and
+    // shortest that didn't, 0 if none yet
+    private String network;
+    private int goodSeconds;
+    private int badSeconds;
+    private int intervalSeconds = DEFAULT_SECONDS;
+    private int confirmations;
+
+    private long pings;
+    private long timeouts;
+    private final Histogram detection = new Histogram();
+
+    public KeepaliveController(Callbacks callbacks) {
+        this.callbacks = callbacks;
+    }
+
+    // Switches to a network with what was saved for it, 0 for unknown
+    public synchronized void onNetwork(String network, int goodSeconds, int badSeconds) {
+        this.network = network;
+        this.goodSeconds = goodSeconds;
+        this.badSeconds = badSeconds;
+        confirmations = 0;
+        intervalSeconds = goodSeconds > 0 ? goodSeconds : DEFAULT_SECONDS;
+        if (badSeconds > 0) {
+            intervalSeconds = Math.min(intervalSeconds, Math.max(MIN_SECONDS, badSeconds - RESOLUTION_SECONDS));
+        }
+    }
+
+    // Idle time before the next ping
+    public synchronized int intervalSeconds() {
+        return intervalSeconds;
+    }
+
+    public long intervalNanos() {
+        return intervalSeconds() * 1000L * 1000L * 1000L;
+    }
+
+    // A ping sent after idleSeconds without traffic was answered. Only pings
+    // that waited out the whole interval count towards probing.
+    public synchronized void onPingAnswered(long idleSeconds) {
+        pings++;
+        if (idleSeconds < intervalSeconds) {
+            return;
+        }
+        if (intervalSeconds > goodSeconds) {
+            goodSeconds = intervalSeconds;
+            save();
+        }
+        if (++confirmations < CONFIRMATIONS) {
+            return;
+        }
+        confirmations = 0;
+        int next = nextProbe();
+        if (next - goodSeconds >= RESOLUTION_SECONDS) {
+            intervalSeconds = next;
+        }
+    }
+
+    // A ping went unanswered, the link is dead. sinceReceivedNanos is the
+    // time since the broker last sent anything.
+    public synchronized void onPingTimeout(long sinceReceivedNanos) {
+        pings++;
+        timeouts++;
+        detection.record(sinceReceivedNanos / 1000L);
+        confirmations = 0;
+        if (intervalSeconds > goodSeconds) {
+            badSeconds = intervalSeconds;
+            intervalSeconds = Math.max(MIN_SECONDS, goodSeconds);
+        } else {
+            // Even the interval that used to work failed, the NAT changed
+            badSeconds = intervalSeconds;
+            goodSeconds = 0;
+            intervalSeconds = Math.max(MIN_SECONDS, intervalSeconds / 2);
+        }
+        save();
+    }
+
+    // True once the search for the current network is done
+    public synchronized boolean isSettled() {
+        return intervalSeconds == goodSeconds && nextProbe() - goodSeconds < RESOLUTION_SECONDS;
+    }
+
+    public synchronized String network() {
+        return network;
+    }
+
+    public synchronized int goodSeconds() {
+        return goodSeconds;
+    }
+
+    public synchronized int badSeconds() {
+        return badSeconds;
+    }
+
+    public synchronized long pingCount() {
+        return pings;
+    }
+
+    public synchronized long timeoutCount() {
+        return timeouts;
+    }
+
+    // Time from the last packet of a dead link to noticing, in microseconds
+    public synchronized long detectionP50Micros() {
+        return detection.percentile(50);
+    }
+
+    public synchronized long detectionMaxMicros() {
+        return detection.max();
+    }
+
+    // Interval to try after the current one was confirmed
+    private int nextProbe() {
+        int next = badSeconds > 0 ? (goodSeconds + badSeconds) / 2 : goodSeconds * 3 / 2;
+        return Math.min(next, MAX_SECONDS);
+    }
+
+    private void save() {
+        if (network != null) {
+            callbacks.save(network, goodSeconds, badSeconds);
+        }
+    }
+}
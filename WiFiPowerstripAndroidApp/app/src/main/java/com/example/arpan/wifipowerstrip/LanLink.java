@@ -0,0 +1,421 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+
+/* Direct control of strips on the same Wi-Fi as the phone, skipping the
+ * broker, the python script and MySQL on the way to the relays.
+ *
+ * Datagrams carry one MessageCodec frame each, to and from UDP port PORT of
+ * the strip. Discovery broadcasts a Hello and strips answer with a Hello
+ * carrying their device id. Anyone on the Wi-Fi can answer, so only strips
+ * the DeviceIndex already knows from the broker are taken, a strip keeps the
+ * address it was found at until it stops answering, and acks only count
+ * from the address the command went to. Everything else is counted as
+ * rejected. Commands are
+ * the same stamped State and Batch frames sent over MQTT, and the strip
+ * answers with an Ack carrying the command's id once its relays switched. A
+ * command that isn't acked within RETRY_MILLIS is resent, and after
+ * MAX_ATTEMPTS the strip is taken off the direct path until it answers
+ * discovery again and the command goes to Callbacks.fallback for the broker
+ * route. Acked commands go to Callbacks.acked so the strip's server still
+ * hears about them.
+ *
+ * Command to ack latency over the direct path is kept in a Histogram. One
+ * thread reads datagrams; retries and rediscovery every
+ * DISCOVERY_INTERVAL_MILLIS run on the PublishPipeline I/O thread as a
+ * Ticker.
+ */
+public final class LanLink implements PublishPipeline.Ticker {
+
+    // The MqttService side, called without the lock held
+    public interface Callbacks {
+        void acked(int strip, int count, long mask, long values, long stamp);
+        void fallback(int strip, int count, long mask, long values, long stamp);
+    }
+
+    public static final int PORT = 4210;
+    static final int CAPACITY = 16;
+    static final long RETRY_MILLIS = 150;
+    static final int MAX_ATTEMPTS = 3;
+    static final long DISCOVERY_INTERVAL_MILLIS = 5 * 60 * 1000L;
+    private static final long DISCOVERY_INTERVAL_NANOS = DISCOVERY_INTERVAL_MILLIS * 1000L * 1000L;
+
+    private final SocketAddress discovery;
+    private final DeviceIndex devices;
+    private final Callbacks callbacks;
+    private final long retryNanos;
+
+    // Address of every strip that answered discovery, by strip index
+    private final SocketAddress[] addresses;
+    private int direct;
+
+    // Pending commands by slot, a slot is free when its mask is 0
+    private final int[] ids = new int[CAPACITY];
+    private final int[] strips = new int[CAPACITY];
+    private final int[] counts = new int[CAPACITY];
+    private final long[] masks = new long[CAPACITY];
+    private final long[] values = new long[CAPACITY];
+    private final long[] stamps = new long[CAPACITY];
+    private final int[] nodes = new int[CAPACITY];
+    private final long[] sentNanos = new long[CAPACITY];
+    private final long[] deadlines = new long[CAPACITY];
+    // Where each command was last sent, its ack must come from there
+    private final SocketAddress[] targets = new SocketAddress[CAPACITY];
+    private final int[] attempts = new int[CAPACITY];
+    private int pending;
+    private int nextId = 1;
+
+    private DatagramSocket socket;
+    private boolean enabled = true;
+    private boolean discoveryDue = true;
+    private long lastDiscoveryNanos;
+    private final byte[] out = new byte[MessageCodec.MAX_FRAME_LENGTH];
+    private final DatagramPacket outPacket = new DatagramPacket(out, out.length);
+
+    private final Histogram latency = new Histogram();
+    private long sent;
+    private long acked;
+    private long fallbacks;
+    private long rejected;
+
+    // discovery is where Hellos are sent, the broadcast address of the LAN
+    // on port PORT
+    public LanLink(SocketAddress discovery, DeviceIndex devices, Callbacks callbacks) {
+        this(discovery, devices, callbacks, RETRY_MILLIS);
+    }
+
+    LanLink(SocketAddress discovery, DeviceIndex devices, Callbacks callbacks, long retryMillis) {
+        this.discovery = discovery;
+        this.devices = devices;
+        this.callbacks = callbacks;
+        this.retryNanos = retryMillis * 1000L * 1000L;
+        this.addresses = new SocketAddress[devices.capacity()];
+    }
+
+    // Opens the socket and starts the reader thread. Discovery goes out on
+    // the next tick.
+    public synchronized void start() throws IOException {
+        if (socket != null) {
+            return;
+        }
+        final DatagramSocket s = new DatagramSocket();
+        s.setBroadcast(true);
+        socket = s;
+        discoveryDue = true;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(s);
+            }
+        }, "lan");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Pending commands are dropped, nothing is left to report them to
+    public synchronized void stop() {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+        forget();
+        for (int i = 0; i < CAPACITY; i++) {
+            masks[i] = 0;
+        }
+        pending = 0;
+    }
+
+    // The phone moved to another network. Strips found on the old one are
+    // forgotten, and discovery only runs on networks that can reach strips
+    // directly.
+    public synchronized void onNetwork(boolean local) {
+        forget();
+        enabled = local;
+        discoveryDue = local;
+    }
+
+    // True if commands for the strip currently go directly to it
+    public synchronized boolean isDirect(int strip) {
+        return socket != null && strip >= 0 && strip < addresses.length && addresses[strip] != null;
+    }
+
+    // Sends a command straight to the strip. Returns false, and sends
+    // nothing, if the strip isn't reachable directly or too many commands
+    // are pending; the caller then goes through the broker.
+    public synchronized boolean send(int strip, int count, long mask, long vals, long stamp, int node,
+                                     long nowNanos) {
+        if (!isDirect(strip) || mask == 0) {
+            return false;
+        }
+        int free = -1;
+        for (int i = 0; i < CAPACITY; i++) {
+            if (masks[i] != 0 && strips[i] == strip && (masks[i] & mask) != 0) {
+                // Superseded by this command, a retry must not undo it
+                masks[i] &= ~mask;
+                if (masks[i] == 0) {
+                    pending--;
+                }
+            }
+            if (masks[i] == 0 && free < 0) {
+                free = i;
+            }
+        }
+        if (free < 0) {
+            return false;
+        }
+        int id = nextId++;
+        if (id == 0) {
+            id = nextId++;
+        }
+        ids[free] = id;
+        strips[free] = strip;
+        counts[free] = count;
+        masks[free] = mask;
+        values[free] = vals;
+        stamps[free] = stamp;
+        nodes[free] = node;
+        sentNanos[free] = nowNanos;
+        deadlines[free] = nowNanos + retryNanos;
+        attempts[free] = 1;
+        if (!transmit(free)) {
+            masks[free] = 0;
+            return false;
+        }
+        pending++;
+        sent++;
+        return true;
+    }
+
+    @Override
+    public long tick(long nowNanos) {
+        long wait = Long.MAX_VALUE;
+        // Collected under the lock and called back outside it. Only
+        // allocated when a strip stopped answering.
+        long[] failures = null;
+        int failureCount = 0;
+        synchronized (this) {
+            if (socket == null) {
+                return Long.MAX_VALUE;
+            }
+            if (enabled) {
+                if (discoveryDue || nowNanos - lastDiscoveryNanos >= DISCOVERY_INTERVAL_NANOS) {
+                    discover();
+                    lastDiscoveryNanos = nowNanos;
+                    discoveryDue = false;
+                }
+                wait = lastDiscoveryNanos + DISCOVERY_INTERVAL_NANOS - nowNanos;
+            }
+            for (int i = 0; i < CAPACITY && pending > 0; i++) {
+                if (masks[i] == 0) {
+                    continue;
+                }
+                if (deadlines[i] > nowNanos) {
+                    wait = Math.min(wait, deadlines[i] - nowNanos);
+                    continue;
+                }
+                if (attempts[i] < MAX_ATTEMPTS && addresses[strips[i]] != null) {
+                    attempts[i]++;
+                    deadlines[i] = nowNanos + retryNanos;
+                    transmit(i);
+                    wait = Math.min(wait, retryNanos);
+                    continue;
+                }
+                if (addresses[strips[i]] != null) {
+                    addresses[strips[i]] = null;
+                    direct--;
+                }
+                if (failures == null) {
+                    failures = new long[CAPACITY * 5];
+                }
+                failures[failureCount * 5] = strips[i];
+                failures[failureCount * 5 + 1] = counts[i];
+                failures[failureCount * 5 + 2] = masks[i];
+                failures[failureCount * 5 + 3] = values[i];
+                failures[failureCount * 5 + 4] = stamps[i];
+                failureCount++;
+                masks[i] = 0;
+                pending--;
+                fallbacks++;
+            }
+        }
+        for (int f = 0; f < failureCount; f++) {
+            callbacks.fallback((int) failures[f * 5], (int) failures[f * 5 + 1],
+                    failures[f * 5 + 2], failures[f * 5 + 3], failures[f * 5 + 4]);
+        }
+        return wait;
+    }
+
+    public synchronized int directCount() {
+        return direct;
+    }
+
+    public synchronized int pendingCount() {
+        return pending;
+    }
+
+    public synchronized long sentCount() {
+        return sent;
+    }
+
+    public synchronized long ackedCount() {
+        return acked;
+    }
+
+    // Commands that went to the broker because the strip didn't answer
+    public synchronized long fallbackCount() {
+        return fallbacks;
+    }
+
+    // Hellos and acks that were ignored: unknown strips, strips answering
+    // from a new address and acks from the wrong one
+    public synchronized long rejectedCount() {
+        return rejected;
+    }
+
+    // Command to actuation latency over the direct path, in microseconds
+    public long latencyP50Micros() {
+        return latency.percentile(50);
+    }
+
+    public long latencyMaxMicros() {
+        return latency.max();
+    }
+
+    private void forget() {
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = null;
+        }
+        direct = 0;
+    }
+
+    private void discover() {
+        outPacket.setLength(MessageCodec.encodeHello(out, 0));
+        outPacket.setSocketAddress(discovery);
+        try {
+            socket.send(outPacket);
+        } catch (IOException e) {
+            // No route to the LAN right now, tried again next interval
+        }
+    }
+
+    private boolean transmit(int slot) {
+        int length = Long.bitCount(masks[slot]) == 1
+                ? MessageCodec.encodeState(out, 0, Long.numberOfTrailingZeros(masks[slot]) + 1,
+                        (values[slot] & masks[slot]) != 0, ids[slot], stamps[slot], nodes[slot])
+                : MessageCodec.encodeBatch(out, 0, counts[slot], masks[slot], values[slot],
+                        ids[slot], stamps[slot], nodes[slot]);
+        outPacket.setLength(length);
+        targets[slot] = addresses[strips[slot]];
+        outPacket.setSocketAddress(targets[slot]);
+        try {
+            socket.send(outPacket);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Reader thread, until the socket is closed
+    private void read(DatagramSocket s) {
+        byte[] in = new byte[MessageCodec.MAX_FRAME_LENGTH];
+        DatagramPacket packet = new DatagramPacket(in, in.length);
+        Inbound inbound = new Inbound();
+        while (true) {
+            packet.setLength(in.length);
+            try {
+                s.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            if (MessageCodec.isFrame(in, 0, packet.getLength())) {
+                inbound.from = packet.getSocketAddress();
+                inbound.deviceId = null;
+                MessageCodec.decode(in, 0, packet.getLength(), inbound);
+            }
+        }
+    }
+
+    // Answers to discovery and acks, decoded on the reader thread
+    private final class Inbound extends MessageCodec.Adapter {
+        SocketAddress from;
+        String deviceId;
+
+        @Override
+        public void onDeviceId(String id) {
+            deviceId = id;
+        }
+
+        @Override
+        public void onHello(int version) {
+            if (deviceId == null) {
+                // Our own broadcast, or a strip that predates discovery
+                return;
+            }
+            int strip = devices.indexOf(deviceId);
+            synchronized (LanLink.this) {
+                if (socket == null || !enabled) {
+                    return;
+                }
+                if (strip < 0 || (addresses[strip] != null && !addresses[strip].equals(from))) {
+                    rejected++;
+                    return;
+                }
+                if (addresses[strip] == null) {
+                    direct++;
+                }
+                addresses[strip] = from;
+            }
+        }
+
+        @Override
+        public void onAck(int id, boolean applied) {
+            int strip;
+            int count;
+            long mask;
+            long vals;
+            long stamp;
+            synchronized (LanLink.this) {
+                int slot = find(id);
+                if (slot < 0) {
+                    return;
+                }
+                if (!from.equals(targets[slot])) {
+                    rejected++;
+                    return;
+                }
+                strip = strips[slot];
+                count = counts[slot];
+                mask = masks[slot];
+                vals = values[slot];
+                stamp = stamps[slot];
+                masks[slot] = 0;
+                pending--;
+                if (applied) {
+                    acked++;
+                    latency.record((System.nanoTime() - sentNanos[slot]) / 1000L);
+                } else {
+                    fallbacks++;
+                }
+            }
+            // A strip refusing the command is left to the broker route too,
+            // which rolls the UI back if the server refuses it as well
+            if (applied) {
+                callbacks.acked(strip, count, mask, vals, stamp);
+            } else {
+                callbacks.fallback(strip, count, mask, vals, stamp);
+            }
+        }
+    }
+
+    private int find(int id) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (masks[i] != 0 && ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,19 +1,20 @@
 package com.example.arpan.wifipowerstrip;
 
 import android.app.TimePickerDialog;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.content.SharedPreferences;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.text.format.DateUtils;
 
-import android.util.Log;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.CompoundButton;
@@ -23,6 +24,7 @@ import android.widget.TextView;
 import android.widget.TimePicker;
 
 import java.util.Calendar;
+import java.util.concurrent.Executor;
 
 /* This application was created by Arpan Bhavsar on 7/30/16
  *
@@ -44,25 +46,49 @@ import java.util.Calendar;
 
 public class MainActivity extends AppCompatActivity {
 
-    // App Preferences
-    SharedPreferences app_preferences;
+    // App settings, kept in memory and saved in the background. Null until
+    // loaded off the main thread; the switches and options are set up then.
+    SettingsStore settings;
 
-    // Switch states
-    private boolean switch1State;
-    private boolean switch2State;
-    private boolean switch3State;
-    private boolean switch4State;
+    // Outlets shown before the server has told us how many the strip has
+    private static final int DEFAULT_OUTLET_COUNT = 4;
 
-    // Switches
-    private Switch switch1;
-    private Switch switch2;
-    private Switch switch3;
-    private Switch switch4;
+    // One switch per outlet, switches[n-1] for outlet n. Rows are added as the
+    // server reports more outlets.
+    private ViewGroup outletRows;
+    private Switch[] switches = new Switch[0];
+    private TextView[] powers = new TextView[0];
+    private int outletCount;
+
+    // Set while switches are being set to server state, so the change
+    // listeners can tell that apart from the user flipping a switch
+    private boolean applyingRemote;
+
+    // How current the switches are: the time the cached snapshot was last
+    // confirmed, until the service hears from the strip
+    private TextView freshness;
 
     // Service variables
     private MqttService mService;
+    private StateStream mStateStream;
+    private StateStream mPowerStream;
     private boolean mBound = false;
 
+    // Outlet changes from the service while the activity is resumed,
+    // delivered on the main thread
+    private StateStream.Subscription subscription;
+    private StateStream.Subscription powerSubscription;
+    private final long[] powerWindow = new long[PowerMeter.FIELDS];
+    private boolean resumed;
+    private final Executor mainThread = new Executor() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+
     // Spinner for max battery charge percentages
     Spinner spinner;
 
@@ -81,13 +107,20 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public void onServiceConnected(ComponentName className, IBinder service) {
-            mService = ((MqttService.LocalBinder) service).getService();
+            MqttService.LocalBinder binder = (MqttService.LocalBinder) service;
+            mService = binder.getService();
+            mStateStream = binder.getStateStream();
+            mPowerStream = binder.getPowerStream();
             mBound = true;
+            if (resumed) {
+                subscribe();
+            }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName arg0) {
             mBound = false;
+            unsubscribe();
         }
     };
 
@@ -96,8 +129,19 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        initializeSwitches();
-        initializeOptions();
+        outletRows = (ViewGroup) findViewById(R.id.outlet_rows);
+        freshness = (TextView) findViewById(R.id.freshness);
+        SettingsStore.load(this, mainThread, new SettingsStore.Listener() {
+            @Override
+            public void onLoaded(SettingsStore store) {
+                if (isFinishing()) {
+                    return;
+                }
+                settings = store;
+                initializeSwitches();
+                initializeOptions();
+            }
+        });
 
         Intent intent = new Intent(this, MqttService.class);
         startService(intent);
@@ -107,24 +151,60 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public void onResume() {
         super.onResume();
+        resumed = true;
         if (mBound) {
-            mService.sendMessage("Sync");
+            subscribe();
+            mService.sendSync();
         }
-        IntentFilter filter = new IntentFilter();
-        filter.addAction("sync");
-        registerReceiver(receiver, filter);
+        showFreshness();
     }
 
-    // Saves state of switch from current session on app pause or close
+    // Subscribing first shows what the service already knows, the sync reply
+    // only carries the outlets that changed since
+    private void subscribe() {
+        if (subscription == null) {
+            subscription = mStateStream.subscribe(new StateStream.Subscriber() {
+                @Override
+                public void onOutletsChanged(int strip, long[] changed) {
+                    // The switches show the primary strip, other strips in the
+                    // fleet are only tracked by the service
+                    if (strip == MqttService.PRIMARY_STRIP) {
+                        syncSwitches(strip, changed);
+                    }
+                }
+            }, mainThread);
+        }
+        // Power readings are pushed a few times a second at most, however
+        // fast the strip sends them
+        if (powerSubscription == null) {
+            powerSubscription = mPowerStream.subscribe(new StateStream.Subscriber() {
+                @Override
+                public void onOutletsChanged(int strip, long[] changed) {
+                    if (strip == MqttService.PRIMARY_STRIP) {
+                        showPower(changed);
+                    }
+                }
+            }, mainThread);
+        }
+    }
+
+    private void unsubscribe() {
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+        if (powerSubscription != null) {
+            powerSubscription.cancel();
+            powerSubscription = null;
+        }
+    }
+
+    // The service saves the switch states the server confirms, so there is
+    // nothing to save here
     public void onPause() {
         super.onPause();
-        SharedPreferences.Editor editor = app_preferences.edit();
-        editor.putBoolean("switch1State", switch1State);
-        editor.putBoolean("switch2State", switch2State);
-        editor.putBoolean("switch3State", switch3State);
-        editor.putBoolean("switch4State", switch4State);
-        editor.commit();
-        unregisterReceiver(receiver);
+        resumed = false;
+        unsubscribe();
     }
 
     public void onDestroy() {
@@ -137,94 +217,95 @@ public class MainActivity extends AppCompatActivity {
     }
 
     public void initializeSwitches() {
-        // Initialize switch states, false = default state if no preferences are given
-        app_preferences = getApplicationContext().getSharedPreferences("preferences", 0);
-        switch1State = app_preferences.getBoolean("switch1State", false);
-        switch2State = app_preferences.getBoolean("switch2State", false);
-        switch3State = app_preferences.getBoolean("switch3State", false);
-        switch4State = app_preferences.getBoolean("switch4State", false);
-
-        // Set initial switch states
-        switch1 = (Switch) findViewById(R.id.switch1);
-        switch2 = (Switch) findViewById(R.id.switch2);
-        switch3 = (Switch) findViewById(R.id.switch3);
-        switch4 = (Switch) findViewById(R.id.switch4);
-
-        switch1.setChecked(switch1State);
-        switch2.setChecked(switch2State);
-        switch3.setChecked(switch3State);
-        switch4.setChecked(switch4State);
-
-        // Create listeners
-        switch1.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
-            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                switch1State = isChecked;
-                if (isChecked)
-                    mService.sendMessage("State:1:1");
-                else
-                    mService.sendMessage("State:1:0");
-            }
-        });
-        switch2.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
-            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                switch2State = isChecked;
-                if (isChecked)
-                    mService.sendMessage("State:2:1");
-                else
-                    mService.sendMessage("State:2:0");
-            }
-        });
-        switch3.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
-            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                switch3State = isChecked;
-                if (isChecked)
-                    mService.sendMessage("State:3:1");
-                else
-                    mService.sendMessage("State:3:0");
-            }
-        });
-        switch4.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
-            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                switch4State = isChecked;
-                if (isChecked)
-                    mService.sendMessage("State:4:1");
-                else
-                    mService.sendMessage("State:4:0");
+        // Shows the last states the server confirmed, false = default state
+        // if nothing was saved. If the service is already bound its states
+        // are at least as new.
+        int saved = settings.outletCount();
+        addOutletRows(saved > 0 ? saved : DEFAULT_OUTLET_COUNT);
+        OutletStore store = mBound ? mService.getOutletStore() : null;
+        if (store != null && store.count(MqttService.PRIMARY_STRIP) == 0) {
+            store = null;
+        }
+        applyingRemote = true;
+        try {
+            for (int i = 0; i < outletCount; i++) {
+                switches[i].setChecked(store != null
+                        ? store.isOn(MqttService.PRIMARY_STRIP, i + 1) : settings.isOutletOn(i + 1));
             }
-        });
+        } finally {
+            applyingRemote = false;
+        }
+        showFreshness();
+    }
+
+    private void showFreshness() {
+        if (settings == null) {
+            return;
+        }
+        long confirmed = settings.snapshotMillis();
+        if (mBound && mService.isStateFresh()) {
+            freshness.setText("Up to date");
+        } else if (confirmed == 0) {
+            freshness.setText("Not synced yet");
+        } else {
+            freshness.setText("Last updated " + DateUtils.getRelativeTimeSpanString(confirmed,
+                    System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS));
+        }
+    }
 
+    // Adds rows until there is one for each of the given number of outlets,
+    // up to the MqttService.MAX_OUTLETS that can be switched
+    private void addOutletRows(int count) {
+        count = Math.min(count, MqttService.MAX_OUTLETS);
+        if (count <= outletCount) {
+            return;
+        }
+        if (count > switches.length) {
+            Switch[] grown = new Switch[Math.max(count, switches.length * 2)];
+            System.arraycopy(switches, 0, grown, 0, outletCount);
+            switches = grown;
+            TextView[] grownPowers = new TextView[grown.length];
+            System.arraycopy(powers, 0, grownPowers, 0, outletCount);
+            powers = grownPowers;
+        }
+        LayoutInflater inflater = getLayoutInflater();
+        for (int i = outletCount; i < count; i++) {
+            final int outlet = i + 1;
+            View row = inflater.inflate(R.layout.outlet_row, outletRows, false);
+            ((TextView) row.findViewById(R.id.outlet_number)).setText(String.valueOf(outlet));
+            Switch sw = (Switch) row.findViewById(R.id.outlet_switch);
+            sw.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    if (mBound && !applyingRemote) {
+                        mService.sendState(outlet, isChecked);
+                    }
+                }
+            });
+            switches[i] = sw;
+            powers[i] = (TextView) row.findViewById(R.id.outlet_power);
+            outletRows.addView(row);
+        }
+        outletCount = count;
     }
 
     public void initializeOptions() {
         // The following code listens for the item selected as an option for a max battery percentage
         // to be charged up to. As soon as the option is clicked, it is immediately sent to update the
-        // database on the raspberry pi. Also, an intent is broadcasted to the alarm receiver to
-        // check the status of the current battery to see if the phone outlet should be on at the
-        // time that the battery option is selected.
-        app_preferences = getApplicationContext().getSharedPreferences("preferences", 0);
+        // database on the raspberry pi. The service then reports the current battery level
+        // against the new maximum if the phone is charging.
         spinner = (Spinner) findViewById(R.id.spinner);
         ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(this,
                 R.array.battery_percentages, android.R.layout.simple_spinner_dropdown_item);
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         spinner.setAdapter(adapter);
-        int batteryPos = app_preferences.getInt("battery_pos", 0);
+        int batteryPos = settings.batteryPos();
         spinner.setSelection(batteryPos);
         spinner.setOnItemSelectedListener(
                 new AdapterView.OnItemSelectedListener() {
                     public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
                         Object item = parent.getItemAtPosition(pos);
-                        SharedPreferences.Editor editor = app_preferences.edit();
-                        editor.putInt("battery_pos", pos);
-                        editor.commit();
-                        Intent intent1 = new Intent();
-                        intent1.setAction("update");
-                        intent1.putExtra("battery", item.toString());
-                        sendBroadcast(intent1);
-
-                        Intent intent2 = new Intent();
-                        intent2.setAction("alarm");
-                        sendBroadcast(intent2);
-
+                        settings.setBatteryPos(pos);
+                        sendSetting(MessageCodec.SETTING_BATTERY, Integer.parseInt(item.toString()), 0);
                     }
                     public void onNothingSelected(AdapterView<?> parent) {
                     }
@@ -233,10 +314,10 @@ public class MainActivity extends AppCompatActivity {
         timeron = (TextView) findViewById(R.id.timeron);
         timeroff = (TextView) findViewById(R.id.timeroff);
         Calendar mcurrentTime = Calendar.getInstance();
-        hourOn = app_preferences.getInt("hour_on",mcurrentTime.get(Calendar.HOUR_OF_DAY));
-        minuteOn = app_preferences.getInt("minute_on",mcurrentTime.get(Calendar.MINUTE));
-        hourOff = app_preferences.getInt("hour_off",mcurrentTime.get(Calendar.HOUR_OF_DAY));
-        minuteOff = app_preferences.getInt("minute_off",mcurrentTime.get(Calendar.MINUTE));
+        hourOn = orNow(settings.hourOn(), mcurrentTime.get(Calendar.HOUR_OF_DAY));
+        minuteOn = orNow(settings.minuteOn(), mcurrentTime.get(Calendar.MINUTE));
+        hourOff = orNow(settings.hourOff(), mcurrentTime.get(Calendar.HOUR_OF_DAY));
+        minuteOff = orNow(settings.minuteOff(), mcurrentTime.get(Calendar.MINUTE));
         String timeOn = String.format("%02d:%02d", hourOn, minuteOn);
         String timeOff = String.format("%02d:%02d", hourOff, minuteOff);
         timeron.setText(timeOn);
@@ -245,26 +326,18 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 Calendar mcurrentTime = Calendar.getInstance();
-                int hour = app_preferences.getInt("hour_on",mcurrentTime.get(Calendar.HOUR_OF_DAY));
-                int minute = app_preferences.getInt("minute_on",mcurrentTime.get(Calendar.MINUTE));
+                int hour = orNow(settings.hourOn(), mcurrentTime.get(Calendar.HOUR_OF_DAY));
+                int minute = orNow(settings.minuteOn(), mcurrentTime.get(Calendar.MINUTE));
                 TimePickerDialog mTimePicker;
                 mTimePicker = new TimePickerDialog(MainActivity.this, new TimePickerDialog.OnTimeSetListener() {
                     @Override
                     public void onTimeSet(TimePicker timePicker, int selectedHour, int selectedMinute) {
                         String timeOn = String.format("%02d:%02d", selectedHour, selectedMinute);
                         timeron.setText(timeOn);
-                        SharedPreferences.Editor editor = app_preferences.edit();
-                        editor.putInt("hour_on", selectedHour);
-                        editor.putInt("minute_on", selectedMinute);
-                        editor.commit();
-                        Intent intent1 = new Intent();
-                        intent1.setAction("update");
-                        intent1.putExtra("timer_on", selectedHour + "-" + selectedMinute);
-                        sendBroadcast(intent1);
-
-                        Intent intent2 = new Intent();
-                        intent2.setAction("alarm");
-                        sendBroadcast(intent2);
+                        settings.setTimerOn(selectedHour, selectedMinute);
+                        putSchedule(MqttService.TIMER_ON_SCHEDULE,
+                                Schedule.daily(MqttService.TIMER_OUTLET, true, selectedHour, selectedMinute));
+
                     }
                 }, hour, minute, true);//Yes 24 hour time
                 mTimePicker.setTitle("Select On Time");
@@ -277,26 +350,18 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 Calendar mcurrentTime = Calendar.getInstance();
-                int hour = app_preferences.getInt("hour_off",mcurrentTime.get(Calendar.HOUR_OF_DAY));
-                int minute = app_preferences.getInt("minute_off",mcurrentTime.get(Calendar.MINUTE));
+                int hour = orNow(settings.hourOff(), mcurrentTime.get(Calendar.HOUR_OF_DAY));
+                int minute = orNow(settings.minuteOff(), mcurrentTime.get(Calendar.MINUTE));
                 TimePickerDialog mTimePicker;
                 mTimePicker = new TimePickerDialog(MainActivity.this, new TimePickerDialog.OnTimeSetListener() {
                     @Override
                     public void onTimeSet(TimePicker timePicker, int selectedHour, int selectedMinute) {
                         String timeOff = String.format("%02d:%02d", selectedHour, selectedMinute);
                         timeroff.setText(timeOff);
-                        SharedPreferences.Editor editor = app_preferences.edit();
-                        editor.putInt("hour_off", selectedHour);
-                        editor.putInt("minute_off", selectedMinute);
-                        editor.commit();
-                        Intent intent1 = new Intent();
-                        intent1.setAction("update");
-                        intent1.putExtra("timer_off", selectedHour + "-" + selectedMinute);
-                        sendBroadcast(intent1);
-
-                        Intent intent2 = new Intent();
-                        intent2.setAction("alarm");
-                        sendBroadcast(intent2);
+                        settings.setTimerOff(selectedHour, selectedMinute);
+                        putSchedule(MqttService.TIMER_OFF_SCHEDULE,
+                                Schedule.daily(MqttService.TIMER_OUTLET, false, selectedHour, selectedMinute));
+
                     }
                 }, hour, minute, true);//Yes 24 hour time
                 mTimePicker.setTitle("Select Off Time");
@@ -306,34 +371,74 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
-    // Method that sets switches to boolean values sent from the service
-    public void syncSwitches(boolean s1, boolean s2, boolean s3, boolean s4) {
-        // Sets switches to database's values
-        if (switch1 != null) { // Prevents from being run if service is restarted without activity running
-            switch1.setChecked(s1);
-            switch2.setChecked(s2);
-            switch3.setChecked(s3);
-            switch4.setChecked(s4);
+    // Sets the switches of the outlets whose bit is set in changed to the
+    // states cached by the service, without sending them back as commands.
+    // Word w of changed covers outlets 64*w+1 to 64*w+64, so only the
+    // changed rows are touched.
+    private void syncSwitches(int strip, long[] changed) {
+        OutletStore store = mService.getOutletStore();
+        addOutletRows(store.count(strip));
+        applyingRemote = true;
+        try {
+            for (int w = 0; w < changed.length; w++) {
+                long bits = changed[w];
+                while (bits != 0) {
+                    int outlet = w * OutletStore.BITS_PER_WORD + Long.numberOfTrailingZeros(bits) + 1;
+                    bits &= bits - 1;
+                    if (outlet <= outletCount) {
+                        switches[outlet - 1].setChecked(store.isOn(strip, outlet));
+                    }
+                }
+            }
+        } finally {
+            applyingRemote = false;
         }
+        showFreshness();
     }
 
-    // Broadcast Receiver that handles the sync event in the service and sends the
-    // boolean values from the intent to the syncSwitches method
-    private final BroadcastReceiver receiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if(action.equals("sync")) {
-                Log.e("Sync", "Received");
-                Bundle extras = intent.getExtras();
-                if (extras != null) {
-                    syncSwitches(extras.getBoolean("switch1State"),
-                            extras.getBoolean("switch2State"),
-                            extras.getBoolean("switch3State"),
-                            extras.getBoolean("switch4State"));
+    // Shows the draw of the outlets whose bit is set in changed: the mean over
+    // the last second and the range over the last minute
+    private void showPower(long[] changed) {
+        PowerMeter meter = mService.getPowerMeter();
+        long now = System.nanoTime();
+        for (int w = 0; w < changed.length; w++) {
+            long bits = changed[w];
+            while (bits != 0) {
+                int outlet = w * OutletStore.BITS_PER_WORD + Long.numberOfTrailingZeros(bits) + 1;
+                bits &= bits - 1;
+                if (outlet > outletCount || !meter.hasReading(outlet)) {
+                    continue;
                 }
+                meter.read(outlet, PowerMeter.WINDOW_SECOND, now, powerWindow);
+                long mean = powerWindow[PowerMeter.MEAN_MILLIWATTS];
+                meter.read(outlet, PowerMeter.WINDOW_MINUTE, now, powerWindow);
+                powers[outlet - 1].setText(String.format("%.1f W (%.0f-%.0f W)", mean / 1000.0,
+                        powerWindow[PowerMeter.MIN_MILLIWATTS] / 1000.0,
+                        powerWindow[PowerMeter.MAX_MILLIWATTS] / 1000.0));
             }
         }
-    };
+    }
+
+    // Saved timer value, or the current time if it was never set
+    private static int orNow(int saved, int now) {
+        return saved != SettingsStore.UNSET ? saved : now;
+    }
+
+    // Hands a setting change to the service, see MessageCodec.SETTING_*
+    private void sendSetting(int key, int a, int b) {
+        if (mBound) {
+            mService.sendSetting(key, a, b);
+        }
+    }
+
+    // The timer runs on the phone, see ScheduleEngine. Without the service
+    // the schedule is only saved and picked up when the service starts.
+    private void putSchedule(int id, Schedule schedule) {
+        if (mBound) {
+            mService.putSchedule(id, schedule);
+        } else {
+            settings.putSchedule(id, schedule);
+        }
+    }
 
 }
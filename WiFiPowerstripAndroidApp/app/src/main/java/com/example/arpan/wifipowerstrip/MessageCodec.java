@@ -0,0 +1,791 @@
+package com.example.arpan.wifipowerstrip;
+
+/* Wire codec for every message exchanged between the app, the python server
+ * on the raspberry pi and the ESP8266.
+ *
+ * Two formats are supported:
+ *
+ *  - The binary format, used once both ends have said they understand it.
+ *    Every frame starts with MAGIC and VERSION followed by a one byte type and
+ *    a small fixed layout body. MAGIC is not a printable character so a frame
+ *    can never be mistaken for one of the old text commands.
+ *
+ *  - The legacy text format ("State:1:1", "Sync", "1:0/2:0/3:1/4:0", ...) that
+ *    older servers and the ESP8266 still speak.
+ *
+ * All encode methods write into a caller supplied buffer and return the number
+ * of bytes written, and decode reports what it found through a Handler, so
+ * neither direction needs to create Strings or intermediate objects.
+ */
+public final class MessageCodec {
+
+    // Frame header
+    public static final byte MAGIC = (byte) 0xA7;
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 3;
+
+    // Largest frame/legacy message the encoder will ever produce
+    public static final int MAX_FRAME_LENGTH = 256;
+
+    // Frame types
+    public static final byte TYPE_HELLO = 1;
+    public static final byte TYPE_STATE = 2;
+    public static final byte TYPE_SYNC = 3;
+    public static final byte TYPE_SNAPSHOT = 4;
+    public static final byte TYPE_BATTERY = 5;
+    public static final byte TYPE_SETTING = 6;
+    public static final byte TYPE_BATCH = 7;
+    public static final byte TYPE_DELTA = 8;
+    public static final byte TYPE_ACK = 9;
+    public static final byte TYPE_POWER = 10;
+
+    // Readings a TYPE_POWER frame can carry
+    public static final int MAX_POWER_READINGS = 32;
+
+    // Setting keys carried by TYPE_SETTING
+    public static final int SETTING_BATTERY = 1;
+    public static final int SETTING_TIMER_ON = 2;
+    public static final int SETTING_TIMER_OFF = 3;
+
+    // Legacy keywords, kept as bytes so they can be compared/copied without Strings
+    private static final byte[] LEGACY_STATE = ascii("State:");
+    private static final byte[] LEGACY_SYNC = ascii("Sync");
+    private static final byte[] LEGACY_CURRENT = ascii("Current:");
+    private static final byte[] LEGACY_UPDATE = ascii("Update:");
+    private static final byte[] LEGACY_UPDATE_BATTERY = ascii("Update:Battery:");
+    private static final byte[] LEGACY_UPDATE_TIMER_ON = ascii("Update:Timer On:");
+    private static final byte[] LEGACY_UPDATE_TIMER_OFF = ascii("Update:Timer Off:");
+    private static final byte[] LEGACY_HELLO = ascii("Hello from android");
+    private static final byte[] LEGACY_BATCH = ascii("Batch:");
+    private static final byte[] LEGACY_DELTA = ascii("Delta:");
+
+    // Callback interface used by decode, one method per message type
+    public interface Handler {
+        void onHello(int version);
+        void onState(int outlet, boolean on);
+        void onSyncRequest(long sinceVersion);
+        void onSnapshot(int count, long bits);
+        void onBattery(int permille, int hour, int minute);
+        void onSetting(int key, int a, int b);
+        void onBatch(int count, long mask, long values);
+        void onDelta(long version, int count, long mask, long values);
+        void onAck(int id, boolean applied);
+        // Newest HybridClock stamp the server has seen, sent with deltas
+        void onStamp(long stamp);
+        // Id of the strip answering a LAN discovery, sent with its hello
+        void onDeviceId(String id);
+        // One metered outlet's draw, called once per reading of a power frame
+        void onPower(int outlet, int milliamps, int milliwatts);
+    }
+
+    // Convenience Handler so callers only override the messages they care about
+    public static class Adapter implements Handler {
+        public void onHello(int version) {}
+        public void onState(int outlet, boolean on) {}
+        public void onSyncRequest(long sinceVersion) {}
+        public void onSnapshot(int count, long bits) {}
+        public void onBattery(int permille, int hour, int minute) {}
+        public void onSetting(int key, int a, int b) {}
+        public void onBatch(int count, long mask, long values) {}
+        public void onDelta(long version, int count, long mask, long values) {}
+        public void onAck(int id, boolean applied) {}
+        public void onStamp(long stamp) {}
+        public void onDeviceId(String id) {}
+        public void onPower(int outlet, int milliamps, int milliwatts) {}
+    }
+
+    private MessageCodec() {
+    }
+
+    // Returns true if the payload is a binary frame rather than legacy text
+    public static boolean isFrame(byte[] in, int off, int len) {
+        return len >= HEADER_LENGTH && in[off] == MAGIC;
+    }
+
+    // Returns the TYPE_* of a binary frame or legacy text message without
+    // decoding it, or 0 if it isn't recognized
+    public static int typeOf(byte[] in, int off, int len) {
+        if (isFrame(in, off, len)) {
+            return in[off + 2];
+        }
+        int end = off + len;
+        if (len == 0) {
+            return 0;
+        }
+        if (isDigit(in[off])) {
+            return TYPE_SNAPSHOT;
+        }
+        if (startsWith(in, off, end, LEGACY_STATE)) {
+            return TYPE_STATE;
+        }
+        if (startsWith(in, off, end, LEGACY_BATCH)) {
+            return TYPE_BATCH;
+        }
+        if (startsWith(in, off, end, LEGACY_SYNC)) {
+            return TYPE_SYNC;
+        }
+        if (startsWith(in, off, end, LEGACY_DELTA)) {
+            return TYPE_DELTA;
+        }
+        if (startsWith(in, off, end, LEGACY_CURRENT)) {
+            return TYPE_BATTERY;
+        }
+        if (startsWith(in, off, end, LEGACY_UPDATE)) {
+            return TYPE_SETTING;
+        }
+        if (startsWith(in, off, end, LEGACY_HELLO)) {
+            return TYPE_HELLO;
+        }
+        return 0;
+    }
+
+    // ---------------------------------------------------------------------
+    // Binary encoding
+    // ---------------------------------------------------------------------
+
+    public static int encodeHello(byte[] out, int off) {
+        header(out, off, TYPE_HELLO);
+        out[off + 3] = VERSION;
+        return HEADER_LENGTH + 1;
+    }
+
+    // Hello also carrying the strip's device id, how strips answer LAN
+    // discovery (see LanLink). Ids are ASCII and at most 255 bytes.
+    public static int encodeHello(byte[] out, int off, String deviceId) {
+        int length = encodeHello(out, off);
+        int n = deviceId.length();
+        out[off + length] = (byte) n;
+        for (int i = 0; i < n; i++) {
+            out[off + length + 1 + i] = (byte) deviceId.charAt(i);
+        }
+        return length + 1 + n;
+    }
+
+    public static int encodeState(byte[] out, int off, int outlet, boolean on) {
+        header(out, off, TYPE_STATE);
+        out[off + 3] = (byte) outlet;
+        out[off + 4] = (byte) (on ? 1 : 0);
+        return HEADER_LENGTH + 2;
+    }
+
+    // State command carrying a correlation id the server acks once the
+    // outlet switched, see encodeAck. Servers that predate acks ignore it.
+    public static int encodeState(byte[] out, int off, int outlet, boolean on, int id) {
+        int length = encodeState(out, off, outlet, on);
+        putIntBytes(out, off + length, id);
+        return length + 4;
+    }
+
+    // State command also carrying the HybridClock stamp of the change and the
+    // node id of the phone that made it, which breaks ties between equal
+    // stamps. The server keeps the newest change per outlet and drops older
+    // ones. Servers that predate stamps ignore them.
+    public static int encodeState(byte[] out, int off, int outlet, boolean on, int id, long stamp, int node) {
+        int length = encodeState(out, off, outlet, on, id);
+        return putStamp(out, off + length, stamp, node) - off;
+    }
+
+    public static int encodeSync(byte[] out, int off) {
+        header(out, off, TYPE_SYNC);
+        return HEADER_LENGTH;
+    }
+
+    // Asks only for the outlets that changed after sinceVersion, 0 asks for all
+    public static int encodeSync(byte[] out, int off, long sinceVersion) {
+        header(out, off, TYPE_SYNC);
+        putLongBytes(out, off + 3, sinceVersion);
+        return HEADER_LENGTH + 8;
+    }
+
+    // Outlet n (1 based) is on when bit n-1 of bits is set
+    public static int encodeSnapshot(byte[] out, int off, int count, long bits) {
+        checkCount(count);
+        header(out, off, TYPE_SNAPSHOT);
+        out[off + 3] = (byte) count;
+        int bytes = (count + 7) >>> 3;
+        for (int i = 0; i < bytes; i++) {
+            out[off + 4 + i] = (byte) (bits >>> (i << 3));
+        }
+        return HEADER_LENGTH + 1 + bytes;
+    }
+
+    // Battery level is sent in tenths of a percent so no floats cross the wire
+    public static int encodeBattery(byte[] out, int off, int permille, int hour, int minute) {
+        header(out, off, TYPE_BATTERY);
+        out[off + 3] = (byte) (permille >>> 8);
+        out[off + 4] = (byte) permille;
+        out[off + 5] = (byte) hour;
+        out[off + 6] = (byte) minute;
+        return HEADER_LENGTH + 4;
+    }
+
+    public static int encodeSetting(byte[] out, int off, int key, int a, int b) {
+        header(out, off, TYPE_SETTING);
+        out[off + 3] = (byte) key;
+        out[off + 4] = (byte) a;
+        out[off + 5] = (byte) b;
+        return HEADER_LENGTH + 3;
+    }
+
+    // Sets several outlets at once. Outlet n (1 based) is changed when bit n-1
+    // of mask is set, and turned on when the same bit of values is set.
+    public static int encodeBatch(byte[] out, int off, int count, long mask, long values) {
+        checkCount(count);
+        header(out, off, TYPE_BATCH);
+        out[off + 3] = (byte) count;
+        int bytes = (count + 7) >>> 3;
+        for (int i = 0; i < bytes; i++) {
+            out[off + 4 + i] = (byte) (mask >>> (i << 3));
+            out[off + 4 + bytes + i] = (byte) (values >>> (i << 3));
+        }
+        return HEADER_LENGTH + 1 + 2 * bytes;
+    }
+
+    // Batch command carrying a correlation id, like encodeState
+    public static int encodeBatch(byte[] out, int off, int count, long mask, long values, int id) {
+        int length = encodeBatch(out, off, count, mask, values);
+        putIntBytes(out, off + length, id);
+        return length + 4;
+    }
+
+    // Batch command carrying a correlation id and a stamp, like encodeState
+    public static int encodeBatch(byte[] out, int off, int count, long mask, long values, int id,
+                                  long stamp, int node) {
+        int length = encodeBatch(out, off, count, mask, values, id);
+        return putStamp(out, off + length, stamp, node) - off;
+    }
+
+    // Sent by the server for a command with a correlation id once the strip
+    // switched its outlets, or with applied false if it couldn't
+    public static int encodeAck(byte[] out, int off, int id, boolean applied) {
+        header(out, off, TYPE_ACK);
+        putIntBytes(out, off + 3, id);
+        out[off + 7] = (byte) (applied ? 1 : 0);
+        return HEADER_LENGTH + 5;
+    }
+
+    // Reply to a versioned sync: the server's current version and the outlets
+    // that changed since the version the app asked about. An empty mask means
+    // nothing changed.
+    public static int encodeDelta(byte[] out, int off, long version, int count, long mask, long values) {
+        checkCount(count);
+        header(out, off, TYPE_DELTA);
+        putLongBytes(out, off + 3, version);
+        out[off + 11] = (byte) count;
+        int bytes = (count + 7) >>> 3;
+        for (int i = 0; i < bytes; i++) {
+            out[off + 12 + i] = (byte) (mask >>> (i << 3));
+            out[off + 12 + bytes + i] = (byte) (values >>> (i << 3));
+        }
+        return HEADER_LENGTH + 9 + 2 * bytes;
+    }
+
+    // Delta also carrying the newest stamp the server has seen, which phones
+    // merge into their HybridClock
+    public static int encodeDelta(byte[] out, int off, long version, int count, long mask, long values,
+                                  long stamp) {
+        int length = encodeDelta(out, off, version, count, mask, values);
+        putLongBytes(out, off + length, stamp);
+        return length + 8;
+    }
+
+    // Current and power draw of n metered outlets, readings i of the arrays.
+    // Strips stream these several times a second, they are never retained.
+    // Current is capped at 65535 mA.
+    public static int encodePower(byte[] out, int off, int n, int[] outlets, int[] milliamps, int[] milliwatts) {
+        header(out, off, TYPE_POWER);
+        out[off + 3] = (byte) n;
+        int p = off + 4;
+        for (int i = 0; i < n; i++) {
+            int ma = Math.min(milliamps[i], 0xFFFF);
+            out[p] = (byte) outlets[i];
+            out[p + 1] = (byte) (ma >>> 8);
+            out[p + 2] = (byte) ma;
+            putIntBytes(out, p + 3, milliwatts[i]);
+            p += 7;
+        }
+        return p - off;
+    }
+
+    private static int putStamp(byte[] out, int p, long stamp, int node) {
+        putLongBytes(out, p, stamp);
+        putIntBytes(out, p + 8, node);
+        return p + 12;
+    }
+
+    private static void putLongBytes(byte[] out, int p, long value) {
+        for (int i = 0; i < 8; i++) {
+            out[p + i] = (byte) (value >>> (56 - (i << 3)));
+        }
+    }
+
+    private static void putIntBytes(byte[] out, int p, int value) {
+        out[p] = (byte) (value >>> 24);
+        out[p + 1] = (byte) (value >>> 16);
+        out[p + 2] = (byte) (value >>> 8);
+        out[p + 3] = (byte) value;
+    }
+
+    private static int getIntBytes(byte[] in, int p) {
+        return ((in[p] & 0xFF) << 24) | ((in[p + 1] & 0xFF) << 16)
+                | ((in[p + 2] & 0xFF) << 8) | (in[p + 3] & 0xFF);
+    }
+
+    private static long getLongBytes(byte[] in, int p) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (in[p + i] & 0xFF);
+        }
+        return value;
+    }
+
+    // Outlets travel as the bits of one long
+    private static void checkCount(int count) {
+        if (count < 0 || count > 64) {
+            throw new IllegalArgumentException("Outlet count " + count + " out of range");
+        }
+    }
+
+    private static void header(byte[] out, int off, byte type) {
+        out[off] = MAGIC;
+        out[off + 1] = VERSION;
+        out[off + 2] = type;
+    }
+
+    // ---------------------------------------------------------------------
+    // Legacy text encoding
+    // ---------------------------------------------------------------------
+
+    public static int encodeLegacyHello(byte[] out, int off) {
+        return put(out, off, LEGACY_HELLO) - off;
+    }
+
+    // State:<outlet>:<0|1>
+    public static int encodeLegacyState(byte[] out, int off, int outlet, boolean on) {
+        int p = put(out, off, LEGACY_STATE);
+        p = putInt(out, p, outlet);
+        out[p++] = ':';
+        out[p++] = (byte) (on ? '1' : '0');
+        return p - off;
+    }
+
+    public static int encodeLegacySync(byte[] out, int off) {
+        return put(out, off, LEGACY_SYNC) - off;
+    }
+
+    // Sync:<sinceVersion>, servers without delta support read it as a plain Sync
+    public static int encodeLegacySync(byte[] out, int off, long sinceVersion) {
+        int p = put(out, off, LEGACY_SYNC);
+        out[p++] = ':';
+        return putLong(out, p, sinceVersion) - off;
+    }
+
+    // Delta:<version>:1:0/3:1, or Delta:<version>: when nothing changed
+    public static int encodeLegacyDelta(byte[] out, int off, long version, int count, long mask, long values) {
+        int p = put(out, off, LEGACY_DELTA);
+        p = putLong(out, p, version);
+        out[p++] = ':';
+        return p - off + encodePairs(out, p, count, mask, values);
+    }
+
+    // 1:0/2:0/3:1/4:0
+    public static int encodeLegacySnapshot(byte[] out, int off, int count, long bits) {
+        checkCount(count);
+        int p = off;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                out[p++] = '/';
+            }
+            p = putInt(out, p, i + 1);
+            out[p++] = ':';
+            out[p++] = (byte) (((bits >>> i) & 1L) != 0 ? '1' : '0');
+        }
+        return p - off;
+    }
+
+    // Current:<percent>.<tenth>:HH-mm
+    public static int encodeLegacyBattery(byte[] out, int off, int permille, int hour, int minute) {
+        int p = put(out, off, LEGACY_CURRENT);
+        p = putInt(out, p, permille / 10);
+        out[p++] = '.';
+        out[p++] = (byte) ('0' + permille % 10);
+        out[p++] = ':';
+        p = putTwoDigits(out, p, hour);
+        out[p++] = '-';
+        p = putTwoDigits(out, p, minute);
+        return p - off;
+    }
+
+    // Batch:1:1/3:0, only the outlets in mask are listed
+    public static int encodeLegacyBatch(byte[] out, int off, int count, long mask, long values) {
+        int p = put(out, off, LEGACY_BATCH);
+        return p - off + encodePairs(out, p, count, mask, values);
+    }
+
+    // Writes <outlet>:<state> pairs separated by '/' for the outlets in mask
+    private static int encodePairs(byte[] out, int off, int count, long mask, long values) {
+        checkCount(count);
+        int p = off;
+        for (int i = 0; i < count; i++) {
+            if (((mask >>> i) & 1L) == 0) {
+                continue;
+            }
+            if (p != off) {
+                out[p++] = '/';
+            }
+            p = putInt(out, p, i + 1);
+            out[p++] = ':';
+            out[p++] = (byte) (((values >>> i) & 1L) != 0 ? '1' : '0');
+        }
+        return p - off;
+    }
+
+    // Update:Battery:<pct>, Update:Timer On:<h>-<m> or Update:Timer Off:<h>-<m>
+    public static int encodeLegacySetting(byte[] out, int off, int key, int a, int b) {
+        int p;
+        switch (key) {
+            case SETTING_BATTERY:
+                p = put(out, off, LEGACY_UPDATE_BATTERY);
+                return putInt(out, p, a) - off;
+            case SETTING_TIMER_ON:
+                p = put(out, off, LEGACY_UPDATE_TIMER_ON);
+                break;
+            case SETTING_TIMER_OFF:
+                p = put(out, off, LEGACY_UPDATE_TIMER_OFF);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown setting " + key);
+        }
+        p = putInt(out, p, a);
+        out[p++] = '-';
+        return putInt(out, p, b) - off;
+    }
+
+    private static int put(byte[] out, int p, byte[] src) {
+        System.arraycopy(src, 0, out, p, src.length);
+        return p + src.length;
+    }
+
+    private static int putInt(byte[] out, int p, int value) {
+        return putLong(out, p, value);
+    }
+
+    private static int putLong(byte[] out, int p, long value) {
+        if (value < 0) {
+            out[p++] = '-';
+            value = -value;
+        }
+        int start = p;
+        do {
+            out[p++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // Digits were written least significant first, so flip them
+        for (int i = start, j = p - 1; i < j; i++, j--) {
+            byte t = out[i];
+            out[i] = out[j];
+            out[j] = t;
+        }
+        return p;
+    }
+
+    private static int putTwoDigits(byte[] out, int p, int value) {
+        out[p++] = (byte) ('0' + value / 10 % 10);
+        out[p++] = (byte) ('0' + value % 10);
+        return p;
+    }
+
+    // ---------------------------------------------------------------------
+    // Decoding
+    // ---------------------------------------------------------------------
+
+    // Decodes either a binary frame or a legacy text message. Returns false if
+    // the message was not understood so the caller can log/ignore it.
+    public static boolean decode(byte[] in, int off, int len, Handler handler) {
+        if (isFrame(in, off, len)) {
+            return decodeFrame(in, off, len, handler);
+        }
+        return decodeLegacy(in, off, len, handler);
+    }
+
+    private static boolean decodeFrame(byte[] in, int off, int len, Handler handler) {
+        // Newer peers may send a higher version; the layouts only ever grow so
+        // anything we know how to read is still read
+        if (in[off + 1] < 1) {
+            return false;
+        }
+        int body = off + HEADER_LENGTH;
+        int bodyLen = len - HEADER_LENGTH;
+        switch (in[off + 2]) {
+            case TYPE_HELLO:
+                if (bodyLen < 1) return false;
+                if (bodyLen >= 2 && bodyLen >= 2 + (in[body + 1] & 0xFF)) {
+                    // ASCII, so the high byte of every char is 0
+                    @SuppressWarnings("deprecation")
+                    String id = new String(in, 0, body + 2, in[body + 1] & 0xFF);
+                    handler.onDeviceId(id);
+                }
+                handler.onHello(in[body] & 0xFF);
+                return true;
+            case TYPE_STATE:
+                if (bodyLen < 2) return false;
+                handler.onState(in[body] & 0xFF, in[body + 1] != 0);
+                return true;
+            case TYPE_SYNC:
+                handler.onSyncRequest(bodyLen >= 8 ? getLongBytes(in, body) : 0);
+                return true;
+            case TYPE_SNAPSHOT: {
+                if (bodyLen < 1) return false;
+                int count = in[body] & 0xFF;
+                int bytes = (count + 7) >>> 3;
+                if (count > 64 || bodyLen < 1 + bytes) return false;
+                long bits = 0;
+                for (int i = 0; i < bytes; i++) {
+                    bits |= (long) (in[body + 1 + i] & 0xFF) << (i << 3);
+                }
+                handler.onSnapshot(count, bits);
+                return true;
+            }
+            case TYPE_BATTERY:
+                if (bodyLen < 4) return false;
+                handler.onBattery(((in[body] & 0xFF) << 8) | (in[body + 1] & 0xFF),
+                        in[body + 2] & 0xFF, in[body + 3] & 0xFF);
+                return true;
+            case TYPE_SETTING:
+                if (bodyLen < 3) return false;
+                handler.onSetting(in[body] & 0xFF, in[body + 1] & 0xFF, in[body + 2] & 0xFF);
+                return true;
+            case TYPE_BATCH: {
+                if (bodyLen < 1) return false;
+                int count = in[body] & 0xFF;
+                int bytes = (count + 7) >>> 3;
+                if (count > 64 || bodyLen < 1 + 2 * bytes) return false;
+                long mask = 0;
+                long values = 0;
+                for (int i = 0; i < bytes; i++) {
+                    mask |= (long) (in[body + 1 + i] & 0xFF) << (i << 3);
+                    values |= (long) (in[body + 1 + bytes + i] & 0xFF) << (i << 3);
+                }
+                handler.onBatch(count, mask, values);
+                return true;
+            }
+            case TYPE_DELTA: {
+                if (bodyLen < 9) return false;
+                long version = getLongBytes(in, body);
+                int count = in[body + 8] & 0xFF;
+                int bytes = (count + 7) >>> 3;
+                if (count > 64 || bodyLen < 9 + 2 * bytes) return false;
+                long mask = 0;
+                long values = 0;
+                for (int i = 0; i < bytes; i++) {
+                    mask |= (long) (in[body + 9 + i] & 0xFF) << (i << 3);
+                    values |= (long) (in[body + 9 + bytes + i] & 0xFF) << (i << 3);
+                }
+                if (bodyLen >= 9 + 2 * bytes + 8) {
+                    handler.onStamp(getLongBytes(in, body + 9 + 2 * bytes));
+                }
+                handler.onDelta(version, count, mask, values);
+                return true;
+            }
+            case TYPE_POWER: {
+                if (bodyLen < 1) return false;
+                int n = in[body] & 0xFF;
+                if (n > MAX_POWER_READINGS || bodyLen < 1 + 7 * n) return false;
+                for (int i = 0, p = body + 1; i < n; i++, p += 7) {
+                    handler.onPower(in[p] & 0xFF, ((in[p + 1] & 0xFF) << 8) | (in[p + 2] & 0xFF),
+                            getIntBytes(in, p + 3));
+                }
+                return true;
+            }
+            case TYPE_ACK:
+                if (bodyLen < 5) return false;
+                handler.onAck(getIntBytes(in, body), in[body + 4] != 0);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean decodeLegacy(byte[] in, int off, int len, Handler handler) {
+        int end = off + len;
+        if (len == 0) {
+            return false;
+        }
+        // Snapshots are the only legacy message that starts with a digit
+        if (isDigit(in[off])) {
+            return decodeLegacySnapshot(in, off, end, handler);
+        }
+        if (startsWith(in, off, end, LEGACY_STATE)) {
+            int p = off + LEGACY_STATE.length;
+            int outlet = parseInt(in, p, end);
+            p = skipPast(in, p, end, ':');
+            if (outlet < 0 || p >= end) return false;
+            handler.onState(outlet, in[p] == '1');
+            return true;
+        }
+        if (startsWith(in, off, end, LEGACY_BATCH)) {
+            return decodeLegacyBatch(in, off + LEGACY_BATCH.length, end, handler);
+        }
+        if (startsWith(in, off, end, LEGACY_SYNC)) {
+            long since = parseLong(in, off + LEGACY_SYNC.length + 1, end);
+            handler.onSyncRequest(Math.max(0, since));
+            return true;
+        }
+        if (startsWith(in, off, end, LEGACY_DELTA)) {
+            int p = off + LEGACY_DELTA.length;
+            long version = parseLong(in, p, end);
+            p = skipPast(in, p, end, ':');
+            if (version < 0) return false;
+            return decodeLegacyPairs(in, p, end, version, handler);
+        }
+        if (startsWith(in, off, end, LEGACY_CURRENT)) {
+            // <percent>[.<tenths>]:HH-mm
+            int p = off + LEGACY_CURRENT.length;
+            int whole = parseInt(in, p, end);
+            if (whole < 0) return false;
+            while (p < end && isDigit(in[p])) p++;
+            int tenths = 0;
+            if (p < end && in[p] == '.' && p + 1 < end && isDigit(in[p + 1])) {
+                tenths = in[p + 1] - '0';
+            }
+            p = skipPast(in, p, end, ':');
+            int hour = parseInt(in, p, end);
+            p = skipPast(in, p, end, '-');
+            int minute = parseInt(in, p, end);
+            if (hour < 0 || minute < 0) return false;
+            handler.onBattery(whole * 10 + tenths, hour, minute);
+            return true;
+        }
+        if (startsWith(in, off, end, LEGACY_UPDATE_BATTERY)) {
+            int pct = parseInt(in, off + LEGACY_UPDATE_BATTERY.length, end);
+            if (pct < 0) return false;
+            handler.onSetting(SETTING_BATTERY, pct, 0);
+            return true;
+        }
+        int key = 0;
+        int p = off;
+        if (startsWith(in, off, end, LEGACY_UPDATE_TIMER_ON)) {
+            key = SETTING_TIMER_ON;
+            p += LEGACY_UPDATE_TIMER_ON.length;
+        } else if (startsWith(in, off, end, LEGACY_UPDATE_TIMER_OFF)) {
+            key = SETTING_TIMER_OFF;
+            p += LEGACY_UPDATE_TIMER_OFF.length;
+        }
+        if (key != 0) {
+            int hour = parseInt(in, p, end);
+            p = skipPast(in, p, end, '-');
+            int minute = parseInt(in, p, end);
+            if (hour < 0 || minute < 0) return false;
+            handler.onSetting(key, hour, minute);
+            return true;
+        }
+        if (startsWith(in, off, end, LEGACY_HELLO)) {
+            handler.onHello(0);
+            return true;
+        }
+        return false;
+    }
+
+    // Parses "<outlet>:<state>" pairs separated by '/' in any order and of any
+    // length, instead of relying on fixed character offsets
+    private static boolean decodeLegacySnapshot(byte[] in, int p, int end, Handler handler) {
+        long bits = 0;
+        int count = 0;
+        while (p < end) {
+            int outlet = parseInt(in, p, end);
+            p = skipPast(in, p, end, ':');
+            if (outlet < 1 || outlet > 64 || p >= end) {
+                return false;
+            }
+            if (in[p] == '1') {
+                bits |= 1L << (outlet - 1);
+            }
+            if (outlet > count) {
+                count = outlet;
+            }
+            p = skipPast(in, p, end, '/');
+        }
+        handler.onSnapshot(count, bits);
+        return true;
+    }
+
+    private static boolean decodeLegacyBatch(byte[] in, int p, int end, Handler handler) {
+        return decodeLegacyPairs(in, p, end, -1, handler);
+    }
+
+    // Parses the pairs of a batch (version < 0) or a delta
+    private static boolean decodeLegacyPairs(byte[] in, int p, int end, long version, Handler handler) {
+        long mask = 0;
+        long values = 0;
+        int count = 0;
+        while (p < end) {
+            int outlet = parseInt(in, p, end);
+            p = skipPast(in, p, end, ':');
+            if (outlet < 1 || outlet > 64 || p >= end) {
+                return false;
+            }
+            mask |= 1L << (outlet - 1);
+            if (in[p] == '1') {
+                values |= 1L << (outlet - 1);
+            }
+            if (outlet > count) {
+                count = outlet;
+            }
+            p = skipPast(in, p, end, '/');
+        }
+        if (version < 0) {
+            handler.onBatch(count, mask, values);
+        } else {
+            handler.onDelta(version, count, mask, values);
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean startsWith(byte[] in, int off, int end, byte[] prefix) {
+        if (end - off < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (in[off + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the non-negative integer starting at p, or -1 if there is none
+    private static int parseInt(byte[] in, int p, int end) {
+        return (int) parseLong(in, p, end);
+    }
+
+    private static long parseLong(byte[] in, int p, int end) {
+        if (p >= end || !isDigit(in[p])) {
+            return -1;
+        }
+        long value = 0;
+        while (p < end && isDigit(in[p])) {
+            value = value * 10 + (in[p++] - '0');
+        }
+        return value;
+    }
+
+    // Returns the index just after the next occurrence of c, or end if missing
+    private static int skipPast(byte[] in, int p, int end, char c) {
+        while (p < end && in[p] != c) {
+            p++;
+        }
+        return p < end ? p + 1 : end;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+}
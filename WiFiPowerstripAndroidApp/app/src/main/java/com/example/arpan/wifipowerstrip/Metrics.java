@@ -0,0 +1,282 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Client side instrumentation for the MqttService: publish latency, sync
+ * round trip time, command to actuation latency, time until the UI shows
+ * current state, outbound queue depth, message rates per type, reconnects
+ * and time spent disconnected.
+ *
+ * Everything is recorded with atomic counters and fixed size histograms so
+ * the hot paths never lock or allocate. snapshot() copies the current values
+ * out for comparing builds, and dump() formats them for logs and dumpsys.
+ */
+public final class Metrics {
+
+    // Indexed by MessageCodec.TYPE_*, 0 for messages that weren't recognized
+    private static final int TYPES = MessageCodec.TYPE_POWER + 1;
+    private static final String[] TYPE_NAMES = {
+            "other", "hello", "state", "sync", "snapshot", "battery", "setting", "batch", "delta", "ack", "power" };
+
+    private final long startedNanos = System.nanoTime();
+
+    // Submit to broker acknowledgement, in microseconds
+    private final Histogram publishLatency = new Histogram();
+    // Sync request to the reply being applied, in microseconds
+    private final Histogram syncRtt = new Histogram();
+    // Command sent to the strip acknowledging it switched, in microseconds
+    private final Histogram ackLatency = new Histogram();
+    // Service start or reconnect to the first state of the primary strip
+    // heard from its server, in microseconds. Until then the UI shows the
+    // cached snapshot.
+    private final Histogram freshLatency = new Histogram();
+    // Frames waiting in the pipeline when another one is submitted
+    private final Histogram queueDepth = new Histogram();
+
+    private final AtomicLongArray sent = new AtomicLongArray(TYPES);
+    private final AtomicLongArray received = new AtomicLongArray(TYPES);
+    private final AtomicLong publishFailures = new AtomicLong();
+    private final AtomicLong ackRetries = new AtomicLong();
+    private final AtomicLong ackFailures = new AtomicLong();
+
+    // Send time of the oldest sync still waiting for a reply, 0 if none
+    private final AtomicLong syncSentNanos = new AtomicLong();
+
+    // When the UI started waiting for current state, 0 while it has it
+    private final AtomicLong freshSinceNanos = new AtomicLong(startedNanos);
+    // Time to current state after the service started, and how many outlets
+    // the cached snapshot had wrong, -1 until known
+    private final AtomicLong coldStartMicros = new AtomicLong(-1);
+    private final AtomicLong coldStartStale = new AtomicLong(-1);
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    // When the current disconnection started, 0 while connected
+    private final AtomicLong disconnectedSinceNanos = new AtomicLong(startedNanos);
+    private final AtomicLong disconnectedNanos = new AtomicLong();
+
+    public void onSubmitted(int type, int depth) {
+        sent.incrementAndGet(index(type));
+        queueDepth.record(depth);
+    }
+
+    public void onPublished(long submittedNanos, boolean ok) {
+        if (ok) {
+            publishLatency.record((System.nanoTime() - submittedNanos) / 1000L);
+        } else {
+            publishFailures.incrementAndGet();
+        }
+    }
+
+    public void onReceived(int type) {
+        received.incrementAndGet(index(type));
+    }
+
+    public void onSyncSent() {
+        syncSentNanos.compareAndSet(0, System.nanoTime());
+    }
+
+    // A sync reply (snapshot or delta) was applied
+    public void onSyncReply() {
+        long sentAt = syncSentNanos.getAndSet(0);
+        if (sentAt != 0) {
+            syncRtt.record((System.nanoTime() - sentAt) / 1000L);
+        }
+    }
+
+    // State of the primary strip arrived from its server, staleOutlets of
+    // them differing from what the app showed
+    public void onPrimaryState(int staleOutlets) {
+        long since = freshSinceNanos.getAndSet(0);
+        if (since == 0) {
+            return;
+        }
+        long micros = (System.nanoTime() - since) / 1000L;
+        freshLatency.record(micros);
+        if (since == startedNanos && coldStartMicros.compareAndSet(-1, micros)) {
+            coldStartStale.set(staleOutlets);
+        }
+    }
+
+    public void onAcked(long micros) {
+        ackLatency.record(micros);
+    }
+
+    public void onAckRetry() {
+        ackRetries.incrementAndGet();
+    }
+
+    // A command was rejected or never acknowledged
+    public void onAckFailed() {
+        ackFailures.incrementAndGet();
+    }
+
+    public void onConnected() {
+        connects.incrementAndGet();
+        // After a cold start the wait began with the service
+        freshSinceNanos.compareAndSet(0, System.nanoTime());
+        long since = disconnectedSinceNanos.getAndSet(0);
+        if (since != 0) {
+            disconnectedNanos.addAndGet(System.nanoTime() - since);
+        }
+    }
+
+    public void onDisconnected() {
+        if (disconnectedSinceNanos.compareAndSet(0, System.nanoTime())) {
+            disconnects.incrementAndGet();
+        }
+        // A sync in flight won't be answered
+        syncSentNanos.set(0);
+    }
+
+    public Snapshot snapshot() {
+        long now = System.nanoTime();
+        long down = disconnectedNanos.get();
+        long since = disconnectedSinceNanos.get();
+        if (since != 0) {
+            down += now - since;
+        }
+        long[] sentByType = new long[TYPES];
+        long[] receivedByType = new long[TYPES];
+        for (int i = 0; i < TYPES; i++) {
+            sentByType[i] = sent.get(i);
+            receivedByType[i] = received.get(i);
+        }
+        return new Snapshot((now - startedNanos) / 1000000L, sentByType, receivedByType,
+                publishFailures.get(),
+                publishLatency.count(), publishLatency.percentile(50), publishLatency.percentile(99),
+                publishLatency.max(),
+                syncRtt.count(), syncRtt.percentile(50), syncRtt.percentile(99), syncRtt.max(),
+                ackLatency.count(), ackLatency.percentile(50), ackLatency.percentile(99),
+                ackRetries.get(), ackFailures.get(),
+                freshLatency.count(), freshLatency.percentile(50), freshLatency.percentile(99),
+                coldStartMicros.get(), coldStartStale.get(),
+                queueDepth.percentile(99), queueDepth.max(),
+                Math.max(0, connects.get() - 1), disconnects.get(), down / 1000000L);
+    }
+
+    public String dump() {
+        return snapshot().toString();
+    }
+
+    private static int index(int type) {
+        return type > 0 && type < TYPES ? type : 0;
+    }
+
+    // Values at one point in time. Latencies are in microseconds, times in
+    // milliseconds.
+    public static final class Snapshot {
+        public final long uptimeMillis;
+        public final long[] sentByType;
+        public final long[] receivedByType;
+        public final long publishFailures;
+        public final long publishCount;
+        public final long publishP50Micros;
+        public final long publishP99Micros;
+        public final long publishMaxMicros;
+        public final long syncCount;
+        public final long syncP50Micros;
+        public final long syncP99Micros;
+        public final long syncMaxMicros;
+        public final long ackCount;
+        public final long ackP50Micros;
+        public final long ackP99Micros;
+        public final long ackRetries;
+        public final long ackFailures;
+        public final long freshCount;
+        public final long freshP50Micros;
+        public final long freshP99Micros;
+        public final long coldStartMicros;
+        public final long coldStartStaleOutlets;
+        public final long queueDepthP99;
+        public final long queueDepthMax;
+        public final long reconnects;
+        public final long disconnects;
+        public final long disconnectedMillis;
+
+        Snapshot(long uptimeMillis, long[] sentByType, long[] receivedByType, long publishFailures,
+                 long publishCount, long publishP50Micros, long publishP99Micros, long publishMaxMicros,
+                 long syncCount, long syncP50Micros, long syncP99Micros, long syncMaxMicros,
+                 long ackCount, long ackP50Micros, long ackP99Micros, long ackRetries, long ackFailures,
+                 long freshCount, long freshP50Micros, long freshP99Micros,
+                 long coldStartMicros, long coldStartStaleOutlets,
+                 long queueDepthP99, long queueDepthMax,
+                 long reconnects, long disconnects, long disconnectedMillis) {
+            this.uptimeMillis = uptimeMillis;
+            this.sentByType = sentByType;
+            this.receivedByType = receivedByType;
+            this.publishFailures = publishFailures;
+            this.publishCount = publishCount;
+            this.publishP50Micros = publishP50Micros;
+            this.publishP99Micros = publishP99Micros;
+            this.publishMaxMicros = publishMaxMicros;
+            this.syncCount = syncCount;
+            this.syncP50Micros = syncP50Micros;
+            this.syncP99Micros = syncP99Micros;
+            this.syncMaxMicros = syncMaxMicros;
+            this.ackCount = ackCount;
+            this.ackP50Micros = ackP50Micros;
+            this.ackP99Micros = ackP99Micros;
+            this.ackRetries = ackRetries;
+            this.ackFailures = ackFailures;
+            this.freshCount = freshCount;
+            this.freshP50Micros = freshP50Micros;
+            this.freshP99Micros = freshP99Micros;
+            this.coldStartMicros = coldStartMicros;
+            this.coldStartStaleOutlets = coldStartStaleOutlets;
+            this.queueDepthP99 = queueDepthP99;
+            this.queueDepthMax = queueDepthMax;
+            this.reconnects = reconnects;
+            this.disconnects = disconnects;
+            this.disconnectedMillis = disconnectedMillis;
+        }
+
+        // Messages of a MessageCodec.TYPE_* per second since the service started
+        public double sentRate(int type) {
+            return uptimeMillis == 0 ? 0 : sentByType[index(type)] * 1000.0 / uptimeMillis;
+        }
+
+        public double receivedRate(int type) {
+            return uptimeMillis == 0 ? 0 : receivedByType[index(type)] * 1000.0 / uptimeMillis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(512);
+            sb.append("uptime_ms=").append(uptimeMillis).append('\n');
+            sb.append("publish count=").append(publishCount)
+                    .append(" p50_us=").append(publishP50Micros)
+                    .append(" p99_us=").append(publishP99Micros)
+                    .append(" max_us=").append(publishMaxMicros)
+                    .append(" failures=").append(publishFailures).append('\n');
+            sb.append("sync count=").append(syncCount)
+                    .append(" p50_us=").append(syncP50Micros)
+                    .append(" p99_us=").append(syncP99Micros)
+                    .append(" max_us=").append(syncMaxMicros).append('\n');
+            sb.append("ack count=").append(ackCount)
+                    .append(" p50_us=").append(ackP50Micros)
+                    .append(" p99_us=").append(ackP99Micros)
+                    .append(" retries=").append(ackRetries)
+                    .append(" failures=").append(ackFailures).append('\n');
+            sb.append("fresh_state count=").append(freshCount)
+                    .append(" p50_us=").append(freshP50Micros)
+                    .append(" p99_us=").append(freshP99Micros)
+                    .append(" cold_start_us=").append(coldStartMicros)
+                    .append(" stale_outlets=").append(coldStartStaleOutlets).append('\n');
+            sb.append("queue_depth p99=").append(queueDepthP99)
+                    .append(" max=").append(queueDepthMax).append('\n');
+            sb.append("connection reconnects=").append(reconnects)
+                    .append(" disconnects=").append(disconnects)
+                    .append(" disconnected_ms=").append(disconnectedMillis).append('\n');
+            for (int i = 0; i < TYPES; i++) {
+                if (sentByType[i] != 0 || receivedByType[i] != 0) {
+                    sb.append("type ").append(TYPE_NAMES[i])
+                            .append(" sent=").append(sentByType[i])
+                            .append(" received=").append(receivedByType[i]).append('\n');
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
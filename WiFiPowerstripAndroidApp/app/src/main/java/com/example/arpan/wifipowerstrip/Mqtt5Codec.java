@@ -0,0 +1,429 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/* Encodes and decodes the few MQTT 5 packets Mqtt5Connection needs: CONNECT,
+ * CONNACK, PUBLISH, PUBACK, SUBSCRIBE, SUBACK, PINGREQ and DISCONNECT.
+ *
+ * Packets are written into a reusable Writer and read out of the body of a
+ * packet with a Reader. Strings are encoded once and kept by the Writer, so
+ * publishing to topics it has seen before allocates nothing; reading
+ * allocates only the payload of received messages and their topic strings.
+ */
+public final class Mqtt5Codec {
+
+    // Fixed header packet types (upper nibble)
+    public static final int CONNECT = 1;
+    public static final int CONNACK = 2;
+    public static final int PUBLISH = 3;
+    public static final int PUBACK = 4;
+    public static final int SUBSCRIBE = 8;
+    public static final int SUBACK = 9;
+    public static final int PINGREQ = 12;
+    public static final int PINGRESP = 13;
+    public static final int DISCONNECT = 14;
+
+    // Property identifiers
+    static final int PROP_RESPONSE_TOPIC = 0x08;
+    static final int PROP_CORRELATION_DATA = 0x09;
+    static final int PROP_SESSION_EXPIRY = 0x11;
+    static final int PROP_SERVER_KEEP_ALIVE = 0x13;
+    static final int PROP_TOPIC_ALIAS_MAXIMUM = 0x22;
+    static final int PROP_TOPIC_ALIAS = 0x23;
+    static final int PROP_MAXIMUM_PACKET_SIZE = 0x27;
+
+    // CONNACK reason code of a broker that doesn't speak MQTT 5
+    public static final int UNSUPPORTED_PROTOCOL_VERSION = 0x84;
+    // CONNACK return code 3.1.1 brokers send for the same thing
+    public static final int LEGACY_UNACCEPTABLE_PROTOCOL = 0x01;
+
+    public static final int MAX_REMAINING_LENGTH = 268435455;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Mqtt5Codec() {
+    }
+
+    // Builds one packet at a time. The body is written first, finish() then
+    // puts the fixed header in front of it.
+    public static final class Writer {
+        // Room for the fixed header in front of the body
+        private static final int HEADER_ROOM = 5;
+        // Slots of the encoded string cache, a power of two
+        private static final int STRINGS = 64;
+
+        byte[] buf;
+        int pos;
+        private int start;
+        // Encoded strings by identity hash, one per slot. Topics come from
+        // DeviceIndex and are the same String objects every time.
+        private final String[] strings = new String[STRINGS];
+        private final byte[][] encoded = new byte[STRINGS][];
+
+        public Writer(int capacity) {
+            buf = new byte[HEADER_ROOM + capacity];
+        }
+
+        void reset() {
+            pos = HEADER_ROOM;
+        }
+
+        // Offset of the packet finish() built
+        public int start() {
+            return start;
+        }
+
+        public int length() {
+            return pos - start;
+        }
+
+        void u8(int v) {
+            ensure(1);
+            buf[pos++] = (byte) v;
+        }
+
+        void u16(int v) {
+            ensure(2);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+        }
+
+        void u32(long v) {
+            ensure(4);
+            buf[pos++] = (byte) (v >>> 24);
+            buf[pos++] = (byte) (v >>> 16);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+        }
+
+        void varint(int v) {
+            do {
+                int b = v & 0x7F;
+                v >>>= 7;
+                u8(v > 0 ? b | 0x80 : b);
+            } while (v > 0);
+        }
+
+        void string(String s) {
+            byte[] bytes = encode(s);
+            binary(bytes, 0, bytes.length);
+        }
+
+        // The UTF-8 bytes of s, only encoded if the slot holds another string
+        byte[] encode(String s) {
+            int slot = System.identityHashCode(s) & (STRINGS - 1);
+            if (strings[slot] != s) {
+                encoded[slot] = s.getBytes(UTF8);
+                strings[slot] = s;
+            }
+            return encoded[slot];
+        }
+
+        void binary(byte[] b, int off, int len) {
+            u16(len);
+            raw(b, off, len);
+        }
+
+        void raw(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+        }
+
+        // Writes the fixed header in front of everything written since
+        // reset()
+        void finish(int type, int flags) {
+            int remaining = pos - HEADER_ROOM;
+            int lengthBytes = varintSize(remaining);
+            start = HEADER_ROOM - 1 - lengthBytes;
+            buf[start] = (byte) (type << 4 | flags);
+            int p = start + 1;
+            int v = remaining;
+            do {
+                int b = v & 0x7F;
+                v >>>= 7;
+                buf[p++] = (byte) (v > 0 ? b | 0x80 : b);
+            } while (v > 0);
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                byte[] bigger = new byte[Math.max(buf.length * 2, pos + n)];
+                System.arraycopy(buf, 0, bigger, 0, pos);
+                buf = bigger;
+            }
+        }
+    }
+
+    // Reads the body of a packet
+    public static final class Reader {
+        final byte[] buf;
+        int pos;
+        final int end;
+
+        public Reader(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.pos = off;
+            this.end = off + len;
+        }
+
+        int u8() throws IOException {
+            need(1);
+            return buf[pos++] & 0xFF;
+        }
+
+        int u16() throws IOException {
+            need(2);
+            int v = (buf[pos] & 0xFF) << 8 | buf[pos + 1] & 0xFF;
+            pos += 2;
+            return v;
+        }
+
+        long u32() throws IOException {
+            need(4);
+            long v = (buf[pos] & 0xFFL) << 24 | (buf[pos + 1] & 0xFF) << 16
+                    | (buf[pos + 2] & 0xFF) << 8 | buf[pos + 3] & 0xFF;
+            pos += 4;
+            return v;
+        }
+
+        int varint() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 28; shift += 7) {
+                int b = u8();
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed variable byte integer");
+        }
+
+        String string() throws IOException {
+            int len = u16();
+            need(len);
+            String s = new String(buf, pos, len, UTF8);
+            pos += len;
+            return s;
+        }
+
+        int remaining() {
+            return end - pos;
+        }
+
+        void skip(int n) throws IOException {
+            need(n);
+            pos += n;
+        }
+
+        private void need(int n) throws IOException {
+            if (n < 0 || pos + n > end) {
+                throw new IOException("Truncated packet");
+            }
+        }
+    }
+
+    // What the broker said in its CONNACK
+    public static final class Connack {
+        // True for the 2 byte CONNACK of a 3.1.1 broker
+        public boolean legacy;
+        public boolean sessionPresent;
+        public int reason;
+        public int topicAliasMaximum;
+        // 0 unless the broker overrides our keepalive
+        public int serverKeepAlive;
+    }
+
+    // A received PUBLISH. The topic is already resolved if it came as an
+    // alias the broker set before.
+    public static final class Publish {
+        public String topic;
+        public int alias;
+        public int qos;
+        public int packetId;
+        public int correlation;
+        public byte[] payload;
+    }
+
+    public static int varintSize(int v) {
+        return v < 128 ? 1 : v < 16384 ? 2 : v < 2097152 ? 3 : 4;
+    }
+
+    public static void connect(Writer w, String clientId, int keepAliveSeconds,
+                               long sessionExpirySeconds, int topicAliasMaximum, int maximumPacketSize,
+                               boolean cleanStart) {
+        w.reset();
+        w.string("MQTT");
+        w.u8(5);
+        w.u8(cleanStart ? 0x02 : 0);
+        w.u16(keepAliveSeconds);
+        w.varint(5 + 3 + 5);
+        w.u8(PROP_SESSION_EXPIRY);
+        w.u32(sessionExpirySeconds);
+        w.u8(PROP_TOPIC_ALIAS_MAXIMUM);
+        w.u16(topicAliasMaximum);
+        w.u8(PROP_MAXIMUM_PACKET_SIZE);
+        w.u32(maximumPacketSize);
+        w.string(clientId);
+        w.finish(CONNECT, 0);
+    }
+
+    // alias is 0 for none. With an alias and a null topic only the alias is
+    // sent, the broker must have seen it with its topic before. responseTopic
+    // may be null, correlation is only sent with a response topic.
+    public static void publish(Writer w, String topic, int alias, String responseTopic, int correlation,
+                               byte[] payload, int off, int len, int qos, int packetId) {
+        w.reset();
+        w.string(topic == null ? "" : topic);
+        if (qos > 0) {
+            w.u16(packetId);
+        }
+        byte[] response = responseTopic == null ? null : w.encode(responseTopic);
+        int props = (alias != 0 ? 3 : 0) + (response != null ? 3 + response.length + 3 + 4 : 0);
+        w.varint(props);
+        if (alias != 0) {
+            w.u8(PROP_TOPIC_ALIAS);
+            w.u16(alias);
+        }
+        if (response != null) {
+            w.u8(PROP_RESPONSE_TOPIC);
+            w.binary(response, 0, response.length);
+            w.u8(PROP_CORRELATION_DATA);
+            w.u16(4);
+            w.u32(correlation & 0xFFFFFFFFL);
+        }
+        w.raw(payload, off, len);
+        w.finish(PUBLISH, qos << 1);
+    }
+
+    public static void subscribe(Writer w, int packetId, String[] filters, int qos) {
+        w.reset();
+        w.u16(packetId);
+        w.varint(0);
+        for (String filter : filters) {
+            w.string(filter);
+            w.u8(qos);
+        }
+        w.finish(SUBSCRIBE, 0x02);
+    }
+
+    public static void puback(Writer w, int packetId) {
+        w.reset();
+        w.u16(packetId);
+        w.finish(PUBACK, 0);
+    }
+
+    public static void pingreq(Writer w) {
+        w.reset();
+        w.finish(PINGREQ, 0);
+    }
+
+    // Normal disconnect, the session is kept for its expiry interval
+    public static void disconnect(Writer w) {
+        w.reset();
+        w.finish(DISCONNECT, 0);
+    }
+
+    public static void readConnack(Reader r, Connack out) throws IOException {
+        out.legacy = r.remaining() == 2;
+        out.sessionPresent = (r.u8() & 0x01) != 0;
+        out.reason = r.u8();
+        out.topicAliasMaximum = 0;
+        out.serverKeepAlive = 0;
+        if (out.legacy) {
+            return;
+        }
+        int end = r.varint() + r.pos;
+        while (r.pos < end) {
+            int id = r.u8();
+            if (id == PROP_TOPIC_ALIAS_MAXIMUM) {
+                out.topicAliasMaximum = r.u16();
+            } else if (id == PROP_SERVER_KEEP_ALIVE) {
+                out.serverKeepAlive = r.u16();
+            } else {
+                skipProperty(r, id);
+            }
+        }
+    }
+
+    // Reads a PUBLISH body. flags are the lower nibble of the fixed header.
+    // inboundTopics holds the topics of the aliases the broker set, indexed
+    // by alias.
+    public static void readPublish(Reader r, int flags, String[] inboundTopics, Publish out) throws IOException {
+        out.qos = (flags >> 1) & 0x03;
+        out.topic = r.string();
+        out.packetId = out.qos > 0 ? r.u16() : 0;
+        out.alias = 0;
+        out.correlation = 0;
+        int end = r.varint() + r.pos;
+        while (r.pos < end) {
+            int id = r.u8();
+            if (id == PROP_TOPIC_ALIAS) {
+                out.alias = r.u16();
+            } else if (id == PROP_CORRELATION_DATA) {
+                int len = r.u16();
+                int correlation = 0;
+                for (int i = 0; i < len; i++) {
+                    correlation = correlation << 8 | r.u8();
+                }
+                out.correlation = correlation;
+            } else {
+                skipProperty(r, id);
+            }
+        }
+        if (out.alias != 0) {
+            if (out.alias >= inboundTopics.length) {
+                throw new IOException("Topic alias " + out.alias + " out of range");
+            }
+            if (out.topic.isEmpty()) {
+                out.topic = inboundTopics[out.alias];
+                if (out.topic == null) {
+                    throw new IOException("Unknown topic alias " + out.alias);
+                }
+            } else {
+                inboundTopics[out.alias] = out.topic;
+            }
+        }
+        out.payload = new byte[r.remaining()];
+        System.arraycopy(r.buf, r.pos, out.payload, 0, out.payload.length);
+        r.pos = r.end;
+    }
+
+    // Returns true if every subscription was granted
+    public static boolean readSuback(Reader r) throws IOException {
+        r.u16();
+        r.skip(r.varint());
+        boolean ok = true;
+        while (r.remaining() > 0) {
+            ok &= r.u8() < 0x80;
+        }
+        return ok;
+    }
+
+    private static void skipProperty(Reader r, int id) throws IOException {
+        switch (id) {
+            case 0x01: case 0x17: case 0x19: case 0x24: case 0x25: case 0x28: case 0x29: case 0x2A:
+                r.skip(1);
+                break;
+            case 0x13: case 0x21: case 0x22: case 0x23:
+                r.skip(2);
+                break;
+            case 0x02: case 0x11: case 0x18: case 0x27:
+                r.skip(4);
+                break;
+            case 0x0B:
+                r.varint();
+                break;
+            case 0x03: case 0x08: case 0x09: case 0x12: case 0x15: case 0x16: case 0x1A: case 0x1C: case 0x1F:
+                r.skip(r.u16());
+                break;
+            case 0x26:
+                r.skip(r.u16());
+                r.skip(r.u16());
+                break;
+            default:
+                throw new IOException("Unknown property " + id);
+        }
+    }
+}
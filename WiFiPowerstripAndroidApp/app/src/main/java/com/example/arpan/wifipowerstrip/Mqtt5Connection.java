@@ -0,0 +1,414 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+
+/* A minimal MQTT 5 client for the few things the service needs, to spend
+ * fewer bytes per message on the metered links the strips use.
+ *
+ * - Topic aliases: after the first message to a topic only a 2 byte alias is
+ *   sent instead of the topic, up to the number of aliases the broker allows.
+ * - Session expiry: the broker keeps the session for sessionExpirySeconds
+ *   after the connection drops instead of forever or not at all.
+ * - Frames with a response topic carry it and their correlation id, so the
+ *   strip server can answer just this phone and say what it's answering.
+ *
+ * Publishes are QoS 0 like everything else the service sends. One thread
+ * per connection reads packets and calls the Listener; writes are
+ * serialized under a lock. Keepalive pings run on the PublishPipeline I/O
+ * thread as a Ticker, after the idle time the KeepaliveController picked,
+ * and a ping that isn't answered within PING_TIMEOUT_MILLIS closes the
+ * connection as dead. A broker that refuses protocol level 5 makes
+ * onConnectFailed report unsupported so the service can fall back to 3.1.1.
+ */
+public final class Mqtt5Connection implements BrokerConnection, PublishPipeline.Ticker {
+
+    static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    // Topic aliases the broker may use for messages to us
+    static final int INBOUND_ALIASES = 16;
+    static final long PING_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long PING_TIMEOUT_NANOS = PING_TIMEOUT_MILLIS * 1000L * 1000L;
+    static final int MAX_PACKET = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final String clientId;
+    private final int keepAliveSeconds;
+    private final long sessionExpirySeconds;
+    private final KeepaliveController keepalive;
+    private final Listener listener;
+
+    // Guards the socket output, the writer and the outbound aliases
+    private final Object writeLock = new Object();
+    private final Mqtt5Codec.Writer writer = new Mqtt5Codec.Writer(512);
+    private Socket socket;
+    private OutputStream out;
+    private final HashMap<String, Integer> aliases = new HashMap<String, Integer>();
+    private int aliasMaximum;
+    private int nextPacketId;
+
+    private Thread reader;
+    private volatile boolean connected;
+    private volatile boolean closing;
+    private volatile long keepAliveNanos;
+    private volatile long lastSentNanos;
+    private volatile long lastReceivedNanos;
+    // Time the outstanding ping was sent, 0 if none, and how long the link
+    // had been idle then
+    private volatile long pingSentNanos;
+    private volatile long pingIdleNanos;
+    // Body of the last packet readPacket read, only used by the reader thread
+    private byte[] body = new byte[512];
+    private int bodyLength;
+
+    private volatile long bytesSent;
+    private volatile long bytesReceived;
+    private volatile long published;
+    private volatile long aliased;
+
+    // keepAliveSeconds is what the broker is told and the longest the link
+    // is ever left idle. keepalive may pick shorter idle times, or be null.
+    public Mqtt5Connection(String host, int port, String clientId, int keepAliveSeconds,
+                           long sessionExpirySeconds, KeepaliveController keepalive, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.clientId = clientId;
+        this.keepAliveSeconds = keepAliveSeconds;
+        this.sessionExpirySeconds = sessionExpirySeconds;
+        this.keepalive = keepalive;
+        this.listener = listener;
+    }
+
+    @Override
+    public int protocolVersion() {
+        return 5;
+    }
+
+    // Starts connecting on a new reader thread, unless an attempt or a
+    // connection is already running
+    @Override
+    public synchronized void connect() {
+        if (reader != null) {
+            return;
+        }
+        closing = false;
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runConnection();
+                } finally {
+                    synchronized (Mqtt5Connection.this) {
+                        reader = null;
+                    }
+                }
+            }
+        }, "mqtt5");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void subscribe(String[] filters, int qos) throws IOException {
+        synchronized (writeLock) {
+            Mqtt5Codec.subscribe(writer, packetId(), filters, qos);
+            send();
+        }
+    }
+
+    @Override
+    public void publish(Frame frame) throws IOException {
+        synchronized (writeLock) {
+            if (!connected) {
+                throw new IOException("Not connected");
+            }
+            String topic = frame.topic;
+            int alias = 0;
+            Integer known = aliases.get(topic);
+            if (known != null) {
+                alias = known;
+                topic = null;
+                aliased++;
+            } else if (aliases.size() < aliasMaximum) {
+                alias = aliases.size() + 1;
+                aliases.put(topic, alias);
+            }
+            Mqtt5Codec.publish(writer, topic, alias, frame.responseTopic, frame.correlation,
+                    frame.data, 0, frame.length, 0, 0);
+            send();
+            published++;
+        }
+        listener.onPublished(frame, true);
+    }
+
+    // Sends a normal DISCONNECT so the broker keeps the session, and closes
+    // the socket without calling the listener
+    @Override
+    public void disconnect() {
+        synchronized (writeLock) {
+            closing = true;
+            if (connected) {
+                try {
+                    Mqtt5Codec.disconnect(writer);
+                    send();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            connected = false;
+            closeSocket();
+        }
+    }
+
+    // PublishPipeline.Ticker, pings when the link was idle for the interval
+    // the KeepaliveController picked, and at least once per keepalive since
+    // the broker only counts what we send
+    @Override
+    public long tick(long nowNanos) {
+        long keepAlive = keepAliveNanos;
+        if (!connected || keepAlive == 0) {
+            return Long.MAX_VALUE;
+        }
+        long sent = pingSentNanos;
+        if (sent != 0) {
+            long waited = nowNanos - sent;
+            if (waited < PING_TIMEOUT_NANOS) {
+                return PING_TIMEOUT_NANOS - waited;
+            }
+            // No answer, the link is dead. The reader reports the closed
+            // socket as a lost connection.
+            pingSentNanos = 0;
+            if (keepalive != null) {
+                keepalive.onPingTimeout(nowNanos - lastReceivedNanos);
+            }
+            synchronized (writeLock) {
+                closeSocket();
+            }
+            return Long.MAX_VALUE;
+        }
+        long interval = keepalive != null ? Math.min(keepalive.intervalNanos(), keepAlive) : keepAlive;
+        long lastTraffic = Math.max(lastSentNanos, lastReceivedNanos);
+        long due = Math.min(lastTraffic + interval, lastSentNanos + keepAlive);
+        if (nowNanos < due) {
+            return due - nowNanos;
+        }
+        pingIdleNanos = nowNanos - lastTraffic;
+        pingSentNanos = nowNanos;
+        synchronized (writeLock) {
+            try {
+                Mqtt5Codec.pingreq(writer);
+                send();
+            } catch (IOException e) {
+                // The reader notices the closed socket and reports it
+            }
+        }
+        return PING_TIMEOUT_NANOS;
+    }
+
+    public long bytesSent() {
+        return bytesSent;
+    }
+
+    public long bytesReceived() {
+        return bytesReceived;
+    }
+
+    public long publishedCount() {
+        return published;
+    }
+
+    // Publishes that went out with an alias instead of their topic
+    public long aliasedCount() {
+        return aliased;
+    }
+
+    private void runConnection() {
+        Socket s = new Socket();
+        boolean connackSeen = false;
+        String[] inboundTopics = new String[INBOUND_ALIASES + 1];
+        Mqtt5Codec.Connack connack = new Mqtt5Codec.Connack();
+        Mqtt5Codec.Publish publish = new Mqtt5Codec.Publish();
+        try {
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            synchronized (writeLock) {
+                if (closing) {
+                    s.close();
+                    return;
+                }
+                socket = s;
+                out = s.getOutputStream();
+                aliases.clear();
+                aliasMaximum = 0;
+                Mqtt5Codec.connect(writer, clientId, keepAliveSeconds, sessionExpirySeconds,
+                        INBOUND_ALIASES, MAX_PACKET, false);
+                send();
+            }
+
+            int header = readPacket(in);
+            if (header >> 4 != Mqtt5Codec.CONNACK) {
+                throw new IOException("Expected CONNACK, got packet type " + (header >> 4));
+            }
+            Mqtt5Codec.readConnack(new Mqtt5Codec.Reader(body, 0, bodyLength), connack);
+            connackSeen = true;
+            if (connack.reason != 0) {
+                boolean unsupported = connack.legacy
+                        ? connack.reason == Mqtt5Codec.LEGACY_UNACCEPTABLE_PROTOCOL
+                        : connack.reason == Mqtt5Codec.UNSUPPORTED_PROTOCOL_VERSION;
+                closeSocket();
+                listener.onConnectFailed(new IOException("Broker refused connection, reason " + connack.reason),
+                        unsupported);
+                return;
+            }
+            int keepAlive = connack.serverKeepAlive != 0 ? connack.serverKeepAlive : keepAliveSeconds;
+            keepAliveNanos = keepAlive * 1000L * 1000L * 1000L;
+            // A broker that stays silent for a keepalive and a half is gone
+            s.setSoTimeout(keepAlive * 1500);
+            synchronized (writeLock) {
+                aliasMaximum = connack.topicAliasMaximum;
+                pingSentNanos = 0;
+                connected = true;
+            }
+            listener.onConnected();
+
+            while (true) {
+                header = readPacket(in);
+                Mqtt5Codec.Reader r = new Mqtt5Codec.Reader(body, 0, bodyLength);
+                switch (header >> 4) {
+                    case Mqtt5Codec.PUBLISH:
+                        Mqtt5Codec.readPublish(r, header & 0x0F, inboundTopics, publish);
+                        if (publish.qos == 1) {
+                            synchronized (writeLock) {
+                                Mqtt5Codec.puback(writer, publish.packetId);
+                                send();
+                            }
+                        }
+                        listener.onMessage(publish.topic, publish.payload, publish.correlation);
+                        break;
+                    case Mqtt5Codec.SUBACK:
+                        listener.onSubscribed(Mqtt5Codec.readSuback(r));
+                        break;
+                    case Mqtt5Codec.DISCONNECT:
+                        throw new IOException("Broker disconnected, reason "
+                                + (bodyLength > 0 ? body[0] & 0xFF : 0));
+                    case Mqtt5Codec.PINGRESP:
+                        if (pingSentNanos != 0) {
+                            pingSentNanos = 0;
+                            if (keepalive != null) {
+                                keepalive.onPingAnswered(pingIdleNanos / (1000L * 1000L * 1000L));
+                            }
+                        }
+                        break;
+                    default:
+                        // Acks of things we don't track
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            boolean wasConnected;
+            synchronized (writeLock) {
+                wasConnected = connected;
+                connected = false;
+                closeSocket();
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                    // Already closed
+                }
+            }
+            if (closing) {
+                return;
+            }
+            if (wasConnected) {
+                listener.onConnectionLost(e);
+            } else {
+                // Some old brokers hang up on a protocol level they don't
+                // know instead of answering
+                listener.onConnectFailed(e, !connackSeen && e instanceof EOFException);
+            }
+        }
+    }
+
+    // Reads one packet, leaving its body in body (grown as needed) and its
+    // length in bodyLength. Returns the first byte of the fixed header.
+    private int readPacket(InputStream in) throws IOException {
+        int header = in.read();
+        if (header < 0) {
+            throw new EOFException("Broker closed the connection");
+        }
+        int length = 0;
+        int lengthBytes = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("Broker closed the connection");
+            }
+            length |= (b & 0x7F) << (7 * lengthBytes++);
+        } while ((b & 0x80) != 0 && lengthBytes < 4);
+        if (length > MAX_PACKET) {
+            throw new IOException("Packet of " + length + " bytes too large");
+        }
+        if (body.length < length) {
+            body = new byte[length];
+        }
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Broker closed the connection");
+            }
+            read += n;
+        }
+        bodyLength = length;
+        lastReceivedNanos = System.nanoTime();
+        bytesReceived += 1 + lengthBytes + length;
+        return header;
+    }
+
+    // Writes the packet in the writer, called under writeLock
+    private void send() throws IOException {
+        if (out == null) {
+            throw new IOException("Not connected");
+        }
+        try {
+            out.write(writer.buf, writer.start(), writer.length());
+        } catch (IOException e) {
+            closeSocket();
+            throw e;
+        }
+        bytesSent += writer.length();
+        lastSentNanos = System.nanoTime();
+    }
+
+    // Called under writeLock
+    private void closeSocket() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+        socket = null;
+        out = null;
+    }
+
+    private int packetId() {
+        nextPacketId = nextPacketId % 0xFFFF + 1;
+        return nextPacketId;
+    }
+}
@@ -7,55 +7,348 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.BatteryManager;
 import android.os.Binder;
-import android.os.Bundle;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
-import android.preference.PreferenceManager;
+import android.os.Looper;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
-import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class MqttService extends Service implements MqttCallback{
+public class MqttService extends Service implements PublishPipeline.Transport {
 
     // Broker details
     private String broker = "raspberrypi";
+    private static final int BROKER_PORT = 1883;
     private String url = "tcp://raspberrypi:1883";
 
-    // Topic and Client ID
-    private String outTopic = "FromAndroid";
-    private String inTopic = "ToAndroid";
-    private String clientID = "AndroidPhone";
+    // Client ID, unique per install so phones sharing a broker don't take
+    // each other's connection over. Topics are per strip, strip/<id>/cmd and
+    // strip/<id>/state, see DeviceIndex.
+    private String clientID;
 
-    // Client related details
-    private MemoryPersistence memoryPersistence;
-    private MqttClient client;
-    private MqttConnectOptions connOpts;
+    // Stamps outlet commands so strips settle concurrent changes from
+    // several phones as last writer wins. Ties are broken by the node id,
+    // derived from the client id.
+    private final HybridClock clock = new HybridClock();
+    private int node;
 
-    // Message and Quality of service option
-    private MqttMessage message;
+    // Client related details. MQTT 5 is tried first: the broker keeps the
+    // session and holds state changes for SESSION_EXPIRY_SECONDS after we
+    // disconnect, topic aliases shrink every publish and strips answer Syncs
+    // and commands on our own reply topic. A broker that refuses MQTT 5 gets
+    // Paho's 3.1.1 client for as long as the service runs, with a persistent
+    // session and in-flight messages kept on disk across restarts.
+    static final boolean PREFER_MQTT5 = true;
+    private static final long SESSION_EXPIRY_SECONDS = 60 * 60;
+    private Mqtt5Connection mqtt5;
+    private volatile BrokerConnection connection;
+    private final AtomicBoolean connecting = new AtomicBoolean(false);
+
+    // Quality of service option. State is subscribed at QoS 1 so the broker
+    // queues it for the persistent session.
     private int qos = 0;
+    private static final int STATE_QOS = 1;
+
+    // Strip servers keep their full state retained on the state topic, so
+    // subscribing delivers it without a Sync round trip. Servers that predate
+    // that are sent a Sync if nothing came from the primary strip within
+    // RETAINED_WAIT_MILLIS of subscribing.
+    private static final long RETAINED_WAIT_MILLIS = 1000;
+    private volatile boolean primaryHeard;
+    private volatile long syncFallbackNanos;
+    private final PublishPipeline.Ticker syncFallback = new PublishPipeline.Ticker() {
+        @Override
+        public long tick(long nowNanos) {
+            long at = syncFallbackNanos;
+            if (at == 0) {
+                return Long.MAX_VALUE;
+            }
+            if (at > nowNanos) {
+                return at - nowNanos;
+            }
+            syncFallbackNanos = 0;
+            if (!primaryHeard) {
+                trace.log(TraceLog.NO_RETAINED_STATE);
+                discover();
+            }
+            return Long.MAX_VALUE;
+        }
+    };
+
+    // Outbound messages are encoded into pooled frames and published from the
+    // pipeline's own I/O thread, so callers on the UI thread never block
+    private static final int OUTBOUND_CAPACITY = 64;
+    private final PublishPipeline pipeline = new PublishPipeline(this, OUTBOUND_CAPACITY);
+
+    // Outlet commands are held back this long so a burst of switch changes
+    // goes out as one batched command with only the latest state per outlet
+    private static final long COALESCE_WINDOW_MILLIS = 75;
+    private final CommandCoalescer coalescer = new CommandCoalescer(COALESCE_WINDOW_MILLIS,
+            new CommandCoalescer.Sink() {
+                @Override
+                public void flush(int count, long mask, long values) {
+                    sendCoalesced(count, mask, values);
+                }
+            });
+    private final Calendar now = Calendar.getInstance();
+
+    // Drops commands for the primary strip that only repeat the state the
+    // server reported or was last sent, so applying a sync never echoes back
+    private final CommandReconciler reconciler = new CommandReconciler();
+
+    // Commands made while disconnected, or while every frame was in use,
+    // kept on disk until they are replayed. The primary strip's outbox also
+    // keeps settings and battery levels; other strips get one of their own,
+    // opened the first time it's needed, in outbox-<hex id>.log.
+    private DurableOutbox outbox;
+    private static final String STRIP_OUTBOX_PREFIX = "outbox-";
+    private static final String OUTBOX_SUFFIX = ".log";
+    private final DurableOutbox[] stripOutboxes = new DurableOutbox[MAX_STRIPS];
+    private final DurableOutbox.Sender[] stripSenders = new DurableOutbox.Sender[MAX_STRIPS];
+
+    // Set when commands went to an outbox while connected. The I/O thread
+    // replays the outboxes every REPLAY_RETRY_MILLIS until they are empty,
+    // and until then new commands queue up behind them so they can't be
+    // overtaken.
+    private static final long REPLAY_RETRY_MILLIS = 250;
+    private volatile boolean replayDue;
+    private final PublishPipeline.Ticker outboxReplay = new PublishPipeline.Ticker() {
+        @Override
+        public long tick(long nowNanos) {
+            if (!replayDue) {
+                return Long.MAX_VALUE;
+            }
+            if (!isConnected()) {
+                // Replayed on connecting
+                replayDue = false;
+                return Long.MAX_VALUE;
+            }
+            if (replayOutboxes() == 0) {
+                replayDue = false;
+                return Long.MAX_VALUE;
+            }
+            return REPLAY_RETRY_MILLIS * 1000L * 1000L;
+        }
+    };
+
+    // History of outlet switching and battery levels, for charts and usage
+    // reports. Battery levels are only logged when they change.
+    private EventLog events;
+    private int loggedPermille = -1;
+    private boolean loggedCharging;
+
+    // Paces reconnect attempts with capped exponential backoff and jitter
+    private static final long RECONNECT_BASE_MILLIS = 1000;
+    private static final long RECONNECT_MAX_MILLIS = 5 * 60 * 1000;
+    private final ReconnectManager reconnect = new ReconnectManager(new ReconnectManager.Connector() {
+        @Override
+        public boolean connect() {
+            return connectToBroker();
+        }
+    }, RECONNECT_BASE_MILLIS, RECONNECT_MAX_MILLIS, new Random());
+
+    // Every strip heard from on strip/+/state, up to MAX_STRIPS. The strip
+    // picked in the settings is registered first so it is always
+    // PRIMARY_STRIP; it's the one the UI shows and the battery cutoff and
+    // timer settings go to.
+    public static final int PRIMARY_STRIP = 0;
 
-    // Time interval that battery percentage will be sent
-    // and the alarm intent for the alarm manager that will periodically
-    // send battery and time information
-    int keepAliveBatterySeconds = 60*10;
-    int keepBrokerAliveSeconds = 60*12;
+    // Commands hold a strip's outlets in one long mask, so only this many
+    // outlets per strip can be switched. Strips reporting more still sync,
+    // but the UI only shows the first MAX_OUTLETS.
+    public static final int MAX_OUTLETS = CommandCoalescer.MAX_OUTLETS;
+    private static final int MAX_STRIPS = 512;
+    private final DeviceIndex devices = new DeviceIndex(MAX_STRIPS);
+
+    // Latest known outlet states of every strip and the server version they
+    // reflect, indexed like devices
+    private final OutletStore outlets = new OutletStore();
+
+    // Tells bound activities which outlets changed, in process
+    private final StateStream stateStream = new StateStream(outlets);
+
+    // Power draw the primary strip streams for its outlets, summarized per
+    // window. The UI is told which outlets have new readings at most every
+    // POWER_PUSH_MILLIS, however fast they arrive, and reads the summaries
+    // from the meter.
+    private static final int METERED_OUTLETS = 16;
+    private static final long POWER_PUSH_MILLIS = 250;
+    private static final long POWER_PUSH_NANOS = POWER_PUSH_MILLIS * 1000L * 1000L;
+    private final PowerMeter power = new PowerMeter(METERED_OUTLETS);
+    private final StateStream powerStream = new StateStream(outlets);
+    private long lastPowerPushNanos;
+    private final PublishPipeline.Ticker powerPush = new PublishPipeline.Ticker() {
+        @Override
+        public long tick(long nowNanos) {
+            long since = nowNanos - lastPowerPushNanos;
+            if (since < POWER_PUSH_NANOS) {
+                return POWER_PUSH_NANOS - since;
+            }
+            long changed = power.takeChanged();
+            if (changed == 0) {
+                return Long.MAX_VALUE;
+            }
+            lastPowerPushNanos = nowNanos;
+            powerStream.publish(PRIMARY_STRIP, changed);
+            return POWER_PUSH_NANOS;
+        }
+    };
+
+    // Latency, message and connection metrics, see dump()
+    private final Metrics metrics = new Metrics();
+
+    // Recent connection, publish, arrival and store events, see dump(). Debug
+    // builds record everything and echo it to logcat, release builds only
+    // record from INFO up and never format anything until dumped. Set up in
+    // onCreate.
+    private final TraceLog trace = TraceLog.process();
+
+    // Commands to strips that speak binary frames carry a correlation id and
+    // are retried until the strip acks them, or rolled back in the UI. Ids
+    // start at random so phones following the same strip don't share them.
+    private static final long ACK_TIMEOUT_MILLIS = 2000;
+    private final AckTracker acks = new AckTracker(new AckTracker.Callbacks() {
+        @Override
+        public boolean isConnected() {
+            return MqttService.this.isConnected();
+        }
+
+        @Override
+        public void resend(int id, int strip, int count, long mask, long values, long stamp) {
+            trace.log(TraceLog.RESEND, id);
+            publishCommand(id, strip, count, mask, values, stamp, null);
+        }
+
+        @Override
+        public void failed(int strip, long mask, long values) {
+            trace.log(TraceLog.NOT_SWITCHED, strip, mask);
+            if (strip == PRIMARY_STRIP) {
+                reconciler.onFailed(mask);
+            }
+            // Subscribers redraw these outlets from the OutletStore, which
+            // still holds the state the strip last reported
+            stateStream.publish(strip, mask);
+        }
+    }, ACK_TIMEOUT_MILLIS, metrics, new Random().nextInt());
+
+    // Strips on the same Wi-Fi are switched directly over UDP, see LanLink.
+    // The strip's server is told afterwards, and commands the strip doesn't
+    // answer go through the broker as usual.
+    static final boolean LAN_DIRECT = true;
+    private final LanLink lan = new LanLink(new InetSocketAddress("255.255.255.255", LanLink.PORT), devices,
+            new LanLink.Callbacks() {
+                @Override
+                public void acked(int strip, int count, long mask, long values, long stamp) {
+                    // The server still updates its database, the retained
+                    // state other phones follow and its last writer. It
+                    // forwards the command to the ESP8266, where it changes
+                    // nothing.
+                    int queued = 0;
+                    if (isConnected() && !hasBacklog(strip)) {
+                        queued = devices.isBinary(strip)
+                                ? publishCommand(0, strip, count, mask, values, stamp, null)
+                                : publishToBroker(strip, count, mask, values, stamp, null);
+                    }
+                    if (queued == 0) {
+                        recordStates(strip, count, mask, values, stamp);
+                    }
+                }
+
+                @Override
+                public void fallback(int strip, int count, long mask, long values, long stamp) {
+                    trace.log(TraceLog.LAN_FALLBACK, strip);
+                    if (!isConnected() || hasBacklog(strip)
+                            || publishToBroker(strip, count, mask, values, stamp, null) == 0) {
+                        recordStates(strip, count, mask, values, stamp);
+                    }
+                }
+            });
+
+    // How long the broker connection idles between pings, learned per
+    // network. The broker is told the longest interval that may be picked.
+    private final KeepaliveController keepalive = new KeepaliveController(new KeepaliveController.Callbacks() {
+        @Override
+        public void save(String network, int goodSeconds, int badSeconds) {
+            settings.setKeepalive(network, goodSeconds, badSeconds);
+        }
+    });
+    int keepBrokerAliveSeconds = KeepaliveController.MAX_SECONDS;
+
+    // The alarm intent for the single battery check scheduled by the cutoff
+    // scheduler
+    static final String ACTION_BATTERY_CHECK = "com.example.arpan.wifipowerstrip.BATTERY_CHECK";
     PendingIntent alarmIntent;
 
+    // Reports the battery level only while charging, timed from the
+    // estimated charge rate to land just before the cutoff
+    private final BatteryCutoffScheduler batteryScheduler = new BatteryCutoffScheduler(
+            new BatteryCutoffScheduler.Callbacks() {
+                @Override
+                public void sendSample(int permille) {
+                    sendBattery(permille);
+                }
+
+                @Override
+                public void scheduleCheck(long atMillis) {
+                    scheduleBatteryCheck(atMillis);
+                }
+
+                @Override
+                public void cancelCheck() {
+                    AlarmManager aMgr = (AlarmManager) getSystemService(ALARM_SERVICE);
+                    aMgr.cancel(alarmIntent);
+                }
+            });
+
+    // Outlet schedules, all run off one exact alarm. The on/off timer of the
+    // app's main screen is the pair TIMER_ON_SCHEDULE/TIMER_OFF_SCHEDULE.
+    static final String ACTION_SCHEDULE = "com.example.arpan.wifipowerstrip.SCHEDULE";
+    public static final int TIMER_OUTLET = 2;
+    public static final int TIMER_ON_SCHEDULE = 1;
+    public static final int TIMER_OFF_SCHEDULE = 2;
+    PendingIntent scheduleIntent;
+    private final ScheduleEngine schedules = new ScheduleEngine(new ScheduleEngine.Callbacks() {
+        @Override
+        public void fire(int outlet, boolean on) {
+            trace.log(TraceLog.SCHEDULE_FIRED, outlet, on ? 1 : 0);
+            sendState(outlet, on);
+        }
+
+        @Override
+        public void scheduleAlarm(long atMillis) {
+            setExactAlarm(atMillis, scheduleIntent);
+        }
+
+        @Override
+        public void cancelAlarm() {
+            AlarmManager aMgr = (AlarmManager) getSystemService(ALARM_SERVICE);
+            aMgr.cancel(scheduleIntent);
+        }
+    }, TimeZone.getDefault());
+
     // Binding
     private final IBinder mBinder = new LocalBinder();
 
@@ -64,6 +357,16 @@ public class MqttService extends Service implements MqttCallback{
             // Return this instance of LocalService so clients can call public methods
             return MqttService.this;
         }
+
+        // Outlet changes for the UI, delivered without broadcasts
+        StateStream getStateStream() {
+            return stateStream;
+        }
+
+        // Outlets with new power readings, throttled, see getPowerMeter()
+        StateStream getPowerStream() {
+            return powerStream;
+        }
     }
 
     @Override
@@ -71,172 +374,1184 @@ public class MqttService extends Service implements MqttCallback{
         return mBinder;
     }
 
+    // The settings, outboxes and event log are opened on the worker thread,
+    // then the rest of onCreate runs on the main thread. Until then calls
+    // that need them are held in untilReady. Writes to the outboxes and the
+    // event log made from the main thread go through the worker too.
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "service-io");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private Handler main;
+    private volatile SettingsStore settings;
+    private boolean ready;
+    private boolean destroyed;
+    private final ArrayList<Runnable> untilReady = new ArrayList<Runnable>();
+
     @Override
     public void onCreate() {
         super.onCreate();
+        trace.setLevel(BuildConfig.DEBUG ? TraceLog.DEBUG : TraceLog.INFO);
+        trace.setEcho(BuildConfig.DEBUG);
+        main = new Handler(Looper.getMainLooper());
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                openStores();
+                main.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        start();
+                    }
+                });
+            }
+        });
+    }
 
-        // Initialize client settings
-        try {
-            memoryPersistence = new MemoryPersistence();
-            client = new MqttClient(url, clientID, memoryPersistence);
-            connOpts = new MqttConnectOptions();
-            connOpts.setKeepAliveInterval(keepBrokerAliveSeconds);
-            connOpts.setCleanSession(true);
-        } catch (MqttException e) {
-            Log.e("Connection", "Failed to connect because: " + e.getReasonCode() + ":" + e.getCause());
+    // On the worker thread
+    private void openStores() {
+        settings = SettingsStore.get(this);
+        clientID = settings.clientId();
+        node = clientID.hashCode();
+        outbox = new DurableOutbox(new File(getFilesDir(), "outbox.log"));
+        events = new EventLog(new File(getFilesDir(), "events.log"));
+        devices.register(settings.stripId());
+        loadStripOutboxes();
+        loadSnapshot();
+    }
+
+    // On the main thread once the stores are open
+    private void start() {
+        if (destroyed) {
+            return;
+        }
+        if (PREFER_MQTT5) {
+            mqtt5 = new Mqtt5Connection(broker, BROKER_PORT, clientID, keepBrokerAliveSeconds,
+                    SESSION_EXPIRY_SECONDS, keepalive, connectionListener);
+            connection = mqtt5;
+        } else {
+            connection = newPahoConnection();
+        }
+        devices.setReplyClient(clientID);
+        if (LAN_DIRECT) {
+            try {
+                lan.start();
+            } catch (IOException e) {
+                trace.log(TraceLog.LAN_UNAVAILABLE, e);
+            }
+        }
+        updateNetwork();
+
+        // Battery events drive the cutoff scheduler. Registering also delivers
+        // the current (sticky) battery state right away. The scheduled check
+        // comes back to this service as an explicit intent.
+        alarmIntent = PendingIntent.getService(getApplicationContext(), 0,
+                new Intent(this, MqttService.class).setAction(ACTION_BATTERY_CHECK), 0);
+        batteryScheduler.setCutoff(storedCutoffPermille(), System.currentTimeMillis(), 0);
+        IntentFilter batteryFilter = new IntentFilter();
+        batteryFilter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        batteryFilter.addAction(Intent.ACTION_POWER_CONNECTED);
+        batteryFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        registerReceiver(batteryReceiver, batteryFilter);
+
+        registerReceiver(networkReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        scheduleIntent = PendingIntent.getService(getApplicationContext(), 1,
+                new Intent(this, MqttService.class).setAction(ACTION_SCHEDULE), 0);
+        loadSchedules(System.currentTimeMillis());
+        IntentFilter clockFilter = new IntentFilter();
+        clockFilter.addAction(Intent.ACTION_TIME_CHANGED);
+        clockFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        registerReceiver(clockReceiver, clockFilter);
+
+        coalescer.attach(pipeline);
+        reconnect.attach(pipeline);
+        pipeline.addTicker(acks);
+        pipeline.addTicker(syncFallback);
+        if (mqtt5 != null) {
+            pipeline.addTicker(mqtt5);
+        }
+        pipeline.addTicker(lan);
+        pipeline.addTicker(powerPush);
+        pipeline.addTicker(outboxReplay);
+        pipeline.start();
+
+        ready = true;
+        for (Runnable r : untilReady) {
+            r.run();
+        }
+        untilReady.clear();
+    }
+
+    // Runs r on the main thread now if the service is started, or once it is
+    private void whenReady(Runnable r) {
+        if (ready) {
+            r.run();
+        } else if (!destroyed) {
+            untilReady.add(r);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        Log.i("Metrics", metrics.dump());
+        destroyed = true;
+        final boolean started = ready;
+        ready = false;
+        if (started) {
+            unregisterReceiver(networkReceiver);
+            unregisterReceiver(batteryReceiver);
+            unregisterReceiver(clockReceiver);
+            batteryScheduler.onPowerDisconnected();
         }
-        // This receiver and filter is used to handle the battery and time info
-        // that is sent periodically
-        IntentFilter filter = new IntentFilter();
-        filter.addAction("alarm");
-        filter.addAction("update");
-        registerReceiver(receiver, filter);
+        // After anything still queued for the stores. Pending commands may
+        // still go to the outbox on the way.
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (started) {
+                    coalescer.flushNow();
+                    pipeline.stop();
+                    lan.stop();
+                    BrokerConnection c = connection;
+                    if (c != null) {
+                        c.disconnect();
+                    }
+                }
+                closeStores();
+            }
+        });
+        worker.shutdown();
+    }
 
+    private void closeStores() {
+        if (outbox != null) {
+            outbox.close();
+        }
+        synchronized (stripOutboxes) {
+            for (DurableOutbox box : stripOutboxes) {
+                if (box != null) {
+                    box.close();
+                }
+            }
+        }
+        if (events != null) {
+            events.close();
+        }
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int starId) {
-        Log.e("Checkup", "checking");
-        connectToBroker();
-        sendBatteryAndTime();
+    public int onStartCommand(final Intent intent, int flags, int starId) {
+        whenReady(new Runnable() {
+            @Override
+            public void run() {
+                onStart(intent);
+            }
+        });
         return START_STICKY;
     }
 
-    // Wrapper function that connects to the MQTT Broker on the raspberry pi
-    public void connectToBroker() {
-        try {
-            Log.e("Connection", "Attempting Mqtt Connection...");
-            client.connect(connOpts);
-            client.setCallback(this);
-            Log.e("Connection", "Connected");
-            sendMessage("Hello from android");
-        } catch (MqttException e) {
-            Log.e("Connection", "Failed to connect because: " + e.getReasonCode() + ":" + e.getCause());
+    private void onStart(Intent intent) {
+        trace.log(TraceLog.START_COMMAND);
+        if (intent != null && ACTION_BATTERY_CHECK.equals(intent.getAction())) {
+            trace.log(TraceLog.BATTERY_ALARM);
+            Intent batteryIntent = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            batteryScheduler.onCheck(System.currentTimeMillis(), permilleOf(batteryIntent));
+        }
+        if (intent != null && ACTION_SCHEDULE.equals(intent.getAction())) {
+            schedules.onAlarm(System.currentTimeMillis());
         }
+        if (isOnline()) {
+            reconnect.connectNow();
+        } else {
+            reconnect.onNetworkLost();
+        }
+    }
 
-        try {
-            // Syncs every time the device connects to update the switch states in the app
-            // The python client on the raspberry pi handles the sync message and send back
-            // switch status data
-            Log.e("Subscription", "Trying to subscribe");
-            client.subscribe(inTopic, qos);
-            sendMessage("Sync");
-            Log.e("Subscription", "Subscribed");
+    // Wrapper function that starts connecting to the MQTT Broker on the raspberry pi.
+    // Returns immediately, the rest happens in the connect callback. Only the
+    // ReconnectManager calls this so attempts are paced.
+    private boolean connectToBroker() {
+        BrokerConnection c = connection;
+        if (c == null || c.isConnected() || !connecting.compareAndSet(false, true)) {
+            return false;
         }
-        catch (MqttException e) {
-                Log.e("Subscription", "Failed to subscribe bc: " + e.getReasonCode() + ":" + e.getCause());
+        primaryHeard = false;
+        try {
+            trace.log(TraceLog.CONNECTING);
+            c.connect();
+            return true;
+        } catch (Exception e) {
+            connecting.set(false);
+            trace.log(TraceLog.CONNECT_FAILED, e);
+            reconnect.onAttemptFailed();
+            return true;
         }
     }
 
-    // Wrapper function that sends/publishes a message to the MQTT broker on the Raspberry Pi
-    public void sendMessage(String msg) {
-        message = new MqttMessage(msg.getBytes());
-        message.setQos(qos);
+    // The 3.1.1 client, used when the broker doesn't speak MQTT 5
+    private BrokerConnection newPahoConnection() {
         try {
-            client.publish(outTopic, message);
-            Log.e("Publish", "Message: " + msg + " Published to " + broker + " at topic " + outTopic);
-        }
-        catch (MqttException e) {
-            Log.e("Publish", "Message failed to publish");
-        }
-
-    }
-
-    // Callback function that handles the messages received from the MQTT broker
-    // In this case, the only message that the application will ever receiver in
-    // switch data supplied from the sync message, so the application does not check
-    // for any other messages - can be updated in the future for added functionality
-    public void messageArrived(String topic, MqttMessage message) {
-        Log.e("Arrival", "Received message");
-        // Only needs to handle the sync case where the serve sends
-        // a message in the format of 1:0/2:0/3:1/4:0
-        // meaning switch 1 is off, switch 2 is off, switch 3 in on, switch 4 is off
-        String msg = new String(message.getPayload());
-        Log.e("Message", msg);
-
-        // Since we know where the switch data is in the string, we just get the state data
-        // The state data is converted to an integer
-        int state1 = Integer.parseInt(msg.substring(2,3));
-        int state2 = Integer.parseInt(msg.substring(6,7));
-        int state3 = Integer.parseInt(msg.substring(10,11));
-        int state4 = Integer.parseInt(msg.substring(14,15));
-
-
-        // Comparing to 1 essential converts to boolean and updates the states of each switch
-        Intent intent = new Intent();
-        intent.setAction("sync");
-        intent.putExtra("switch1State", state1 == 1);
-        intent.putExtra("switch2State", state2 == 1);
-        intent.putExtra("switch3State", state3 == 1);
-        intent.putExtra("switch4State", state4 == 1);
-
-        // Sends broadcast with sync action to the MainActivity with booleans
-        // of all switch states
-        Log.e("Broadcast", "Sending broadcast");
-        sendBroadcast(intent);
-    }
-
-    // Wrapper function that sends the current battery and time info according
-    // to the interval stated in the variable keepAliveBatterSeconds
-    public void sendBatteryAndTime() {
-        Context context = getApplicationContext();
-        Intent intent = new Intent("alarm");
-        alarmIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
-        Calendar wakeUpTime = Calendar.getInstance();
-
-        // Setting up the repeating alarm manager
-        AlarmManager aMgr = (AlarmManager) getSystemService(ALARM_SERVICE);
-        aMgr.setRepeating(AlarmManager.RTC_WAKEUP,
-                wakeUpTime.getTimeInMillis(), keepAliveBatterySeconds*1000,
-                alarmIntent);
+            return new PahoConnection(url, clientID, new MqttDefaultFilePersistence(getFilesDir().getPath()),
+                    keepalive, qos, connectionListener);
+        } catch (MqttException e) {
+            trace.log(TraceLog.CLIENT_FAILED, e.getReasonCode(), e.getCause());
+            return null;
+        }
     }
 
-    // Broadcast Receiver that handles the alarm manager and sends battery and
-    // time info every given interval
-    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+    // Events of the broker connection, called on its threads
+    private final BrokerConnection.Listener connectionListener = new BrokerConnection.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (action.equals("alarm")) {
-                Log.e("Alarm", "Received");
-                String msg;
-                Intent batteryIntent = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-                int level = batteryIntent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
-                int scale = batteryIntent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        public void onConnected() {
+            connecting.set(false);
+            reconnect.onConnected();
+            metrics.onConnected();
+            trace.log(TraceLog.CONNECTED, connection.protocolVersion());
+            // Lets every strip server, including ones we haven't heard from
+            // yet, know that we speak binary frames
+            sendHello();
+            // Commands made while offline go out before anything else
+            if (replayOutboxes() != 0) {
+                replayDue = true;
+            }
+            try {
+                // Subscribing every time the device connects delivers the
+                // retained state of every strip, even if the broker lost the
+                // session. The python client on the raspberry pi of each
+                // strip keeps it up to date on its own state topic. Over
+                // MQTT 5 the answers to our Syncs and commands come on our
+                // reply topic.
+                trace.log(TraceLog.SUBSCRIBING);
+                connection.subscribe(connection.protocolVersion() >= 5
+                        ? new String[] {DeviceIndex.STATE_WILDCARD, devices.replyWildcard()}
+                        : new String[] {DeviceIndex.STATE_WILDCARD}, STATE_QOS);
+            } catch (Exception e) {
+                trace.log(TraceLog.SUBSCRIBE_FAILED, e);
+            }
+            // Anything queued while disconnected can go out now
+            pipeline.wake();
+        }
+
+        @Override
+        public void onConnectFailed(Throwable cause, boolean unsupported) {
+            connecting.set(false);
+            if (unsupported && connection == mqtt5) {
+                BrokerConnection paho = newPahoConnection();
+                if (paho != null) {
+                    trace.log(TraceLog.MQTT5_UNSUPPORTED);
+                    connection = paho;
+                    reconnect.connectNow();
+                    return;
+                }
+            }
+            trace.log(TraceLog.CONNECT_FAILED, cause);
+            reconnect.onAttemptFailed();
+        }
+
+        @Override
+        public void onConnectionLost(Throwable cause) {
+            trace.log(TraceLog.CONNECTION_LOST, cause);
+            primaryHeard = false;
+            metrics.onDisconnected();
+            if (isOnline()) {
+                reconnect.onConnectionLost();
+            } else {
+                reconnect.onNetworkLost();
+            }
+        }
+
+        @Override
+        public void onSubscribed(boolean ok) {
+            if (!ok) {
+                trace.log(TraceLog.SUBSCRIBE_FAILED);
+                return;
+            }
+            trace.log(TraceLog.SUBSCRIBED);
+            syncFallbackNanos = System.nanoTime() + RETAINED_WAIT_MILLIS * 1000L * 1000L;
+            pipeline.wake();
+        }
 
-                SimpleDateFormat simpleDateFormat = new SimpleDateFormat("HH-mm"); // HH vs hh = 24 hour vs 12 hour format
-                String format = simpleDateFormat.format(new Date());
+        // Handles the messages received from the MQTT broker on
+        // strip/<id>/state, or strip/<id>/reply/<client id> over MQTT 5. The
+        // server either sends a hello frame, the outlets that changed since
+        // the version we last synced (Delta:<version>:3:1) or, if it predates
+        // deltas, the state of every outlet like 1:0/2:0/3:1/4:0 meaning
+        // switch 1 is off, switch 2 is off, switch 3 in on, switch 4 is off
+        @Override
+        public void onMessage(String topic, byte[] payload, int correlation) {
+            inboundStrip = devices.resolve(topic);
+            if (inboundStrip < 0) {
+                trace.log(TraceLog.IGNORED_TOPIC, payload.length, topic);
+                return;
+            }
+            trace.log(TraceLog.RECEIVED, inboundStrip, payload.length);
+            inboundCorrelation = correlation;
+            metrics.onReceived(MessageCodec.typeOf(payload, 0, payload.length));
+            if (!MessageCodec.decode(payload, 0, payload.length, inbound)) {
+                trace.log(TraceLog.UNRECOGNIZED, inboundStrip, payload.length);
+            }
+        }
 
-                msg = "Current:" + Float.toString(((float)level / (float)scale) * 100.0f) + ":" + format;
-                sendMessage(msg);
+        @Override
+        public void onPublished(Frame frame, boolean ok) {
+            if (ok) {
+                trace.log(TraceLog.PUBLISHED, frame.length, frame.topic);
+                metrics.onPublished(frame.submittedNanos, true);
+            } else {
+                trace.log(TraceLog.PUBLISH_FAILED, frame.length, frame.topic);
+                metrics.onPublished(0, false);
             }
-            if (action.equals("update")) {
-                Log.e("Update", "Received");
-                Bundle extras = intent.getExtras();
-                if (extras.getString("battery") != null) {
-                    sendMessage("Update:" + "Battery:" + extras.getString("battery"));
+            pipeline.complete(frame, ok);
+        }
+    };
+
+    // Announces to every strip server that this app understands binary
+    // frames. Old servers ignore it and keep receiving the text format.
+    public void sendHello() {
+        Frame frame = pipeline.acquire();
+        if (frame != null) {
+            frame.length = MessageCodec.encodeHello(frame.data, 0);
+            submit(frame, DeviceIndex.ALL_CMD, null);
+        }
+    }
+
+    // Asks every strip server for its full state. Each one answers on its own
+    // state topic, which is how strips get into the index. Sent in the format
+    // the primary strip speaks since strips are normally updated together.
+    public void discover() {
+        Frame frame = pipeline.acquire();
+        if (frame != null) {
+            frame.length = devices.isBinary(PRIMARY_STRIP)
+                    ? MessageCodec.encodeSync(frame.data, 0, 0)
+                    : MessageCodec.encodeLegacySync(frame.data, 0, 0);
+            metrics.onSyncSent();
+            submit(frame, DeviceIndex.ALL_CMD, null);
+        }
+    }
+
+    // Sets the on/off state of an outlet of the primary strip. The command is
+    // coalesced with any other changes made within COALESCE_WINDOW_MILLIS.
+    public void sendState(int outlet, boolean on) {
+        if (outlet < 1 || outlet > MAX_OUTLETS) {
+            trace.log(TraceLog.OUTLET_UNSUPPORTED, PRIMARY_STRIP, outlet);
+            return;
+        }
+        coalescer.set(outlet, on);
+    }
+
+    // Sets the on/off state of an outlet of any strip. Commands for strips
+    // other than the primary one go out right away, or to the strip's
+    // outbox while offline.
+    public void sendState(int strip, int outlet, boolean on) {
+        if (strip == PRIMARY_STRIP) {
+            sendState(outlet, on);
+        } else if (outlet < 1 || outlet > MAX_OUTLETS) {
+            trace.log(TraceLog.OUTLET_UNSUPPORTED, strip, outlet);
+        } else {
+            long bit = 1L << (outlet - 1);
+            sendStates(strip, outlet, bit, on ? bit : 0);
+        }
+    }
+
+    // Sends the commands collected by the coalescer that diverge from the
+    // expected outlet states, or keeps them in the outbox until we are
+    // connected again. A strip on our Wi-Fi is switched even while the
+    // broker is away.
+    private void sendCoalesced(int count, long mask, long values) {
+        mask = reconciler.diverging(mask, values);
+        if (mask == 0) {
+            trace.log(TraceLog.NOTHING_TO_SEND);
+            return;
+        }
+        sendStates(PRIMARY_STRIP, count, mask, values);
+    }
+
+    // Publishes a command, or keeps it in the strip's outbox if we're offline,
+    // older commands are still waiting there, or no frame was free. The
+    // command is stamped now and keeps that stamp however late it goes out.
+    private void sendStates(int strip, int count, long mask, long values) {
+        long stamp = clock.now(System.currentTimeMillis());
+        if ((!isConnected() && !lan.isDirect(strip)) || hasBacklog(strip)
+                || publishStates(strip, count, mask, values, stamp, null) == 0) {
+            recordStates(strip, count, mask, values, stamp);
+        }
+    }
+
+    private void recordStates(int strip, int count, long mask, long values, long stamp) {
+        DurableOutbox box = outboxFor(strip);
+        if (box == null) {
+            trace.log(TraceLog.DROPPED_OFFLINE, strip);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (((mask >>> i) & 1L) != 0) {
+                box.recordState(i + 1, ((values >>> i) & 1L) != 0, stamp);
+            }
+        }
+        onRecorded();
+    }
+
+    // A command recorded while connected goes out with the next replay
+    private void onRecorded() {
+        if (isConnected()) {
+            replayDue = true;
+            pipeline.wake();
+        }
+    }
+
+    // True while commands for the strip wait in its outbox to be replayed
+    private boolean hasBacklog(int strip) {
+        if (!replayDue) {
+            return false;
+        }
+        DurableOutbox box = strip == PRIMARY_STRIP ? outbox : existingOutbox(strip);
+        return box != null && box.pendingCount() > 0;
+    }
+
+    // The outbox for commands to the strip, opened if it's new. Null if it
+    // can't be, then the command is lost.
+    private DurableOutbox outboxFor(int strip) {
+        if (strip == PRIMARY_STRIP) {
+            return outbox;
+        }
+        synchronized (stripOutboxes) {
+            if (stripOutboxes[strip] == null) {
+                String id = devices.id(strip);
+                if (id == null) {
+                    return null;
                 }
-                else if (extras.getString("timer_on") != null) {
-                    sendMessage("Update:" + "Timer On:" + extras.getString("timer_on"));
+                openStripOutbox(strip, new File(getFilesDir(), STRIP_OUTBOX_PREFIX + hex(id) + OUTBOX_SUFFIX));
+            }
+            return stripOutboxes[strip];
+        }
+    }
+
+    private DurableOutbox existingOutbox(int strip) {
+        synchronized (stripOutboxes) {
+            return stripOutboxes[strip];
+        }
+    }
+
+    private void openStripOutbox(final int strip, File file) {
+        stripOutboxes[strip] = new DurableOutbox(file);
+        stripSenders[strip] = new DurableOutbox.Sender() {
+            @Override
+            public int sendStates(int count, long mask, long values, long stamp,
+                                  PublishPipeline.Listener listener) {
+                return publishStates(strip, count, mask, values, stamp, listener);
+            }
+
+            // Only outlet states are kept for other strips
+            @Override
+            public int sendSetting(int key, int a, int b, PublishPipeline.Listener listener) {
+                return 0;
+            }
+
+            @Override
+            public int sendBattery(int permille, int minuteOfDay, PublishPipeline.Listener listener) {
+                return 0;
+            }
+        };
+    }
+
+    // Opens the outboxes other strips were left with when the service last
+    // stopped, registering their strips
+    private void loadStripOutboxes() {
+        File[] files = getFilesDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(STRIP_OUTBOX_PREFIX) || !name.endsWith(OUTBOX_SUFFIX)) {
+                continue;
+            }
+            String id = unhex(name.substring(STRIP_OUTBOX_PREFIX.length(), name.length() - OUTBOX_SUFFIX.length()));
+            int strip = id == null ? -1 : devices.register(id);
+            if (strip > PRIMARY_STRIP) {
+                synchronized (stripOutboxes) {
+                    if (stripOutboxes[strip] == null) {
+                        openStripOutbox(strip, file);
+                    }
                 }
-                else if (extras.getString("timer_off") != null) {
-                    sendMessage("Update:" + "Timer Off:" + extras.getString("timer_off"));
+            }
+        }
+    }
+
+    // Replays every outbox and returns how many commands they held
+    private int replayOutboxes() {
+        int pending = outbox.pendingCount();
+        if (pending != 0) {
+            outbox.replay(replaySender);
+        }
+        for (int strip = 0; strip < MAX_STRIPS; strip++) {
+            DurableOutbox box;
+            DurableOutbox.Sender sender;
+            synchronized (stripOutboxes) {
+                box = stripOutboxes[strip];
+                sender = stripSenders[strip];
+            }
+            if (box != null && box.pendingCount() != 0) {
+                pending += box.pendingCount();
+                box.replay(sender);
+            }
+        }
+        return pending;
+    }
+
+    // Device ids can hold anything, file names get their UTF-8 bytes in hex
+    private static String hex(String id) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : id.getBytes(Charset.forName("UTF-8"))) {
+            sb.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String unhex(String hex) {
+        if (hex.isEmpty() || hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return new String(bytes, Charset.forName("UTF-8"));
+    }
+
+    // Sends a command straight to the strip when it's on our Wi-Fi, or else
+    // through the broker. Outbox replays, the only callers with a listener,
+    // always go through the broker. Returns the number of frames queued.
+    // Commands from outboxes written before stamps were kept have stamp 0
+    // and are stamped now.
+    private int publishStates(int strip, int count, long mask, long values, long stamp,
+                              PublishPipeline.Listener listener) {
+        if (stamp == 0) {
+            stamp = clock.now(System.currentTimeMillis());
+        }
+        if (listener == null && lan.send(strip, count, mask, values, stamp, node, System.nanoTime())) {
+            // The I/O thread times the retries
+            pipeline.wake();
+            return 1;
+        }
+        return publishToBroker(strip, count, mask, values, stamp, listener);
+    }
+
+    // Servers that speak binary frames get a single acked command, older ones
+    // get one State message per outlet
+    private int publishToBroker(int strip, int count, long mask, long values, long stamp,
+                                PublishPipeline.Listener listener) {
+        if (devices.isBinary(strip)) {
+            int id = acks.track(strip, count, mask, values, stamp, System.nanoTime());
+            return publishCommand(id, strip, count, mask, values, stamp, listener);
+        }
+        int queued = 0;
+        for (int i = 0; i < count; i++) {
+            if (((mask >>> i) & 1L) != 0) {
+                if (publishState(strip, i + 1, ((values >>> i) & 1L) != 0, listener) == 0) {
+                    return 0;
                 }
+                queued++;
             }
         }
+        return queued;
+    }
+
+    private int publishState(int strip, int outlet, boolean on, PublishPipeline.Listener listener) {
+        Frame frame = pipeline.acquire();
+        if (frame == null) {
+            return 0;
+        }
+        frame.length = MessageCodec.encodeLegacyState(frame.data, 0, outlet, on);
+        submit(frame, devices.cmdTopic(strip), listener);
+        return 1;
+    }
+
+    // A State or Batch frame with its stamp and correlation id. The id is 0,
+    // and never acked, if the AckTracker was full.
+    private int publishCommand(int id, int strip, int count, long mask, long values, long stamp,
+                               PublishPipeline.Listener listener) {
+        Frame frame = pipeline.acquire();
+        if (frame == null) {
+            return 0;
+        }
+        if (Long.bitCount(mask) == 1) {
+            int outlet = Long.numberOfTrailingZeros(mask) + 1;
+            boolean on = (values & mask) != 0;
+            frame.length = MessageCodec.encodeState(frame.data, 0, outlet, on, id, stamp, node);
+        } else {
+            frame.length = MessageCodec.encodeBatch(frame.data, 0, count, mask, values, id, stamp, node);
+        }
+        submit(frame, devices.cmdTopic(strip), listener, devices.replyTopic(strip), id);
+        return 1;
+    }
+
+    // Asks the primary strip for the outlets that changed since the last
+    // version we applied, or for all of them the first time
+    public void sendSync() {
+        whenReady(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        });
+    }
+
+    private void sync() {
+        long since = outlets.version(PRIMARY_STRIP);
+        Frame frame = pipeline.acquire();
+        if (frame != null) {
+            frame.length = devices.isBinary(PRIMARY_STRIP)
+                    ? MessageCodec.encodeSync(frame.data, 0, since)
+                    : MessageCodec.encodeLegacySync(frame.data, 0, since);
+            metrics.onSyncSent();
+            submit(frame, devices.cmdTopic(PRIMARY_STRIP), null,
+                    devices.replyTopic(PRIMARY_STRIP), syncIds.incrementAndGet());
+        }
+    }
+
+    // Cached outlet states, the UI is built from these
+    public OutletStore getOutletStore() {
+        return outlets;
+    }
+
+    // Known strips, their ids and strip indexes
+    public DeviceIndex getDeviceIndex() {
+        return devices;
+    }
+
+    // Sends a setting change, see MessageCodec.SETTING_*
+    public void sendSetting(final int key, final int a, final int b) {
+        whenReady(new Runnable() {
+            @Override
+            public void run() {
+                setSetting(key, a, b);
+            }
+        });
+    }
+
+    private void setSetting(final int key, final int a, final int b) {
+        if (!isConnected() || hasBacklog(PRIMARY_STRIP) || publishSetting(key, a, b, null) == 0) {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    outbox.recordSetting(key, a, b);
+                    onRecorded();
+                }
+            });
+        }
+        if (key == MessageCodec.SETTING_BATTERY) {
+            // Reports the level against the new cutoff and re-plans the check
+            Intent batteryIntent = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            batteryScheduler.setCutoff(a * 10, System.currentTimeMillis(), permilleOf(batteryIntent));
+        }
+    }
+
+    private int publishSetting(int key, int a, int b, PublishPipeline.Listener listener) {
+        Frame frame = pipeline.acquire();
+        if (frame == null) {
+            return 0;
+        }
+        frame.length = devices.isBinary(PRIMARY_STRIP)
+                ? MessageCodec.encodeSetting(frame.data, 0, key, a, b)
+                : MessageCodec.encodeLegacySetting(frame.data, 0, key, a, b);
+        submit(frame, devices.cmdTopic(PRIMARY_STRIP), listener);
+        return 1;
+    }
+
+    // Sends the battery level in tenths of a percent along with the current time
+    public void sendBattery(final int permille) {
+        final int minuteOfDay;
+        synchronized (now) {
+            now.setTimeInMillis(System.currentTimeMillis());
+            minuteOfDay = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        }
+        if (!isConnected() || hasBacklog(PRIMARY_STRIP) || publishBattery(permille, minuteOfDay, null) == 0) {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    outbox.recordBattery(permille, minuteOfDay);
+                    onRecorded();
+                }
+            });
+        }
+    }
+
+    private int publishBattery(int permille, int minuteOfDay, PublishPipeline.Listener listener) {
+        int hour = minuteOfDay / 60;
+        int minute = minuteOfDay % 60;
+        Frame frame = pipeline.acquire();
+        if (frame == null) {
+            return 0;
+        }
+        frame.length = devices.isBinary(PRIMARY_STRIP)
+                ? MessageCodec.encodeBattery(frame.data, 0, permille, hour, minute)
+                : MessageCodec.encodeLegacyBattery(frame.data, 0, permille, hour, minute);
+        submit(frame, devices.cmdTopic(PRIMARY_STRIP), listener);
+        return 1;
+    }
+
+    // Re-sends what the outbox kept while we were offline
+    private final DurableOutbox.Sender replaySender = new DurableOutbox.Sender() {
+        @Override
+        public int sendStates(int count, long mask, long values, long stamp, PublishPipeline.Listener listener) {
+            return publishStates(PRIMARY_STRIP, count, mask, values, stamp, listener);
+        }
+
+        @Override
+        public int sendSetting(int key, int a, int b, PublishPipeline.Listener listener) {
+            return publishSetting(key, a, b, listener);
+        }
+
+        @Override
+        public int sendBattery(int permille, int minuteOfDay, PublishPipeline.Listener listener) {
+            return publishBattery(permille, minuteOfDay, listener);
+        }
     };
 
-    // Additional functions that are needed to complete the implementation of MqttCallback
+    // Queues a frame for the I/O thread, which publishes it to the MQTT broker
+    // on the Raspberry Pi
+    private void submit(Frame frame, String topic, PublishPipeline.Listener listener) {
+        submit(frame, topic, listener, null, 0);
+    }
+
+    // Over MQTT 5 the strip answers on responseTopic with the correlation id
+    private void submit(Frame frame, String topic, PublishPipeline.Listener listener,
+                        String responseTopic, int correlation) {
+        frame.topic = topic;
+        frame.responseTopic = responseTopic;
+        frame.correlation = correlation;
+        frame.listener = listener;
+        metrics.onSubmitted(MessageCodec.typeOf(frame.data, 0, frame.length), pipeline.queueDepth());
+        pipeline.submit(frame);
+    }
+
+    // PublishPipeline.Transport, called on the I/O thread
+    @Override
+    public boolean isConnected() {
+        BrokerConnection c = connection;
+        return c != null && c.isConnected();
+    }
+
     @Override
-    public void connectionLost(Throwable cause) {
-        if (isOnline() == false) {
-            Log.e("Connection", "Connection lost!");
+    public void publish(Frame frame) throws Exception {
+        connection.publish(frame);
+    }
+
+    // Publish counters for diagnosing throughput and backpressure
+    public PublishPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Recent events, for diagnosis
+    public TraceLog getTraceLog() {
+        return trace;
+    }
+
+    // Power draw per outlet of the primary strip
+    public PowerMeter getPowerMeter() {
+        return power;
+    }
+
+    // Outlet and battery history
+    public EventLog getEventLog() {
+        return events;
+    }
+
+    // Prints the metrics for adb shell dumpsys activity service
+    // com.example.arpan.wifipowerstrip/.MqttService
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.print(metrics.dump());
+        writer.println("outbound queued=" + pipeline.queueDepth()
+                + " dropped=" + pipeline.droppedCount()
+                + " suppressed=" + reconciler.suppressedCount()
+                + " awaiting_ack=" + acks.pendingCount());
+        writer.println("client id=" + clientID
+                + " clock_ms=" + HybridClock.millis(clock.last())
+                + " clock_rejected=" + clock.rejectedCount());
+        BrokerConnection c = connection;
+        if (c != null) {
+            writer.print("mqtt protocol=" + c.protocolVersion());
+            if (c == mqtt5) {
+                writer.print(" bytes_sent=" + mqtt5.bytesSent()
+                        + " bytes_received=" + mqtt5.bytesReceived()
+                        + " published=" + mqtt5.publishedCount()
+                        + " aliased=" + mqtt5.aliasedCount());
+            }
+            writer.println();
+        }
+        writer.println("keepalive network=" + keepalive.network()
+                + " interval_s=" + keepalive.intervalSeconds()
+                + " good_s=" + keepalive.goodSeconds()
+                + " bad_s=" + keepalive.badSeconds()
+                + " settled=" + keepalive.isSettled()
+                + " pings=" + keepalive.pingCount()
+                + " timeouts=" + keepalive.timeoutCount()
+                + " detect_p50_us=" + keepalive.detectionP50Micros()
+                + " detect_max_us=" + keepalive.detectionMaxMicros());
+        writer.println("lan strips=" + lan.directCount()
+                + " sent=" + lan.sentCount()
+                + " acked=" + lan.ackedCount()
+                + " fallbacks=" + lan.fallbackCount()
+                + " rejected=" + lan.rejectedCount()
+                + " awaiting_ack=" + lan.pendingCount()
+                + " p50_us=" + lan.latencyP50Micros()
+                + " max_us=" + lan.latencyMaxMicros());
+        for (int outlet = 1; outlet <= outlets.count(PRIMARY_STRIP); outlet++) {
+            if (acks.ackCount(outlet) != 0) {
+                writer.println("outlet " + outlet + " acks=" + acks.ackCount(outlet)
+                        + " mean_us=" + acks.meanLatencyMicros(outlet)
+                        + " max_us=" + acks.maxLatencyMicros(outlet));
+            }
+        }
+        long[] window = new long[PowerMeter.FIELDS];
+        long nowNanos = System.nanoTime();
+        for (int outlet = 1; outlet <= power.capacity(); outlet++) {
+            if (!power.hasReading(outlet)) {
+                continue;
+            }
+            writer.print("outlet " + outlet + " ma=" + power.lastMilliamps(outlet) + " mw=" + power.lastMilliwatts(outlet));
+            for (int w = PowerMeter.WINDOW_SECOND; w <= PowerMeter.WINDOW_HOUR; w++) {
+                power.read(outlet, w, nowNanos, window);
+                String name = w == PowerMeter.WINDOW_SECOND ? "1s" : w == PowerMeter.WINDOW_MINUTE ? "1m" : "1h";
+                writer.print(" " + name + "_min_mw=" + window[PowerMeter.MIN_MILLIWATTS]
+                        + " " + name + "_max_mw=" + window[PowerMeter.MAX_MILLIWATTS]
+                        + " " + name + "_mean_mw=" + window[PowerMeter.MEAN_MILLIWATTS]
+                        + " " + name + "_energy_uj=" + window[PowerMeter.ENERGY_MICROJOULES]);
+            }
+            writer.println();
+        }
+        // Usage over the last day
+        long now = System.currentTimeMillis();
+        long[] onMillis = new long[1];
+        EventLog log = events;
+        if (log != null) {
+            writer.println("events count=" + log.size() + " oldest_ms=" + log.oldestMillis());
+            for (int outlet = 1; outlet <= outlets.count(PRIMARY_STRIP); outlet++) {
+                log.onTime(outlet, now - 24 * 60 * 60 * 1000L, now, onMillis);
+                writer.println("outlet " + outlet + " on_ms_24h=" + onMillis[0]);
+            }
+        }
+        trace.dump(writer);
+    }
+
+    // Strip the message being decoded came from and the correlation id it
+    // answers, 0 if none. Only touched on the MQTT callback thread.
+    private int inboundStrip;
+    private int inboundCorrelation;
+
+    // Correlation id of the last Sync sent to the primary strip. Over MQTT 5
+    // only its answer counts as a sync reply, not late answers to older ones.
+    private final AtomicInteger syncIds = new AtomicInteger();
+
+    // Receives decoded messages from the strip servers
+    private final MessageCodec.Handler inbound = new MessageCodec.Adapter() {
+        @Override
+        public void onHello(int version) {
+            if (version >= 1) {
+                trace.log(TraceLog.BINARY_STRIP, inboundStrip, version);
+                devices.setBinary(inboundStrip, true);
+            }
         }
-        else {
-            connectToBroker();
+
+        @Override
+        public void onSnapshot(int count, long bits) {
+            // Servers without delta support always send every outlet
+            long changed = outlets.applySnapshot(inboundStrip, count, bits);
+            if (inboundStrip == PRIMARY_STRIP) {
+                reconciler.onRemote(count >= 64 ? -1L : (1L << count) - 1, bits);
+                if (inboundCorrelation == 0 || inboundCorrelation == syncIds.get()) {
+                    metrics.onSyncReply();
+                }
+                changed = onPrimaryState(changed);
+            }
+            publishChanges(inboundStrip, changed);
+        }
+
+        @Override
+        public void onDelta(long version, int count, long mask, long values) {
+            boolean current = version == 0 || version >= outlets.version(inboundStrip);
+            long changed = outlets.applyDelta(inboundStrip, version, count, mask, values);
+            if (inboundStrip == PRIMARY_STRIP && current) {
+                reconciler.onRemote(mask, values);
+                if (inboundCorrelation == 0 || inboundCorrelation == syncIds.get()) {
+                    metrics.onSyncReply();
+                }
+                changed = onPrimaryState(changed);
+            }
+            publishChanges(inboundStrip, changed);
+        }
+
+        @Override
+        public void onAck(int id, boolean applied) {
+            acks.onAck(id, applied, System.nanoTime());
+        }
+
+        // Only the first reading since the last push wakes the I/O thread
+        @Override
+        public void onPower(int outlet, int milliamps, int milliwatts) {
+            if (inboundStrip == PRIMARY_STRIP && power.record(outlet, milliamps, milliwatts, System.nanoTime())) {
+                pipeline.wake();
+            }
+        }
+
+        @Override
+        public void onStamp(long stamp) {
+            if (!clock.update(stamp, System.currentTimeMillis())) {
+                trace.log(TraceLog.STAMP_AHEAD, inboundStrip);
+            }
+        }
+    };
+
+    // Words of the primary strip's states being saved. Only touched on the
+    // MQTT callback thread.
+    private long[] snapshotWords = new long[1];
+
+    // Saves state the server just confirmed for the next cold start and
+    // returns the outlets to redraw. The first state after connecting
+    // redraws every outlet so the UI drops its stale marker.
+    private long onPrimaryState(long changed) {
+        metrics.onPrimaryState(Long.bitCount(changed));
+        long now = System.currentTimeMillis();
+        for (long bits = changed; bits != 0; bits &= bits - 1) {
+            int outlet = Long.numberOfTrailingZeros(bits) + 1;
+            events.recordOutlet(now, outlet, outlets.isOn(PRIMARY_STRIP, outlet));
+        }
+        int count = outlets.count(PRIMARY_STRIP);
+        if (snapshotWords.length < OutletStore.wordCount(count)) {
+            snapshotWords = new long[OutletStore.wordCount(count)];
+        }
+        outlets.copyWords(PRIMARY_STRIP, snapshotWords);
+        settings.setSnapshot(count, snapshotWords, outlets.version(PRIMARY_STRIP), now);
+        if (!primaryHeard) {
+            primaryHeard = true;
+            return count >= 64 ? -1L : (1L << count) - 1;
+        }
+        return changed;
+    }
+
+    // Shows the last confirmed snapshot until the server reports. Its version
+    // lets the first sync only ask for what changed since.
+    private void loadSnapshot() {
+        int count = settings.outletCount();
+        if (count == 0) {
+            return;
+        }
+        int words = OutletStore.wordCount(count);
+        long[] bits = new long[words];
+        long[] mask = new long[words];
+        settings.copyOutlets(bits);
+        for (int w = 0; w < words; w++) {
+            int inWord = Math.min(OutletStore.BITS_PER_WORD, count - w * OutletStore.BITS_PER_WORD);
+            mask[w] = inWord == OutletStore.BITS_PER_WORD ? -1L : (1L << inWord) - 1;
+        }
+        outlets.applyDelta(PRIMARY_STRIP, settings.snapshotVersion(), count, mask, bits, new long[words]);
+    }
+
+    // True once the primary strip's state was heard since connecting, until
+    // then the UI shows the cached snapshot
+    public boolean isStateFresh() {
+        return primaryHeard && isConnected();
+    }
+
+    // Tells subscribers which outlets of a strip changed, but only if the
+    // sync actually changed any of them. The states themselves are read from
+    // the OutletStore.
+    private void publishChanges(int strip, long changed) {
+        if (changed == 0) {
+            trace.log(TraceLog.NO_CHANGES, strip);
+            return;
+        }
+        stateStream.publish(strip, changed);
+    }
+
+    // Arms the one alarm that wakes the device for the next battery check
+    private void scheduleBatteryCheck(long atMillis) {
+        AlarmManager aMgr = (AlarmManager) getSystemService(ALARM_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            aMgr.setExact(AlarmManager.RTC_WAKEUP, atMillis, alarmIntent);
+        } else {
+            aMgr.set(AlarmManager.RTC_WAKEUP, atMillis, alarmIntent);
         }
     }
 
+    // Schedules fire at the exact second, even when the device is dozing
+    private void setExactAlarm(long atMillis, PendingIntent intent) {
+        AlarmManager aMgr = (AlarmManager) getSystemService(ALARM_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            aMgr.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, atMillis, intent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            aMgr.setExact(AlarmManager.RTC_WAKEUP, atMillis, intent);
+        } else {
+            aMgr.set(AlarmManager.RTC_WAKEUP, atMillis, intent);
+        }
+    }
+
+    // Adds or replaces an outlet schedule and saves it
+    public void putSchedule(final int id, final Schedule schedule) {
+        whenReady(new Runnable() {
+            @Override
+            public void run() {
+                settings.putSchedule(id, schedule);
+                schedules.put(id, schedule, System.currentTimeMillis());
+            }
+        });
+    }
+
+    public void removeSchedule(final int id) {
+        whenReady(new Runnable() {
+            @Override
+            public void run() {
+                settings.removeSchedule(id);
+                schedules.remove(id);
+            }
+        });
+    }
+
+    public ScheduleEngine getScheduleEngine() {
+        return schedules;
+    }
+
+    // Loads the saved schedules. The timer used to be kept only as the
+    // timer settings and run by the server, so it's turned into schedules
+    // the first time.
+    private void loadSchedules(long nowMillis) {
+        int[] ids = settings.scheduleIds();
+        if (ids.length == 0 && settings.hourOn() != SettingsStore.UNSET
+                && settings.hourOff() != SettingsStore.UNSET) {
+            settings.putSchedule(TIMER_ON_SCHEDULE,
+                    Schedule.daily(TIMER_OUTLET, true, settings.hourOn(), settings.minuteOn()));
+            settings.putSchedule(TIMER_OFF_SCHEDULE,
+                    Schedule.daily(TIMER_OUTLET, false, settings.hourOff(), settings.minuteOff()));
+            ids = settings.scheduleIds();
+        }
+        for (int id : ids) {
+            schedules.put(id, settings.schedule(id), nowMillis);
+        }
+    }
+
+    // Deadlines are wall clock times, so they move with the clock
+    private final BroadcastReceiver clockReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            schedules.reschedule(System.currentTimeMillis(), TimeZone.getDefault());
+        }
+    };
+
+    // Cutoff selected in the app, stored as the spinner position
+    private int storedCutoffPermille() {
+        String[] percentages = getResources().getStringArray(R.array.battery_percentages);
+        int pos = settings.batteryPos();
+        return Integer.parseInt(percentages[Math.min(pos, percentages.length - 1)]) * 10;
+    }
+
+    // Battery level in tenths of a percent from an ACTION_BATTERY_CHANGED intent
+    private static int permilleOf(Intent batteryIntent) {
+        int level = batteryIntent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = batteryIntent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return scale > 0 ? level * 1000 / scale : 0;
+    }
+
+    private void recordBattery(final long atMillis, final int permille, final boolean plugged) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                events.recordBattery(atMillis, permille, plugged);
+            }
+        });
+    }
+
+    // Feeds battery and power events to the cutoff scheduler
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            long now = System.currentTimeMillis();
+            if (action.equals(Intent.ACTION_BATTERY_CHANGED)) {
+                boolean plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+                int permille = permilleOf(intent);
+                if (permille != loggedPermille || plugged != loggedCharging) {
+                    recordBattery(now, permille, plugged);
+                    loggedPermille = permille;
+                    loggedCharging = plugged;
+                }
+                batteryScheduler.onBatteryChanged(now, permille, plugged);
+                return;
+            }
+            Intent batteryIntent = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (action.equals(Intent.ACTION_POWER_CONNECTED)) {
+                batteryScheduler.onPowerConnected(now, permilleOf(batteryIntent));
+            } else if (action.equals(Intent.ACTION_POWER_DISCONNECTED)) {
+                batteryScheduler.onPowerDisconnected();
+            }
+        }
+    };
+
+    // Resumes reconnecting as soon as a network comes back instead of waiting
+    // out the backoff
+    private final BroadcastReceiver networkReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (isOnline()) {
+                updateNetwork();
+                reconnect.onNetworkAvailable();
+            } else {
+                reconnect.onNetworkLost();
+            }
+        }
+    };
+
+    // Pending commands and per outlet command to actuation latency
+    public AckTracker getAckTracker() {
+        return acks;
+    }
+
+    // Reconnect counters for tuning the backoff
+    public ReconnectManager getReconnectManager() {
+        return reconnect;
+    }
+
+    // Keepalive state for the network we're on, picked up from what was
+    // learned the last time we were on it. Wi-Fi networks are told apart by
+    // SSID and mobile ones by APN.
+    private void updateNetwork() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        if (info == null) {
+            return;
+        }
+        String network = info.getTypeName() + "/" + info.getExtraInfo();
+        if (network.equals(keepalive.network())) {
+            return;
+        }
+        // Broadcasts only reach strips over Wi-Fi
+        lan.onNetwork(info.getType() == ConnectivityManager.TYPE_WIFI);
+        pipeline.wake();
+        keepalive.onNetwork(network, settings.keepaliveGood(network), settings.keepaliveBad(network));
+        trace.log(TraceLog.NETWORK, keepalive.intervalSeconds(), network);
+    }
+
+    // Ping interval search and dead link detection for the current network
+    public KeepaliveController getKeepaliveController() {
+        return keepalive;
+    }
+
     private boolean isOnline() {
         ConnectivityManager cm = (ConnectivityManager)getSystemService(CONNECTIVITY_SERVICE);
         if(cm.getActiveNetworkInfo() != null &&
@@ -249,6 +1564,4 @@ public class MqttService extends Service implements MqttCallback{
         return false;
     }
 
-    public void deliveryComplete(IMqttDeliveryToken token) {
-    }
 }
@@ -0,0 +1,186 @@
+package com.example.arpan.wifipowerstrip;
+
+/* The app's copy of the outlet states of every strip, along with the server
+ * version each strip reflects. Sync requests send the version so the server
+ * only has to reply with the outlets that changed since, and those deltas are
+ * applied here.
+ *
+ * Strips are numbered from 0 and can have any number of outlets. The states
+ * of a strip are a bitset in a long[]: outlet n (1 based) is on when bit
+ * (n-1) % 64 of word (n-1) / 64 is set. Merging an update and reporting what
+ * changed costs one operation per 64 outlets, and callers only need to touch
+ * the outlets whose bit is set in the returned changes.
+ */
+public final class OutletStore {
+
+    public static final int BITS_PER_WORD = 64;
+
+    private static final int INITIAL_STRIPS = 1;
+    private static final long[] NO_WORDS = new long[0];
+
+    private int stripCount;
+    private long[] versions = new long[INITIAL_STRIPS];
+    private int[] counts = new int[INITIAL_STRIPS];
+    private long[][] words = new long[INITIAL_STRIPS][];
+
+    public OutletStore() {
+        for (int i = 0; i < INITIAL_STRIPS; i++) {
+            words[i] = NO_WORDS;
+        }
+    }
+
+    // Number of words needed for the given number of outlets
+    public static int wordCount(int outlets) {
+        return (outlets + BITS_PER_WORD - 1) / BITS_PER_WORD;
+    }
+
+    // Number of strips anything has been received for
+    public synchronized int stripCount() {
+        return stripCount;
+    }
+
+    // Last server version applied to a strip, 0 if nothing has been received yet
+    public synchronized long version(int strip) {
+        return strip < stripCount ? versions[strip] : 0;
+    }
+
+    // Number of outlets of a strip known so far
+    public synchronized int count(int strip) {
+        return strip < stripCount ? counts[strip] : 0;
+    }
+
+    public synchronized boolean isOn(int strip, int outlet) {
+        if (strip >= stripCount || outlet < 1 || outlet > counts[strip]) {
+            return false;
+        }
+        int i = outlet - 1;
+        return ((words[strip][i / BITS_PER_WORD] >>> (i % BITS_PER_WORD)) & 1L) != 0;
+    }
+
+    // One word of a strip's states, word 0 holding outlets 1..64
+    public synchronized long word(int strip, int index) {
+        if (strip >= stripCount || index >= words[strip].length) {
+            return 0;
+        }
+        return words[strip][index];
+    }
+
+    // Copies a strip's states into out and returns the number of words copied
+    public synchronized int copyWords(int strip, long[] out) {
+        if (strip >= stripCount) {
+            return 0;
+        }
+        int n = Math.min(out.length, wordCount(counts[strip]));
+        System.arraycopy(words[strip], 0, out, 0, n);
+        return n;
+    }
+
+    // Applies a delta from the server. Outlet n is changed when bit n-1 of mask
+    // is set, with the bits of values spread over words the same way as the
+    // states. The outlets whose state actually changed are written to changed,
+    // which must hold wordCount(count) words, and the return value tells if
+    // there were any. Deltas older than what we have are ignored.
+    public synchronized boolean applyDelta(int strip, long newVersion, int newCount,
+                                           long[] mask, long[] values, long[] changed) {
+        ensureStrip(strip);
+        int n = wordCount(newCount);
+        clear(changed, n);
+        if (newVersion != 0 && newVersion < versions[strip]) {
+            return false;
+        }
+        if (newVersion != 0) {
+            versions[strip] = newVersion;
+        }
+        grow(strip, newCount);
+        long any = 0;
+        for (int w = 0; w < n && w < mask.length; w++) {
+            any |= changed[w] = merge(strip, w, newCount, mask[w], values[w]);
+        }
+        counts[strip] = Math.max(counts[strip], newCount);
+        return any != 0;
+    }
+
+    // Single word form of applyDelta for the up to 64 outlets a frame carries.
+    // Returns the mask of outlets whose state actually changed.
+    public synchronized long applyDelta(int strip, long newVersion, int newCount, long mask, long values) {
+        ensureStrip(strip);
+        if (newVersion != 0 && newVersion < versions[strip]) {
+            return 0;
+        }
+        if (newVersion != 0) {
+            versions[strip] = newVersion;
+        }
+        grow(strip, newCount);
+        long changed = merge(strip, 0, newCount, mask, values);
+        counts[strip] = Math.max(counts[strip], newCount);
+        return changed;
+    }
+
+    // Applies a full unversioned snapshot from a server without delta support
+    public synchronized long applySnapshot(int strip, int newCount, long snapshot) {
+        ensureStrip(strip);
+        grow(strip, newCount);
+        long mask = newCount >= BITS_PER_WORD ? -1L : (1L << newCount) - 1;
+        long changed = merge(strip, 0, newCount, mask, snapshot);
+        counts[strip] = Math.max(counts[strip], newCount);
+        return changed;
+    }
+
+    // Merges one word and returns its changed bits. Outlets seen for the first
+    // time count as changed.
+    private long merge(int strip, int w, int newCount, long mask, long values) {
+        long[] bits = words[strip];
+        long old = bits[w];
+        long updated = (old & ~mask) | (values & mask);
+        bits[w] = updated;
+        return (updated ^ old) | (mask & ~known(counts[strip], w) & known(newCount, w));
+    }
+
+    // The bits of word w that belong to the first count outlets
+    private static long known(int count, int w) {
+        int inWord = count - w * BITS_PER_WORD;
+        if (inWord <= 0) {
+            return 0;
+        }
+        return inWord >= BITS_PER_WORD ? -1L : (1L << inWord) - 1;
+    }
+
+    private void ensureStrip(int strip) {
+        if (strip < 0) {
+            throw new IllegalArgumentException("Strip " + strip + " out of range");
+        }
+        if (strip >= versions.length) {
+            int size = Math.max(strip + 1, versions.length * 2);
+            long[] v = new long[size];
+            int[] c = new int[size];
+            long[][] b = new long[size][];
+            System.arraycopy(versions, 0, v, 0, stripCount);
+            System.arraycopy(counts, 0, c, 0, stripCount);
+            System.arraycopy(words, 0, b, 0, stripCount);
+            for (int i = stripCount; i < size; i++) {
+                b[i] = NO_WORDS;
+            }
+            versions = v;
+            counts = c;
+            words = b;
+        }
+        if (strip >= stripCount) {
+            stripCount = strip + 1;
+        }
+    }
+
+    private void grow(int strip, int newCount) {
+        int n = Math.max(1, wordCount(newCount));
+        if (words[strip].length < n) {
+            long[] b = new long[n];
+            System.arraycopy(words[strip], 0, b, 0, words[strip].length);
+            words[strip] = b;
+        }
+    }
+
+    private static void clear(long[] a, int n) {
+        for (int i = 0; i < n && i < a.length; i++) {
+            a[i] = 0;
+        }
+    }
+}
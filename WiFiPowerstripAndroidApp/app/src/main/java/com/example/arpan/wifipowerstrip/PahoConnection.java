@@ -0,0 +1,128 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/* The broker connection over Paho's MQTT 3.1.1 client, for brokers that
+ * don't speak MQTT 5. The session is persistent (clean session off) and
+ * frames go out without their response topic, strip servers answer on the
+ * state topic instead.
+ */
+public final class PahoConnection implements BrokerConnection, MqttCallback {
+
+    private final MqttAsyncClient client;
+    private final MqttConnectOptions connOpts;
+    private final KeepaliveController keepalive;
+    private final int qos;
+    private final Listener listener;
+
+    public PahoConnection(String url, String clientId, MqttClientPersistence persistence,
+                          KeepaliveController keepalive, int qos, Listener listener) throws MqttException {
+        this.keepalive = keepalive;
+        this.qos = qos;
+        this.listener = listener;
+        client = new MqttAsyncClient(url, clientId, persistence);
+        client.setCallback(this);
+        connOpts = new MqttConnectOptions();
+        connOpts.setCleanSession(false);
+        connOpts.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
+    }
+
+    @Override
+    public int protocolVersion() {
+        return 4;
+    }
+
+    // Paho pings on its own at a fixed keepalive, so the interval the
+    // KeepaliveController learned over MQTT 5 is only applied per connection
+    @Override
+    public void connect() throws MqttException {
+        connOpts.setKeepAliveInterval(keepalive.intervalSeconds());
+        client.connect(connOpts, null, connectListener);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    @Override
+    public void subscribe(String[] filters, int subscribeQos) throws MqttException {
+        int[] qoss = new int[filters.length];
+        for (int i = 0; i < qoss.length; i++) {
+            qoss[i] = subscribeQos;
+        }
+        client.subscribe(filters, qoss, null, subscribeListener);
+    }
+
+    @Override
+    public void publish(Frame frame) throws MqttException {
+        client.publish(frame.topic, frame.toMessage(qos), frame, publishListener);
+    }
+
+    @Override
+    public void disconnect() {
+        try {
+            client.disconnect();
+        } catch (MqttException e) {
+            // Going away anyway
+        }
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        listener.onMessage(topic, message.getPayload(), 0);
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        listener.onConnectionLost(cause);
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    private final IMqttActionListener connectListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            listener.onConnected();
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable cause) {
+            listener.onConnectFailed(cause, false);
+        }
+    };
+
+    private final IMqttActionListener subscribeListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            listener.onSubscribed(true);
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable cause) {
+            listener.onSubscribed(false);
+        }
+    };
+
+    private final IMqttActionListener publishListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            listener.onPublished((Frame) token.getUserContext(), true);
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable cause) {
+            listener.onPublished((Frame) token.getUserContext(), false);
+        }
+    };
+}
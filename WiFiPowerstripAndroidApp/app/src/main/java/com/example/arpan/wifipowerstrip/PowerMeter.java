@@ -0,0 +1,234 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.util.Arrays;
+
+/* Per outlet power draw of the primary strip, from the readings the strip
+ * streams in TYPE_POWER frames several times a second.
+ *
+ * Every window (the last second, minute and hour) is a ring of buckets per
+ * outlet: 10 of 100 ms, 60 of 1 s and 60 of 1 min. A reading is folded into
+ * the current bucket of each window as min, max, sum, count and energy, in
+ * constant time, and a bucket is cleared when the ring comes back round to
+ * it. Reading a window combines the buckets that are still inside it, so a
+ * window covers its length give or take one bucket. Energy integrates the
+ * outlet's previous reading over the time since, capped at MAX_GAP_MILLIS
+ * so a strip that went quiet doesn't invent energy.
+ *
+ * The last RAW_CAPACITY readings per outlet are kept too, for charts.
+ * Everything lives in primitive arrays allocated up front, so recording
+ * neither boxes nor allocates. Outlets are 1 based; readings for outlets
+ * past the capacity are dropped.
+ */
+public final class PowerMeter {
+
+    public static final int WINDOW_SECOND = 0;
+    public static final int WINDOW_MINUTE = 1;
+    public static final int WINDOW_HOUR = 2;
+    static final int WINDOWS = 3;
+
+    // Bucket width and count of each window
+    private static final long[] BUCKET_NANOS = {
+            100L * 1000L * 1000L, 1000L * 1000L * 1000L, 60L * 1000L * 1000L * 1000L };
+    private static final int[] BUCKETS = { 10, 60, 60 };
+
+    // Fields of read()
+    public static final int MIN_MILLIWATTS = 0;
+    public static final int MAX_MILLIWATTS = 1;
+    public static final int MEAN_MILLIWATTS = 2;
+    public static final int ENERGY_MICROJOULES = 3;
+    public static final int READINGS = 4;
+    public static final int FIELDS = 5;
+
+    static final int RAW_CAPACITY = 128;
+    static final long MAX_GAP_MILLIS = 5000;
+
+    private final int outlets;
+    // First bucket of each window in the per outlet block of the bucket
+    // arrays, and the size of that block
+    private final int[] windowStart = new int[WINDOWS];
+    private final int bucketsPerOutlet;
+
+    // Buckets, by outlet block then window then slot. epoch is the bucket
+    // number since the clock's origin, -1 for never used.
+    private final long[] epochs;
+    private final int[] mins;
+    private final int[] maxes;
+    private final long[] sums;
+    private final int[] counts;
+    private final long[] energies;
+
+    // Last reading per outlet
+    private final boolean[] seen;
+    private final long[] lastNanos;
+    private final int[] lastMilliwatts;
+    private final int[] lastMilliamps;
+
+    // Raw readings, RAW_CAPACITY per outlet, oldest overwritten first
+    private final long[] rawNanos;
+    private final int[] rawMilliwatts;
+    private final int[] rawNext;
+    private final int[] rawSize;
+
+    // Outlets with readings since the last takeChanged(), bit n-1 for outlet n
+    private long changed;
+    private long readings;
+
+    public PowerMeter(int outlets) {
+        this.outlets = outlets;
+        int n = 0;
+        for (int w = 0; w < WINDOWS; w++) {
+            windowStart[w] = n;
+            n += BUCKETS[w];
+        }
+        bucketsPerOutlet = n;
+        epochs = new long[outlets * n];
+        Arrays.fill(epochs, -1);
+        mins = new int[outlets * n];
+        maxes = new int[outlets * n];
+        sums = new long[outlets * n];
+        counts = new int[outlets * n];
+        energies = new long[outlets * n];
+        seen = new boolean[outlets];
+        lastNanos = new long[outlets];
+        lastMilliwatts = new int[outlets];
+        lastMilliamps = new int[outlets];
+        rawNanos = new long[outlets * RAW_CAPACITY];
+        rawMilliwatts = new int[outlets * RAW_CAPACITY];
+        rawNext = new int[outlets];
+        rawSize = new int[outlets];
+    }
+
+    public int capacity() {
+        return outlets;
+    }
+
+    // Takes a reading made at nowNanos. Returns true if it's the first
+    // since the last takeChanged(), so the caller can schedule a push.
+    public synchronized boolean record(int outlet, int milliamps, int milliwatts, long nowNanos) {
+        int o = outlet - 1;
+        if (o < 0 || o >= outlets) {
+            return false;
+        }
+        long energy = 0;
+        if (seen[o]) {
+            long millis = Math.min((nowNanos - lastNanos[o]) / 1000000L, MAX_GAP_MILLIS);
+            energy = Math.max(0, millis) * lastMilliwatts[o];
+        }
+        seen[o] = true;
+        lastNanos[o] = nowNanos;
+        lastMilliwatts[o] = milliwatts;
+        lastMilliamps[o] = milliamps;
+
+        int block = o * bucketsPerOutlet;
+        for (int w = 0; w < WINDOWS; w++) {
+            long epoch = nowNanos / BUCKET_NANOS[w];
+            int b = block + windowStart[w] + (int) (epoch % BUCKETS[w]);
+            if (epochs[b] != epoch) {
+                epochs[b] = epoch;
+                mins[b] = milliwatts;
+                maxes[b] = milliwatts;
+                sums[b] = 0;
+                counts[b] = 0;
+                energies[b] = 0;
+            }
+            mins[b] = Math.min(mins[b], milliwatts);
+            maxes[b] = Math.max(maxes[b], milliwatts);
+            sums[b] += milliwatts;
+            counts[b]++;
+            energies[b] += energy;
+        }
+
+        int r = o * RAW_CAPACITY + rawNext[o];
+        rawNanos[r] = nowNanos;
+        rawMilliwatts[r] = milliwatts;
+        rawNext[o] = (rawNext[o] + 1) % RAW_CAPACITY;
+        rawSize[o] = Math.min(rawSize[o] + 1, RAW_CAPACITY);
+
+        readings++;
+        boolean first = changed == 0;
+        changed |= 1L << (o & 63);
+        return first;
+    }
+
+    // Fills out[0..FIELDS) with the outlet's aggregates over a window ending
+    // at nowNanos, all 0 if it had no readings in it
+    public synchronized void read(int outlet, int window, long nowNanos, long[] out) {
+        for (int i = 0; i < FIELDS; i++) {
+            out[i] = 0;
+        }
+        int o = outlet - 1;
+        if (o < 0 || o >= outlets) {
+            return;
+        }
+        long current = nowNanos / BUCKET_NANOS[window];
+        long oldest = current - BUCKETS[window] + 1;
+        int start = o * bucketsPerOutlet + windowStart[window];
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        long sum = 0;
+        long count = 0;
+        long energy = 0;
+        for (int b = start; b < start + BUCKETS[window]; b++) {
+            if (epochs[b] < oldest || epochs[b] > current || counts[b] == 0) {
+                continue;
+            }
+            min = Math.min(min, mins[b]);
+            max = Math.max(max, maxes[b]);
+            sum += sums[b];
+            count += counts[b];
+            energy += energies[b];
+        }
+        if (count == 0) {
+            return;
+        }
+        out[MIN_MILLIWATTS] = min;
+        out[MAX_MILLIWATTS] = max;
+        out[MEAN_MILLIWATTS] = sum / count;
+        out[ENERGY_MICROJOULES] = energy;
+        out[READINGS] = count;
+    }
+
+    // Copies the outlet's recent readings, oldest first, and returns how
+    // many were copied
+    public synchronized int recent(int outlet, long[] nanos, int[] milliwatts) {
+        int o = outlet - 1;
+        if (o < 0 || o >= outlets) {
+            return 0;
+        }
+        int n = Math.min(rawSize[o], Math.min(nanos.length, milliwatts.length));
+        int first = (rawNext[o] - n + RAW_CAPACITY) % RAW_CAPACITY;
+        for (int i = 0; i < n; i++) {
+            int r = o * RAW_CAPACITY + (first + i) % RAW_CAPACITY;
+            nanos[i] = rawNanos[r];
+            milliwatts[i] = rawMilliwatts[r];
+        }
+        return n;
+    }
+
+    // Outlets with readings since the last call, bit n-1 for outlet n
+    // (outlets past 64 share bits)
+    public synchronized long takeChanged() {
+        long c = changed;
+        changed = 0;
+        return c;
+    }
+
+    public synchronized boolean hasReading(int outlet) {
+        int o = outlet - 1;
+        return o >= 0 && o < outlets && seen[o];
+    }
+
+    public synchronized int lastMilliwatts(int outlet) {
+        int o = outlet - 1;
+        return o < 0 || o >= outlets ? 0 : lastMilliwatts[o];
+    }
+
+    public synchronized int lastMilliamps(int outlet) {
+        int o = outlet - 1;
+        return o < 0 || o >= outlets ? 0 : lastMilliamps[o];
+    }
+
+    public synchronized long readingCount() {
+        return readings;
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/* Moves outbound messages off the calling thread.
+ *
+ * Callers take a Frame from a fixed pool, encode into it and submit it. A
+ * dedicated I/O thread drains the bounded queue and hands each frame to the
+ * Transport, which publishes asynchronously and calls complete() when the
+ * client is done with it. Nothing in submit blocks, so the UI thread never
+ * waits on the network; when the pool or queue is exhausted the message is
+ * dropped and counted instead.
+ */
+public final class PublishPipeline implements Runnable {
+
+    // The network side of the pipeline, implemented by MqttService
+    public interface Transport {
+        boolean isConnected();
+
+        // Starts publishing the frame. Must eventually call complete(frame, ok)
+        // unless an exception is thrown.
+        void publish(Frame frame) throws Exception;
+    }
+
+    // Optional per frame completion callback, see Frame.listener
+    public interface Listener {
+        void onComplete(Frame frame, boolean ok);
+    }
+
+    // Timed work run on the I/O thread between publishes, such as flushing
+    // coalesced commands
+    public interface Ticker {
+        // Does any work due at nowNanos and returns the nanoseconds until it
+        // next needs to run, or Long.MAX_VALUE if nothing is scheduled
+        long tick(long nowNanos);
+    }
+
+    // How long the I/O thread sleeps when idle if nobody wakes it up
+    private static final long IDLE_PARK_NANOS = 1000L * 1000L * 1000L;
+
+    private final Transport transport;
+    private final BoundedQueue<Frame> free;
+    private final BoundedQueue<Frame> outbound;
+
+    private volatile Ticker[] tickers = new Ticker[0];
+
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    // Counters, see the getters below
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final TraceLog trace = TraceLog.process();
+    private final AtomicLong publishNanos = new AtomicLong();
+    private final AtomicLong startedNanos = new AtomicLong();
+
+    public PublishPipeline(Transport transport, int capacity) {
+        this.transport = transport;
+        free = new BoundedQueue<Frame>(capacity);
+        outbound = new BoundedQueue<Frame>(capacity);
+        for (int i = 0; i < free.capacity(); i++) {
+            free.offer(new Frame());
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        startedNanos.set(System.nanoTime());
+        Thread t = new Thread(this, "mqtt-io");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+            thread = null;
+        }
+    }
+
+    public synchronized void addTicker(Ticker ticker) {
+        Ticker[] updated = new Ticker[tickers.length + 1];
+        System.arraycopy(tickers, 0, updated, 0, tickers.length);
+        updated[tickers.length] = ticker;
+        tickers = updated;
+    }
+
+    // Takes a free frame to encode into, or null if every frame is in use
+    public Frame acquire() {
+        Frame frame = free.poll();
+        if (frame == null) {
+            dropped.incrementAndGet();
+        }
+        return frame;
+    }
+
+    // Queues a frame taken from acquire() for publishing
+    public void submit(Frame frame) {
+        frame.submittedNanos = System.nanoTime();
+        if (!outbound.offer(frame)) {
+            // Can't happen while the pool and queue have the same capacity,
+            // but never lose the frame itself
+            complete(frame, false);
+            return;
+        }
+        submitted.incrementAndGet();
+        wake();
+    }
+
+    // Called by the Transport once the client no longer needs the frame
+    public void complete(Frame frame, boolean ok) {
+        if (ok) {
+            published.incrementAndGet();
+            publishNanos.addAndGet(System.nanoTime() - frame.submittedNanos);
+        } else {
+            failed.incrementAndGet();
+        }
+        Listener listener = frame.listener;
+        if (listener != null) {
+            frame.listener = null;
+            listener.onComplete(frame, ok);
+        }
+        frame.responseTopic = null;
+        frame.correlation = 0;
+        free.offer(frame);
+    }
+
+    // Wakes the I/O thread, e.g. when the connection comes back
+    public void wake() {
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long wait = runTickers();
+            Frame frame = transport.isConnected() ? outbound.poll() : null;
+            if (frame == null) {
+                LockSupport.parkNanos(this, Math.min(wait, IDLE_PARK_NANOS));
+                continue;
+            }
+            try {
+                transport.publish(frame);
+            } catch (Exception e) {
+                trace.log(TraceLog.PUBLISH_EXCEPTION, e);
+                complete(frame, false);
+            }
+        }
+    }
+
+    // Runs every ticker and returns how long until the next one is due
+    private long runTickers() {
+        long wait = Long.MAX_VALUE;
+        Ticker[] current = tickers;
+        for (int i = 0; i < current.length; i++) {
+            wait = Math.min(wait, current[i].tick(System.nanoTime()));
+        }
+        return wait;
+    }
+
+    public int queueDepth() {
+        return outbound.size();
+    }
+
+    public long submittedCount() {
+        return submitted.get();
+    }
+
+    public long publishedCount() {
+        return published.get();
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    public long failedCount() {
+        return failed.get();
+    }
+
+    // Mean time from submit to publish completion
+    public long meanPublishMicros() {
+        long count = published.get();
+        return count == 0 ? 0 : publishNanos.get() / count / 1000L;
+    }
+
+    // Publishes per second since the pipeline started
+    public double throughput() {
+        long elapsed = System.nanoTime() - startedNanos.get();
+        return elapsed <= 0 ? 0 : published.get() * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.util.Random;
+
+/* Decides when MqttService tries to reconnect to the broker.
+ *
+ * Failed attempts back off exponentially from BASE up to a cap, with jitter
+ * so several phones don't retry in lockstep against a flapping broker. A
+ * connection only counts as a success once it has stayed up for STABLE_BASES
+ * base delays; one that drops sooner counts as another failure, so a broker
+ * that accepts us and then drops us is backed off from too. While
+ * the device has no network nothing is scheduled at all; when a network comes
+ * back the backoff is reset and we try right away. Attempts run on the
+ * PublishPipeline I/O thread through the Ticker hook.
+ */
+public final class ReconnectManager implements PublishPipeline.Ticker {
+
+    // Starts a connection attempt. Returns false if none was started, e.g.
+    // because the client is already connected or connecting.
+    public interface Connector {
+        boolean connect();
+    }
+
+    private static final long NANOS_PER_MILLI = 1000L * 1000L;
+    // Base delays a connection has to stay up for the backoff to be forgotten
+    static final int STABLE_BASES = 8;
+
+    private final Connector connector;
+    private final long baseNanos;
+    private final long maxNanos;
+    private final Random random;
+    private volatile PublishPipeline pipeline;
+
+    // Scheduling state
+    private boolean online = true;
+    private int failures;
+    private long dueNanos = Long.MAX_VALUE;
+    private long attemptStartedNanos;
+    private boolean connected;
+    private long connectedNanos;
+
+    // Stats
+    private long attempts;
+    private long successes;
+    private long lastConnectMillis;
+    private long totalConnectNanos;
+    private long lastDelayMillis;
+
+    public ReconnectManager(Connector connector, long baseMillis, long maxMillis, Random random) {
+        this.connector = connector;
+        this.baseNanos = baseMillis * NANOS_PER_MILLI;
+        this.maxNanos = maxMillis * NANOS_PER_MILLI;
+        this.random = random;
+    }
+
+    // Registers with the pipeline so attempts happen on its I/O thread
+    public void attach(PublishPipeline pipeline) {
+        this.pipeline = pipeline;
+        pipeline.addTicker(this);
+    }
+
+    // Connect as soon as possible, e.g. when the service starts
+    public void connectNow() {
+        schedule(0);
+    }
+
+    // The connection dropped, try again after a short backoff if it had been
+    // up for long enough, otherwise back off further
+    public void onConnectionLost() {
+        onConnectionLost(System.nanoTime());
+    }
+
+    void onConnectionLost(long nowNanos) {
+        synchronized (this) {
+            if (connected && nowNanos - connectedNanos >= STABLE_BASES * baseNanos) {
+                failures = 0;
+            } else {
+                failures++;
+            }
+            connected = false;
+        }
+        schedule(nextDelayNanos());
+    }
+
+    // An attempt failed, back off further
+    public void onAttemptFailed() {
+        synchronized (this) {
+            attemptStartedNanos = 0;
+            failures++;
+        }
+        schedule(nextDelayNanos());
+    }
+
+    // Failures are kept until the connection has proven stable, see
+    // onConnectionLost
+    public void onConnected() {
+        onConnected(System.nanoTime());
+    }
+
+    synchronized void onConnected(long nowNanos) {
+        if (attemptStartedNanos != 0) {
+            long elapsed = nowNanos - attemptStartedNanos;
+            totalConnectNanos += elapsed;
+            lastConnectMillis = elapsed / NANOS_PER_MILLI;
+        }
+        attemptStartedNanos = 0;
+        successes++;
+        connected = true;
+        connectedNanos = nowNanos;
+        dueNanos = Long.MAX_VALUE;
+    }
+
+    // A network came back, forget the backoff and try right away
+    public void onNetworkAvailable() {
+        synchronized (this) {
+            online = true;
+            failures = 0;
+        }
+        schedule(0);
+    }
+
+    // No network, stop retrying until one comes back
+    public synchronized void onNetworkLost() {
+        online = false;
+        connected = false;
+        dueNanos = Long.MAX_VALUE;
+    }
+
+    @Override
+    public long tick(long nowNanos) {
+        synchronized (this) {
+            if (dueNanos == Long.MAX_VALUE) {
+                return Long.MAX_VALUE;
+            }
+            long remaining = dueNanos - nowNanos;
+            if (remaining > 0) {
+                return remaining;
+            }
+            dueNanos = Long.MAX_VALUE;
+            attempts++;
+            attemptStartedNanos = System.nanoTime();
+        }
+        if (!connector.connect()) {
+            synchronized (this) {
+                attempts--;
+                attemptStartedNanos = 0;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private void schedule(long delayNanos) {
+        synchronized (this) {
+            if (!online) {
+                return;
+            }
+            long due = System.nanoTime() + delayNanos;
+            // Never push an earlier attempt back
+            if (due >= dueNanos) {
+                return;
+            }
+            dueNanos = due;
+            lastDelayMillis = delayNanos / NANOS_PER_MILLI;
+        }
+        PublishPipeline p = pipeline;
+        if (p != null) {
+            p.wake();
+        }
+    }
+
+    // Capped exponential backoff with "equal jitter": half of the delay is
+    // fixed and the other half random
+    private synchronized long nextDelayNanos() {
+        long ceiling = baseNanos << Math.min(failures, 20);
+        if (ceiling <= 0 || ceiling > maxNanos) {
+            ceiling = maxNanos;
+        }
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * half);
+    }
+
+    public synchronized long attemptCount() {
+        return attempts;
+    }
+
+    public synchronized long successCount() {
+        return successes;
+    }
+
+    // Fraction of attempts that connected
+    public synchronized double successRate() {
+        return attempts == 0 ? 0 : (double) successes / attempts;
+    }
+
+    public synchronized long lastConnectMillis() {
+        return lastConnectMillis;
+    }
+
+    public synchronized long meanConnectMillis() {
+        return successes == 0 ? 0 : totalConnectNanos / successes / NANOS_PER_MILLI;
+    }
+
+    // Delay chosen for the most recently scheduled attempt
+    public synchronized long lastDelayMillis() {
+        return lastDelayMillis;
+    }
+
+    // Failed attempts and quick drops since the last stable connection
+    public synchronized int consecutiveFailures() {
+        return failures;
+    }
+}
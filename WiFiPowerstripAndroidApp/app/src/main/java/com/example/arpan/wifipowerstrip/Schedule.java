@@ -0,0 +1,78 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.util.Calendar;
+
+/* Switches an outlet of the primary strip on or off at a time of day, on
+ * some days of the week. An on/off window is two schedules.
+ */
+public final class Schedule {
+
+    // Day bits, bit n is Calendar.DAY_OF_WEEK n + 1 (Sunday is bit 0)
+    public static final int EVERY_DAY = 0x7F;
+    public static final int WEEKDAYS = 0x3E;
+    public static final int WEEKENDS = 0x41;
+
+    public final int outlet;
+    public final boolean on;
+    public final int days;
+    public final int secondOfDay;
+
+    public Schedule(int outlet, boolean on, int days, int secondOfDay) {
+        if (outlet < 1 || outlet > CommandCoalescer.MAX_OUTLETS) {
+            throw new IllegalArgumentException("Outlet " + outlet + " out of range");
+        }
+        if ((days & ~EVERY_DAY) != 0 || days == 0) {
+            throw new IllegalArgumentException("Bad days " + days);
+        }
+        if (secondOfDay < 0 || secondOfDay >= 24 * 60 * 60) {
+            throw new IllegalArgumentException("Bad time " + secondOfDay);
+        }
+        this.outlet = outlet;
+        this.on = on;
+        this.days = days;
+        this.secondOfDay = secondOfDay;
+    }
+
+    public static Schedule daily(int outlet, boolean on, int hour, int minute) {
+        return new Schedule(outlet, on, EVERY_DAY, hour * 3600 + minute * 60);
+    }
+
+    // First time strictly after afterMillis this schedule is due, in the time
+    // zone of cal. Days where the time doesn't exist (a DST gap) use the
+    // time Calendar resolves it to.
+    public long nextAfter(long afterMillis, Calendar cal) {
+        cal.setTimeInMillis(afterMillis);
+        // Eight days so today's time having passed still finds next week's
+        for (int d = 0; d <= 7; d++) {
+            if (d > 0) {
+                cal.add(Calendar.DAY_OF_MONTH, 1);
+            }
+            if ((days & (1 << (cal.get(Calendar.DAY_OF_WEEK) - 1))) == 0) {
+                continue;
+            }
+            cal.set(Calendar.HOUR_OF_DAY, secondOfDay / 3600);
+            cal.set(Calendar.MINUTE, secondOfDay / 60 % 60);
+            cal.set(Calendar.SECOND, secondOfDay % 60);
+            cal.set(Calendar.MILLISECOND, 0);
+            long at = cal.getTimeInMillis();
+            if (at > afterMillis) {
+                return at;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Schedule)) {
+            return false;
+        }
+        Schedule s = (Schedule) o;
+        return outlet == s.outlet && on == s.on && days == s.days && secondOfDay == s.secondOfDay;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((outlet * 31 + (on ? 1 : 0)) * 31 + days) * 31 + secondOfDay;
+    }
+}
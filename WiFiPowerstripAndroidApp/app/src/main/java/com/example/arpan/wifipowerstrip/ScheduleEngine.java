@@ -0,0 +1,235 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/* Runs any number of outlet schedules off a single exact alarm.
+ *
+ * Every schedule's next due time is kept in a min-heap, so the alarm is
+ * always armed for the earliest one and nothing wakes the device in between.
+ * When the alarm goes off the due schedules fire, are pushed to their next
+ * occurrence and the alarm is re-armed for the new earliest deadline.
+ * Schedules are kept by an id the caller picks.
+ */
+public final class ScheduleEngine {
+
+    // The Android side: switching outlets and (re)arming the one alarm
+    public interface Callbacks {
+        void fire(int outlet, boolean on);
+        void scheduleAlarm(long atMillis);
+        void cancelAlarm();
+    }
+
+    // Alarms may be delivered a little early, anything due within this is
+    // fired instead of re-arming for a few milliseconds
+    static final long EARLY_MILLIS = 500;
+
+    private final Callbacks callbacks;
+    private Calendar calendar;
+
+    // Schedules by slot, slots 0 to size-1 are in use
+    private int[] ids = new int[8];
+    private Schedule[] schedules = new Schedule[8];
+    private long[] deadlines = new long[8];
+    // Min-heap of slots ordered by deadline, and each slot's heap position
+    private int[] heap = new int[8];
+    private int[] positions = new int[8];
+    private int size;
+
+    private long armedAt = Long.MAX_VALUE;
+    private long fired;
+
+    public ScheduleEngine(Callbacks callbacks, TimeZone zone) {
+        this.callbacks = callbacks;
+        this.calendar = Calendar.getInstance(zone);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Ids of every schedule, in no particular order
+    public synchronized int[] ids() {
+        int[] out = new int[size];
+        System.arraycopy(ids, 0, out, 0, size);
+        return out;
+    }
+
+    public synchronized Schedule get(int id) {
+        int slot = slotOf(id);
+        return slot < 0 ? null : schedules[slot];
+    }
+
+    // Adds a schedule or replaces the one with the same id
+    public synchronized void put(int id, Schedule schedule, long nowMillis) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            ensureCapacity(size + 1);
+            slot = size++;
+            ids[slot] = id;
+            heap[slot] = slot;
+            positions[slot] = slot;
+        }
+        schedules[slot] = schedule;
+        deadlines[slot] = schedule.nextAfter(nowMillis, calendar);
+        fix(positions[slot]);
+        arm();
+    }
+
+    public synchronized boolean remove(int id) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            return false;
+        }
+        int last = --size;
+        // Take the slot out of the heap, then move the last slot into it
+        int pos = positions[slot];
+        swap(pos, size);
+        if (pos < size) {
+            fix(pos);
+        }
+        if (slot != last) {
+            ids[slot] = ids[last];
+            schedules[slot] = schedules[last];
+            deadlines[slot] = deadlines[last];
+            positions[slot] = positions[last];
+            heap[positions[slot]] = slot;
+        }
+        schedules[last] = null;
+        arm();
+        return true;
+    }
+
+    // Earliest deadline, Long.MAX_VALUE if there are no schedules
+    public synchronized long nextDeadline() {
+        return size == 0 ? Long.MAX_VALUE : deadlines[heap[0]];
+    }
+
+    // Fires every schedule due by nowMillis, oldest first so the latest
+    // command for an outlet wins, and re-arms the alarm. Returns how many
+    // fired.
+    public synchronized int onAlarm(long nowMillis) {
+        armedAt = Long.MAX_VALUE;
+        int count = 0;
+        while (size > 0 && deadlines[heap[0]] <= nowMillis + EARLY_MILLIS) {
+            int slot = heap[0];
+            Schedule schedule = schedules[slot];
+            callbacks.fire(schedule.outlet, schedule.on);
+            // From the deadline, not now, so an early alarm can't fire it twice
+            deadlines[slot] = schedule.nextAfter(Math.max(nowMillis, deadlines[slot]), calendar);
+            fix(0);
+            count++;
+        }
+        fired += count;
+        arm();
+        return count;
+    }
+
+    // Recomputes every deadline after the clock or time zone changed
+    public synchronized void reschedule(long nowMillis, TimeZone zone) {
+        calendar = Calendar.getInstance(zone);
+        for (int slot = 0; slot < size; slot++) {
+            deadlines[slot] = schedules[slot].nextAfter(nowMillis, calendar);
+        }
+        for (int pos = size / 2 - 1; pos >= 0; pos--) {
+            down(pos);
+        }
+        armedAt = Long.MAX_VALUE;
+        arm();
+    }
+
+    // Total schedules fired
+    public synchronized long firedCount() {
+        return fired;
+    }
+
+    private void arm() {
+        long next = size == 0 ? Long.MAX_VALUE : deadlines[heap[0]];
+        if (next == armedAt) {
+            return;
+        }
+        armedAt = next;
+        if (next == Long.MAX_VALUE) {
+            callbacks.cancelAlarm();
+        } else {
+            callbacks.scheduleAlarm(next);
+        }
+    }
+
+    private int slotOf(int id) {
+        for (int slot = 0; slot < size; slot++) {
+            if (ids[slot] == id) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= ids.length) {
+            return;
+        }
+        int capacity = ids.length * 2;
+        int[] newIds = new int[capacity];
+        Schedule[] newSchedules = new Schedule[capacity];
+        long[] newDeadlines = new long[capacity];
+        int[] newHeap = new int[capacity];
+        int[] newPositions = new int[capacity];
+        System.arraycopy(ids, 0, newIds, 0, size);
+        System.arraycopy(schedules, 0, newSchedules, 0, size);
+        System.arraycopy(deadlines, 0, newDeadlines, 0, size);
+        System.arraycopy(heap, 0, newHeap, 0, size);
+        System.arraycopy(positions, 0, newPositions, 0, size);
+        ids = newIds;
+        schedules = newSchedules;
+        deadlines = newDeadlines;
+        heap = newHeap;
+        positions = newPositions;
+    }
+
+    // Restores the heap order around a position whose deadline changed
+    private void fix(int pos) {
+        if (pos > 0 && deadlines[heap[pos]] < deadlines[heap[(pos - 1) / 2]]) {
+            up(pos);
+        } else {
+            down(pos);
+        }
+    }
+
+    private void up(int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (deadlines[heap[pos]] >= deadlines[heap[parent]]) {
+                return;
+            }
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void down(int pos) {
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && deadlines[heap[child + 1]] < deadlines[heap[child]]) {
+                child++;
+            }
+            if (deadlines[heap[pos]] <= deadlines[heap[child]]) {
+                return;
+            }
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int slotA = heap[a];
+        int slotB = heap[b];
+        heap[a] = slotB;
+        heap[b] = slotA;
+        positions[slotB] = a;
+        positions[slotA] = b;
+    }
+}
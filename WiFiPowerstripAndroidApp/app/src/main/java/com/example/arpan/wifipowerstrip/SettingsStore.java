@@ -0,0 +1,611 @@
+package com.example.arpan.wifipowerstrip;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/* The app's settings and the last outlet states the server confirmed, shared
+ * by the activity and the service.
+ *
+ * Reads come from an in-memory snapshot and setters only update it, so the UI
+ * thread never touches the disk. Changes are written behind on a background
+ * thread WRITE_DELAY_MILLIS after the first one, so a burst of changes costs
+ * a single write and fsync. The file is small, checksummed and replaced
+ * atomically through a temp file and a rename, so a crash mid-write leaves
+ * the previous version intact. It is read once per process, off the UI
+ * thread through load().
+ */
+public final class SettingsStore {
+
+    // Timer times that were never picked
+    public static final int UNSET = -1;
+
+    static final long WRITE_DELAY_MILLIS = 500;
+
+    private static final int MAGIC = 0x57505331; // "WPS1"
+    // Version 2 added the schedules, version 3 the version and time of the
+    // outlet snapshot, version 4 the keepalive intervals per network, version
+    // 5 the client id
+    private static final int FORMAT_VERSION = 5;
+    // The snapshot's time alone is only saved this often
+    static final long SNAPSHOT_SAVE_MILLIS = 60 * 1000;
+    private static final String FILE_NAME = "settings.bin";
+    private static final String DEFAULT_STRIP_ID = "1";
+    // Networks whose keepalive is remembered, the least recently updated
+    // one is forgotten first
+    static final int MAX_NETWORKS = 16;
+
+    private static SettingsStore instance;
+
+    // Told once the store is loaded, see load()
+    public interface Listener {
+        void onLoaded(SettingsStore store);
+    }
+
+    private static ExecutorService loader;
+
+    private final File file;
+    private final File tmp;
+    private final long writeDelayMillis;
+    private final TraceLog trace = TraceLog.process();
+    private final ScheduledExecutorService writer;
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writeNow();
+        }
+    };
+
+    // Snapshot, guarded by this
+    private int batteryPos;
+    private int hourOn = UNSET;
+    private int minuteOn = UNSET;
+    private int hourOff = UNSET;
+    private int minuteOff = UNSET;
+    private String stripId = DEFAULT_STRIP_ID;
+    private int outletCount;
+    private long[] outletBits = new long[0];
+    private long snapshotVersion;
+    private long snapshotMillis;
+    private long savedSnapshotMillis;
+    private int[] scheduleIds = new int[0];
+    private Schedule[] schedules = new Schedule[0];
+    private String[] networks = new String[0];
+    private int[] keepaliveGood = new int[0];
+    private int[] keepaliveBad = new int[0];
+    // Generated on first use, "" until then
+    private String clientId = "";
+
+    private boolean dirty;
+    private boolean writeScheduled;
+    private long writes;
+
+    // Loads the process wide store on a background thread, unless it already
+    // is, and hands it to the listener on the given executor, e.g. the main
+    // thread's
+    public static void load(Context context, final Executor executor, final Listener listener) {
+        final Context app = context.getApplicationContext();
+        synchronized (SettingsStore.class) {
+            if (loader == null) {
+                loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "settings-loader");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SettingsStore store = get(app);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onLoaded(store);
+                    }
+                });
+            }
+        });
+    }
+
+    // The process wide store, loaded on first use. Settings kept in the old
+    // SharedPreferences are carried over the first time. The first call
+    // reads the disk, so it must not be made on the UI thread; the UI uses
+    // load().
+    public static synchronized SettingsStore get(Context context) {
+        if (instance == null) {
+            File file = new File(context.getFilesDir(), FILE_NAME);
+            boolean existed = file.exists();
+            instance = new SettingsStore(file, WRITE_DELAY_MILLIS);
+            if (!existed) {
+                instance.migrate(context.getApplicationContext().getSharedPreferences("preferences", 0));
+            }
+        }
+        return instance;
+    }
+
+    SettingsStore(File file, long writeDelayMillis) {
+        this.file = file;
+        this.tmp = new File(file.getPath() + ".tmp");
+        this.writeDelayMillis = writeDelayMillis;
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "settings-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        load();
+    }
+
+    // Position in R.array.battery_percentages of the battery cutoff
+    public synchronized int batteryPos() {
+        return batteryPos;
+    }
+
+    public synchronized void setBatteryPos(int pos) {
+        if (batteryPos != pos) {
+            batteryPos = pos;
+            changed();
+        }
+    }
+
+    public synchronized int hourOn() {
+        return hourOn;
+    }
+
+    public synchronized int minuteOn() {
+        return minuteOn;
+    }
+
+    public synchronized void setTimerOn(int hour, int minute) {
+        if (hourOn != hour || minuteOn != minute) {
+            hourOn = hour;
+            minuteOn = minute;
+            changed();
+        }
+    }
+
+    public synchronized int hourOff() {
+        return hourOff;
+    }
+
+    public synchronized int minuteOff() {
+        return minuteOff;
+    }
+
+    public synchronized void setTimerOff(int hour, int minute) {
+        if (hourOff != hour || minuteOff != minute) {
+            hourOff = hour;
+            minuteOff = minute;
+            changed();
+        }
+    }
+
+    // Id of the strip the app controls, see DeviceIndex
+    public synchronized String stripId() {
+        return stripId;
+    }
+
+    public synchronized void setStripId(String id) {
+        if (!stripId.equals(id)) {
+            stripId = id;
+            changed();
+        }
+    }
+
+    // Number of outlets in the snapshot
+    public synchronized int outletCount() {
+        return outletCount;
+    }
+
+    // Server version of the snapshot, 0 if unknown
+    public synchronized long snapshotVersion() {
+        return snapshotVersion;
+    }
+
+    // When the server last confirmed the snapshot, in System.currentTimeMillis
+    // time, 0 if it never has
+    public synchronized long snapshotMillis() {
+        return snapshotMillis;
+    }
+
+    // Copies the snapshot's states, laid out like the OutletStore words, into
+    // out and returns the number of words copied
+    public synchronized int copyOutlets(long[] out) {
+        int n = Math.min(out.length, OutletStore.wordCount(outletCount));
+        System.arraycopy(outletBits, 0, out, 0, n);
+        return n;
+    }
+
+    // Confirmed state of outlet n (1 based)
+    public synchronized boolean isOutletOn(int outlet) {
+        int i = outlet - 1;
+        if (i < 0 || i >= outletCount) {
+            return false;
+        }
+        return ((outletBits[i >>> 6] >>> (i & 63)) & 1L) != 0;
+    }
+
+    // Replaces the snapshot with outlet states the server confirmed at
+    // atMillis, laid out like the OutletStore words. A snapshot that only got
+    // fresher is saved at most every SNAPSHOT_SAVE_MILLIS.
+    public synchronized void setSnapshot(int count, long[] bits, long version, long atMillis) {
+        int words = OutletStore.wordCount(count);
+        boolean same = count == outletCount && version == snapshotVersion;
+        for (int w = 0; same && w < words; w++) {
+            same = outletBits[w] == bits[w];
+        }
+        snapshotMillis = atMillis;
+        if (same) {
+            if (atMillis - savedSnapshotMillis >= SNAPSHOT_SAVE_MILLIS) {
+                savedSnapshotMillis = atMillis;
+                changed();
+            }
+            return;
+        }
+        if (outletBits.length != words) {
+            outletBits = new long[words];
+        }
+        System.arraycopy(bits, 0, outletBits, 0, words);
+        outletCount = count;
+        snapshotVersion = version;
+        savedSnapshotMillis = atMillis;
+        changed();
+    }
+
+    // Ids of the saved outlet schedules, see ScheduleEngine
+    public synchronized int[] scheduleIds() {
+        return scheduleIds.clone();
+    }
+
+    public synchronized Schedule schedule(int id) {
+        int i = scheduleIndex(id);
+        return i < 0 ? null : schedules[i];
+    }
+
+    public synchronized void putSchedule(int id, Schedule schedule) {
+        int i = scheduleIndex(id);
+        if (i >= 0) {
+            if (schedules[i].equals(schedule)) {
+                return;
+            }
+        } else {
+            i = scheduleIds.length;
+            int[] newIds = new int[i + 1];
+            Schedule[] newSchedules = new Schedule[i + 1];
+            System.arraycopy(scheduleIds, 0, newIds, 0, i);
+            System.arraycopy(schedules, 0, newSchedules, 0, i);
+            newIds[i] = id;
+            scheduleIds = newIds;
+            schedules = newSchedules;
+        }
+        schedules[i] = schedule;
+        changed();
+    }
+
+    public synchronized void removeSchedule(int id) {
+        int i = scheduleIndex(id);
+        if (i < 0) {
+            return;
+        }
+        int n = scheduleIds.length - 1;
+        int[] newIds = new int[n];
+        Schedule[] newSchedules = new Schedule[n];
+        System.arraycopy(scheduleIds, 0, newIds, 0, i);
+        System.arraycopy(schedules, 0, newSchedules, 0, i);
+        System.arraycopy(scheduleIds, i + 1, newIds, i, n - i);
+        System.arraycopy(schedules, i + 1, newSchedules, i, n - i);
+        scheduleIds = newIds;
+        schedules = newSchedules;
+        changed();
+    }
+
+    // MQTT client id of this install, made up the first time it's asked for
+    // and kept from then on. Short enough for MQTT 3.1 brokers (23 chars).
+    public synchronized String clientId() {
+        if (clientId.isEmpty()) {
+            clientId = "wp-" + Long.toHexString(new SecureRandom().nextLong());
+            changed();
+        }
+        return clientId;
+    }
+
+    // Longest ping interval known to work on a network and shortest known
+    // not to, in seconds, 0 if unknown. See KeepaliveController.
+    public synchronized int keepaliveGood(String network) {
+        int i = networkIndex(network);
+        return i < 0 ? 0 : keepaliveGood[i];
+    }
+
+    public synchronized int keepaliveBad(String network) {
+        int i = networkIndex(network);
+        return i < 0 ? 0 : keepaliveBad[i];
+    }
+
+    public synchronized void setKeepalive(String network, int goodSeconds, int badSeconds) {
+        int i = networkIndex(network);
+        if (i >= 0 && keepaliveGood[i] == goodSeconds && keepaliveBad[i] == badSeconds) {
+            return;
+        }
+        int n = networks.length;
+        String[] newNetworks;
+        int[] newGood;
+        int[] newBad;
+        if (i >= 0 || n == MAX_NETWORKS) {
+            // Drops the network's old entry, or the oldest one
+            int drop = i >= 0 ? i : 0;
+            newNetworks = new String[n];
+            newGood = new int[n];
+            newBad = new int[n];
+            System.arraycopy(networks, 0, newNetworks, 0, drop);
+            System.arraycopy(keepaliveGood, 0, newGood, 0, drop);
+            System.arraycopy(keepaliveBad, 0, newBad, 0, drop);
+            System.arraycopy(networks, drop + 1, newNetworks, drop, n - drop - 1);
+            System.arraycopy(keepaliveGood, drop + 1, newGood, drop, n - drop - 1);
+            System.arraycopy(keepaliveBad, drop + 1, newBad, drop, n - drop - 1);
+        } else {
+            newNetworks = new String[n + 1];
+            newGood = new int[n + 1];
+            newBad = new int[n + 1];
+            System.arraycopy(networks, 0, newNetworks, 0, n);
+            System.arraycopy(keepaliveGood, 0, newGood, 0, n);
+            System.arraycopy(keepaliveBad, 0, newBad, 0, n);
+        }
+        int last = newNetworks.length - 1;
+        newNetworks[last] = network;
+        newGood[last] = goodSeconds;
+        newBad[last] = badSeconds;
+        networks = newNetworks;
+        keepaliveGood = newGood;
+        keepaliveBad = newBad;
+        changed();
+    }
+
+    private int networkIndex(String network) {
+        for (int i = 0; i < networks.length; i++) {
+            if (networks[i].equals(network)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int scheduleIndex(int id) {
+        for (int i = 0; i < scheduleIds.length; i++) {
+            if (scheduleIds[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Writes pending changes now, on the calling thread. Not for the UI thread.
+    public void flush() {
+        writeNow();
+    }
+
+    // Number of times the file was written, for checking the batching
+    public synchronized long writeCount() {
+        return writes;
+    }
+
+    private void changed() {
+        dirty = true;
+        if (!writeScheduled) {
+            writeScheduled = true;
+            writer.schedule(writeTask, writeDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void writeNow() {
+        // Only one write runs at a time so an older snapshot never replaces a
+        // newer one. Setters only wait for the snapshot, not for the disk.
+        synchronized (tmp) {
+            byte[] data;
+            synchronized (this) {
+                writeScheduled = false;
+                if (!dirty) {
+                    return;
+                }
+                dirty = false;
+                data = encode();
+            }
+            try {
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    out.write(data);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Rename to " + file + " failed");
+                }
+                synchronized (this) {
+                    writes++;
+                }
+            } catch (IOException e) {
+                trace.log(TraceLog.SETTINGS_SAVE_FAILED, e);
+                synchronized (this) {
+                    // Try again with the next change
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    private byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(batteryPos);
+            out.writeInt(hourOn);
+            out.writeInt(minuteOn);
+            out.writeInt(hourOff);
+            out.writeInt(minuteOff);
+            out.writeUTF(stripId);
+            out.writeInt(outletCount);
+            for (int w = 0; w < OutletStore.wordCount(outletCount); w++) {
+                out.writeLong(outletBits[w]);
+            }
+            out.writeLong(snapshotVersion);
+            out.writeLong(snapshotMillis);
+            out.writeInt(schedules.length);
+            for (int i = 0; i < schedules.length; i++) {
+                out.writeInt(scheduleIds[i]);
+                out.writeByte(schedules[i].outlet);
+                out.writeBoolean(schedules[i].on);
+                out.writeByte(schedules[i].days);
+                out.writeInt(schedules[i].secondOfDay);
+            }
+            out.writeInt(networks.length);
+            for (int i = 0; i < networks.length; i++) {
+                out.writeUTF(networks[i]);
+                out.writeInt(keepaliveGood[i]);
+                out.writeInt(keepaliveBad[i]);
+            }
+            out.writeUTF(clientId);
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private synchronized void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            byte[] data = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+            if (data.length < 8) {
+                throw new IOException("Truncated");
+            }
+            int end = data.length - 8;
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, end);
+            long stored = new DataInputStream(new ByteArrayInputStream(data, end, 8)).readLong();
+            if (stored != crc.getValue()) {
+                throw new IOException("Bad checksum");
+            }
+            DataInputStream body = new DataInputStream(new ByteArrayInputStream(data, 0, end));
+            if (body.readInt() != MAGIC) {
+                throw new IOException("Unknown format");
+            }
+            int version = body.readInt();
+            if (version > FORMAT_VERSION) {
+                throw new IOException("Unknown format");
+            }
+            batteryPos = body.readInt();
+            hourOn = body.readInt();
+            minuteOn = body.readInt();
+            hourOff = body.readInt();
+            minuteOff = body.readInt();
+            stripId = body.readUTF();
+            int count = body.readInt();
+            long[] bits = new long[OutletStore.wordCount(count)];
+            for (int w = 0; w < bits.length; w++) {
+                bits[w] = body.readLong();
+            }
+            long bitsVersion = 0;
+            long bitsMillis = 0;
+            if (version >= 3) {
+                bitsVersion = body.readLong();
+                bitsMillis = body.readLong();
+            }
+            int[] ids = new int[0];
+            Schedule[] saved = new Schedule[0];
+            if (version >= 2) {
+                int n = body.readInt();
+                ids = new int[n];
+                saved = new Schedule[n];
+                for (int i = 0; i < n; i++) {
+                    ids[i] = body.readInt();
+                    saved[i] = new Schedule(body.readUnsignedByte(), body.readBoolean(),
+                            body.readUnsignedByte(), body.readInt());
+                }
+            }
+            String[] nets = new String[0];
+            int[] good = new int[0];
+            int[] bad = new int[0];
+            if (version >= 4) {
+                int n = body.readInt();
+                nets = new String[n];
+                good = new int[n];
+                bad = new int[n];
+                for (int i = 0; i < n; i++) {
+                    nets[i] = body.readUTF();
+                    good[i] = body.readInt();
+                    bad[i] = body.readInt();
+                }
+            }
+            String id = version >= 5 ? body.readUTF() : "";
+            outletCount = count;
+            outletBits = bits;
+            snapshotVersion = bitsVersion;
+            snapshotMillis = bitsMillis;
+            savedSnapshotMillis = bitsMillis;
+            scheduleIds = ids;
+            schedules = saved;
+            networks = nets;
+            keepaliveGood = good;
+            keepaliveBad = bad;
+            clientId = id;
+        } catch (IOException | IllegalArgumentException e) {
+            trace.log(TraceLog.SETTINGS_UNREADABLE, e);
+        }
+    }
+
+    // Copies the settings the app used to keep in SharedPreferences
+    private void migrate(SharedPreferences prefs) {
+        if (prefs.getAll().isEmpty()) {
+            return;
+        }
+        setBatteryPos(prefs.getInt("battery_pos", 0));
+        setTimerOn(prefs.getInt("hour_on", UNSET), prefs.getInt("minute_on", UNSET));
+        setTimerOff(prefs.getInt("hour_off", UNSET), prefs.getInt("minute_off", UNSET));
+        setStripId(prefs.getString("strip_id", DEFAULT_STRIP_ID));
+        // Versions before the outlet count was saved always had four outlets
+        int count = prefs.getInt("outlet_count", 4);
+        long[] bits = new long[OutletStore.wordCount(count)];
+        for (int i = 0; i < count; i++) {
+            if (prefs.getBoolean("switch" + (i + 1) + "State", false)) {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        // Shown until the server confirms them
+        setSnapshot(count, bits, 0, 0);
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* In-process stream of outlet changes from the MqttService to the UI, handed
+ * out through the service's LocalBinder instead of global broadcasts.
+ *
+ * Subscribers are told which outlets of which strip changed and read the
+ * states from the OutletStore, so an update carries no payload and publishing
+ * allocates nothing. Updates are conflated per subscriber: changes arriving
+ * while a delivery is still pending are merged into it, so a slow subscriber
+ * is called once with everything that changed and sees only the latest
+ * states. New subscribers are first given every outlet the store knows.
+ */
+public final class StateStream {
+
+    public interface Subscriber {
+        // changed has one bit per outlet laid out like the OutletStore words
+        // and is only valid during the call
+        void onOutletsChanged(int strip, long[] changed);
+    }
+
+    private static final Subscription[] NONE = new Subscription[0];
+
+    private final OutletStore store;
+    private volatile Subscription[] subscriptions = NONE;
+
+    public StateStream(OutletStore store) {
+        this.store = store;
+    }
+
+    // Calls the subscriber on the executor, normally the main thread, until
+    // the subscription is cancelled
+    public Subscription subscribe(Subscriber subscriber, Executor executor) {
+        Subscription s = new Subscription(subscriber, executor);
+        synchronized (this) {
+            Subscription[] old = subscriptions;
+            Subscription[] updated = new Subscription[old.length + 1];
+            System.arraycopy(old, 0, updated, 0, old.length);
+            updated[old.length] = s;
+            subscriptions = updated;
+        }
+        for (int strip = store.stripCount() - 1; strip >= 0; strip--) {
+            int count = store.count(strip);
+            for (int w = 0; w < OutletStore.wordCount(count); w++) {
+                int inWord = Math.min(OutletStore.BITS_PER_WORD, count - w * OutletStore.BITS_PER_WORD);
+                s.mark(strip, w, inWord == OutletStore.BITS_PER_WORD ? -1L : (1L << inWord) - 1);
+            }
+        }
+        s.schedule();
+        return s;
+    }
+
+    // Reports outlets 1..64 of a strip whose bit is set in changed
+    public void publish(int strip, long changed) {
+        publish(strip, 0, changed);
+    }
+
+    // Reports the outlets of one OutletStore word of a strip
+    public void publish(int strip, int word, long changed) {
+        if (changed == 0) {
+            return;
+        }
+        Subscription[] subs = subscriptions;
+        for (int i = 0; i < subs.length; i++) {
+            subs[i].mark(strip, word, changed);
+            subs[i].schedule();
+        }
+    }
+
+    private synchronized void remove(Subscription s) {
+        Subscription[] old = subscriptions;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == s) {
+                Subscription[] updated = new Subscription[old.length - 1];
+                System.arraycopy(old, 0, updated, 0, i);
+                System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+                subscriptions = updated;
+                return;
+            }
+        }
+    }
+
+    public final class Subscription implements Runnable {
+
+        private final Subscriber subscriber;
+        private final Executor executor;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        // Changes not delivered yet: dirtyStrips has a bit per strip with
+        // anything in dirty[strip]
+        private long[] dirtyStrips = new long[1];
+        private long[][] dirty = new long[0][];
+        // Handed to the subscriber, reused between deliveries
+        private long[] out = new long[1];
+        private int[] stripsOut = new int[0];
+
+        private long deliveries;
+        private long conflated;
+
+        Subscription(Subscriber subscriber, Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            remove(this);
+        }
+
+        // Deliveries made, each calls the subscriber once per changed strip
+        public synchronized long deliveryCount() {
+            return deliveries;
+        }
+
+        // Updates merged into a delivery that was already pending
+        public synchronized long conflatedCount() {
+            return conflated;
+        }
+
+        private synchronized void mark(int strip, int word, long changed) {
+            if (strip >= dirty.length) {
+                long[][] grown = new long[Math.max(strip + 1, dirty.length * 2)][];
+                System.arraycopy(dirty, 0, grown, 0, dirty.length);
+                dirty = grown;
+                long[] strips = new long[(grown.length + 63) >>> 6];
+                System.arraycopy(dirtyStrips, 0, strips, 0, dirtyStrips.length);
+                dirtyStrips = strips;
+            }
+            long[] words = dirty[strip];
+            if (words == null || word >= words.length) {
+                long[] grown = new long[word + 1];
+                if (words != null) {
+                    System.arraycopy(words, 0, grown, 0, words.length);
+                }
+                dirty[strip] = words = grown;
+            }
+            words[word] |= changed;
+            dirtyStrips[strip >>> 6] |= 1L << strip;
+            if (scheduled.get()) {
+                conflated++;
+            }
+        }
+
+        private void schedule() {
+            if (!cancelled && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        // Delivers everything marked so far, on the executor
+        @Override
+        public void run() {
+            scheduled.set(false);
+            if (cancelled) {
+                return;
+            }
+            int n = takeDirtyStrips();
+            for (int i = 0; i < n; i++) {
+                int strip = stripsOut[i];
+                long[] changed = take(strip);
+                if (changed != null) {
+                    subscriber.onOutletsChanged(strip, changed);
+                }
+            }
+        }
+
+        private synchronized int takeDirtyStrips() {
+            int n = 0;
+            for (int w = 0; w < dirtyStrips.length; w++) {
+                n += Long.bitCount(dirtyStrips[w]);
+            }
+            if (stripsOut.length < n) {
+                stripsOut = new int[n];
+            }
+            int i = 0;
+            for (int w = 0; w < dirtyStrips.length; w++) {
+                long bits = dirtyStrips[w];
+                dirtyStrips[w] = 0;
+                while (bits != 0) {
+                    stripsOut[i++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                }
+            }
+            if (n > 0) {
+                deliveries++;
+            }
+            return n;
+        }
+
+        // Moves the dirty words of a strip into out, null if nothing is left
+        private synchronized long[] take(int strip) {
+            long[] words = dirty[strip];
+            if (out.length < words.length) {
+                out = new long[words.length];
+            }
+            long any = 0;
+            for (int w = 0; w < out.length; w++) {
+                if (w < words.length) {
+                    any |= out[w] = words[w];
+                    words[w] = 0;
+                } else {
+                    out[w] = 0;
+                }
+            }
+            return any != 0 ? out : null;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.arpan.wifipowerstrip;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/* What the MqttService did lately, for diagnosis: connections, publishes,
+ * arrivals, alarms and the like.
+ *
+ * Events are structured instead of strings. Each has a fixed tag, name and
+ * level and carries up to two numbers and optionally an object that already
+ * exists, such as a topic or an exception. Events below the current level
+ * are dropped before anything else happens, and recorded ones are copied
+ * into a ring of the last CAPACITY events in preallocated arrays, so logging
+ * never builds strings or allocates. Text is only made when the ring is
+ * dumped, or for each event when echoing to logcat in debug builds.
+ *
+ * The stores and the PublishPipeline the service uses log to the process
+ * log, which the service configures and dumps, so all of it ends up in one
+ * ring.
+ */
+public final class TraceLog {
+
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+    private static final String LEVEL_NAMES = "DIWE";
+    private static final int[] PRIORITIES = { Log.DEBUG, Log.INFO, Log.WARN, Log.ERROR };
+
+    // Events. Strips are logged by index, see DeviceIndex.
+    public static final int NO_RETAINED_STATE = 0;
+    public static final int RESEND = 1;
+    public static final int NOT_SWITCHED = 2;
+    public static final int LAN_FALLBACK = 3;
+    public static final int DROPPED_OFFLINE = 4;
+    public static final int SCHEDULE_FIRED = 5;
+    public static final int LAN_UNAVAILABLE = 6;
+    public static final int START_COMMAND = 7;
+    public static final int BATTERY_ALARM = 8;
+    public static final int CONNECTING = 9;
+    public static final int CONNECT_FAILED = 10;
+    public static final int CLIENT_FAILED = 11;
+    public static final int CONNECTED = 12;
+    public static final int MQTT5_UNSUPPORTED = 13;
+    public static final int CONNECTION_LOST = 14;
+    public static final int SUBSCRIBING = 15;
+    public static final int SUBSCRIBE_FAILED = 16;
+    public static final int SUBSCRIBED = 17;
+    public static final int RECEIVED = 18;
+    public static final int IGNORED_TOPIC = 19;
+    public static final int UNRECOGNIZED = 20;
+    public static final int PUBLISHED = 21;
+    public static final int PUBLISH_FAILED = 22;
+    public static final int NOTHING_TO_SEND = 23;
+    public static final int NO_CHANGES = 24;
+    public static final int BINARY_STRIP = 25;
+    public static final int STAMP_AHEAD = 26;
+    public static final int NETWORK = 27;
+    public static final int OUTLET_UNSUPPORTED = 28;
+    public static final int OUTBOX_OPEN_FAILED = 29;
+    public static final int OUTBOX_WRITE_FAILED = 30;
+    public static final int OUTBOX_REPLAY = 31;
+    public static final int OUTBOX_REPLAY_INCOMPLETE = 32;
+    public static final int OUTBOX_CORRUPT = 33;
+    public static final int EVENTS_OPEN_FAILED = 34;
+    public static final int EVENTS_CORRUPT = 35;
+    public static final int PUBLISH_EXCEPTION = 36;
+    public static final int SETTINGS_SAVE_FAILED = 37;
+    public static final int SETTINGS_UNREADABLE = 38;
+
+    // Per event: level, logcat tag, name and the names of its two numbers,
+    // null for unused ones
+    private static final int[] LEVELS = {
+            INFO, WARN, WARN, WARN, WARN, INFO, WARN, DEBUG, INFO, INFO,
+            WARN, ERROR, INFO, INFO, WARN, DEBUG, ERROR, INFO, DEBUG, DEBUG,
+            WARN, DEBUG, WARN, DEBUG, DEBUG, INFO, WARN, INFO, WARN, ERROR,
+            ERROR, INFO, WARN, WARN, ERROR, WARN, ERROR, ERROR, WARN };
+    private static final String[][] SCHEMA = {
+            { "Subscription", "no_retained_state", null, null },
+            { "Publish", "resend", "id", null },
+            { "Publish", "not_switched", "strip", "mask" },
+            { "Publish", "lan_fallback", "strip", null },
+            { "Publish", "dropped_offline", "strip", null },
+            { "Schedule", "fired", "outlet", "on" },
+            { "Connection", "lan_unavailable", null, null },
+            { "Checkup", "start_command", null, null },
+            { "Alarm", "battery_check", null, null },
+            { "Connection", "connecting", null, null },
+            { "Connection", "connect_failed", null, null },
+            { "Connection", "client_failed", "reason", null },
+            { "Connection", "connected", "protocol", null },
+            { "Connection", "mqtt5_unsupported", null, null },
+            { "Connection", "lost", null, null },
+            { "Subscription", "subscribing", null, null },
+            { "Subscription", "subscribe_failed", null, null },
+            { "Subscription", "subscribed", null, null },
+            { "Arrival", "received", "strip", "bytes" },
+            { "Arrival", "ignored_topic", "bytes", null },
+            { "Arrival", "unrecognized", "strip", "bytes" },
+            { "Publish", "published", "bytes", null },
+            { "Publish", "publish_failed", "bytes", null },
+            { "Publish", "nothing_to_send", null, null },
+            { "Arrival", "no_changes", "strip", null },
+            { "Arrival", "binary", "strip", "version" },
+            { "Arrival", "stamp_ahead", "strip", null },
+            { "Connection", "network", "keepalive_s", null },
+            { "Publish", "outlet_unsupported", "strip", "outlet" },
+            { "Outbox", "open_failed", null, null },
+            { "Outbox", "write_failed", null, null },
+            { "Outbox", "replay", "commands", null },
+            { "Outbox", "replay_incomplete", null, null },
+            { "Outbox", "corrupt_record", "record", null },
+            { "Events", "open_failed", null, null },
+            { "Events", "corrupt_header", null, null },
+            { "Publish", "exception", null, null },
+            { "Settings", "save_failed", null, null },
+            { "Settings", "unreadable", null, null } };
+
+    static final int CAPACITY = 512;
+
+    private static final TraceLog PROCESS = new TraceLog(INFO, false);
+
+    private volatile int level;
+    private volatile boolean echo;
+
+    private final long[] millis = new long[CAPACITY];
+    private final int[] events = new int[CAPACITY];
+    private final long[] firsts = new long[CAPACITY];
+    private final long[] seconds = new long[CAPACITY];
+    private final Object[] details = new Object[CAPACITY];
+    // Events recorded since the start, the next one goes to total % CAPACITY
+    private long total;
+
+    private final StringBuilder line = new StringBuilder();
+
+    // Records events at level and above, echoing them to logcat if asked
+    public TraceLog(int level, boolean echo) {
+        this.level = level;
+        this.echo = echo;
+    }
+
+    // Records from INFO up without echoing until the service sets it up
+    public static TraceLog process() {
+        return PROCESS;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    public int level() {
+        return level;
+    }
+
+    public boolean isLoggable(int event) {
+        return LEVELS[event] >= level;
+    }
+
+    public void log(int event) {
+        log(event, 0, 0, null);
+    }
+
+    public void log(int event, long a) {
+        log(event, a, 0, null);
+    }
+
+    public void log(int event, long a, long b) {
+        log(event, a, b, null);
+    }
+
+    public void log(int event, Object detail) {
+        log(event, 0, 0, detail);
+    }
+
+    public void log(int event, long a, Object detail) {
+        log(event, a, 0, detail);
+    }
+
+    public void log(int event, long a, long b, Object detail) {
+        if (LEVELS[event] < level) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            int slot = (int) (total % CAPACITY);
+            millis[slot] = now;
+            events[slot] = event;
+            firsts[slot] = a;
+            seconds[slot] = b;
+            details[slot] = detail;
+            total++;
+            if (echo) {
+                line.setLength(0);
+                format(slot, false, line);
+                Log.println(PRIORITIES[LEVELS[event]], SCHEMA[event][0], line.toString());
+            }
+        }
+    }
+
+    // Events recorded since the start, including ones overwritten since
+    public synchronized long count() {
+        return total;
+    }
+
+    // Writes the events still in the ring, oldest first, one per line
+    public synchronized void dump(PrintWriter writer) {
+        long first = Math.max(0, total - CAPACITY);
+        writer.println("trace level=" + LEVEL_NAMES.charAt(Math.min(level, ERROR))
+                + " count=" + total + " overwritten=" + first);
+        StringBuilder sb = new StringBuilder();
+        for (long i = first; i < total; i++) {
+            sb.setLength(0);
+            format((int) (i % CAPACITY), true, sb);
+            writer.println(sb);
+        }
+    }
+
+    private void format(int slot, boolean full, StringBuilder sb) {
+        int event = events[slot];
+        String[] schema = SCHEMA[event];
+        if (full) {
+            sb.append(millis[slot]).append(' ').append(LEVEL_NAMES.charAt(LEVELS[event])).append(' ')
+                    .append(schema[0]).append(' ');
+        }
+        sb.append(schema[1]);
+        if (schema[2] != null) {
+            sb.append(' ').append(schema[2]).append('=').append(firsts[slot]);
+        }
+        if (schema[3] != null) {
+            sb.append(' ').append(schema[3]).append('=').append(seconds[slot]);
+        }
+        if (details[slot] != null) {
+            sb.append(' ').append(details[slot]);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AckTrackerTest {
+
+    private static final long MILLI = 1000L * 1000L;
+
+    private boolean connected = true;
+    private final StringBuilder calls = new StringBuilder();
+    private final Metrics metrics = new Metrics();
+    private final AckTracker tracker = new AckTracker(new AckTracker.Callbacks() {
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void resend(int id, int strip, int count, long mask, long values, long stamp) {
+            calls.append("resend ").append(id).append(' ').append(Long.toBinaryString(mask)).append(' ').append(stamp).append(';');
+        }
+
+        @Override
+        public void failed(int strip, long mask, long values) {
+            calls.append("failed ").append(strip).append(' ').append(Long.toBinaryString(mask)).append(';');
+        }
+    }, 1000, metrics, 100);
+
+    @Test
+    public void ack_recordsLatencyPerOutlet() throws Exception {
+        int id = tracker.track(MqttService.PRIMARY_STRIP, 4, 5L, 1L, 7L, 0);
+        assertEquals(100, id);
+        assertEquals(1, tracker.pendingCount());
+
+        assertTrue(tracker.onAck(id, true, 3 * MILLI));
+        assertEquals(0, tracker.pendingCount());
+        assertEquals(1, tracker.ackCount(1));
+        assertEquals(0, tracker.ackCount(2));
+        assertEquals(3000, tracker.meanLatencyMicros(3));
+        assertEquals(3000, tracker.maxLatencyMicros(3));
+        assertEquals(1, metrics.snapshot().ackCount);
+        // Duplicates are ignored
+        assertFalse(tracker.onAck(id, true, 4 * MILLI));
+        assertEquals("", calls.toString());
+    }
+
+    @Test
+    public void timeouts_resendThenFail() throws Exception {
+        int id = tracker.track(1, 4, 2L, 2L, 7L, 0);
+        assertEquals(1000 * MILLI, tracker.tick(0));
+
+        tracker.tick(1000 * MILLI);
+        assertEquals("resend " + id + " 10 7;", calls.toString());
+        // The timeout doubles every attempt
+        tracker.tick(2999 * MILLI);
+        assertEquals("resend " + id + " 10 7;", calls.toString());
+        tracker.tick(3000 * MILLI);
+        tracker.tick(7000 * MILLI);
+        assertEquals("resend " + id + " 10 7;resend " + id + " 10 7;failed 1 10;", calls.toString());
+        assertEquals(0, tracker.pendingCount());
+        assertEquals(2, metrics.snapshot().ackRetries);
+        assertEquals(1, metrics.snapshot().ackFailures);
+    }
+
+    @Test
+    public void rejectedAck_fails() throws Exception {
+        int id = tracker.track(1, 4, 8L, 8L, 7L, 0);
+        assertTrue(tracker.onAck(id, false, MILLI));
+        assertEquals("failed 1 1000;", calls.toString());
+        assertEquals(Long.MAX_VALUE, tracker.tick(10000 * MILLI));
+    }
+
+    @Test
+    public void disconnected_waitsInsteadOfResending() throws Exception {
+        tracker.track(1, 4, 1L, 1L, 7L, 0);
+        connected = false;
+        tracker.tick(5000 * MILLI);
+        tracker.tick(20000 * MILLI);
+        assertEquals("", calls.toString());
+        assertEquals(1, tracker.pendingCount());
+    }
+
+    @Test
+    public void newerCommand_supersedesOlderOutlets() throws Exception {
+        int first = tracker.track(1, 4, 3L, 3L, 7L, 0);
+        int second = tracker.track(1, 4, 1L, 0L, 7L, 0);
+        assertNotEquals(first, second);
+        assertEquals(2, tracker.pendingCount());
+        // The retry of the first command no longer switches outlet 1
+        tracker.tick(1000 * MILLI);
+        assertEquals("resend " + first + " 10 7;resend " + second + " 1 7;", calls.toString());
+
+        tracker.track(1, 4, 2L, 0L, 7L, 0);
+        // Nothing of the first command is left
+        assertFalse(tracker.onAck(first, true, 1500 * MILLI));
+    }
+
+    @Test
+    public void fullTable_sendsUntracked() throws Exception {
+        for (int i = 0; i < AckTracker.CAPACITY; i++) {
+            assertNotEquals(0, tracker.track(i + 2, 4, 1L, 1L, 7L, 0));
+        }
+        assertEquals(0, tracker.track(1, 4, 1L, 1L, 7L, 0));
+    }
+}
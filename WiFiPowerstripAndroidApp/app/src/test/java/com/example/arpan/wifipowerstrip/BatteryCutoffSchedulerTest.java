@@ -0,0 +1,92 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatteryCutoffSchedulerTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    private final List<Integer> samples = new ArrayList<Integer>();
+    private long scheduled;
+    private int cancels;
+
+    private final BatteryCutoffScheduler scheduler = new BatteryCutoffScheduler(
+            new BatteryCutoffScheduler.Callbacks() {
+                @Override
+                public void sendSample(int permille) {
+                    samples.add(permille);
+                }
+
+                @Override
+                public void scheduleCheck(long atMillis) {
+                    scheduled = atMillis;
+                }
+
+                @Override
+                public void cancelCheck() {
+                    scheduled = 0;
+                    cancels++;
+                }
+            });
+
+    @Test
+    public void unplugged_sendsNothing() throws Exception {
+        scheduler.setCutoff(900, 0, 500);
+        scheduler.onBatteryChanged(0, 500, false);
+        scheduler.onBatteryChanged(MINUTE, 490, false);
+        scheduler.onCheck(2 * MINUTE, 480);
+        assertTrue(samples.isEmpty());
+        assertEquals(0, scheduled);
+    }
+
+    @Test
+    public void checkIsScheduledJustBeforeCutoff() throws Exception {
+        scheduler.setCutoff(900, 0, 500);
+        scheduler.onPowerConnected(0, 500);
+        assertEquals(1, samples.size());
+        // No rate yet, so the fallback interval is used
+        assertEquals(BatteryCutoffScheduler.FALLBACK_CHECK_MILLIS, scheduled);
+
+        // 1% (10 permille) per minute
+        for (int i = 1; i <= 5; i++) {
+            scheduler.onBatteryChanged(i * MINUTE, 500 + 10 * i, true);
+        }
+        assertEquals(600, scheduler.ratePerHour(), 1e-6);
+        // 350 permille to go at 10 per minute is 35 minutes, less the lead.
+        // The alarm is only moved when it shifts by more than MIN_CHECK_MILLIS.
+        long eta = 5 * MINUTE + 35 * MINUTE;
+        long lead = (long) (35 * MINUTE * BatteryCutoffScheduler.LEAD_FRACTION);
+        assertTrue(scheduled < eta);
+        assertTrue(scheduled >= eta - lead - BatteryCutoffScheduler.MIN_CHECK_MILLIS);
+        // Level changes alone don't produce traffic
+        assertEquals(1, samples.size());
+    }
+
+    @Test
+    public void reachingCutoff_reportsOnceAndStops() throws Exception {
+        scheduler.setCutoff(900, 0, 880);
+        scheduler.onPowerConnected(0, 880);
+        scheduler.onBatteryChanged(MINUTE, 890, true);
+        scheduler.onBatteryChanged(2 * MINUTE, 900, true);
+        assertEquals(2, samples.size());
+        assertEquals(Integer.valueOf(900), samples.get(1));
+        assertEquals(0, scheduled);
+
+        scheduler.onBatteryChanged(3 * MINUTE, 910, true);
+        assertEquals(2, samples.size());
+    }
+
+    @Test
+    public void unplugging_cancelsTheCheck() throws Exception {
+        scheduler.onPowerConnected(0, 500);
+        assertTrue(scheduled > 0);
+        scheduler.onPowerDisconnected();
+        assertEquals(0, scheduled);
+        assertEquals(1, cancels);
+    }
+}
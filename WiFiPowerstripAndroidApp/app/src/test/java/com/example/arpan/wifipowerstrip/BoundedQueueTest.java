@@ -0,0 +1,68 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class BoundedQueueTest {
+
+    @Test
+    public void offerFailsWhenFull() throws Exception {
+        BoundedQueue<Integer> queue = new BoundedQueue<Integer>(3);
+        assertEquals(4, queue.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void concurrentProducersAndConsumers_loseNothing() throws Exception {
+        final BoundedQueue<Long> queue = new BoundedQueue<Long>(64);
+        final int producers = 4;
+        final int perProducer = 50000;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(producers * 2);
+
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    for (long i = 1; i <= perProducer; i++) {
+                        while (!queue.offer(i)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+            new Thread(new Runnable() {
+                public void run() {
+                    while (received.get() < (long) producers * perProducer) {
+                        Long item = queue.poll();
+                        if (item == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        sum.addAndGet(item);
+                        received.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        long expected = (long) producers * perProducer * (perProducer + 1) / 2;
+        assertEquals(expected, sum.get());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CommandCoalescerTest {
+
+    private final List<String> flushed = new ArrayList<String>();
+    private final CommandCoalescer coalescer = new CommandCoalescer(50, new CommandCoalescer.Sink() {
+        @Override
+        public void flush(int count, long mask, long values) {
+            flushed.add(count + " " + Long.toBinaryString(mask) + " " + Long.toBinaryString(values));
+        }
+    });
+
+    @Test
+    public void burst_keepsLatestStatePerOutlet() throws Exception {
+        coalescer.set(1, true);
+        coalescer.set(3, true);
+        coalescer.set(1, false);
+        coalescer.set(1, true);
+        coalescer.set(4, false);
+
+        // Nothing goes out before the window closes
+        long now = System.nanoTime();
+        assertTrue(coalescer.tick(now) > 0);
+        assertTrue(flushed.isEmpty());
+
+        assertEquals(Long.MAX_VALUE, coalescer.tick(now + 60L * 1000L * 1000L));
+        assertEquals(1, flushed.size());
+        assertEquals("4 1101 101", flushed.get(0));
+
+        // Nothing pending afterwards
+        assertEquals(Long.MAX_VALUE, coalescer.tick(now + 120L * 1000L * 1000L));
+        assertEquals(1, flushed.size());
+    }
+
+    @Test
+    public void flushNow_sendsImmediately() throws Exception {
+        coalescer.set(2, false);
+        coalescer.flushNow();
+        assertEquals("2 10 0", flushed.get(0));
+        coalescer.flushNow();
+        assertEquals(1, flushed.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outletOutOfRange_isRejected() throws Exception {
+        coalescer.set(CommandCoalescer.MAX_OUTLETS + 1, true);
+    }
+}
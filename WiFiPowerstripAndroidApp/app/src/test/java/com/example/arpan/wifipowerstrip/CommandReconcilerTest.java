@@ -0,0 +1,58 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CommandReconcilerTest {
+
+    @Test
+    public void unknownOutlets_areAlwaysSent() throws Exception {
+        CommandReconciler reconciler = new CommandReconciler();
+        assertEquals(3L, reconciler.diverging(3L, 0L));
+    }
+
+    @Test
+    public void echoOfServerState_isSuppressed() throws Exception {
+        CommandReconciler reconciler = new CommandReconciler();
+        reconciler.onRemote(15L, 5L);
+        // Switches set to what the server just reported
+        assertEquals(0L, reconciler.diverging(15L, 5L));
+        assertEquals(4, reconciler.suppressedCount());
+        // A real change goes out
+        assertEquals(2L, reconciler.diverging(2L, 2L));
+        assertEquals(1, reconciler.sentCount());
+    }
+
+    @Test
+    public void inFlightCommands_setTheExpectedState() throws Exception {
+        CommandReconciler reconciler = new CommandReconciler();
+        reconciler.onRemote(1L, 0L);
+        assertEquals(1L, reconciler.diverging(1L, 1L));
+        // Repeating the command before the server reports is dropped
+        assertEquals(0L, reconciler.diverging(1L, 1L));
+        // Undoing it is not
+        assertEquals(1L, reconciler.diverging(1L, 0L));
+    }
+
+    @Test
+    public void serverReport_settlesInFlightCommands() throws Exception {
+        CommandReconciler reconciler = new CommandReconciler();
+        reconciler.onRemote(1L, 0L);
+        reconciler.diverging(1L, 1L);
+        // The server kept the outlet off, e.g. the battery cutoff kicked in
+        reconciler.onRemote(1L, 0L);
+        assertEquals(1L, reconciler.diverging(1L, 1L));
+    }
+
+    @Test
+    public void failedCommand_expectsServerStateAgain() throws Exception {
+        CommandReconciler reconciler = new CommandReconciler();
+        reconciler.onRemote(1L, 0L);
+        reconciler.diverging(1L, 1L);
+        reconciler.onFailed(1L);
+        // Switch rolled back to off, so turning it on again goes out
+        assertEquals(0L, reconciler.diverging(1L, 0L));
+        assertEquals(1L, reconciler.diverging(1L, 1L));
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeviceIndexTest {
+
+    @Test
+    public void stateTopics_resolveToStableIndexes() throws Exception {
+        DeviceIndex index = new DeviceIndex(8);
+        assertEquals(0, index.register("1"));
+        assertEquals(0, index.resolve("strip/1/state"));
+        assertEquals(1, index.resolve("strip/kitchen/state"));
+        assertEquals(1, index.resolve("strip/kitchen/state"));
+        assertEquals(1, index.lookup("strip/kitchen/state"));
+        assertEquals(2, index.size());
+        assertEquals("kitchen", index.id(1));
+        assertEquals("strip/kitchen/cmd", index.cmdTopic(1));
+    }
+
+    @Test
+    public void otherTopics_areIgnored() throws Exception {
+        DeviceIndex index = new DeviceIndex(8);
+        assertEquals(-1, index.resolve("ToAndroid"));
+        assertEquals(-1, index.resolve("strip/1/cmd"));
+        assertEquals(-1, index.resolve("strip//state"));
+        assertEquals(-1, index.resolve("strip/a/b/state"));
+        assertEquals(-1, index.lookup("strip/unknown/state"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void replyTopics_resolveToTheirStrip() throws Exception {
+        DeviceIndex index = new DeviceIndex(8);
+        index.register("1");
+        index.setReplyClient("phone");
+        assertEquals("strip/1/reply/phone", index.replyTopic(0));
+        assertEquals("strip/+/reply/phone", index.replyWildcard());
+        assertEquals(0, index.resolve("strip/1/reply/phone"));
+        assertEquals(1, index.resolve("strip/kitchen/reply/phone"));
+        assertEquals("strip/kitchen/reply/phone", index.replyTopic(1));
+        assertEquals(-1, index.resolve("strip/1/reply/"));
+        assertEquals(-1, index.resolve("strip/1/reply/a/b"));
+    }
+
+    @Test
+    public void manyStrips_stayBounded() throws Exception {
+        DeviceIndex index = new DeviceIndex(300);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(i, index.resolve("strip/" + i + "/state"));
+        }
+        // Full, new strips are dropped but known ones still resolve
+        assertEquals(-1, index.resolve("strip/extra/state"));
+        for (int i = 0; i < 300; i++) {
+            assertEquals(i, index.lookup("strip/" + i + "/state"));
+        }
+    }
+
+    @Test
+    public void binaryFlag_isPerStrip() throws Exception {
+        DeviceIndex index = new DeviceIndex(4);
+        int a = index.register("a");
+        int b = index.register("b");
+        index.setBinary(b, true);
+        assertFalse(index.isBinary(a));
+        assertTrue(index.isBinary(b));
+    }
+}
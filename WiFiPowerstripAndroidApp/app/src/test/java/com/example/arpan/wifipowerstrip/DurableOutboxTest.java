@@ -0,0 +1,206 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DurableOutboxTest {
+
+    // Records what gets replayed and keeps the listeners to complete later
+    private static class RecordingSender implements DurableOutbox.Sender {
+        final List<String> sent = new ArrayList<String>();
+        final List<Long> stamps = new ArrayList<Long>();
+        final List<PublishPipeline.Listener> listeners = new ArrayList<PublishPipeline.Listener>();
+
+        public int sendStates(int count, long mask, long values, long stamp, PublishPipeline.Listener listener) {
+            sent.add("states " + Long.toBinaryString(mask) + " " + Long.toBinaryString(values));
+            stamps.add(stamp);
+            listeners.add(listener);
+            return 1;
+        }
+
+        public int sendSetting(int key, int a, int b, PublishPipeline.Listener listener) {
+            sent.add("setting " + key + " " + a + " " + b);
+            listeners.add(listener);
+            return 1;
+        }
+
+        public int sendBattery(int permille, int minuteOfDay, PublishPipeline.Listener listener) {
+            sent.add("battery " + permille + " " + minuteOfDay);
+            listeners.add(listener);
+            return 1;
+        }
+
+        void completeAll(boolean ok) {
+            for (PublishPipeline.Listener listener : listeners) {
+                listener.onComplete(null, ok);
+            }
+            listeners.clear();
+        }
+    }
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("outbox", ".log");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void supersededAndDuplicateCommands_collapse() throws Exception {
+        DurableOutbox outbox = new DurableOutbox(file);
+        outbox.recordState(1, true, 10);
+        outbox.recordState(1, false, 11);
+        outbox.recordState(1, false, 11);
+        outbox.recordSetting(MessageCodec.SETTING_BATTERY, 80, 0);
+        outbox.recordSetting(MessageCodec.SETTING_BATTERY, 90, 0);
+        outbox.recordBattery(500, 600);
+        outbox.recordBattery(510, 600);
+        outbox.recordState(3, true, 11);
+
+        assertEquals(4, outbox.pendingCount());
+        assertEquals(2, outbox.duplicateCount());
+        assertEquals(2, outbox.supersededCount());
+
+        RecordingSender sender = new RecordingSender();
+        outbox.replay(sender);
+        assertEquals("states 101 100", sender.sent.get(0));
+        assertEquals("setting 1 90 0", sender.sent.get(1));
+        assertEquals("battery 500 600", sender.sent.get(2));
+        assertEquals(3, sender.sent.size());
+        outbox.close();
+    }
+
+    @Test
+    public void commands_surviveReopen() throws Exception {
+        DurableOutbox outbox = new DurableOutbox(file);
+        outbox.recordState(2, true, 20);
+        outbox.recordSetting(MessageCodec.SETTING_TIMER_ON, 7, 30);
+        outbox.close();
+
+        DurableOutbox reopened = new DurableOutbox(file);
+        assertEquals(2, reopened.pendingCount());
+        RecordingSender sender = new RecordingSender();
+        reopened.replay(sender);
+        assertEquals("states 10 10", sender.sent.get(0));
+        assertEquals(20L, (long) sender.stamps.get(0));
+        assertEquals("setting 2 7 30", sender.sent.get(1));
+        reopened.close();
+    }
+
+    @Test
+    public void successfulReplay_clearsLog() throws Exception {
+        DurableOutbox outbox = new DurableOutbox(file);
+        outbox.recordState(1, true, 1);
+        RecordingSender sender = new RecordingSender();
+        outbox.replay(sender);
+        // Made while the replay is in flight, must stay
+        outbox.recordState(4, true, 2);
+        sender.completeAll(true);
+        assertEquals(1, outbox.pendingCount());
+        outbox.close();
+
+        DurableOutbox reopened = new DurableOutbox(file);
+        assertEquals(1, reopened.pendingCount());
+        reopened.close();
+    }
+
+    @Test
+    public void failedReplay_keepsCommands() throws Exception {
+        DurableOutbox outbox = new DurableOutbox(file);
+        outbox.recordState(1, true, 1);
+        RecordingSender sender = new RecordingSender();
+        outbox.replay(sender);
+        sender.completeAll(false);
+        assertEquals(1, outbox.pendingCount());
+
+        outbox.replay(sender);
+        assertEquals(2, sender.sent.size());
+        outbox.close();
+    }
+
+    @Test
+    public void log_staysBounded() throws Exception {
+        DurableOutbox outbox = new DurableOutbox(file);
+        for (int i = 0; i < 5000; i++) {
+            outbox.recordState(1 + i % 4, (i & 4) != 0, i + 1);
+        }
+        assertTrue(file.length() <= 256 * 40);
+        assertEquals(4, outbox.pendingCount());
+        outbox.close();
+    }
+
+    @Test
+    public void statesMadeApart_replayWithTheirOwnStamps() throws Exception {
+        DurableOutbox outbox = new DurableOutbox(file);
+        outbox.recordState(1, true, 5);
+        outbox.recordState(2, true, 5);
+        outbox.recordState(3, false, 7);
+        RecordingSender sender = new RecordingSender();
+        outbox.replay(sender);
+        assertEquals("states 11 11", sender.sent.get(0));
+        assertEquals(5L, (long) sender.stamps.get(0));
+        assertEquals("states 100 0", sender.sent.get(1));
+        assertEquals(7L, (long) sender.stamps.get(1));
+        outbox.close();
+    }
+
+    @Test
+    public void olderOfflineEdit_losesToNewerRemoteEditAfterReplay() throws Exception {
+        HybridClock clock = new HybridClock();
+        DurableOutbox outbox = new DurableOutbox(file);
+        // Switched on while offline
+        long offline = clock.now(1000);
+        outbox.recordState(1, true, offline);
+        outbox.close();
+
+        // Another phone switches it off later, we hear of it on reconnecting
+        long remote = 2000L << HybridClock.COUNTER_BITS;
+        assertTrue(clock.update(remote, 2500));
+        clock.now(3000);
+
+        DurableOutbox reopened = new DurableOutbox(file);
+        RecordingSender sender = new RecordingSender();
+        reopened.replay(sender);
+        long replayed = sender.stamps.get(0);
+        assertEquals(offline, replayed);
+        // The server keeps the newer stamp, last writer wins
+        assertTrue(replayed < remote);
+        reopened.close();
+    }
+
+    @Test
+    public void legacyLog_isReadAndRewritten() throws Exception {
+        // One record in the format without stamps: outlet 2 on
+        ByteBuffer record = ByteBuffer.allocate(32);
+        record.putLong(1).putLong(1).put((byte) DurableOutbox.KIND_STATE).put((byte) 2).putShort((short) 0)
+                .putInt(1).putInt(0).putInt(DurableOutbox.checksum(1, 1, DurableOutbox.KIND_STATE, 2, 1, 0, 0));
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(record.array());
+        out.close();
+
+        DurableOutbox outbox = new DurableOutbox(file);
+        assertEquals(1, outbox.pendingCount());
+        assertEquals(40, file.length());
+        RecordingSender sender = new RecordingSender();
+        outbox.replay(sender);
+        assertEquals("states 10 10", sender.sent.get(0));
+        // Stamped when it goes out
+        assertEquals(0L, (long) sender.stamps.get(0));
+        outbox.close();
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class EventLogTest {
+
+    private File file;
+
+    // Records the events of a query
+    private final StringBuilder seen = new StringBuilder();
+    private final EventLog.Visitor recorder = new EventLog.Visitor() {
+        @Override
+        public void onEvent(long timeMillis, int kind, int arg, int value) {
+            seen.append(timeMillis).append(':').append(kind).append(':')
+                    .append(arg).append(':').append(value).append(' ');
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("events", ".log");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void rangeQuery_returnsEventsInRangeInOrder() throws Exception {
+        EventLog log = new EventLog(file, 16);
+        log.recordOutlet(100, 1, true);
+        log.recordBattery(200, 850, true);
+        log.recordOutlet(300, 2, false);
+        log.recordBattery(400, 860, true);
+
+        assertEquals(2, log.query(150, 400, -1, recorder));
+        assertEquals("200:2:1:850 300:1:2:0 ", seen.toString());
+
+        seen.setLength(0);
+        assertEquals(2, log.query(0, 1000, 1 << EventLog.KIND_BATTERY, recorder));
+        assertEquals("200:2:1:850 400:2:1:860 ", seen.toString());
+    }
+
+    @Test
+    public void full_overwritesOldestEvents() throws Exception {
+        EventLog log = new EventLog(file, 4);
+        for (int i = 1; i <= 10; i++) {
+            log.recordBattery(i * 10, i, false);
+        }
+        assertEquals(4, log.size());
+        assertEquals(70, log.oldestMillis());
+        assertEquals(4, log.query(0, 1000, -1, recorder));
+        assertEquals("70:2:0:7 80:2:0:8 90:2:0:9 100:2:0:10 ", seen.toString());
+        // The file never grows past the header and capacity records
+        assertEquals(32 + 4 * 16, file.length());
+    }
+
+    @Test
+    public void events_surviveReopen() throws Exception {
+        EventLog log = new EventLog(file, 4);
+        for (int i = 1; i <= 6; i++) {
+            log.recordOutlet(i, 1, i % 2 == 0);
+        }
+        log.close();
+
+        EventLog reopened = new EventLog(file, 4);
+        assertEquals(4, reopened.size());
+        reopened.recordOutlet(7, 3, true);
+        assertEquals(4, reopened.query(0, 100, -1, recorder));
+        assertEquals("4:1:1:1 5:1:1:0 6:1:1:1 7:1:3:1 ", seen.toString());
+
+        // A different capacity starts a new log
+        reopened.close();
+        assertEquals(0, new EventLog(file, 8).size());
+    }
+
+    @Test
+    public void clockGoingBack_keepsTimeOrder() throws Exception {
+        EventLog log = new EventLog(file, 8);
+        log.recordBattery(500, 1, false);
+        log.recordBattery(100, 2, false);
+        log.query(0, 1000, -1, recorder);
+        assertEquals("500:2:0:1 500:2:0:2 ", seen.toString());
+    }
+
+    @Test
+    public void downsample_summarizesEachBucket() throws Exception {
+        EventLog log = new EventLog(file, 64);
+        for (int i = 0; i < 40; i++) {
+            log.recordBattery(i * 100, 500 + i, i >= 20);
+        }
+        EventLog.Buckets buckets = new EventLog.Buckets(4);
+        log.downsample(EventLog.KIND_BATTERY, EventLog.ANY, 0, 4000, buckets);
+        assertEquals(10, buckets.count[0]);
+        assertEquals(500, buckets.min[0]);
+        assertEquals(509, buckets.max[0]);
+        assertEquals(504, buckets.mean(0));
+        assertEquals(539, buckets.max[3]);
+
+        // Only while charging
+        log.downsample(EventLog.KIND_BATTERY, 1, 0, 4000, buckets);
+        assertEquals(0, buckets.count[1]);
+        assertEquals(10, buckets.count[2]);
+    }
+
+    @Test
+    public void onTime_addsUpOnIntervalsPerBucket() throws Exception {
+        EventLog log = new EventLog(file, 64);
+        log.recordOutlet(50, 2, true);
+        log.recordOutlet(150, 2, false);
+        log.recordOutlet(250, 2, true);
+        log.recordOutlet(260, 1, false);
+
+        long[] out = new long[3];
+        // On since before the range
+        log.onTime(2, 100, 400, out);
+        assertArrayEquals(new long[] {50, 50, 100}, out);
+
+        log.onTime(1, 0, 400, out);
+        assertArrayEquals(new long[] {0, 0, 0}, out);
+    }
+}
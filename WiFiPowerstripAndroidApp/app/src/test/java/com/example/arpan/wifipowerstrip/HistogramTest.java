@@ -0,0 +1,48 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void percentiles_areWithinBucketPrecision() throws Exception {
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 10000; v++) {
+            h.record(v);
+        }
+        assertEquals(10000, h.count());
+        assertEquals(10000, h.max());
+        assertEquals(5000, h.mean());
+        long p50 = h.percentile(50);
+        long p99 = h.percentile(99);
+        assertTrue("p50 " + p50, p50 >= 5000 && p50 <= 5000 * 9 / 8);
+        assertTrue("p99 " + p99, p99 >= 9900 && p99 <= 10000);
+        assertEquals(10000, h.percentile(100));
+    }
+
+    @Test
+    public void buckets_coverEveryValue() throws Exception {
+        int previous = -1;
+        for (int shift = 0; shift < 63; shift++) {
+            long v = 1L << shift;
+            int bucket = Histogram.bucketOf(v);
+            assertTrue(bucket > previous || v < 8);
+            assertTrue(Histogram.upperBound(bucket) >= v);
+            assertTrue(Histogram.upperBound(Histogram.bucketOf(v - 1)) >= v - 1);
+            previous = bucket;
+        }
+        Histogram.bucketOf(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void empty_andReset_reportZero() throws Exception {
+        Histogram h = new Histogram();
+        assertEquals(0, h.percentile(99));
+        h.record(42);
+        h.reset();
+        assertEquals(0, h.count());
+        assertEquals(0, h.percentile(50));
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HybridClockTest {
+
+    private final HybridClock clock = new HybridClock();
+
+    @Test
+    public void stamps_neverGoBackwards() throws Exception {
+        long first = clock.now(1000);
+        assertEquals(1000, HybridClock.millis(first));
+        // Wall clock stepped back, the counter moves on instead
+        long second = clock.now(900);
+        assertEquals(first + 1, second);
+        assertTrue(clock.now(1001) > second);
+    }
+
+    @Test
+    public void remoteStamps_pushLaterStampsPastThem() throws Exception {
+        clock.now(1000);
+        long remote = (5000L << HybridClock.COUNTER_BITS) + 7;
+        assertTrue(clock.update(remote, 1000));
+        // A phone running behind still stamps after the change it saw
+        assertTrue(clock.now(1000) > remote);
+        assertEquals(5000, HybridClock.millis(clock.last()));
+    }
+
+    @Test
+    public void stampsTooFarAhead_areIgnored() throws Exception {
+        long remote = (1000 + HybridClock.MAX_DRIFT_MILLIS + 1) << HybridClock.COUNTER_BITS;
+        assertFalse(clock.update(remote, 1000));
+        assertEquals(1, clock.rejectedCount());
+        assertEquals(1000, HybridClock.millis(clock.now(1000)));
+    }
+}
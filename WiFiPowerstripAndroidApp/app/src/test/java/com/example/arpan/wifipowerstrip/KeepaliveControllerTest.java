@@ -0,0 +1,94 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeepaliveControllerTest {
+
+    // Last values saved
+    private String savedNetwork;
+    private int savedGood;
+    private int savedBad;
+    private final KeepaliveController controller = new KeepaliveController(new KeepaliveController.Callbacks() {
+        @Override
+        public void save(String network, int goodSeconds, int badSeconds) {
+            savedNetwork = network;
+            savedGood = goodSeconds;
+            savedBad = badSeconds;
+        }
+    });
+
+    // Answers pings until the interval changes
+    private void confirm() {
+        int interval = controller.intervalSeconds();
+        for (int i = 0; i < KeepaliveController.CONFIRMATIONS; i++) {
+            controller.onPingAnswered(interval);
+        }
+    }
+
+    @Test
+    public void answeredPings_probeLongerIntervals() throws Exception {
+        controller.onNetwork("WIFI/home", 0, 0);
+        assertEquals(KeepaliveController.DEFAULT_SECONDS, controller.intervalSeconds());
+        confirm();
+        assertEquals(KeepaliveController.DEFAULT_SECONDS * 3 / 2, controller.intervalSeconds());
+        assertEquals("WIFI/home", savedNetwork);
+        assertEquals(KeepaliveController.DEFAULT_SECONDS, savedGood);
+
+        // Pings sent early, e.g. for the broker's keepalive, don't count
+        controller.onPingAnswered(10);
+        controller.onPingAnswered(10);
+        assertEquals(KeepaliveController.DEFAULT_SECONDS * 3 / 2, controller.intervalSeconds());
+
+        for (int i = 0; i < 20; i++) {
+            confirm();
+        }
+        assertEquals(KeepaliveController.MAX_SECONDS, controller.intervalSeconds());
+        assertTrue(controller.isSettled());
+    }
+
+    @Test
+    public void timeout_fallsBackAndBisects() throws Exception {
+        controller.onNetwork("MOBILE/apn", 0, 0);
+        confirm();
+        // 360s fails, back to 240s right away
+        controller.onPingTimeout(370L * 1000 * 1000 * 1000);
+        assertEquals(240, controller.intervalSeconds());
+        assertEquals(360, savedBad);
+        assertEquals(1, controller.timeoutCount());
+        assertEquals(370L * 1000 * 1000, controller.detectionMaxMicros());
+
+        confirm();
+        assertEquals(300, controller.intervalSeconds());
+        confirm();
+        assertEquals(330, controller.intervalSeconds());
+        confirm();
+        // 330 worked, 345 is too close to 360 to be worth a probe
+        assertEquals(330, controller.intervalSeconds());
+        assertTrue(controller.isSettled());
+    }
+
+    @Test
+    public void failingGoodInterval_halves() throws Exception {
+        controller.onNetwork("WIFI/cafe", 300, 330);
+        assertEquals(300, controller.intervalSeconds());
+        controller.onPingTimeout(0);
+        assertEquals(150, controller.intervalSeconds());
+        assertEquals(0, savedGood);
+        assertEquals(300, savedBad);
+        controller.onPingTimeout(0);
+        controller.onPingTimeout(0);
+        controller.onPingTimeout(0);
+        assertEquals(KeepaliveController.MIN_SECONDS, controller.intervalSeconds());
+    }
+
+    @Test
+    public void networks_startFromWhatWasLearned() throws Exception {
+        controller.onNetwork("WIFI/home", 600, 0);
+        assertEquals(600, controller.intervalSeconds());
+        // Only a failure known, start safely below it
+        controller.onNetwork("WIFI/office", 0, 120);
+        assertEquals(90, controller.intervalSeconds());
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LanLinkTest {
+
+    private static final long MILLI = 1000L * 1000L;
+
+    // Stands in for the strip, answering on loopback
+    private DatagramSocket strip;
+    private final DeviceIndex devices = new DeviceIndex(8);
+    private LanLink lan;
+
+    // Callbacks as strings, in order
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        strip = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        strip.setSoTimeout(5000);
+        devices.register("primary");
+        // Heard of from the broker
+        devices.register("kitchen");
+        lan = new LanLink(new InetSocketAddress("127.0.0.1", strip.getLocalPort()), devices,
+                new LanLink.Callbacks() {
+                    @Override
+                    public void acked(int strip, int count, long mask, long values, long stamp) {
+                        events.add("acked " + strip + " " + Long.toBinaryString(mask) + " " + stamp);
+                    }
+
+                    @Override
+                    public void fallback(int strip, int count, long mask, long values, long stamp) {
+                        events.add("fallback " + strip + " " + Long.toBinaryString(mask) + " " + stamp);
+                    }
+                }, 10);
+        lan.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        lan.stop();
+        strip.close();
+    }
+
+    private DatagramPacket receive() throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[MessageCodec.MAX_FRAME_LENGTH], MessageCodec.MAX_FRAME_LENGTH);
+        strip.receive(packet);
+        return packet;
+    }
+
+    private void reply(DatagramPacket to, byte[] frame, int length) throws Exception {
+        strip.send(new DatagramPacket(frame, length, to.getSocketAddress()));
+    }
+
+    // Answers the discovery Hello as strip "kitchen" and waits until the
+    // link knows it
+    private int discover() throws Exception {
+        lan.tick(0);
+        DatagramPacket hello = receive();
+        assertEquals(MessageCodec.TYPE_HELLO, MessageCodec.typeOf(hello.getData(), 0, hello.getLength()));
+        byte[] frame = new byte[64];
+        reply(hello, frame, MessageCodec.encodeHello(frame, 0, "kitchen"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (lan.directCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return devices.indexOf("kitchen");
+    }
+
+    // Answers discovery as the given strip from the given socket
+    private void helloFrom(DatagramSocket from, String id, DatagramPacket hello) throws Exception {
+        byte[] frame = new byte[64];
+        from.send(new DatagramPacket(frame, MessageCodec.encodeHello(frame, 0, id), hello.getSocketAddress()));
+    }
+
+    private void awaitRejected(long count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (lan.rejectedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, lan.rejectedCount());
+    }
+
+    // The id of a State or Batch command, right after its body
+    private static int commandId(DatagramPacket command, int p) {
+        byte[] data = command.getData();
+        return ((data[p] & 0xFF) << 24) | ((data[p + 1] & 0xFF) << 16)
+                | ((data[p + 2] & 0xFF) << 8) | (data[p + 3] & 0xFF);
+    }
+
+    @Test
+    public void discoveredStrip_isSwitchedDirectly() throws Exception {
+        int kitchen = discover();
+        assertTrue(lan.isDirect(kitchen));
+        assertFalse(lan.isDirect(0));
+        assertFalse(lan.send(0, 4, 1L, 1L, 5L, 3, 0));
+
+        assertTrue(lan.send(kitchen, 4, 6L, 2L, 5L, 3, 0));
+        DatagramPacket command = receive();
+        assertEquals(MessageCodec.TYPE_BATCH, MessageCodec.typeOf(command.getData(), 0, command.getLength()));
+        int commandId = commandId(command, MessageCodec.HEADER_LENGTH + 3);
+        byte[] ack = new byte[16];
+        reply(command, ack, MessageCodec.encodeAck(ack, 0, commandId, true));
+        assertEquals("acked " + kitchen + " 110 5", events.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, lan.pendingCount());
+        assertEquals(1, lan.ackedCount());
+    }
+
+    @Test
+    public void silentStrip_fallsBackToTheBroker() throws Exception {
+        int kitchen = discover();
+        assertTrue(lan.send(kitchen, 4, 1L, 1L, 9L, 3, 0));
+        receive();
+        // Resent MAX_ATTEMPTS - 1 times, then handed over
+        lan.tick(10 * MILLI);
+        receive();
+        lan.tick(20 * MILLI);
+        receive();
+        assertNull(events.poll());
+        lan.tick(30 * MILLI);
+        assertEquals("fallback " + kitchen + " 1 9", events.poll(5, TimeUnit.SECONDS));
+        assertFalse(lan.isDirect(kitchen));
+        assertEquals(1, lan.fallbackCount());
+        assertFalse(lan.send(kitchen, 4, 1L, 1L, 10L, 3, 0));
+    }
+
+    @Test
+    public void networkChange_forgetsStrips() throws Exception {
+        int kitchen = discover();
+        lan.onNetwork(false);
+        assertFalse(lan.isDirect(kitchen));
+        assertEquals(Long.MAX_VALUE, lan.tick(0));
+    }
+
+    @Test
+    public void helloForUnknownStrip_isIgnored() throws Exception {
+        lan.tick(0);
+        helloFrom(strip, "intruder", receive());
+        awaitRejected(1);
+        assertEquals(0, lan.directCount());
+        assertEquals(-1, devices.indexOf("intruder"));
+        assertEquals(2, devices.size());
+    }
+
+    @Test
+    public void helloFromAnotherAddress_doesNotMoveTheStrip() throws Exception {
+        lan.tick(0);
+        DatagramPacket hello = receive();
+        helloFrom(strip, "kitchen", hello);
+        int kitchen = devices.indexOf("kitchen");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!lan.isDirect(kitchen) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        DatagramSocket intruder = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        try {
+            helloFrom(intruder, "kitchen", hello);
+            awaitRejected(1);
+            assertTrue(lan.send(kitchen, 4, 1L, 1L, 5L, 3, 0));
+            // Still goes to the strip
+            assertEquals(MessageCodec.TYPE_STATE, MessageCodec.typeOf(receive().getData(), 0, 3));
+        } finally {
+            intruder.close();
+        }
+    }
+
+    @Test
+    public void ackFromAnotherAddress_isIgnored() throws Exception {
+        int kitchen = discover();
+        assertTrue(lan.send(kitchen, 4, 6L, 2L, 5L, 3, 0));
+        DatagramPacket command = receive();
+        int id = commandId(command, MessageCodec.HEADER_LENGTH + 3);
+        byte[] ack = new byte[16];
+        int length = MessageCodec.encodeAck(ack, 0, id, true);
+
+        DatagramSocket intruder = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        try {
+            intruder.send(new DatagramPacket(ack, length, command.getSocketAddress()));
+            awaitRejected(1);
+            assertNull(events.poll());
+            assertEquals(1, lan.pendingCount());
+        } finally {
+            intruder.close();
+        }
+        reply(command, ack, length);
+        assertEquals("acked " + kitchen + " 110 5", events.poll(5, TimeUnit.SECONDS));
+    }
+}
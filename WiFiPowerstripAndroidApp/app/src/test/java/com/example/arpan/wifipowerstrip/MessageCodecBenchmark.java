@@ -0,0 +1,111 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/* Microbenchmark comparing MessageCodec with the string based path the
+ * service used before (String concatenation + getBytes() + new MqttMessage for
+ * every publish, substring/parseInt for every sync reply). The codec variants
+ * encode into a pooled Frame and turn it into a message with Frame.toMessage,
+ * as PahoConnection does for every frame PublishPipeline hands it.
+ *
+ * Run the main method from the IDE or with
+ *   java -cp <test classpath> com.example.arpan.wifipowerstrip.MessageCodecBenchmark
+ * It prints ns/op and the bytes allocated per op for each variant.
+ */
+public class MessageCodecBenchmark {
+
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 2000000;
+
+    // Keeps the JIT from removing the work
+    private static long sink;
+
+    interface Case {
+        void run(int i);
+    }
+
+    public static void main(String[] args) {
+        final Frame frame = new Frame();
+
+        final byte[] legacySync = "1:0/2:1/3:0/4:1".getBytes();
+        final byte[] binarySync = new byte[MessageCodec.MAX_FRAME_LENGTH];
+        final int binarySyncLength = MessageCodec.encodeSnapshot(binarySync, 0, 4, 10L);
+        final MessageCodec.Handler handler = new MessageCodec.Adapter() {
+            @Override
+            public void onSnapshot(int count, long bits) {
+                sink += bits;
+            }
+        };
+
+        run("encode state, string path", new Case() {
+            public void run(int i) {
+                String msg = "State:" + (i & 3) + ":" + (i & 1);
+                MqttMessage message = new MqttMessage(msg.getBytes());
+                sink += message.getPayload().length;
+            }
+        });
+        run("encode state, legacy codec", new Case() {
+            public void run(int i) {
+                frame.length = MessageCodec.encodeLegacyState(frame.data, 0, i & 3, (i & 1) != 0);
+                sink += frame.toMessage(0).getPayload().length;
+            }
+        });
+        run("encode state, binary codec", new Case() {
+            public void run(int i) {
+                frame.length = MessageCodec.encodeState(frame.data, 0, i & 3, (i & 1) != 0);
+                sink += frame.toMessage(0).getPayload().length;
+            }
+        });
+        run("decode sync, substring path", new Case() {
+            public void run(int i) {
+                String msg = new String(legacySync);
+                sink += Integer.parseInt(msg.substring(2, 3))
+                        + Integer.parseInt(msg.substring(6, 7))
+                        + Integer.parseInt(msg.substring(10, 11))
+                        + Integer.parseInt(msg.substring(14, 15));
+            }
+        });
+        run("decode sync, legacy codec", new Case() {
+            public void run(int i) {
+                MessageCodec.decode(legacySync, 0, legacySync.length, handler);
+            }
+        });
+        run("decode sync, binary codec", new Case() {
+            public void run(int i) {
+                MessageCodec.decode(binarySync, 0, binarySyncLength, handler);
+            }
+        });
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void run(String name, Case c) {
+        for (int i = 0; i < WARMUP; i++) {
+            c.run(i);
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            c.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.println(String.format("%-30s %8.1f ns/op %8.1f B/op", name,
+                (double) elapsed / ITERATIONS,
+                allocated < 0 ? Double.NaN : (double) allocated / ITERATIONS));
+    }
+
+    // Bytes allocated by this thread, or -1 when the JVM can't tell us
+    private static long allocatedBytes() {
+        try {
+            Object bean = ManagementFactory.getThreadMXBean();
+            Method m = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) m.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageCodecTest {
+
+    // Records the last message decoded
+    private static class Recorder extends MessageCodec.Adapter {
+        String last;
+
+        @Override
+        public void onHello(int version) {
+            last = "hello " + version;
+        }
+
+        @Override
+        public void onState(int outlet, boolean on) {
+            last = "state " + outlet + " " + on;
+        }
+
+        @Override
+        public void onSyncRequest(long sinceVersion) {
+            last = "sync " + sinceVersion;
+        }
+
+        @Override
+        public void onSnapshot(int count, long bits) {
+            last = "snapshot " + count + " " + Long.toBinaryString(bits);
+        }
+
+        @Override
+        public void onBattery(int permille, int hour, int minute) {
+            last = "battery " + permille + " " + hour + ":" + minute;
+        }
+
+        @Override
+        public void onSetting(int key, int a, int b) {
+            last = "setting " + key + " " + a + " " + b;
+        }
+
+        @Override
+        public void onBatch(int count, long mask, long values) {
+            last = "batch " + count + " " + Long.toBinaryString(mask) + " " + Long.toBinaryString(values);
+        }
+
+        @Override
+        public void onDelta(long version, int count, long mask, long values) {
+            last = "delta " + version + " " + count + " " + Long.toBinaryString(mask) + " " + Long.toBinaryString(values);
+        }
+
+        @Override
+        public void onAck(int id, boolean applied) {
+            last = "ack " + id + " " + applied;
+        }
+
+        long stamp;
+        String deviceId;
+
+        @Override
+        public void onStamp(long stamp) {
+            this.stamp = stamp;
+        }
+
+        @Override
+        public void onDeviceId(String id) {
+            deviceId = id;
+        }
+
+        @Override
+        public void onPower(int outlet, int milliamps, int milliwatts) {
+            last = (last == null ? "" : last + ";") + "power " + outlet + " " + milliamps + " " + milliwatts;
+        }
+    }
+
+    private final byte[] buf = new byte[MessageCodec.MAX_FRAME_LENGTH];
+    private final Recorder recorder = new Recorder();
+
+    private String decode(int len) {
+        recorder.last = null;
+        assertTrue(MessageCodec.decode(buf, 0, len, recorder));
+        return recorder.last;
+    }
+
+    private String text(int len) {
+        return new String(buf, 0, len);
+    }
+
+    @Test
+    public void binaryFrames_roundTrip() throws Exception {
+        assertEquals("hello 1", decode(MessageCodec.encodeHello(buf, 0)));
+        assertEquals("state 3 true", decode(MessageCodec.encodeState(buf, 0, 3, true)));
+        assertEquals("sync 0", decode(MessageCodec.encodeSync(buf, 0)));
+        assertEquals("sync 1476000000123", decode(MessageCodec.encodeSync(buf, 0, 1476000000123L)));
+        assertEquals("snapshot 4 1010", decode(MessageCodec.encodeSnapshot(buf, 0, 4, 10L)));
+        assertEquals("snapshot 12 100000000001", decode(MessageCodec.encodeSnapshot(buf, 0, 12, 0x801L)));
+        assertEquals("battery 857 7:5", decode(MessageCodec.encodeBattery(buf, 0, 857, 7, 5)));
+        assertEquals("setting 2 7 30", decode(MessageCodec.encodeSetting(buf, 0, MessageCodec.SETTING_TIMER_ON, 7, 30)));
+        assertEquals("batch 4 1101 1001", decode(MessageCodec.encodeBatch(buf, 0, 4, 13L, 9L)));
+        assertEquals("delta 42 4 100 100", decode(MessageCodec.encodeDelta(buf, 0, 42L, 4, 4L, 4L)));
+        assertEquals("delta 43 4 0 0", decode(MessageCodec.encodeDelta(buf, 0, 43L, 4, 0L, 0L)));
+        assertEquals("ack 7 true", decode(MessageCodec.encodeAck(buf, 0, 7, true)));
+        assertEquals("ack -2 false", decode(MessageCodec.encodeAck(buf, 0, -2, false)));
+    }
+
+    @Test
+    public void commandsWithIds_decodeLikeCommandsWithout() throws Exception {
+        assertEquals(MessageCodec.encodeState(buf, 0, 3, true) + 4, MessageCodec.encodeState(buf, 0, 3, true, 99));
+        assertEquals("state 3 true", decode(MessageCodec.encodeState(buf, 0, 3, true, 99)));
+        assertEquals("batch 4 1101 1001", decode(MessageCodec.encodeBatch(buf, 0, 4, 13L, 9L, 99)));
+    }
+
+    @Test
+    public void stampedCommands_decodeLikeCommandsWithout() throws Exception {
+        assertEquals(MessageCodec.encodeState(buf, 0, 3, true, 99) + 12,
+                MessageCodec.encodeState(buf, 0, 3, true, 99, 1L << 40, -1));
+        assertEquals("state 3 true", decode(MessageCodec.encodeState(buf, 0, 3, true, 99, 1L << 40, -1)));
+        assertEquals("batch 4 1101 1001", decode(MessageCodec.encodeBatch(buf, 0, 4, 13L, 9L, 99, 5L, 6)));
+    }
+
+    @Test
+    public void stampedDelta_reportsStampFirst() throws Exception {
+        long stamp = (1476000000123L << HybridClock.COUNTER_BITS) + 3;
+        assertEquals("delta 42 4 100 100", decode(MessageCodec.encodeDelta(buf, 0, 42L, 4, 4L, 4L, stamp)));
+        assertEquals(stamp, recorder.stamp);
+        recorder.stamp = 0;
+        decode(MessageCodec.encodeDelta(buf, 0, 43L, 4, 0L, 0L));
+        assertEquals(0, recorder.stamp);
+    }
+
+    @Test
+    public void helloWithDeviceId_reportsIdFirst() throws Exception {
+        assertEquals("hello 1", decode(MessageCodec.encodeHello(buf, 0, "kitchen")));
+        assertEquals("kitchen", recorder.deviceId);
+        recorder.deviceId = null;
+        assertEquals("hello 1", decode(MessageCodec.encodeHello(buf, 0)));
+        assertNull(recorder.deviceId);
+    }
+
+    @Test
+    public void powerReadings_roundTrip() throws Exception {
+        int[] outlets = {1, 4};
+        int[] milliamps = {250, 70000};
+        int[] milliwatts = {57500, 3000000};
+        int length = MessageCodec.encodePower(buf, 0, 2, outlets, milliamps, milliwatts);
+        recorder.last = null;
+        assertTrue(MessageCodec.decode(buf, 0, length, recorder));
+        assertEquals("power 1 250 57500;power 4 65535 3000000", recorder.last);
+        assertEquals(MessageCodec.TYPE_POWER, MessageCodec.typeOf(buf, 0, length));
+        assertFalse(MessageCodec.decode(buf, 0, length - 1, recorder));
+    }
+
+    @Test
+    public void legacyText_matchesOldFormat() throws Exception {
+        assertEquals("State:1:1", text(MessageCodec.encodeLegacyState(buf, 0, 1, true)));
+        assertEquals("Sync", text(MessageCodec.encodeLegacySync(buf, 0)));
+        assertEquals("Sync:1476000000123", text(MessageCodec.encodeLegacySync(buf, 0, 1476000000123L)));
+        assertEquals("Delta:42:3:1", text(MessageCodec.encodeLegacyDelta(buf, 0, 42L, 4, 4L, 4L)));
+        assertEquals("Delta:43:", text(MessageCodec.encodeLegacyDelta(buf, 0, 43L, 4, 0L, 0L)));
+        assertEquals("1:0/2:1/3:0/4:1", text(MessageCodec.encodeLegacySnapshot(buf, 0, 4, 10L)));
+        assertEquals("Current:85.7:07-05", text(MessageCodec.encodeLegacyBattery(buf, 0, 857, 7, 5)));
+        assertEquals("Update:Battery:90", text(MessageCodec.encodeLegacySetting(buf, 0, MessageCodec.SETTING_BATTERY, 90, 0)));
+        assertEquals("Update:Timer Off:23-5", text(MessageCodec.encodeLegacySetting(buf, 0, MessageCodec.SETTING_TIMER_OFF, 23, 5)));
+        assertEquals("Batch:1:1/3:0/4:1", text(MessageCodec.encodeLegacyBatch(buf, 0, 4, 13L, 9L)));
+    }
+
+    @Test
+    public void legacyTypes_needTheirWholePrefix() throws Exception {
+        int len = MessageCodec.encodeLegacySetting(buf, 0, MessageCodec.SETTING_BATTERY, 90, 0);
+        assertEquals(MessageCodec.TYPE_SETTING, MessageCodec.typeOf(buf, 0, len));
+        byte[] other = "Unknown:1".getBytes("US-ASCII");
+        assertEquals(0, MessageCodec.typeOf(other, 0, other.length));
+        byte[] partial = "Update".getBytes("US-ASCII");
+        assertEquals(0, MessageCodec.typeOf(partial, 0, partial.length));
+    }
+
+    @Test
+    public void legacyText_roundTrip() throws Exception {
+        assertEquals("state 12 false", decode(MessageCodec.encodeLegacyState(buf, 0, 12, false)));
+        assertEquals("sync 0", decode(MessageCodec.encodeLegacySync(buf, 0)));
+        assertEquals("sync 77", decode(MessageCodec.encodeLegacySync(buf, 0, 77L)));
+        assertEquals("delta 42 3 100 100", decode(MessageCodec.encodeLegacyDelta(buf, 0, 42L, 4, 4L, 4L)));
+        assertEquals("delta 43 0 0 0", decode(MessageCodec.encodeLegacyDelta(buf, 0, 43L, 4, 0L, 0L)));
+        assertEquals("snapshot 4 1010", decode(MessageCodec.encodeLegacySnapshot(buf, 0, 4, 10L)));
+        assertEquals("battery 1000 23:59", decode(MessageCodec.encodeLegacyBattery(buf, 0, 1000, 23, 59)));
+        assertEquals("setting 3 23 5", decode(MessageCodec.encodeLegacySetting(buf, 0, MessageCodec.SETTING_TIMER_OFF, 23, 5)));
+        assertEquals("batch 4 1101 1001", decode(MessageCodec.encodeLegacyBatch(buf, 0, 4, 13L, 9L)));
+    }
+
+    @Test
+    public void legacySnapshot_toleratesOtherLayouts() throws Exception {
+        byte[] msg = "4:1/1:1/10:1".getBytes();
+        recorder.last = null;
+        assertTrue(MessageCodec.decode(msg, 0, msg.length, recorder));
+        assertEquals("snapshot 10 1000001001", recorder.last);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchOfMoreThan64Outlets_isRefused() throws Exception {
+        MessageCodec.encodeBatch(buf, 0, 65, 1L, 1L);
+    }
+
+    @Test
+    public void garbage_isRejected() throws Exception {
+        byte[] msg = "Nonsense".getBytes();
+        assertFalse(MessageCodec.decode(msg, 0, msg.length, recorder));
+        byte[] frame = {MessageCodec.MAGIC, MessageCodec.VERSION, 99};
+        assertFalse(MessageCodec.decode(frame, 0, frame.length, recorder));
+        byte[] truncated = {MessageCodec.MAGIC, MessageCodec.VERSION, MessageCodec.TYPE_STATE, 1};
+        assertFalse(MessageCodec.decode(truncated, 0, truncated.length, recorder));
+    }
+}
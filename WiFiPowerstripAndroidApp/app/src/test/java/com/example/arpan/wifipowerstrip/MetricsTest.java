@@ -0,0 +1,76 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    private final byte[] buf = new byte[MessageCodec.MAX_FRAME_LENGTH];
+
+    @Test
+    public void messages_areCountedByType() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.onSubmitted(MessageCodec.typeOf(buf, 0, MessageCodec.encodeBatch(buf, 0, 4, 3L, 1L)), 0);
+        metrics.onSubmitted(MessageCodec.typeOf(buf, 0, MessageCodec.encodeLegacyState(buf, 0, 1, true)), 1);
+        metrics.onReceived(MessageCodec.typeOf(buf, 0, MessageCodec.encodeLegacySnapshot(buf, 0, 4, 5L)));
+        metrics.onReceived(MessageCodec.typeOf(buf, 0, MessageCodec.encodeDelta(buf, 0, 7L, 4, 1L, 1L)));
+        metrics.onReceived(-3);
+        Metrics.Snapshot s = metrics.snapshot();
+        assertEquals(1, s.sentByType[MessageCodec.TYPE_BATCH]);
+        assertEquals(1, s.sentByType[MessageCodec.TYPE_STATE]);
+        assertEquals(1, s.receivedByType[MessageCodec.TYPE_SNAPSHOT]);
+        assertEquals(1, s.receivedByType[MessageCodec.TYPE_DELTA]);
+        assertEquals(1, s.receivedByType[0]);
+        assertEquals(1, s.queueDepthMax);
+    }
+
+    @Test
+    public void syncRtt_isRecordedOncePerSync() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.onSyncReply();
+        metrics.onSyncSent();
+        Thread.sleep(2);
+        metrics.onSyncReply();
+        metrics.onSyncReply();
+        Metrics.Snapshot s = metrics.snapshot();
+        assertEquals(1, s.syncCount);
+        assertTrue(s.syncMaxMicros >= 2000);
+    }
+
+    @Test
+    public void timeToFreshState_isMeasuredFromStartAndReconnects() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.onConnected();
+        Thread.sleep(2);
+        metrics.onPrimaryState(1);
+        // Only the first state after connecting counts
+        metrics.onPrimaryState(0);
+        Metrics.Snapshot s = metrics.snapshot();
+        assertEquals(1, s.freshCount);
+        assertTrue(s.coldStartMicros >= 2000);
+        assertEquals(1, s.coldStartStaleOutlets);
+
+        metrics.onDisconnected();
+        metrics.onConnected();
+        metrics.onPrimaryState(0);
+        s = metrics.snapshot();
+        assertEquals(2, s.freshCount);
+        assertEquals(1, s.coldStartStaleOutlets);
+    }
+
+    @Test
+    public void disconnections_areTimed() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.onConnected();
+        metrics.onDisconnected();
+        metrics.onDisconnected();
+        Thread.sleep(5);
+        metrics.onConnected();
+        Metrics.Snapshot s = metrics.snapshot();
+        assertEquals(1, s.reconnects);
+        assertEquals(1, s.disconnects);
+        assertTrue(s.disconnectedMillis >= 5);
+        assertTrue(metrics.dump().contains("reconnects=1"));
+    }
+}
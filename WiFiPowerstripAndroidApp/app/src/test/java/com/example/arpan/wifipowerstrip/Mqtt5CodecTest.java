@@ -0,0 +1,124 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Mqtt5CodecTest {
+
+    private final Mqtt5Codec.Writer writer = new Mqtt5Codec.Writer(64);
+
+    // Reader over the body of the packet in the writer, checking its fixed
+    // header on the way
+    private Mqtt5Codec.Reader body(int type) throws Exception {
+        Mqtt5Codec.Reader r = new Mqtt5Codec.Reader(writer.buf, writer.start(), writer.length());
+        assertEquals(type, r.u8() >> 4);
+        int length = r.varint();
+        assertEquals(length, r.remaining());
+        return r;
+    }
+
+    @Test
+    public void connect_carriesSessionExpiryAliasAndPacketMaximum() throws Exception {
+        Mqtt5Codec.connect(writer, "phone", 720, 3600, 16, 65536, false);
+        Mqtt5Codec.Reader r = body(Mqtt5Codec.CONNECT);
+        assertEquals("MQTT", r.string());
+        assertEquals(5, r.u8());
+        assertEquals(0, r.u8());
+        assertEquals(720, r.u16());
+        assertEquals(13, r.varint());
+        assertEquals(Mqtt5Codec.PROP_SESSION_EXPIRY, r.u8());
+        assertEquals(3600, r.u32());
+        assertEquals(Mqtt5Codec.PROP_TOPIC_ALIAS_MAXIMUM, r.u8());
+        assertEquals(16, r.u16());
+        assertEquals(Mqtt5Codec.PROP_MAXIMUM_PACKET_SIZE, r.u8());
+        assertEquals(65536, r.u32());
+        assertEquals("phone", r.string());
+        assertEquals(0, r.remaining());
+    }
+
+    @Test
+    public void publish_roundTripsResponseTopicAndCorrelation() throws Exception {
+        byte[] payload = {1, 2, 3};
+        Mqtt5Codec.publish(writer, "strip/1/cmd", 1, "strip/1/reply/phone", -5, payload, 0, 3, 0, 0);
+        Mqtt5Codec.Reader r = body(Mqtt5Codec.PUBLISH);
+        String[] topics = new String[4];
+        Mqtt5Codec.Publish p = new Mqtt5Codec.Publish();
+        Mqtt5Codec.readPublish(r, 0, topics, p);
+        assertEquals("strip/1/cmd", p.topic);
+        assertEquals(1, p.alias);
+        assertEquals(-5, p.correlation);
+        assertArrayEquals(payload, p.payload);
+        assertEquals("strip/1/cmd", topics[1]);
+    }
+
+    @Test
+    public void aliasOnlyPublish_isSmallerAndResolves() throws Exception {
+        byte[] payload = {7};
+        Mqtt5Codec.publish(writer, "strip/kitchen/cmd", 2, null, 0, payload, 0, 1, 0, 0);
+        int full = writer.length();
+        String[] topics = new String[4];
+        Mqtt5Codec.readPublish(body(Mqtt5Codec.PUBLISH), 0, topics, new Mqtt5Codec.Publish());
+
+        Mqtt5Codec.publish(writer, null, 2, null, 0, payload, 0, 1, 0, 0);
+        assertEquals(full - "strip/kitchen/cmd".length(), writer.length());
+        Mqtt5Codec.Publish p = new Mqtt5Codec.Publish();
+        Mqtt5Codec.readPublish(body(Mqtt5Codec.PUBLISH), 0, topics, p);
+        assertEquals("strip/kitchen/cmd", p.topic);
+        assertEquals(0, p.correlation);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void unknownInboundAlias_isRejected() throws Exception {
+        Mqtt5Codec.publish(writer, null, 3, null, 0, new byte[0], 0, 0, 0, 0);
+        Mqtt5Codec.readPublish(body(Mqtt5Codec.PUBLISH), 0, new String[4], new Mqtt5Codec.Publish());
+    }
+
+    @Test
+    public void qos1Publish_carriesPacketId() throws Exception {
+        Mqtt5Codec.publish(writer, "t", 0, null, 0, new byte[200], 0, 200, 1, 42);
+        // Long enough for a 2 byte remaining length
+        assertEquals(0x32, writer.buf[writer.start()] & 0xFF);
+        Mqtt5Codec.Publish p = new Mqtt5Codec.Publish();
+        Mqtt5Codec.readPublish(body(Mqtt5Codec.PUBLISH), 0x02, new String[1], p);
+        assertEquals(1, p.qos);
+        assertEquals(42, p.packetId);
+        assertEquals(200, p.payload.length);
+    }
+
+    @Test
+    public void topics_areEncodedOnce() throws Exception {
+        String topic = "strip/1/cmd";
+        byte[] bytes = writer.encode(topic);
+        Mqtt5Codec.publish(writer, topic, 0, null, 0, new byte[0], 0, 0, 0, 0);
+        assertSame(bytes, writer.encode(topic));
+        // An equal but different string is encoded again
+        assertNotSame(bytes, writer.encode(new String(topic)));
+        assertArrayEquals(bytes, writer.encode(new String(topic)));
+    }
+
+    @Test
+    public void connack_readsPropertiesAndLegacyRefusal() throws Exception {
+        byte[] v5 = {1, 0, 9, 0x22, 0, 10, 0x1F, 0, 2, 'o', 'k', 0x13, 0, 30};
+        Mqtt5Codec.Connack c = new Mqtt5Codec.Connack();
+        Mqtt5Codec.readConnack(new Mqtt5Codec.Reader(v5, 0, v5.length), c);
+        assertFalse(c.legacy);
+        assertTrue(c.sessionPresent);
+        assertEquals(0, c.reason);
+        assertEquals(10, c.topicAliasMaximum);
+        assertEquals(30, c.serverKeepAlive);
+
+        byte[] v311 = {0, Mqtt5Codec.LEGACY_UNACCEPTABLE_PROTOCOL};
+        Mqtt5Codec.readConnack(new Mqtt5Codec.Reader(v311, 0, v311.length), c);
+        assertTrue(c.legacy);
+        assertEquals(Mqtt5Codec.LEGACY_UNACCEPTABLE_PROTOCOL, c.reason);
+    }
+
+    @Test
+    public void suback_failsIfAnyFilterWasRefused() throws Exception {
+        byte[] granted = {0, 1, 0, 1, 1};
+        assertTrue(Mqtt5Codec.readSuback(new Mqtt5Codec.Reader(granted, 0, granted.length)));
+        byte[] refused = {0, 1, 0, 1, (byte) 0x87};
+        assertFalse(Mqtt5Codec.readSuback(new Mqtt5Codec.Reader(refused, 0, refused.length)));
+    }
+}
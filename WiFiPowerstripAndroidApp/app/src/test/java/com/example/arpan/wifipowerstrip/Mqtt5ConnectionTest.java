@@ -0,0 +1,143 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class Mqtt5ConnectionTest {
+
+    private ServerSocket server;
+    private Mqtt5Connection connection;
+
+    // Listener events as strings, in order
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+    private final BrokerConnection.Listener recorder = new BrokerConnection.Listener() {
+        public void onConnected() {
+            events.add("connected");
+        }
+
+        public void onConnectFailed(Throwable cause, boolean unsupported) {
+            events.add("failed " + unsupported);
+        }
+
+        public void onConnectionLost(Throwable cause) {
+            events.add("lost");
+        }
+
+        public void onSubscribed(boolean ok) {
+            events.add("subscribed " + ok);
+        }
+
+        public void onMessage(String topic, byte[] payload, int correlation) {
+            events.add("message " + topic + " " + payload.length + " " + correlation);
+        }
+
+        public void onPublished(Frame frame, boolean ok) {
+            events.add("published " + ok);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        connection = new Mqtt5Connection("127.0.0.1", server.getLocalPort(), "phone", 60, 3600, null, recorder);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.disconnect();
+        server.close();
+    }
+
+    // Reads one packet from the client, returning its first byte followed
+    // by its body
+    private static byte[] readPacket(DataInputStream in) throws Exception {
+        int header = in.readUnsignedByte();
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        byte[] packet = new byte[1 + length];
+        packet[0] = (byte) header;
+        in.readFully(packet, 1, length);
+        return packet;
+    }
+
+    private String next() throws Exception {
+        return events.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void publishes_useTopicAliasAfterTheFirst() throws Exception {
+        connection.connect();
+        Socket broker = server.accept();
+        DataInputStream in = new DataInputStream(broker.getInputStream());
+        OutputStream out = broker.getOutputStream();
+        assertEquals(Mqtt5Codec.CONNECT, (readPacket(in)[0] & 0xFF) >> 4);
+        // CONNACK allowing 4 topic aliases
+        out.write(new byte[] {0x20, 6, 0, 0, 3, 0x22, 0, 4});
+        assertEquals("connected", next());
+
+        Frame frame = new Frame();
+        frame.topic = "strip/kitchen/cmd";
+        frame.length = 3;
+        connection.publish(frame);
+        connection.publish(frame);
+        assertEquals("published true", next());
+        assertEquals("published true", next());
+        byte[] first = readPacket(in);
+        byte[] second = readPacket(in);
+        assertEquals(first.length - frame.topic.length(), second.length);
+        assertEquals(1, connection.aliasedCount());
+        // Both publishes have a 1 byte remaining length
+        Mqtt5Codec.Writer connect = new Mqtt5Codec.Writer(64);
+        Mqtt5Codec.connect(connect, "phone", 60, 3600, Mqtt5Connection.INBOUND_ALIASES,
+                Mqtt5Connection.MAX_PACKET, false);
+        assertEquals(connect.length() + first.length + 1 + second.length + 1, connection.bytesSent());
+
+        // A message from the broker on our reply topic with correlation data
+        out.write(new byte[] {0x30, 18, 0, 7, 's', 't', 'r', 'i', 'p', '/', '1',
+                7, 0x09, 0, 4, 0, 0, 0, 9, 42});
+        assertEquals("message strip/1 1 9", next());
+
+        broker.close();
+        assertEquals("lost", next());
+    }
+
+    @Test
+    public void legacyRefusal_isReportedAsUnsupported() throws Exception {
+        connection.connect();
+        Socket broker = server.accept();
+        readPacket(new DataInputStream(broker.getInputStream()));
+        // 3.1.1 CONNACK, unacceptable protocol version
+        broker.getOutputStream().write(new byte[] {0x20, 2, 0, 1});
+        assertEquals("failed true", next());
+        assertFalse(connection.isConnected());
+        broker.close();
+    }
+
+    @Test
+    public void otherRefusals_areNotUnsupported() throws Exception {
+        connection.connect();
+        Socket broker = server.accept();
+        readPacket(new DataInputStream(broker.getInputStream()));
+        // Not authorized
+        broker.getOutputStream().write(new byte[] {0x20, 3, 0, (byte) 0x87, 0});
+        assertEquals("failed false", next());
+        broker.close();
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutletStoreTest {
+
+    @Test
+    public void deltas_applyOnlyChangedOutlets() throws Exception {
+        OutletStore store = new OutletStore();
+        // First reply carries every outlet
+        assertEquals(15L, store.applyDelta(0, 10, 4, 15L, 5L));
+        assertEquals(5L, store.word(0, 0));
+        assertEquals(10, store.version(0));
+
+        // Outlet 2 turned on
+        assertEquals(2L, store.applyDelta(0, 11, 2, 2L, 2L));
+        assertEquals(7L, store.word(0, 0));
+        assertEquals(4, store.count(0));
+
+        // Nothing changed
+        assertEquals(0L, store.applyDelta(0, 11, 4, 0L, 0L));
+        assertEquals(7L, store.word(0, 0));
+    }
+
+    @Test
+    public void staleDeltas_areIgnored() throws Exception {
+        OutletStore store = new OutletStore();
+        store.applyDelta(0, 20, 4, 15L, 0L);
+        assertEquals(0L, store.applyDelta(0, 19, 4, 1L, 1L));
+        assertEquals(0L, store.word(0, 0));
+        assertEquals(20, store.version(0));
+    }
+
+    @Test
+    public void snapshots_keepVersion() throws Exception {
+        OutletStore store = new OutletStore();
+        store.applyDelta(0, 20, 4, 15L, 0L);
+        assertEquals(9L, store.applySnapshot(0, 4, 9L));
+        assertEquals(9L, store.word(0, 0));
+        assertEquals(20, store.version(0));
+        assertEquals(0L, store.applySnapshot(0, 4, 9L));
+    }
+
+    @Test
+    public void strips_areIndependent() throws Exception {
+        OutletStore store = new OutletStore();
+        store.applyDelta(0, 5, 4, 15L, 1L);
+        assertEquals(3L, store.applyDelta(2, 7, 2, 3L, 2L));
+        assertEquals(3, store.stripCount());
+        assertEquals(0, store.count(1));
+        assertTrue(store.isOn(0, 1));
+        assertFalse(store.isOn(2, 1));
+        assertTrue(store.isOn(2, 2));
+        assertEquals(5, store.version(0));
+        assertEquals(7, store.version(2));
+    }
+
+    @Test
+    public void manyOutlets_spanSeveralWords() throws Exception {
+        OutletStore store = new OutletStore();
+        int count = 130;
+        long[] all = {-1L, -1L, 3L};
+        long[] changed = new long[OutletStore.wordCount(count)];
+        assertTrue(store.applyDelta(0, 1, count, all, new long[3], changed));
+        assertArrayEquals(all, changed);
+
+        // Outlets 65 and 130 turned on, only they are reported
+        long[] mask = {0L, 1L, 2L};
+        assertTrue(store.applyDelta(0, 2, count, mask, mask, changed));
+        assertArrayEquals(mask, changed);
+        assertTrue(store.isOn(0, 65));
+        assertTrue(store.isOn(0, 130));
+        assertFalse(store.isOn(0, 64));
+
+        assertFalse(store.applyDelta(0, 3, count, mask, mask, changed));
+        assertArrayEquals(new long[3], changed);
+    }
+}
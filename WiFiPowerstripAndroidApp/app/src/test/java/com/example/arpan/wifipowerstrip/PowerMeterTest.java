@@ -0,0 +1,89 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PowerMeterTest {
+
+    private static final long MILLI = 1000L * 1000L;
+    private static final long SECOND = 1000L * MILLI;
+
+    private final PowerMeter meter = new PowerMeter(4);
+    private final long[] out = new long[PowerMeter.FIELDS];
+
+    @Test
+    public void windows_aggregateMinMaxMeanAndEnergy() throws Exception {
+        long t = 100 * SECOND;
+        // 10 W for half a second, then 30 W for half a second
+        for (int i = 0; i < 5; i++) {
+            meter.record(1, 43, 10000, t + i * 100 * MILLI);
+        }
+        for (int i = 5; i < 10; i++) {
+            meter.record(1, 130, 30000, t + i * 100 * MILLI);
+        }
+        long end = t + 950 * MILLI;
+        meter.read(1, PowerMeter.WINDOW_SECOND, end, out);
+        assertEquals(10000, out[PowerMeter.MIN_MILLIWATTS]);
+        assertEquals(30000, out[PowerMeter.MAX_MILLIWATTS]);
+        assertEquals(20000, out[PowerMeter.MEAN_MILLIWATTS]);
+        assertEquals(10, out[PowerMeter.READINGS]);
+        // 5 x 100 ms at 10 W and 4 x 100 ms at 30 W so far
+        assertEquals(5 * 100 * 10000 + 4 * 100 * 30000, out[PowerMeter.ENERGY_MICROJOULES]);
+        assertEquals(130, meter.lastMilliamps(1));
+
+        meter.read(1, PowerMeter.WINDOW_HOUR, end, out);
+        assertEquals(10, out[PowerMeter.READINGS]);
+        meter.read(2, PowerMeter.WINDOW_SECOND, end, out);
+        assertEquals(0, out[PowerMeter.READINGS]);
+    }
+
+    @Test
+    public void oldReadings_leaveShortWindowsFirst() throws Exception {
+        long t = 100 * SECOND;
+        meter.record(2, 0, 5000, t);
+        meter.record(2, 0, 7000, t + 2 * SECOND);
+        meter.read(2, PowerMeter.WINDOW_SECOND, t + 2 * SECOND, out);
+        assertEquals(1, out[PowerMeter.READINGS]);
+        assertEquals(7000, out[PowerMeter.MIN_MILLIWATTS]);
+        meter.read(2, PowerMeter.WINDOW_MINUTE, t + 2 * SECOND, out);
+        assertEquals(2, out[PowerMeter.READINGS]);
+        assertEquals(6000, out[PowerMeter.MEAN_MILLIWATTS]);
+        // The ring came round, the old bucket doesn't count any more
+        meter.read(2, PowerMeter.WINDOW_MINUTE, t + 61 * SECOND, out);
+        assertEquals(1, out[PowerMeter.READINGS]);
+        meter.read(2, PowerMeter.WINDOW_MINUTE, t + 70 * SECOND, out);
+        assertEquals(0, out[PowerMeter.READINGS]);
+    }
+
+    @Test
+    public void gaps_areCapped() throws Exception {
+        meter.record(3, 0, 1000, SECOND);
+        meter.record(3, 0, 1000, 100 * SECOND);
+        meter.read(3, PowerMeter.WINDOW_HOUR, 100 * SECOND, out);
+        assertEquals(PowerMeter.MAX_GAP_MILLIS * 1000, out[PowerMeter.ENERGY_MICROJOULES]);
+    }
+
+    @Test
+    public void changedOutlets_areReportedOncePerTake() throws Exception {
+        assertTrue(meter.record(1, 0, 1, SECOND));
+        assertFalse(meter.record(3, 0, 1, SECOND));
+        assertFalse(meter.record(9, 0, 1, SECOND));
+        assertEquals(5L, meter.takeChanged());
+        assertEquals(0L, meter.takeChanged());
+        assertTrue(meter.record(1, 0, 1, 2 * SECOND));
+    }
+
+    @Test
+    public void recent_copiesTheRingOldestFirst() throws Exception {
+        for (int i = 0; i < PowerMeter.RAW_CAPACITY + 3; i++) {
+            meter.record(4, 0, i, SECOND + i);
+        }
+        long[] nanos = new long[PowerMeter.RAW_CAPACITY + 10];
+        int[] mw = new int[nanos.length];
+        assertEquals(PowerMeter.RAW_CAPACITY, meter.recent(4, nanos, mw));
+        assertEquals(3, mw[0]);
+        assertEquals(PowerMeter.RAW_CAPACITY + 2, mw[PowerMeter.RAW_CAPACITY - 1]);
+        assertEquals(SECOND + 3, nanos[0]);
+    }
+}
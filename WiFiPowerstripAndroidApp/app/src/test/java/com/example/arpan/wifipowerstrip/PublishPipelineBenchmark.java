@@ -0,0 +1,67 @@
+package com.example.arpan.wifipowerstrip;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/* Measures how fast PublishPipeline moves a burst of publishes from the
+ * calling thread to a transport that completes each one immediately, like a
+ * qos 0 publish on a fast link.
+ *
+ * Run the main method from the IDE or with
+ *   java -cp <test classpath> com.example.arpan.wifipowerstrip.PublishPipelineBenchmark
+ * It prints msg/s for each round and how often the caller found the frame
+ * pool empty.
+ */
+public class PublishPipelineBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int MESSAGES = 1000000;
+    private static final int POOL = 64;
+
+    private static class FakeTransport implements PublishPipeline.Transport {
+        PublishPipeline pipeline;
+        CountDownLatch published;
+
+        public boolean isConnected() {
+            return true;
+        }
+
+        public void publish(Frame frame) {
+            pipeline.complete(frame, true);
+            published.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // The first round warms up the JIT
+        for (int round = 0; round < ROUNDS; round++) {
+            run(round);
+        }
+    }
+
+    private static void run(int round) throws InterruptedException {
+        FakeTransport transport = new FakeTransport();
+        PublishPipeline pipeline = new PublishPipeline(transport, POOL);
+        transport.pipeline = pipeline;
+        transport.published = new CountDownLatch(MESSAGES);
+        pipeline.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            Frame frame;
+            while ((frame = pipeline.acquire()) == null) {
+                Thread.yield();
+            }
+            frame.length = MessageCodec.encodeState(frame.data, 0, i & 3, (i & 1) != 0);
+            frame.topic = "FromAndroid";
+            pipeline.submit(frame);
+        }
+        boolean done = transport.published.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        pipeline.stop();
+
+        System.out.println(String.format("round %d: %d publishes%s, %.0f msg/s, %d dropped while pool was empty",
+                round, pipeline.publishedCount(), done ? "" : " (timed out)",
+                pipeline.publishedCount() * 1e9 / elapsed, pipeline.droppedCount()));
+    }
+}
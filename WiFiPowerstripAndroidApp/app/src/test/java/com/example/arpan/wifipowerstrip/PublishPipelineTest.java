@@ -0,0 +1,74 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PublishPipelineTest {
+
+    // Completes every publish immediately, like a qos 0 publish on a fast link
+    private static class FakeTransport implements PublishPipeline.Transport {
+        PublishPipeline pipeline;
+        volatile boolean connected = true;
+        CountDownLatch published;
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        public void publish(Frame frame) {
+            pipeline.complete(frame, true);
+            published.countDown();
+        }
+    }
+
+    @Test
+    public void burst_isPublishedWithoutBlockingCaller() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        PublishPipeline pipeline = new PublishPipeline(transport, 64);
+        transport.pipeline = pipeline;
+        int messages = 100000;
+        transport.published = new CountDownLatch(messages);
+        pipeline.start();
+
+        for (int i = 0; i < messages; i++) {
+            Frame frame;
+            while ((frame = pipeline.acquire()) == null) {
+                Thread.yield();
+            }
+            frame.length = MessageCodec.encodeState(frame.data, 0, i & 3, (i & 1) != 0);
+            frame.topic = "FromAndroid";
+            pipeline.submit(frame);
+        }
+        assertTrue(transport.published.await(10, TimeUnit.SECONDS));
+        pipeline.stop();
+
+        assertEquals(messages, pipeline.publishedCount());
+        assertEquals(0, pipeline.failedCount());
+    }
+
+    @Test
+    public void framesWait_whileDisconnected() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        transport.connected = false;
+        transport.published = new CountDownLatch(1);
+        PublishPipeline pipeline = new PublishPipeline(transport, 4);
+        transport.pipeline = pipeline;
+        pipeline.start();
+
+        Frame frame = pipeline.acquire();
+        frame.length = MessageCodec.encodeSync(frame.data, 0);
+        pipeline.submit(frame);
+        assertFalse(transport.published.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, pipeline.queueDepth());
+
+        transport.connected = true;
+        pipeline.wake();
+        assertTrue(transport.published.await(5, TimeUnit.SECONDS));
+        pipeline.stop();
+        assertEquals(1, pipeline.publishedCount());
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectManagerTest {
+
+    private static final long MILLI = 1000L * 1000L;
+
+    private int connects;
+    private final ReconnectManager manager = new ReconnectManager(new ReconnectManager.Connector() {
+        @Override
+        public boolean connect() {
+            connects++;
+            return true;
+        }
+    }, 1000, 60000, new Random(42));
+
+    // Runs the ticker far enough in the future that any scheduled attempt is due
+    private void runDue() {
+        manager.tick(System.nanoTime() + 3600L * 1000L * MILLI);
+    }
+
+    @Test
+    public void failures_backOffExponentiallyUpToCap() throws Exception {
+        manager.connectNow();
+        runDue();
+        assertEquals(1, connects);
+
+        long previousCeiling = 0;
+        for (int i = 1; i <= 10; i++) {
+            manager.onAttemptFailed();
+            long ceiling = Math.min(1000L << i, 60000L);
+            long delay = manager.lastDelayMillis();
+            assertTrue("delay " + delay + " for failure " + i, delay >= ceiling / 2 - 1 && delay <= ceiling);
+            assertTrue(ceiling >= previousCeiling);
+            previousCeiling = ceiling;
+            runDue();
+        }
+        assertEquals(11, connects);
+        assertEquals(10, manager.consecutiveFailures());
+    }
+
+    @Test
+    public void nothingIsScheduled_whileOffline() throws Exception {
+        manager.onNetworkLost();
+        manager.onConnectionLost();
+        manager.connectNow();
+        assertEquals(Long.MAX_VALUE, manager.tick(System.nanoTime()));
+        runDue();
+        assertEquals(0, connects);
+
+        manager.onNetworkAvailable();
+        manager.tick(System.nanoTime());
+        assertEquals(1, connects);
+    }
+
+    @Test
+    public void networkReturn_resetsBackoff() throws Exception {
+        for (int i = 0; i < 8; i++) {
+            manager.onAttemptFailed();
+        }
+        assertEquals(8, manager.consecutiveFailures());
+        manager.onNetworkAvailable();
+        assertEquals(0, manager.consecutiveFailures());
+        manager.tick(System.nanoTime());
+        assertEquals(1, connects);
+    }
+
+    @Test
+    public void stats_trackAttemptsAndSuccesses() throws Exception {
+        manager.connectNow();
+        runDue();
+        manager.onAttemptFailed();
+        runDue();
+        manager.onConnected();
+
+        assertEquals(2, manager.attemptCount());
+        assertEquals(1, manager.successCount());
+        assertEquals(0.5, manager.successRate(), 1e-9);
+        // Not forgotten until the connection has stayed up
+        assertEquals(1, manager.consecutiveFailures());
+    }
+
+    @Test
+    public void quickDrops_keepBackingOff() throws Exception {
+        long now = System.nanoTime();
+        for (int i = 1; i <= 6; i++) {
+            runDue();
+            manager.onConnected(now);
+            // The broker accepts us and drops us again right away
+            now += 100 * MILLI;
+            manager.onConnectionLost(now);
+            assertEquals(i, manager.consecutiveFailures());
+            long ceiling = Math.min(1000L << i, 60000L);
+            long delay = manager.lastDelayMillis();
+            assertTrue("delay " + delay + " for drop " + i, delay >= ceiling / 2 - 1 && delay <= ceiling);
+        }
+        assertEquals(6, manager.successCount());
+
+        // A connection that stays up long enough resets the backoff
+        runDue();
+        manager.onConnected(now);
+        now += ReconnectManager.STABLE_BASES * 1000 * MILLI;
+        manager.onConnectionLost(now);
+        assertEquals(0, manager.consecutiveFailures());
+        assertTrue(manager.lastDelayMillis() <= 1000);
+    }
+}
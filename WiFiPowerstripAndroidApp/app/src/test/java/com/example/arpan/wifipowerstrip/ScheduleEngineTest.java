@@ -0,0 +1,106 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class ScheduleEngineTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+    // Monday 2016-10-10 00:00 UTC
+    private static final long MONDAY = 1476057600000L;
+
+    private final List<String> fired = new ArrayList<String>();
+    private long alarm = Long.MAX_VALUE;
+    private int alarmsSet;
+
+    private final ScheduleEngine engine = new ScheduleEngine(new ScheduleEngine.Callbacks() {
+        @Override
+        public void fire(int outlet, boolean on) {
+            fired.add(outlet + (on ? " on" : " off"));
+        }
+
+        @Override
+        public void scheduleAlarm(long atMillis) {
+            alarm = atMillis;
+            alarmsSet++;
+        }
+
+        @Override
+        public void cancelAlarm() {
+            alarm = Long.MAX_VALUE;
+        }
+    }, UTC);
+
+    @Test
+    public void nextAfter_honorsDaysAndTime() throws Exception {
+        Calendar cal = Calendar.getInstance(UTC);
+        Schedule weekdays7 = new Schedule(2, true, Schedule.WEEKDAYS, 7 * 3600);
+        assertEquals(MONDAY + 7 * HOUR, weekdays7.nextAfter(MONDAY, cal));
+        assertEquals(MONDAY + DAY + 7 * HOUR, weekdays7.nextAfter(MONDAY + 7 * HOUR, cal));
+        // Friday after 7:00 goes to Monday
+        assertEquals(MONDAY + 7 * DAY + 7 * HOUR, weekdays7.nextAfter(MONDAY + 4 * DAY + 8 * HOUR, cal));
+        Schedule sunday = new Schedule(1, false, 1, 30);
+        assertEquals(MONDAY + 6 * DAY + 30000, sunday.nextAfter(MONDAY, cal));
+    }
+
+    @Test
+    public void alarm_isArmedForEarliestDeadline() throws Exception {
+        engine.put(1, Schedule.daily(2, true, 7, 0), MONDAY);
+        engine.put(2, Schedule.daily(2, false, 22, 30), MONDAY);
+        engine.put(3, Schedule.daily(1, true, 6, 15), MONDAY);
+        assertEquals(MONDAY + 6 * HOUR + 15 * 60000, alarm);
+        engine.remove(3);
+        assertEquals(MONDAY + 7 * HOUR, alarm);
+        engine.remove(1);
+        engine.remove(2);
+        assertEquals(Long.MAX_VALUE, alarm);
+    }
+
+    @Test
+    public void onAlarm_firesDueSchedulesInOrderAndRearms() throws Exception {
+        engine.put(1, Schedule.daily(2, true, 7, 0), MONDAY);
+        engine.put(2, Schedule.daily(2, false, 7, 0), MONDAY - 1);
+        engine.put(3, Schedule.daily(3, true, 12, 0), MONDAY);
+        // A slightly early alarm still fires both 7:00 schedules
+        assertEquals(2, engine.onAlarm(MONDAY + 7 * HOUR - 100));
+        assertEquals(2, fired.size());
+        assertEquals(MONDAY + 12 * HOUR, alarm);
+        // Firing early must not fire again right after
+        assertEquals(0, engine.onAlarm(MONDAY + 7 * HOUR + 100));
+        assertEquals(1, engine.onAlarm(MONDAY + 12 * HOUR));
+        assertEquals("3 on", fired.get(2));
+        assertEquals(MONDAY + DAY + 7 * HOUR, alarm);
+        assertEquals(3, engine.firedCount());
+    }
+
+    @Test
+    public void manySchedules_stayOrderedThroughRemovals() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            engine.put(i, new Schedule(1 + i % 32, i % 2 == 0, Schedule.EVERY_DAY, (i * 7919) % 86400), MONDAY);
+        }
+        for (int i = 0; i < 200; i += 3) {
+            assertTrue(engine.remove(i));
+        }
+        assertFalse(engine.remove(0));
+        long previous = 0;
+        int count = 0;
+        long now = MONDAY;
+        while (count < engine.size()) {
+            long next = engine.nextDeadline();
+            assertTrue(next >= previous);
+            count += engine.onAlarm(next);
+            previous = next;
+            now = next;
+        }
+        assertEquals(engine.size(), fired.size());
+        assertTrue(now < MONDAY + DAY);
+    }
+}
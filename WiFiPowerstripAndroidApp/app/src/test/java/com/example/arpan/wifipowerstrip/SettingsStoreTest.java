@@ -0,0 +1,159 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class SettingsStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("settings", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void settings_surviveReload() throws Exception {
+        SettingsStore store = new SettingsStore(file, 60 * 1000L);
+        assertEquals(SettingsStore.UNSET, store.hourOn());
+        store.setBatteryPos(2);
+        store.setTimerOn(7, 30);
+        store.setTimerOff(22, 5);
+        store.setStripId("kitchen");
+        long[] bits = new long[2];
+        bits[0] = 5L;
+        bits[1] = 1L;
+        store.setSnapshot(65, bits, 42L, 1476000000000L);
+        store.flush();
+
+        SettingsStore loaded = new SettingsStore(file, 60 * 1000L);
+        assertEquals(2, loaded.batteryPos());
+        assertEquals(7, loaded.hourOn());
+        assertEquals(30, loaded.minuteOn());
+        assertEquals(22, loaded.hourOff());
+        assertEquals(5, loaded.minuteOff());
+        assertEquals("kitchen", loaded.stripId());
+        assertEquals(65, loaded.outletCount());
+        assertTrue(loaded.isOutletOn(1));
+        assertFalse(loaded.isOutletOn(2));
+        assertTrue(loaded.isOutletOn(3));
+        assertTrue(loaded.isOutletOn(65));
+        assertEquals(42L, loaded.snapshotVersion());
+        assertEquals(1476000000000L, loaded.snapshotMillis());
+    }
+
+    @Test
+    public void fresherSnapshot_isOnlySavedOncePerInterval() throws Exception {
+        SettingsStore store = new SettingsStore(file, 60 * 1000L);
+        long[] bits = { 5L };
+        store.setSnapshot(4, bits, 42L, 1000L);
+        store.flush();
+        store.setSnapshot(4, bits, 42L, 2000L);
+        store.flush();
+        assertEquals(1, store.writeCount());
+        // Still reported as confirmed at the latest time
+        assertEquals(2000L, store.snapshotMillis());
+
+        store.setSnapshot(4, bits, 42L, 1000L + SettingsStore.SNAPSHOT_SAVE_MILLIS);
+        store.flush();
+        assertEquals(2, store.writeCount());
+        // A change is saved right away
+        store.setSnapshot(4, new long[] { 4L }, 43L, 1001L + SettingsStore.SNAPSHOT_SAVE_MILLIS);
+        store.flush();
+        assertEquals(3, store.writeCount());
+    }
+
+    @Test
+    public void schedules_surviveReload() throws Exception {
+        SettingsStore store = new SettingsStore(file, 60 * 1000L);
+        store.putSchedule(1, Schedule.daily(2, true, 7, 0));
+        store.putSchedule(9, new Schedule(4, false, Schedule.WEEKENDS, 86399));
+        store.putSchedule(5, Schedule.daily(1, true, 6, 0));
+        store.removeSchedule(5);
+        store.flush();
+
+        SettingsStore loaded = new SettingsStore(file, 60 * 1000L);
+        assertArrayEquals(new int[] {1, 9}, loaded.scheduleIds());
+        assertEquals(Schedule.daily(2, true, 7, 0), loaded.schedule(1));
+        assertEquals(new Schedule(4, false, Schedule.WEEKENDS, 86399), loaded.schedule(9));
+        assertNull(loaded.schedule(5));
+    }
+
+    @Test
+    public void keepalives_surviveReloadAndStayBounded() throws Exception {
+        SettingsStore store = new SettingsStore(file, 60 * 1000L);
+        for (int i = 0; i <= SettingsStore.MAX_NETWORKS; i++) {
+            store.setKeepalive("WIFI/net" + i, 60 + i, 0);
+        }
+        store.setKeepalive("WIFI/net1", 300, 360);
+        store.flush();
+
+        SettingsStore loaded = new SettingsStore(file, 60 * 1000L);
+        // The oldest network was dropped to make room
+        assertEquals(0, loaded.keepaliveGood("WIFI/net0"));
+        assertEquals(300, loaded.keepaliveGood("WIFI/net1"));
+        assertEquals(360, loaded.keepaliveBad("WIFI/net1"));
+        assertEquals(60 + SettingsStore.MAX_NETWORKS, loaded.keepaliveGood("WIFI/net" + SettingsStore.MAX_NETWORKS));
+    }
+
+    @Test
+    public void burstOfChanges_isWrittenOnce() throws Exception {
+        SettingsStore store = new SettingsStore(file, 50);
+        for (int i = 0; i < 100; i++) {
+            store.setTimerOn(i % 24, i % 60);
+        }
+        Thread.sleep(500);
+        assertEquals(1, store.writeCount());
+        // Nothing left to write
+        store.flush();
+        assertEquals(1, store.writeCount());
+        assertEquals(99 % 24, new SettingsStore(file, 50).hourOn());
+    }
+
+    @Test
+    public void unchangedValues_areNotWritten() throws Exception {
+        SettingsStore store = new SettingsStore(file, 60 * 1000L);
+        store.setBatteryPos(0);
+        store.setStripId("1");
+        store.flush();
+        assertEquals(0, store.writeCount());
+    }
+
+    @Test
+    public void clientId_isMadeOnceAndKept() throws Exception {
+        SettingsStore store = new SettingsStore(file, 60 * 1000L);
+        String id = store.clientId();
+        assertTrue(id.startsWith("wp-"));
+        assertTrue(id.length() <= 23);
+        assertEquals(id, store.clientId());
+        store.flush();
+        assertEquals(id, new SettingsStore(file, 60 * 1000L).clientId());
+        file.delete();
+        assertNotEquals(id, new SettingsStore(file, 60 * 1000L).clientId());
+    }
+
+    @Test
+    public void corruptFile_fallsBackToDefaults() throws Exception {
+        SettingsStore store = new SettingsStore(file, 60 * 1000L);
+        store.setBatteryPos(3);
+        store.flush();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(10);
+        raf.write(0x55);
+        raf.close();
+        assertEquals(0, new SettingsStore(file, 60 * 1000L).batteryPos());
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class StateStreamTest {
+
+    // Runs posted deliveries only when asked, like a busy main thread
+    private final List<Runnable> posted = new ArrayList<Runnable>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            posted.add(command);
+        }
+    };
+
+    private final List<String> received = new ArrayList<String>();
+    private final StateStream.Subscriber subscriber = new StateStream.Subscriber() {
+        @Override
+        public void onOutletsChanged(int strip, long[] changed) {
+            received.add(strip + ":" + changed[0]);
+        }
+    };
+
+    private void runPosted() {
+        List<Runnable> batch = new ArrayList<Runnable>(posted);
+        posted.clear();
+        for (Runnable r : batch) {
+            r.run();
+        }
+    }
+
+    @Test
+    public void newSubscriber_getsKnownOutlets() throws Exception {
+        OutletStore store = new OutletStore();
+        store.applyDelta(0, 1, 4, 15L, 5L);
+        store.applyDelta(1, 1, 2, 3L, 0L);
+        StateStream stream = new StateStream(store);
+        stream.subscribe(subscriber, executor);
+        runPosted();
+        assertEquals(2, received.size());
+        assertTrue(received.contains("0:15"));
+        assertTrue(received.contains("1:3"));
+    }
+
+    @Test
+    public void slowSubscriber_getsOneConflatedDelivery() throws Exception {
+        StateStream stream = new StateStream(new OutletStore());
+        StateStream.Subscription s = stream.subscribe(subscriber, executor);
+        runPosted();
+        stream.publish(0, 1L);
+        stream.publish(0, 4L);
+        stream.publish(0, 1L);
+        assertEquals(1, posted.size());
+        runPosted();
+        assertEquals(1, received.size());
+        assertEquals("0:5", received.get(0));
+        assertEquals(2, s.conflatedCount());
+    }
+
+    @Test
+    public void cancelledSubscription_isNotCalled() throws Exception {
+        StateStream stream = new StateStream(new OutletStore());
+        StateStream.Subscription s = stream.subscribe(subscriber, executor);
+        stream.publish(0, 2L);
+        s.cancel();
+        runPosted();
+        stream.publish(0, 2L);
+        runPosted();
+        assertTrue(received.isEmpty());
+    }
+}
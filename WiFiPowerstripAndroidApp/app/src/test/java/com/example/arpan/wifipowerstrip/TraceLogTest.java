@@ -0,0 +1,56 @@
+package com.example.arpan.wifipowerstrip;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class TraceLogTest {
+
+    private static String dump(TraceLog trace) {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        trace.dump(writer);
+        writer.flush();
+        return out.toString();
+    }
+
+    @Test
+    public void eventsBelowTheLevel_areNotRecorded() throws Exception {
+        TraceLog trace = new TraceLog(TraceLog.INFO, false);
+        assertFalse(trace.isLoggable(TraceLog.PUBLISHED));
+        trace.log(TraceLog.PUBLISHED, 42, "strip/1/cmd");
+        trace.log(TraceLog.CONNECTED, 5);
+        assertEquals(1, trace.count());
+
+        trace.setLevel(TraceLog.OFF);
+        trace.log(TraceLog.CLIENT_FAILED, 3, "refused");
+        assertEquals(1, trace.count());
+    }
+
+    @Test
+    public void dump_writesFieldsAndDetails() throws Exception {
+        TraceLog trace = new TraceLog(TraceLog.DEBUG, false);
+        trace.log(TraceLog.NOT_SWITCHED, 2, 6);
+        trace.log(TraceLog.PUBLISHED, 42, "strip/1/cmd");
+        String[] lines = dump(trace).split("\n");
+        assertEquals("trace level=D count=2 overwritten=0", lines[0]);
+        assertTrue(lines[1], lines[1].endsWith(" W Publish not_switched strip=2 mask=6"));
+        assertTrue(lines[2], lines[2].endsWith(" D Publish published bytes=42 strip/1/cmd"));
+    }
+
+    @Test
+    public void fullRing_keepsTheNewestEvents() throws Exception {
+        TraceLog trace = new TraceLog(TraceLog.DEBUG, false);
+        for (int i = 0; i < TraceLog.CAPACITY + 5; i++) {
+            trace.log(TraceLog.RESEND, i);
+        }
+        String[] lines = dump(trace).split("\n");
+        assertEquals("trace level=D count=" + (TraceLog.CAPACITY + 5) + " overwritten=5", lines[0]);
+        assertEquals(TraceLog.CAPACITY + 1, lines.length);
+        assertTrue(lines[1].endsWith("resend id=5"));
+        assertTrue(lines[TraceLog.CAPACITY].endsWith("resend id=" + (TraceLog.CAPACITY + 4)));
+    }
+}
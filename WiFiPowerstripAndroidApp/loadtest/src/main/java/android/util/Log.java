@@ -0,0 +1,41 @@
+package android.util;
+
+/* Stand-in for the Android logger so the app classes shared with the load
+ * test run on a plain JVM. Nothing is printed unless --verbose is given,
+ * since the app logs every message it sends and receives.
+ */
+public final class Log {
+
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    public static volatile boolean verbose;
+
+    private Log() {
+    }
+
+    public static int e(String tag, String msg) {
+        if (verbose) {
+            System.err.println(tag + ": " + msg);
+        }
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return e(tag, msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return e(tag, msg);
+    }
+
+    public static int d(String tag, String msg) {
+        return e(tag, msg);
+    }
+
+    public static int println(int priority, String tag, String msg) {
+        return e(tag, msg);
+    }
+}
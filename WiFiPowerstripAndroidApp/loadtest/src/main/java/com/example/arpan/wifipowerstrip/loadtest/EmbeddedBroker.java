@@ -0,0 +1,40 @@
+package com.example.arpan.wifipowerstrip.loadtest;
+
+import io.moquette.server.Server;
+import io.moquette.server.config.MemoryConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+/* An in-process Moquette broker on localhost, so a load test run needs
+ * nothing but the JVM. Anonymous clients are allowed and nothing is kept
+ * after the run.
+ */
+final class EmbeddedBroker {
+
+    private final Server server = new Server();
+    private final File store;
+
+    EmbeddedBroker() throws IOException {
+        store = File.createTempFile("loadtest-broker", ".db");
+        store.deleteOnExit();
+    }
+
+    // Starts listening and returns the url clients connect to
+    String start(int port) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("host", "127.0.0.1");
+        props.setProperty("port", Integer.toString(port));
+        props.setProperty("websocket_port", "disabled");
+        props.setProperty("allow_anonymous", "true");
+        props.setProperty("persistent_store", store.getAbsolutePath());
+        server.startServer(new MemoryConfig(props));
+        return "tcp://127.0.0.1:" + port;
+    }
+
+    void stop() {
+        server.stopServer();
+        store.delete();
+    }
+}
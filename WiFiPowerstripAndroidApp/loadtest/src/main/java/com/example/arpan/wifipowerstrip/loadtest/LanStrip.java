@@ -0,0 +1,171 @@
+package com.example.arpan.wifipowerstrip.loadtest;
+
+import com.example.arpan.wifipowerstrip.LanLink;
+import com.example.arpan.wifipowerstrip.MessageCodec;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.Random;
+
+/* Stands in for an ESP8266 on the LAN, for trying the app's direct control
+ * path (see LanLink) without hardware. Answers discovery Hellos with its
+ * device id and acks State and Batch commands once it "switched" them,
+ * printing the outlet states after every change. Run it on a computer on
+ * the phone's Wi-Fi with ./gradlew :loadtest:lanStrip -Pargs="--id 1".
+ *
+ *   --id ID            device id, the strip id set in the app (1)
+ *   --outlets N        outlets, at most 64 (4)
+ *   --port P           UDP port (LanLink.PORT)
+ *   --delay MS         relay switching time before the ack (5)
+ *   --loss P           fraction of commands ignored, to see the broker
+ *                      fallback (0)
+ */
+public final class LanStrip {
+
+    private String id = "1";
+    private int outlets = 4;
+    private int port = LanLink.PORT;
+    private long delayMillis = 5;
+    private double loss;
+
+    private final Random random = new Random();
+    private long bits;
+    private long commands;
+
+    public static void main(String[] args) throws Exception {
+        LanStrip strip = new LanStrip();
+        strip.parse(args);
+        strip.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--id")) {
+                id = value;
+            } else if (arg.equals("--outlets")) {
+                outlets = Integer.parseInt(value);
+            } else if (arg.equals("--port")) {
+                port = Integer.parseInt(value);
+            } else if (arg.equals("--delay")) {
+                delayMillis = Long.parseLong(value);
+            } else if (arg.equals("--loss")) {
+                loss = Double.parseDouble(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (outlets < 1 || outlets > 64) {
+            throw new IllegalArgumentException("--outlets must be 1 to 64");
+        }
+    }
+
+    private void run() throws Exception {
+        DatagramSocket socket = new DatagramSocket(port);
+        System.out.println("Strip " + id + " with " + outlets + " outlets on UDP port " + port);
+        byte[] in = new byte[MessageCodec.MAX_FRAME_LENGTH];
+        byte[] out = new byte[MessageCodec.MAX_FRAME_LENGTH];
+        DatagramPacket packet = new DatagramPacket(in, in.length);
+        Command command = new Command();
+        while (true) {
+            packet.setLength(in.length);
+            socket.receive(packet);
+            int length = packet.getLength();
+            if (!MessageCodec.isFrame(in, 0, length)) {
+                continue;
+            }
+            command.reset();
+            MessageCodec.decode(in, 0, length, command);
+            int reply = 0;
+            if (command.hello) {
+                reply = MessageCodec.encodeHello(out, 0, id);
+            } else if (command.mask != 0) {
+                commands++;
+                if (random.nextDouble() < loss) {
+                    System.out.println("Dropped command " + commands);
+                    continue;
+                }
+                Thread.sleep(delayMillis);
+                long valid = outlets >= 64 ? -1L : (1L << outlets) - 1;
+                bits = (bits & ~command.mask) | (command.values & command.mask & valid);
+                print();
+                // Commands without an id predate acks
+                int ackId = commandId(in, length, in[2]);
+                if (ackId != 0) {
+                    reply = MessageCodec.encodeAck(out, 0, ackId, true);
+                }
+            }
+            if (reply > 0) {
+                socket.send(new DatagramPacket(out, reply, packet.getSocketAddress()));
+            }
+        }
+    }
+
+    // The correlation id right after the State or Batch body, 0 if none
+    private static int commandId(byte[] in, int length, int type) {
+        int p;
+        if (type == MessageCodec.TYPE_STATE) {
+            p = MessageCodec.HEADER_LENGTH + 2;
+        } else {
+            int bytes = ((in[MessageCodec.HEADER_LENGTH] & 0xFF) + 7) >>> 3;
+            p = MessageCodec.HEADER_LENGTH + 1 + 2 * bytes;
+        }
+        if (length < p + 4) {
+            return 0;
+        }
+        return ((in[p] & 0xFF) << 24) | ((in[p + 1] & 0xFF) << 16)
+                | ((in[p + 2] & 0xFF) << 8) | (in[p + 3] & 0xFF);
+    }
+
+    private void print() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < outlets; i++) {
+            sb.append(i == 0 ? "" : "/").append(i + 1).append(':').append((bits >>> i) & 1L);
+        }
+        System.out.println(sb);
+    }
+
+    // What the last datagram asked for
+    private static final class Command extends MessageCodec.Adapter {
+        boolean hello;
+        long mask;
+        long values;
+        private boolean fromStrip;
+
+        void reset() {
+            hello = false;
+            fromStrip = false;
+            mask = 0;
+            values = 0;
+        }
+
+        @Override
+        public void onDeviceId(String id) {
+            // Another strip answering a phone
+            fromStrip = true;
+        }
+
+        @Override
+        public void onHello(int version) {
+            hello = !fromStrip;
+        }
+
+        @Override
+        public void onState(int outlet, boolean on) {
+            if (outlet >= 1 && outlet <= 64) {
+                mask = 1L << (outlet - 1);
+                values = on ? mask : 0;
+            }
+        }
+
+        @Override
+        public void onBatch(int count, long mask, long values) {
+            this.mask = mask;
+            this.values = values;
+        }
+    }
+}
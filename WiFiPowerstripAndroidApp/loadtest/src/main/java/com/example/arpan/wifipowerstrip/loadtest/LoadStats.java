@@ -0,0 +1,77 @@
+package com.example.arpan.wifipowerstrip.loadtest;
+
+import com.example.arpan.wifipowerstrip.Histogram;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Counters shared by every simulated phone and strip of a run.
+ *
+ * Broker counts are messages that actually crossed the broker. Device counts
+ * are what the simulated devices saw: a shard connection carries many
+ * devices, so one delivery to a phone shard reaches every phone on it that
+ * follows the strip, like separate connections would.
+ */
+final class LoadStats {
+
+    // Switch changes made by the simulated users
+    final AtomicLong commands = new AtomicLong();
+    // Commands dropped by the CommandReconciler before being sent
+    final AtomicLong suppressed = new AtomicLong();
+    // Command to the phone seeing the outlet in that state, in microseconds
+    final Histogram latency = new Histogram();
+
+    final AtomicLong phonePublishes = new AtomicLong();
+    final AtomicLong stripPublishes = new AtomicLong();
+    final AtomicLong phoneShardDeliveries = new AtomicLong();
+    final AtomicLong stripShardDeliveries = new AtomicLong();
+    final AtomicLong phoneDeliveries = new AtomicLong();
+    final AtomicLong stateChanges = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+
+    private volatile long startedNanos = System.nanoTime();
+
+    void reset() {
+        AtomicLong[] counters = { commands, suppressed, phonePublishes, stripPublishes,
+                phoneShardDeliveries, stripShardDeliveries, phoneDeliveries, stateChanges, failures };
+        for (AtomicLong counter : counters) {
+            counter.set(0);
+        }
+        latency.reset();
+        startedNanos = System.nanoTime();
+    }
+
+    // One line summary for progress output
+    String progress() {
+        double seconds = (System.nanoTime() - startedNanos) / 1e9;
+        return String.format(Locale.US, "%6.1fs commands/s=%.0f confirmed=%d p50=%dus p99=%dus failures=%d",
+                seconds, commands.get() / seconds, latency.count(),
+                latency.percentile(50), latency.percentile(99), failures.get());
+    }
+
+    String report() {
+        double seconds = (System.nanoTime() - startedNanos) / 1e9;
+        long cmds = Math.max(1, commands.get());
+        long broker = phonePublishes.get() + stripPublishes.get()
+                + phoneShardDeliveries.get() + stripShardDeliveries.get();
+        long device = phonePublishes.get() + stripPublishes.get()
+                + phoneDeliveries.get() + stripShardDeliveries.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "duration            %.1f s%n", seconds));
+        sb.append(String.format(Locale.US, "commands            %d (%.0f/s), %d suppressed%n",
+                commands.get(), commands.get() / seconds, suppressed.get()));
+        sb.append(String.format(Locale.US, "outlet changes      %d%n", stateChanges.get()));
+        sb.append(String.format(Locale.US, "published           %d by phones, %d by strips (%.0f/s)%n",
+                phonePublishes.get(), stripPublishes.get(),
+                (phonePublishes.get() + stripPublishes.get()) / seconds));
+        sb.append(String.format(Locale.US, "delivered           %d to phone shards, %d to strip shards (%.0f/s)%n",
+                phoneShardDeliveries.get(), stripShardDeliveries.get(),
+                (phoneShardDeliveries.get() + stripShardDeliveries.get()) / seconds));
+        sb.append(String.format(Locale.US, "command to sync     p50=%dus p99=%dus max=%dus (%d confirmed)%n",
+                latency.percentile(50), latency.percentile(99), latency.max(), latency.count()));
+        sb.append(String.format(Locale.US, "amplification       %.2f broker msgs/command, %.2f device msgs/command%n",
+                (double) broker / cmds, (double) device / cmds));
+        sb.append(String.format(Locale.US, "failures            %d%n", failures.get()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,226 @@
+package com.example.arpan.wifipowerstrip.loadtest;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Headless load test of the client protocol logic. Simulates thousands of
+ * phones and strips against an embedded broker (or an external one given
+ * with --broker) and reports throughput, command to sync latency and message
+ * amplification, so changes to the client can be measured without hardware.
+ *
+ * Phones and strips are grouped onto a few MQTT connections per side (see
+ * PhoneShard and StripShard) and every simulated user is a periodic task on
+ * a shared scheduled thread pool, so thousands of devices need only a few
+ * dozen threads.
+ *
+ *   --phones N         simulated apps (default 2000)
+ *   --strips N         simulated strips, phone i follows strip i % N (1000)
+ *   --outlets N        outlets per strip, at most 32 (4)
+ *   --rate R           switch changes per phone per second (0.2)
+ *   --battery S        seconds between battery reports per phone, 0 for none (60)
+ *   --seconds S        how long to run after the initial sync (30)
+ *   --shards N         connections per side (16)
+ *   --coalesce MS      coalescing window, like MqttService (75)
+ *   --port P           port of the embedded broker (18830)
+ *   --broker URL       use this broker instead of the embedded one
+ *   --verbose          print the app's log output
+ */
+public final class LoadTest {
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 30000;
+    private static final long SYNC_TIMEOUT_MILLIS = 30000;
+    private static final long PROGRESS_SECONDS = 5;
+
+    private int phones = 2000;
+    private int strips = 1000;
+    private int outlets = 4;
+    private double rate = 0.2;
+    private int batterySeconds = 60;
+    private int seconds = 30;
+    private int shards = 16;
+    private long coalesceMillis = 75;
+    private int port = 18830;
+    private String brokerUrl;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        test.parse(args);
+        test.run();
+        // Paho and the broker leave non-daemon threads behind
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--verbose")) {
+                Log.verbose = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--phones")) {
+                phones = Integer.parseInt(value);
+            } else if (arg.equals("--strips")) {
+                strips = Integer.parseInt(value);
+            } else if (arg.equals("--outlets")) {
+                outlets = Integer.parseInt(value);
+            } else if (arg.equals("--rate")) {
+                rate = Double.parseDouble(value);
+            } else if (arg.equals("--battery")) {
+                batterySeconds = Integer.parseInt(value);
+            } else if (arg.equals("--seconds")) {
+                seconds = Integer.parseInt(value);
+            } else if (arg.equals("--shards")) {
+                shards = Integer.parseInt(value);
+            } else if (arg.equals("--coalesce")) {
+                coalesceMillis = Long.parseLong(value);
+            } else if (arg.equals("--port")) {
+                port = Integer.parseInt(value);
+            } else if (arg.equals("--broker")) {
+                brokerUrl = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (outlets < 1 || outlets > 32) {
+            throw new IllegalArgumentException("--outlets must be 1 to 32");
+        }
+        strips = Math.max(1, Math.min(strips, phones));
+        shards = Math.max(1, Math.min(shards, strips));
+    }
+
+    private void run() throws Exception {
+        EmbeddedBroker broker = null;
+        String url = brokerUrl;
+        if (url == null) {
+            broker = new EmbeddedBroker();
+            url = broker.start(port);
+        }
+        System.out.println("Broker " + url + ", " + phones + " phones, " + strips + " strips of "
+                + outlets + " outlets, " + shards + " shards per side");
+
+        LoadStats stats = new LoadStats();
+        List<StripShard> stripShards = new ArrayList<StripShard>();
+        List<PhoneShard> phoneShards = new ArrayList<PhoneShard>();
+        List<SimulatedPhone> allPhones = new ArrayList<SimulatedPhone>();
+        int stripsPerShard = (strips + shards - 1) / shards;
+        for (int s = 0; s < shards; s++) {
+            stripShards.add(new StripShard(url, "loadtest-strips-" + s, stats));
+            phoneShards.add(new PhoneShard(url, "loadtest-phones-" + s, stats, stripsPerShard));
+        }
+        for (int i = 0; i < strips; i++) {
+            stripShards.get(i % shards).addStrip(stripId(i), outlets);
+        }
+        // Phones of a strip share a shard so one delivery reaches all of them
+        for (int i = 0; i < phones; i++) {
+            int strip = i % strips;
+            allPhones.add(phoneShards.get(strip % shards).addPhone(stripId(strip), coalesceMillis));
+        }
+
+        for (StripShard shard : stripShards) {
+            shard.start(CONNECT_TIMEOUT_MILLIS);
+        }
+        long syncStart = System.nanoTime();
+        for (PhoneShard shard : phoneShards) {
+            shard.start(CONNECT_TIMEOUT_MILLIS);
+        }
+        waitForSync(allPhones);
+        System.out.println("Initial sync of every phone took "
+                + (System.nanoTime() - syncStart) / 1000000L + " ms");
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    private final AtomicInteger next = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "loadtest-user-" + next.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // Counting starts over so the initial sync isn't part of the results
+        stats.reset();
+        schedulePhones(scheduler, allPhones);
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(PROGRESS_SECONDS),
+                    Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            System.out.println(stats.progress());
+        }
+        scheduler.shutdownNow();
+        // Lets the last commands come back before reporting
+        Thread.sleep(Math.max(1000, coalesceMillis * 4));
+        System.out.println();
+        System.out.print(stats.report());
+
+        for (PhoneShard shard : phoneShards) {
+            shard.stop();
+        }
+        for (StripShard shard : stripShards) {
+            shard.stop();
+        }
+        if (broker != null) {
+            broker.stop();
+        }
+    }
+
+    private void schedulePhones(ScheduledExecutorService scheduler, List<SimulatedPhone> allPhones) {
+        long periodMicros = rate > 0 ? (long) (1e6 / rate) : 0;
+        for (final SimulatedPhone phone : allPhones) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (periodMicros > 0) {
+                scheduler.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        phone.toggle(1 + ThreadLocalRandom.current().nextInt(outlets));
+                    }
+                }, random.nextLong(periodMicros), periodMicros, TimeUnit.MICROSECONDS);
+            }
+            if (batterySeconds > 0) {
+                long period = TimeUnit.SECONDS.toMicros(batterySeconds);
+                scheduler.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        ThreadLocalRandom r = ThreadLocalRandom.current();
+                        phone.sendBattery(r.nextInt(1001), r.nextInt(24), r.nextInt(60));
+                    }
+                }, random.nextLong(period), period, TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+
+    private static void waitForSync(List<SimulatedPhone> allPhones) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS;
+        int synced = 0;
+        while (System.currentTimeMillis() < deadline) {
+            synced = 0;
+            for (SimulatedPhone phone : allPhones) {
+                if (phone.outletCount() > 0) {
+                    synced++;
+                }
+            }
+            if (synced == allPhones.size()) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        System.out.println("Only " + synced + " of " + allPhones.size() + " phones synced, going on anyway");
+    }
+
+    private static String stripId(int i) {
+        return "load" + i;
+    }
+}
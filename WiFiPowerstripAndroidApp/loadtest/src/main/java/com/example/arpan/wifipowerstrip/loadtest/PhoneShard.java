@@ -0,0 +1,178 @@
+package com.example.arpan.wifipowerstrip.loadtest;
+
+import com.example.arpan.wifipowerstrip.DeviceIndex;
+import com.example.arpan.wifipowerstrip.Frame;
+import com.example.arpan.wifipowerstrip.MessageCodec;
+import com.example.arpan.wifipowerstrip.PublishPipeline;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* One broker connection carrying many simulated phones, set up like the
+ * MqttService: outbound frames go through a PublishPipeline whose I/O thread
+ * also runs the phones' CommandCoalescers, strips are indexed by their state
+ * topic in a DeviceIndex, and whether a strip speaks binary frames is learnt
+ * from its hello.
+ */
+final class PhoneShard implements MqttCallback, PublishPipeline.Transport {
+
+    private static final int OUTBOUND_CAPACITY = 1024;
+    private static final int SUBSCRIBE_CHUNK = 100;
+
+    private final MqttAsyncClient client;
+    private final LoadStats stats;
+    private final PublishPipeline pipeline = new PublishPipeline(this, OUTBOUND_CAPACITY);
+    private final DeviceIndex devices;
+    // Phones following each strip, by strip index
+    private final List<List<SimulatedPhone>> followers = new ArrayList<List<SimulatedPhone>>();
+    private final List<SimulatedPhone> phones = new ArrayList<SimulatedPhone>();
+
+    PhoneShard(String url, String clientId, LoadStats stats, int maxStrips) throws MqttException {
+        this.client = new MqttAsyncClient(url, clientId, new MemoryPersistence());
+        this.stats = stats;
+        this.devices = new DeviceIndex(maxStrips);
+        client.setCallback(this);
+    }
+
+    SimulatedPhone addPhone(String stripId, long coalesceMillis) {
+        int strip = devices.register(stripId);
+        while (followers.size() <= strip) {
+            followers.add(new ArrayList<SimulatedPhone>());
+        }
+        SimulatedPhone phone = new SimulatedPhone(this, stats, strip, coalesceMillis);
+        followers.get(strip).add(phone);
+        phones.add(phone);
+        phone.attach(pipeline);
+        return phone;
+    }
+
+    List<SimulatedPhone> phones() {
+        return phones;
+    }
+
+    // Connects, follows the state topic of every strip a phone here uses and
+    // has every phone sync like a freshly started app
+    void start(long timeoutMillis) throws MqttException {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        client.connect(options).waitForCompletion(timeoutMillis);
+        for (int i = 0; i < devices.size(); i += SUBSCRIBE_CHUNK) {
+            int n = Math.min(devices.size() - i, SUBSCRIBE_CHUNK);
+            String[] filters = new String[n];
+            for (int j = 0; j < n; j++) {
+                filters[j] = DeviceIndex.PREFIX + devices.id(i + j) + DeviceIndex.STATE_SUFFIX;
+            }
+            client.subscribe(filters, new int[n]).waitForCompletion(timeoutMillis);
+        }
+        pipeline.start();
+        for (int strip = 0; strip < devices.size(); strip++) {
+            // Apps send their hello to strip/all/cmd, here it goes only to
+            // the strips followed so the fleet doesn't answer every phone
+            Frame frame = pipeline.acquire();
+            if (frame != null) {
+                frame.length = MessageCodec.encodeHello(frame.data, 0);
+                submit(frame, devices.cmdTopic(strip));
+            }
+        }
+        for (SimulatedPhone phone : phones) {
+            phone.sync();
+        }
+    }
+
+    void stop() {
+        for (SimulatedPhone phone : phones) {
+            phone.stop();
+        }
+        pipeline.stop();
+        try {
+            client.disconnect().waitForCompletion(1000);
+        } catch (MqttException e) {
+            // Shutting down anyway
+        }
+    }
+
+    boolean isBinary(int strip) {
+        return devices.isBinary(strip);
+    }
+
+    String cmdTopic(int strip) {
+        return devices.cmdTopic(strip);
+    }
+
+    // Takes a frame to encode into, or null if the pipeline is full
+    Frame acquire() {
+        Frame frame = pipeline.acquire();
+        if (frame == null) {
+            stats.failures.incrementAndGet();
+        }
+        return frame;
+    }
+
+    void submit(Frame frame, String topic) {
+        frame.topic = topic;
+        pipeline.submit(frame);
+    }
+
+    // PublishPipeline.Transport, called on the I/O thread
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    @Override
+    public void publish(Frame frame) throws MqttException {
+        client.publish(frame.topic, frame.toMessage(0), frame, publishListener);
+        stats.phonePublishes.incrementAndGet();
+    }
+
+    private final IMqttActionListener publishListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            pipeline.complete((Frame) token.getUserContext(), true);
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable cause) {
+            stats.failures.incrementAndGet();
+            pipeline.complete((Frame) token.getUserContext(), false);
+        }
+    };
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        stats.phoneShardDeliveries.incrementAndGet();
+        int strip = devices.lookup(topic);
+        if (strip < 0) {
+            return;
+        }
+        byte[] payload = message.getPayload();
+        if (MessageCodec.typeOf(payload, 0, payload.length) == MessageCodec.TYPE_HELLO) {
+            devices.setBinary(strip, true);
+        }
+        List<SimulatedPhone> list = followers.get(strip);
+        stats.phoneDeliveries.addAndGet(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            list.get(i).onMessage(payload);
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        System.err.println("Phone shard lost its connection: " + cause);
+        stats.failures.incrementAndGet();
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+}
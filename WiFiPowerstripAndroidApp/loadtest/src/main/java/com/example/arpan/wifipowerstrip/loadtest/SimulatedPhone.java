@@ -0,0 +1,165 @@
+package com.example.arpan.wifipowerstrip.loadtest;
+
+import com.example.arpan.wifipowerstrip.CommandCoalescer;
+import com.example.arpan.wifipowerstrip.CommandReconciler;
+import com.example.arpan.wifipowerstrip.Frame;
+import com.example.arpan.wifipowerstrip.MessageCodec;
+import com.example.arpan.wifipowerstrip.OutletStore;
+import com.example.arpan.wifipowerstrip.PublishPipeline;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* One app following one strip, running the MqttService command and sync
+ * path: switch changes are coalesced, reconciled against the expected
+ * outlet states and sent as a batch or per outlet depending on what the
+ * strip speaks, and the strip's deltas are applied to an OutletStore.
+ *
+ * toggle() and sendBattery() run on the load test's scheduler threads,
+ * flush on the shard's I/O thread and onMessage on its callback thread.
+ */
+final class SimulatedPhone extends MessageCodec.Adapter implements CommandCoalescer.Sink {
+
+    private static final int STORE_STRIP = 0;
+
+    private final PhoneShard shard;
+    private final LoadStats stats;
+    private final int strip;
+    private final OutletStore store = new OutletStore();
+    private final CommandReconciler reconciler = new CommandReconciler();
+    private final CommandCoalescer coalescer;
+
+    // When each outlet (by bit index) was last switched, 0 once the strip
+    // confirmed it, and the state it was switched to
+    private final AtomicLongArray commandedAt = new AtomicLongArray(CommandCoalescer.MAX_OUTLETS);
+    private final AtomicLongArray commandedOn = new AtomicLongArray(CommandCoalescer.MAX_OUTLETS);
+
+    SimulatedPhone(PhoneShard shard, LoadStats stats, int strip, long coalesceMillis) {
+        this.shard = shard;
+        this.stats = stats;
+        this.strip = strip;
+        this.coalescer = new CommandCoalescer(coalesceMillis, this);
+    }
+
+    void attach(PublishPipeline pipeline) {
+        coalescer.attach(pipeline);
+    }
+
+    void stop() {
+        coalescer.flushNow();
+    }
+
+    // Outlets the strip reported, 0 until the first sync is answered
+    int outletCount() {
+        return store.count(STORE_STRIP);
+    }
+
+    void sync() {
+        Frame frame = shard.acquire();
+        if (frame == null) {
+            return;
+        }
+        long since = store.version(STORE_STRIP);
+        frame.length = shard.isBinary(strip)
+                ? MessageCodec.encodeSync(frame.data, 0, since)
+                : MessageCodec.encodeLegacySync(frame.data, 0, since);
+        shard.submit(frame, shard.cmdTopic(strip));
+    }
+
+    // Flips an outlet like a user tapping its switch
+    void toggle(int outlet) {
+        int i = outlet - 1;
+        boolean on = !store.isOn(STORE_STRIP, outlet);
+        commandedOn.set(i, on ? 1 : 0);
+        commandedAt.set(i, System.nanoTime());
+        stats.commands.incrementAndGet();
+        coalescer.set(outlet, on);
+    }
+
+    void sendBattery(int permille, int hour, int minute) {
+        Frame frame = shard.acquire();
+        if (frame == null) {
+            return;
+        }
+        frame.length = shard.isBinary(strip)
+                ? MessageCodec.encodeBattery(frame.data, 0, permille, hour, minute)
+                : MessageCodec.encodeLegacyBattery(frame.data, 0, permille, hour, minute);
+        shard.submit(frame, shard.cmdTopic(strip));
+    }
+
+    // CommandCoalescer.Sink, like MqttService.sendCoalesced
+    @Override
+    public void flush(int count, long mask, long values) {
+        long send = reconciler.diverging(mask, values);
+        long dropped = mask & ~send;
+        if (dropped != 0) {
+            // Nothing will confirm these, the outlet already is in that state
+            stats.suppressed.addAndGet(Long.bitCount(dropped));
+            for (int i = 0; i < count; i++) {
+                if (((dropped >>> i) & 1L) != 0) {
+                    commandedAt.set(i, 0);
+                }
+            }
+        }
+        if (send == 0) {
+            return;
+        }
+        if (shard.isBinary(strip) && Long.bitCount(send) > 1) {
+            Frame frame = shard.acquire();
+            if (frame != null) {
+                frame.length = MessageCodec.encodeBatch(frame.data, 0, count, send, values);
+                shard.submit(frame, shard.cmdTopic(strip));
+            }
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (((send >>> i) & 1L) != 0) {
+                Frame frame = shard.acquire();
+                if (frame == null) {
+                    return;
+                }
+                boolean on = ((values >>> i) & 1L) != 0;
+                frame.length = shard.isBinary(strip)
+                        ? MessageCodec.encodeState(frame.data, 0, i + 1, on)
+                        : MessageCodec.encodeLegacyState(frame.data, 0, i + 1, on);
+                shard.submit(frame, shard.cmdTopic(strip));
+            }
+        }
+    }
+
+    void onMessage(byte[] payload) {
+        MessageCodec.decode(payload, 0, payload.length, this);
+    }
+
+    @Override
+    public void onSnapshot(int count, long bits) {
+        long mask = count >= 64 ? -1L : (1L << count) - 1;
+        reconciler.onRemote(mask, bits);
+        store.applySnapshot(STORE_STRIP, count, bits);
+        confirm(count, mask, bits);
+    }
+
+    @Override
+    public void onDelta(long version, int count, long mask, long values) {
+        if (version == 0 || version >= store.version(STORE_STRIP)) {
+            reconciler.onRemote(mask, values);
+        }
+        store.applyDelta(STORE_STRIP, version, count, mask, values);
+        confirm(count, mask, values);
+    }
+
+    // Records the latency of commands the strip now reports as applied
+    private void confirm(int count, long mask, long values) {
+        long now = System.nanoTime();
+        int n = Math.min(count, CommandCoalescer.MAX_OUTLETS);
+        for (int i = 0; i < n; i++) {
+            if (((mask >>> i) & 1L) == 0) {
+                continue;
+            }
+            long at = commandedAt.get(i);
+            if (at != 0 && commandedOn.get(i) == ((values >>> i) & 1L)
+                    && commandedAt.compareAndSet(i, at, 0)) {
+                stats.latency.record((now - at) / 1000L);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.arpan.wifipowerstrip.loadtest;
+
+import com.example.arpan.wifipowerstrip.DeviceIndex;
+import com.example.arpan.wifipowerstrip.MessageCodec;
+
+/* One strip server as MqttBroker.py implements it, with the outlets kept in
+ * memory instead of MySQL and the ESP8266: commands that repeat the current
+ * state are dropped, every change bumps the version and replaces the full
+ * state retained on the state topic, and syncs are answered with the
+ * outlets changed since the version given.
+ *
+ * Only called on its StripShard's callback thread.
+ */
+final class SimulatedStrip extends MessageCodec.Adapter {
+
+    private final StripShard shard;
+    private final LoadStats stats;
+    final String cmdTopic;
+    final String stateTopic;
+    private final int count;
+    private final long validMask;
+
+    private final long startVersion = System.currentTimeMillis();
+    private long version = startVersion;
+    private final long[] outletVersions;
+    private long bits;
+
+    // Format of the last app message, replies use the same one
+    private boolean binary;
+
+    SimulatedStrip(StripShard shard, LoadStats stats, String id, int count) {
+        this.shard = shard;
+        this.stats = stats;
+        this.cmdTopic = DeviceIndex.PREFIX + id + DeviceIndex.CMD_SUFFIX;
+        this.stateTopic = DeviceIndex.PREFIX + id + DeviceIndex.STATE_SUFFIX;
+        this.count = count;
+        this.validMask = count >= 64 ? -1L : (1L << count) - 1;
+        this.outletVersions = new long[count];
+    }
+
+    void onMessage(byte[] payload) {
+        binary = MessageCodec.isFrame(payload, 0, payload.length);
+        MessageCodec.decode(payload, 0, payload.length, this);
+    }
+
+    @Override
+    public void onHello(int version) {
+        byte[] out = shard.buffer();
+        shard.publish(stateTopic, out, MessageCodec.encodeHello(out, 0));
+    }
+
+    @Override
+    public void onState(int outlet, boolean on) {
+        if (outlet >= 1 && outlet <= count) {
+            apply(1L << (outlet - 1), on ? -1L : 0);
+        }
+    }
+
+    @Override
+    public void onBatch(int count, long mask, long values) {
+        apply(mask, values);
+    }
+
+    @Override
+    public void onSyncRequest(long since) {
+        publishDelta(since);
+    }
+
+    private void apply(long mask, long values) {
+        long changed = mask & validMask & (bits ^ values);
+        if (changed == 0) {
+            return;
+        }
+        version++;
+        for (int i = 0; i < count; i++) {
+            if (((changed >>> i) & 1L) != 0) {
+                outletVersions[i] = version;
+            }
+        }
+        bits = (bits & ~changed) | (values & changed);
+        stats.stateChanges.addAndGet(Long.bitCount(changed));
+        publishDelta(0, true);
+    }
+
+    private void publishDelta(long since) {
+        publishDelta(since, false);
+    }
+
+    private void publishDelta(long since, boolean retained) {
+        long mask = 0;
+        boolean all = since < startVersion || since > version;
+        for (int i = 0; i < count; i++) {
+            if (all || outletVersions[i] > since) {
+                mask |= 1L << i;
+            }
+        }
+        byte[] out = shard.buffer();
+        int length = binary
+                ? MessageCodec.encodeDelta(out, 0, version, count, mask, bits & mask)
+                : MessageCodec.encodeLegacyDelta(out, 0, version, count, mask, bits & mask);
+        shard.publish(stateTopic, out, length, retained);
+    }
+}
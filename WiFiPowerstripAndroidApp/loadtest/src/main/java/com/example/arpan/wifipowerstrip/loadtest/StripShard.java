@@ -0,0 +1,115 @@
+package com.example.arpan.wifipowerstrip.loadtest;
+
+import com.example.arpan.wifipowerstrip.MessageCodec;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* One broker connection carrying many simulated strips. Every paho client
+ * costs several threads, so strips share connections instead of each having
+ * its own; each still has its own cmd and state topics.
+ */
+final class StripShard implements MqttCallback {
+
+    private static final int SUBSCRIBE_CHUNK = 100;
+
+    private final MqttAsyncClient client;
+    private final LoadStats stats;
+    private final Map<String, SimulatedStrip> strips = new HashMap<String, SimulatedStrip>();
+    private final List<String> topics = new ArrayList<String>();
+    // Encode buffer, only used on the callback thread
+    private final byte[] buffer = new byte[MessageCodec.MAX_FRAME_LENGTH];
+
+    StripShard(String url, String clientId, LoadStats stats) throws MqttException {
+        this.client = new MqttAsyncClient(url, clientId, new MemoryPersistence());
+        this.stats = stats;
+        client.setCallback(this);
+    }
+
+    void addStrip(String id, int outlets) {
+        SimulatedStrip strip = new SimulatedStrip(this, stats, id, outlets);
+        strips.put(strip.cmdTopic, strip);
+        topics.add(strip.cmdTopic);
+    }
+
+    // Connects and subscribes to the cmd topic of every strip
+    void start(long timeoutMillis) throws MqttException {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        client.connect(options).waitForCompletion(timeoutMillis);
+        for (int i = 0; i < topics.size(); i += SUBSCRIBE_CHUNK) {
+            List<String> chunk = topics.subList(i, Math.min(topics.size(), i + SUBSCRIBE_CHUNK));
+            String[] filters = chunk.toArray(new String[chunk.size()]);
+            client.subscribe(filters, new int[filters.length]).waitForCompletion(timeoutMillis);
+        }
+    }
+
+    void stop() {
+        try {
+            client.disconnect().waitForCompletion(1000);
+        } catch (MqttException e) {
+            // Shutting down anyway
+        }
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    void publish(String topic, byte[] data, int length) {
+        publish(topic, data, length, false);
+    }
+
+    void publish(String topic, byte[] data, int length, boolean retained) {
+        byte[] payload = new byte[length];
+        System.arraycopy(data, 0, payload, 0, length);
+        try {
+            client.publish(topic, payload, 0, retained, null, publishListener);
+            stats.stripPublishes.incrementAndGet();
+        } catch (MqttException e) {
+            stats.failures.incrementAndGet();
+        }
+    }
+
+    private final IMqttActionListener publishListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable cause) {
+            stats.failures.incrementAndGet();
+        }
+    };
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        stats.stripShardDeliveries.incrementAndGet();
+        SimulatedStrip strip = strips.get(topic);
+        if (strip != null) {
+            strip.onMessage(message.getPayload());
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        System.err.println("Strip shard lost its connection: " + cause);
+        stats.failures.incrementAndGet();
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+}